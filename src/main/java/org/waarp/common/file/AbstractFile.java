@@ -21,10 +21,16 @@
 package org.waarp.common.file;
 
 import java.io.IOException;
+import java.util.List;
+
+import io.netty.channel.FileRegion;
 
 import org.waarp.common.command.exception.CommandAbstractException;
 import org.waarp.common.command.exception.Reply502Exception;
 import org.waarp.common.command.exception.Reply530Exception;
+import org.waarp.common.digest.FilesystemBasedDigest.DigestAlgo;
+import org.waarp.common.exception.FileEndOfTransferException;
+import org.waarp.common.exception.FileTransferException;
 import org.waarp.common.exception.NoRestartException;
 
 /**
@@ -37,6 +43,11 @@ public abstract class AbstractFile implements FileInterface {
      */
     protected boolean isReady = false;
 
+    /**
+     * Ranges already written by positional writes
+     */
+    protected final SegmentMap segmentMap = new SegmentMap();
+
     public void clear() throws CommandAbstractException {
         closeFile();
         isReady = false;
@@ -52,6 +63,36 @@ public abstract class AbstractFile implements FileInterface {
         throw new Reply502Exception("No marker implemented");
     }
 
+    public void writeDataBlocks(List<DataBlock> dataBlocks)
+            throws FileTransferException {
+        for (DataBlock dataBlock : dataBlocks) {
+            writeDataBlock(dataBlock);
+        }
+    }
+
+    public void writeDataBlock(long offset, DataBlock dataBlock)
+            throws FileTransferException {
+        throw new FileTransferException("Positional write not implemented");
+    }
+
+    public DataBlock readDataBlock(long offset, int length)
+            throws FileEndOfTransferException, FileTransferException {
+        throw new FileTransferException("Positional read not implemented");
+    }
+
+    public SegmentMap getSegmentMap() {
+        return segmentMap;
+    }
+
+    public byte[] getTransferDigest(DigestAlgo algo) {
+        return null;
+    }
+
+    public FileRegion getFileRegion(long position, long length)
+            throws FileEndOfTransferException, FileTransferException {
+        throw new FileTransferException("FileRegion not implemented");
+    }
+
     public boolean restartMarker(Restart restart)
             throws CommandAbstractException {
         try {
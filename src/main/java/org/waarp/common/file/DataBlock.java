@@ -18,6 +18,7 @@
 package org.waarp.common.file;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.util.Recycler;
 
 /**
  * Main object implementing Data Block whaveter the mode, type, structure used.
@@ -34,6 +35,21 @@ public class DataBlock {
 
     private static final int RESTART = 16;
 
+    /**
+     * Recycler of DataBlock used by pooled read operations
+     */
+    private static final Recycler<DataBlock> RECYCLER = new Recycler<DataBlock>() {
+        @Override
+        protected DataBlock newObject(Handle<DataBlock> handle) {
+            return new DataBlock(handle);
+        }
+    };
+
+    /**
+     * Recycler handle if any
+     */
+    private final Recycler.Handle<DataBlock> handle;
+
     /**
      * Descriptor
      */
@@ -78,6 +94,36 @@ public class DataBlock {
      * Create a simple and empty DataBlock
      */
     public DataBlock() {
+        handle = null;
+    }
+
+    /**
+     * Create a DataBlock attached to the Recycler
+     * 
+     * @param handle
+     */
+    private DataBlock(Recycler.Handle<DataBlock> handle) {
+        this.handle = handle;
+    }
+
+    /**
+     * 
+     * @return a simple and empty DataBlock, taken from the Recycler. It should be given back using
+     *         recycle() once it is no more used.
+     */
+    public static DataBlock newInstance() {
+        return RECYCLER.get();
+    }
+
+    /**
+     * Clear this DataBlock and give it back to the Recycler if it comes from newInstance(). The
+     * block itself is not released: its owner remains in charge of it.
+     */
+    public void recycle() {
+        clear();
+        if (handle != null) {
+            handle.recycle(this);
+        }
     }
 
     /**
@@ -0,0 +1,352 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.waarp.common.digest.FilesystemBasedDigest.DigestAlgo;
+
+/**
+ * Bounded cache of file digests, shared by all the file implementations of this process.<br>
+ * <br>
+ * A digest is valid for a given canonical path, length, last modification time and algorithm: a
+ * change of length or modification time makes all the digests of the file obsolete. The
+ * FileInterface implementations invalidate the digests of a file they write, rename or delete,
+ * such that a change within the granularity of the modification time is not missed.<br>
+ * <br>
+ * Lookups and stores do not take any global lock: the cache is a ConcurrentHashMap, and once over
+ * its capacity, the least recently used tenth of the files are evicted by one of the writers
+ * (approximate LRU, the capacity being exceeded by the concurrent stores meanwhile).
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class DigestCache {
+    /**
+     * False to disable the cache (nothing is stored nor found)
+     */
+    public static volatile boolean enabled = true;
+
+    /**
+     * Maximum number of files whose digests are kept
+     */
+    public static volatile int capacity = 10000;
+
+    /**
+     * Time to live in ms of the digests of one file
+     */
+    public static volatile long ttl = 24L * 3600 * 1000;
+
+    private static final ConcurrentHashMap<String, DigestEntry> cache =
+            new ConcurrentHashMap<String, DigestEntry>();
+    private static final ReentrantLock evictionLock = new ReentrantLock();
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Digests of one file for one length and modification time
+     */
+    private static class DigestEntry {
+        private final long length;
+        private final long lastModified;
+        private final long created;
+        /**
+         * System.nanoTime() of the last access
+         */
+        private volatile long lastAccess;
+        private final Map<DigestAlgo, byte[]> digests = new ConcurrentHashMap<DigestAlgo, byte[]>();
+
+        private DigestEntry(long length, long lastModified, long now) {
+            this.length = length;
+            this.lastModified = lastModified;
+            created = now;
+            lastAccess = System.nanoTime();
+        }
+
+        private boolean isValid(long length, long lastModified, long now) {
+            return this.length == length && this.lastModified == lastModified &&
+                    !isExpired(now);
+        }
+
+        private boolean isExpired(long now) {
+            return now - created > ttl;
+        }
+    }
+
+    /**
+     * Length and modification time of a file, to be taken before computing its digests such that
+     * they are not cached if the file changed meanwhile
+     */
+    public static class Stamp {
+        private final String key;
+        private final long length;
+        private final long lastModified;
+
+        /**
+         * @param file
+         *            the file whose current length and modification time are taken
+         */
+        public Stamp(File file) {
+            key = getKey(file);
+            length = file.length();
+            lastModified = file.lastModified();
+        }
+
+        /**
+         * 
+         * @param file
+         * @return True if the file still has the length and modification time of this stamp
+         */
+        public boolean isCurrent(File file) {
+            return file.length() == length && file.lastModified() == lastModified;
+        }
+    }
+
+    private DigestCache() {
+    }
+
+    /**
+     * Evict the expired files, then the least recently used ones down to nine tenths of the
+     * capacity, if over the capacity. Done by one writer at a time, the others going on.
+     */
+    private static void evictIfNeeded() {
+        int max = Math.max(capacity, 1);
+        if (cache.size() <= max || !evictionLock.tryLock()) {
+            return;
+        }
+        try {
+            long now = System.currentTimeMillis();
+            for (Map.Entry<String, DigestEntry> item : cache.entrySet()) {
+                if (item.getValue().isExpired(now)) {
+                    cache.remove(item.getKey(), item.getValue());
+                }
+            }
+            int toRemove = cache.size() - (max - max / 10);
+            if (toRemove <= 0) {
+                return;
+            }
+            long[] accesses = new long[cache.size()];
+            int nb = 0;
+            for (DigestEntry entry : cache.values()) {
+                if (nb == accesses.length) {
+                    break;
+                }
+                accesses[nb++] = entry.lastAccess;
+            }
+            if (nb == 0) {
+                return;
+            }
+            Arrays.sort(accesses, 0, nb);
+            long threshold = accesses[Math.min(toRemove, nb) - 1];
+            for (Map.Entry<String, DigestEntry> item : cache.entrySet()) {
+                if (item.getValue().lastAccess <= threshold) {
+                    cache.remove(item.getKey(), item.getValue());
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * 
+     * @param file
+     * @return the key of this file (its canonical path if available)
+     */
+    public static String getKey(File file) {
+        try {
+            return file.getCanonicalPath();
+        } catch (IOException e) {
+            return file.getAbsolutePath();
+        }
+    }
+
+    /**
+     * 
+     * @param key
+     *            the canonical path
+     * @param length
+     *            the current length of the file
+     * @param lastModified
+     *            the current modification time of the file
+     * @param algo
+     * @return the cached digest, or null if unknown or obsolete
+     */
+    public static byte[] get(String key, long length, long lastModified, DigestAlgo algo) {
+        if (!enabled) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        DigestEntry entry = cache.get(key);
+        if (entry != null && !entry.isValid(length, lastModified, now)) {
+            cache.remove(key, entry);
+            entry = null;
+        }
+        byte[] digest = entry == null ? null : entry.digests.get(algo);
+        if (digest == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        entry.lastAccess = System.nanoTime();
+        hits.incrementAndGet();
+        return digest.clone();
+    }
+
+    /**
+     * 
+     * @param file
+     * @param algo
+     * @return the cached digest of this file, or null if unknown or obsolete
+     */
+    public static byte[] get(File file, DigestAlgo algo) {
+        return get(getKey(file), file.length(), file.lastModified(), algo);
+    }
+
+    /**
+     * Add one digest of a file
+     * 
+     * @param key
+     *            the canonical path
+     * @param length
+     *            the length of the file the digest was computed on
+     * @param lastModified
+     *            the modification time of the file the digest was computed on
+     * @param algo
+     * @param digest
+     */
+    public static void put(String key, long length, long lastModified, DigestAlgo algo,
+            byte[] digest) {
+        if (!enabled) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        while (true) {
+            DigestEntry entry = cache.get(key);
+            if (entry != null && entry.isValid(length, lastModified, now)) {
+                entry.digests.put(algo, digest.clone());
+                entry.lastAccess = System.nanoTime();
+                return;
+            }
+            DigestEntry created = new DigestEntry(length, lastModified, now);
+            created.digests.put(algo, digest.clone());
+            if (entry == null) {
+                if (cache.putIfAbsent(key, created) == null) {
+                    evictIfNeeded();
+                    return;
+                }
+            } else if (cache.replace(key, entry, created)) {
+                return;
+            }
+            // changed by another thread meanwhile
+        }
+    }
+
+    /**
+     * Add one digest of a file, unless the file changed since the stamp was taken
+     * 
+     * @param file
+     * @param stamp
+     *            taken before computing the digest
+     * @param algo
+     * @param digest
+     * @return True if added
+     */
+    public static boolean put(File file, Stamp stamp, DigestAlgo algo, byte[] digest) {
+        if (!stamp.isCurrent(file)) {
+            return false;
+        }
+        put(stamp.key, stamp.length, stamp.lastModified, algo, digest);
+        return true;
+    }
+
+    /**
+     * Add several digests of a file, unless the file changed since the stamp was taken
+     * 
+     * @param file
+     * @param stamp
+     *            taken before computing the digests
+     * @param digests
+     * @return True if added
+     */
+    public static boolean put(File file, Stamp stamp, Map<DigestAlgo, byte[]> digests) {
+        if (!stamp.isCurrent(file)) {
+            return false;
+        }
+        for (Map.Entry<DigestAlgo, byte[]> digest : digests.entrySet()) {
+            put(stamp.key, stamp.length, stamp.lastModified, digest.getKey(),
+                    digest.getValue());
+        }
+        return true;
+    }
+
+    /**
+     * Forget all the digests of a file (written, renamed or deleted)
+     * 
+     * @param key
+     *            the canonical path
+     */
+    public static void invalidate(String key) {
+        cache.remove(key);
+    }
+
+    /**
+     * Forget all the digests of a file (written, renamed or deleted)
+     * 
+     * @param file
+     */
+    public static void invalidate(File file) {
+        invalidate(getKey(file));
+    }
+
+    /**
+     * Forget all digests
+     */
+    public static void clear() {
+        cache.clear();
+    }
+
+    /**
+     * 
+     * @return the number of digests found in the cache
+     */
+    public static long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * 
+     * @return the number of digests not found in the cache
+     */
+    public static long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * 
+     * @return the number of files in the cache
+     */
+    public static int size() {
+        return cache.size();
+    }
+}
@@ -0,0 +1,39 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.file;
+
+import org.waarp.common.command.exception.CommandAbstractException;
+
+/**
+ * Handler receiving the lines of a directory listing as soon as each entry is read, such that
+ * they can be sent on the data channel while the directory is still scanned
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public interface DirListingHandler {
+    /**
+     * Called for each line of the listing
+     * 
+     * @param line
+     *            the line, only valid during this call (it may be a reused buffer)
+     * @throws CommandAbstractException
+     *             to stop the listing
+     */
+    public void onLine(CharSequence line) throws CommandAbstractException;
+}
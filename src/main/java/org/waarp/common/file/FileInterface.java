@@ -18,9 +18,13 @@
 package org.waarp.common.file;
 
 import java.io.IOException;
+import java.util.List;
+
+import io.netty.channel.FileRegion;
 
 import org.waarp.common.command.exception.CommandAbstractException;
 import org.waarp.common.command.exception.Reply530Exception;
+import org.waarp.common.digest.FilesystemBasedDigest.DigestAlgo;
 import org.waarp.common.exception.FileEndOfTransferException;
 import org.waarp.common.exception.FileTransferException;
 
@@ -213,6 +217,16 @@ public interface FileInterface {
     public void writeDataBlock(DataBlock dataBlock)
             throws FileTransferException;
 
+    /**
+     * Function called by the DataNetworkHandler when it has several DataBlocks to write at once, in
+     * order, allowing the implementation to write them in one operation (Store like command)
+     * 
+     * @param dataBlocks
+     * @throws FileTransferException
+     */
+    public void writeDataBlocks(List<DataBlock> dataBlocks)
+            throws FileTransferException;
+
     /**
      * Read a new block for FileInterface
      * 
@@ -222,4 +236,65 @@ public interface FileInterface {
      */
     public DataBlock readDataBlock() throws FileEndOfTransferException,
             FileTransferException;
+
+    /**
+     * Write one DataBlock at the given position, without changing the current position, such that
+     * several segments of the same file may be received concurrently over several data
+     * connections. The written range is added to the SegmentMap.
+     * 
+     * @param offset
+     *            the position in the file where the block is written
+     * @param dataBlock
+     * @throws FileTransferException
+     */
+    public void writeDataBlock(long offset, DataBlock dataBlock)
+            throws FileTransferException;
+
+    /**
+     * Read one block at the given position, without changing the current position, such that
+     * several segments of the same file may be sent concurrently over several data connections.
+     * 
+     * @param offset
+     *            the position in the file where the block starts
+     * @param length
+     *            the maximum length of the block
+     * @return dataBlock, with EOF set if the end of the file is reached
+     * @throws FileEndOfTransferException
+     *             if the offset is at or after the end of the file
+     * @throws FileTransferException
+     */
+    public DataBlock readDataBlock(long offset, int length)
+            throws FileEndOfTransferException, FileTransferException;
+
+    /**
+     * 
+     * @return the map of the ranges already written by positional writes (never null)
+     */
+    public SegmentMap getSegmentMap();
+
+    /**
+     * 
+     * @param algo
+     * @return the digest of the whole file computed during the last complete transfer (read or
+     *         write) of the current FileInterface, or null if not computed
+     */
+    public byte[] getTransferDigest(DigestAlgo algo);
+
+    /**
+     * Get a FileRegion of the current FileInterface, in order to send it without copy in user
+     * space (sendfile like) on a data channel without SSL. The position is moved at the end of the
+     * returned region as if the corresponding blocks were read.
+     * 
+     * @param position
+     *            the position in the file where the region starts
+     * @param length
+     *            the length of the region (-1 meaning up to the end of the file)
+     * @return the FileRegion, released by Netty once written
+     * @throws FileEndOfTransferException
+     *             if the position is at the end of the file
+     * @throws FileTransferException
+     *             if not supported or in error
+     */
+    public FileRegion getFileRegion(long position, long length)
+            throws FileEndOfTransferException, FileTransferException;
 }
@@ -0,0 +1,279 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.file;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+/**
+ * Map of the completed ranges of a file transferred as several segments in parallel.<br>
+ * <br>
+ * Adjacent or overlapping ranges are merged, such that an interrupted transfer can be restarted
+ * only on the missing ranges. The map can be saved and reloaded as a String of the form
+ * "start-end,start-end" (end excluded).
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class SegmentMap {
+    /**
+     * One range [start, end[ of a file
+     * 
+     * @author Frederic Bregier
+     * 
+     */
+    public static class Segment {
+        private final long start;
+        private final long end;
+
+        /**
+         * @param start
+         *            first position (included)
+         * @param end
+         *            last position (excluded)
+         */
+        public Segment(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        /**
+         * @return the first position (included)
+         */
+        public long getStart() {
+            return start;
+        }
+
+        /**
+         * @return the last position (excluded)
+         */
+        public long getEnd() {
+            return end;
+        }
+
+        /**
+         * @return the length of this segment
+         */
+        public long getLength() {
+            return end - start;
+        }
+
+        @Override
+        public String toString() {
+            return start + "-" + end;
+        }
+    }
+
+    /**
+     * Completed ranges: start to end (excluded), never adjacent nor overlapping
+     */
+    private final TreeMap<Long, Long> ranges = new TreeMap<Long, Long>();
+
+    /**
+     * Empty map
+     */
+    public SegmentMap() {
+    }
+
+    /**
+     * @param map
+     *            a String as returned by toString()
+     * @throws IllegalArgumentException
+     *             if the String is not a valid map
+     */
+    public SegmentMap(String map) {
+        addAll(map);
+    }
+
+    /**
+     * Add the ranges of a saved map, for instance to restart an interrupted transfer
+     * 
+     * @param map
+     *            a String as returned by toString()
+     * @throws IllegalArgumentException
+     *             if the String is not a valid map
+     */
+    public void addAll(String map) {
+        if (map == null || map.trim().isEmpty()) {
+            return;
+        }
+        String[] segments = map.split(",");
+        for (String segment : segments) {
+            int pos = segment.indexOf('-');
+            if (pos <= 0) {
+                throw new IllegalArgumentException("Invalid segment: " + segment);
+            }
+            try {
+                add(Long.parseLong(segment.substring(0, pos).trim()),
+                        Long.parseLong(segment.substring(pos + 1).trim()));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid segment: " + segment, e);
+            }
+        }
+    }
+
+    /**
+     * Mark the range [start, end[ as completed
+     * 
+     * @param start
+     * @param end
+     */
+    public synchronized void add(long start, long end) {
+        if (start < 0 || end < start) {
+            throw new IllegalArgumentException("Invalid segment: " + start + "-" + end);
+        }
+        if (start == end) {
+            return;
+        }
+        Entry<Long, Long> previous = ranges.floorEntry(start);
+        if (previous != null && previous.getValue() >= start) {
+            if (previous.getValue() >= end) {
+                return;
+            }
+            start = previous.getKey();
+        }
+        Entry<Long, Long> next = ranges.ceilingEntry(start);
+        while (next != null && next.getKey() <= end) {
+            if (next.getValue() > end) {
+                end = next.getValue();
+            }
+            ranges.remove(next.getKey());
+            next = ranges.higherEntry(next.getKey());
+        }
+        ranges.put(start, end);
+    }
+
+    /**
+     * 
+     * @param start
+     * @param end
+     * @return True if the whole range [start, end[ is completed
+     */
+    public synchronized boolean contains(long start, long end) {
+        if (start >= end) {
+            return true;
+        }
+        Entry<Long, Long> previous = ranges.floorEntry(start);
+        return previous != null && previous.getValue() >= end;
+    }
+
+    /**
+     * 
+     * @param size
+     *            the size of the file
+     * @return True if the whole file is completed
+     */
+    public boolean isComplete(long size) {
+        return contains(0, size);
+    }
+
+    /**
+     * 
+     * @return the number of completed bytes
+     */
+    public synchronized long getCompleted() {
+        long completed = 0;
+        for (Entry<Long, Long> entry : ranges.entrySet()) {
+            completed += entry.getValue() - entry.getKey();
+        }
+        return completed;
+    }
+
+    /**
+     * 
+     * @return the completed ranges, ordered
+     */
+    public synchronized List<Segment> getSegments() {
+        List<Segment> list = new ArrayList<Segment>(ranges.size());
+        for (Entry<Long, Long> entry : ranges.entrySet()) {
+            list.add(new Segment(entry.getKey(), entry.getValue()));
+        }
+        return list;
+    }
+
+    /**
+     * 
+     * @param size
+     *            the size of the file
+     * @return the ranges still to transfer, ordered
+     */
+    public synchronized List<Segment> getMissing(long size) {
+        List<Segment> list = new ArrayList<Segment>();
+        long current = 0;
+        for (Entry<Long, Long> entry : ranges.entrySet()) {
+            if (entry.getKey() >= size) {
+                break;
+            }
+            if (entry.getKey() > current) {
+                list.add(new Segment(current, entry.getKey()));
+            }
+            current = entry.getValue();
+        }
+        if (current < size) {
+            list.add(new Segment(current, size));
+        }
+        return list;
+    }
+
+    /**
+     * Split the missing ranges in segments of at most maxLength bytes, in order to dispatch them
+     * on several connections
+     * 
+     * @param size
+     *            the size of the file
+     * @param maxLength
+     *            the maximum length of one segment
+     * @return the segments still to transfer, ordered
+     */
+    public List<Segment> split(long size, long maxLength) {
+        if (maxLength <= 0) {
+            throw new IllegalArgumentException("Invalid segment length: " + maxLength);
+        }
+        List<Segment> list = new ArrayList<Segment>();
+        for (Segment segment : getMissing(size)) {
+            long start = segment.getStart();
+            while (start < segment.getEnd()) {
+                long end = Math.min(start + maxLength, segment.getEnd());
+                list.add(new Segment(start, end));
+                start = end;
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Forget all completed ranges
+     */
+    public synchronized void clear() {
+        ranges.clear();
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (Entry<Long, Long> entry : ranges.entrySet()) {
+            if (builder.length() > 0) {
+                builder.append(',');
+            }
+            builder.append(entry.getKey()).append('-').append(entry.getValue());
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,721 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.file.filesystembased;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.OpenOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.util.concurrent.DefaultPromise;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import io.netty.util.concurrent.Promise;
+
+import org.waarp.common.command.exception.CommandAbstractException;
+import org.waarp.common.command.exception.Reply550Exception;
+import org.waarp.common.exception.FileEndOfTransferException;
+import org.waarp.common.exception.FileTransferException;
+import org.waarp.common.file.DataBlock;
+import org.waarp.common.file.SessionInterface;
+import org.waarp.common.file.filesystembased.FilesystemBasedFileParameterImpl.FsyncPolicy;
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.common.utility.WaarpThreadFactory;
+
+/**
+ * File implementation for Filesystem Based adding non blocking reads and writes on an
+ * AsynchronousFileChannel, such that a Netty event loop can issue file I/O without being blocked
+ * by a slow filesystem (as a stuck NFS mount).<br>
+ * <br>
+ * The open, the I/O and the completion handlers run on a bounded executor shared by all files
+ * (see {@link FilesystemBasedFileParameterImpl#asyncIoThreads}); the returned futures notify their
+ * listeners through the executor given by {@link #setAsyncExecutor(EventExecutor)}, usually the
+ * event loop of the network channel. Sequential operations are chained in the order of the calls,
+ * while positional ones run concurrently. The file is closed once the block marked as EOF is
+ * written or the last block is read, or by {@link #closeFileAsync()}. The blocking methods of
+ * FilesystemBasedFileImpl remain available but must not be mixed with the asynchronous ones on the
+ * same transfer.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public abstract class FilesystemBasedAsyncFileImpl extends FilesystemBasedFileImpl {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(FilesystemBasedAsyncFileImpl.class);
+
+    /**
+     * Shared I/O executor of all asynchronous files
+     */
+    private static ExecutorService ioExecutor = null;
+
+    /**
+     * Executor notifying the listeners of the futures
+     */
+    private EventExecutor asyncExecutor = GlobalEventExecutor.INSTANCE;
+
+    /**
+     * Asynchronous channel, opened at the first asynchronous operation
+     */
+    private AsynchronousFileChannel asyncChannel = null;
+    private boolean asyncWritable = false;
+
+    /**
+     * Last sequential operation, the next one being chained after it
+     */
+    private Future<?> lastSequential = null;
+
+    /**
+     * Operations not yet completed
+     */
+    private final Set<Future<?>> pending = new HashSet<Future<?>>();
+    private boolean closeRequested = false;
+    /**
+     * Futures of closeFileAsync, completed once the file is closed
+     */
+    private final List<Promise<Void>> closePromises = new ArrayList<Promise<Void>>();
+    private final Object asyncLock = new Object();
+
+    /**
+     * @param session
+     * @param dir
+     *            It is not necessary the directory that owns this file.
+     * @param path
+     * @param append
+     * @throws CommandAbstractException
+     */
+    public FilesystemBasedAsyncFileImpl(SessionInterface session,
+            FilesystemBasedDirImpl dir, String path, boolean append)
+            throws CommandAbstractException {
+        super(session, dir, path, append);
+    }
+
+    /**
+     * 
+     * @return the shared I/O executor of all asynchronous files
+     */
+    private static synchronized ExecutorService getIoExecutor() {
+        if (ioExecutor == null) {
+            ioExecutor = Executors.newFixedThreadPool(
+                    Math.max(FilesystemBasedFileParameterImpl.asyncIoThreads, 1),
+                    new WaarpThreadFactory("FileAsyncIO"));
+        }
+        return ioExecutor;
+    }
+
+    /**
+     * 
+     * @param executor
+     *            the executor notifying the listeners of the returned futures, usually the event
+     *            loop of the network channel (default is GlobalEventExecutor)
+     */
+    public void setAsyncExecutor(EventExecutor executor) {
+        asyncExecutor = executor == null ? GlobalEventExecutor.INSTANCE : executor;
+    }
+
+    /**
+     * 
+     * @return a new promise registered as pending
+     */
+    private <T> Promise<T> newPromise() {
+        final Promise<T> promise = new DefaultPromise<T>(asyncExecutor);
+        synchronized (asyncLock) {
+            pending.add(promise);
+        }
+        return promise;
+    }
+
+    /**
+     * Mark this promise as completed, closing the file if requested and no more operation is
+     * pending. The close is done at once, since waiting from an I/O thread could block the only
+     * one able to complete the pending operations.
+     * 
+     * @param promise
+     */
+    private void done(Promise<?> promise) {
+        synchronized (asyncLock) {
+            pending.remove(promise);
+            asyncLock.notifyAll();
+        }
+        closeIfRequested();
+    }
+
+    /**
+     * Close the file if requested and no more operation is pending, then complete the futures of
+     * closeFileAsync
+     */
+    private void closeIfRequested() {
+        List<Promise<Void>> promises;
+        CommandAbstractException error = null;
+        synchronized (asyncLock) {
+            if (!closeRequested || !pending.isEmpty()) {
+                return;
+            }
+            try {
+                closeNow();
+            } catch (CommandAbstractException e) {
+                logger.warn("Cannot close file: {}", e.getMessage());
+                error = e;
+            }
+            promises = takeClosePromises();
+        }
+        completeClose(promises, error);
+    }
+
+    /**
+     * 
+     * @return the futures of closeFileAsync not yet completed (to call under the lock)
+     */
+    private List<Promise<Void>> takeClosePromises() {
+        List<Promise<Void>> promises = new ArrayList<Promise<Void>>(closePromises);
+        closePromises.clear();
+        return promises;
+    }
+
+    /**
+     * 
+     * @param promises
+     * @param error
+     *            the error of the close if any
+     */
+    private static void completeClose(List<Promise<Void>> promises,
+            CommandAbstractException error) {
+        for (Promise<Void> promise : promises) {
+            if (error == null) {
+                promise.trySuccess(null);
+            } else {
+                promise.tryFailure(error);
+            }
+        }
+    }
+
+    private <T> void succeed(Promise<T> promise, T result) {
+        done(promise);
+        promise.trySuccess(result);
+    }
+
+    private void fail(Promise<?> promise, Throwable cause) {
+        done(promise);
+        promise.tryFailure(cause);
+    }
+
+    /**
+     * Sequential operation
+     */
+    private abstract class SequentialTask<T> implements Runnable {
+        protected final Promise<T> promise;
+
+        protected SequentialTask(Promise<T> promise) {
+            this.promise = promise;
+        }
+
+        /**
+         * Called instead of run if the previous sequential operation failed
+         * 
+         * @param cause
+         */
+        protected void abort(Throwable cause) {
+            fail(promise, cause);
+        }
+    }
+
+    /**
+     * Run a sequential operation once the previous one is completed, or fail it if the previous
+     * one failed (so all the following ones fail too)
+     * 
+     * @param task
+     */
+    private void chain(final SequentialTask<?> task) {
+        final Future<?> previous;
+        synchronized (asyncLock) {
+            previous = lastSequential;
+            lastSequential = task.promise;
+        }
+        if (previous == null) {
+            getIoExecutor().execute(task);
+            return;
+        }
+        if (previous.isDone()) {
+            start(task, previous);
+            return;
+        }
+        previous.addListener(new GenericFutureListener<Future<Object>>() {
+            public void operationComplete(Future<Object> future) {
+                start(task, future);
+            }
+        });
+    }
+
+    /**
+     * 
+     * @param task
+     * @param previous
+     *            the completed previous sequential operation
+     */
+    private void start(SequentialTask<?> task, Future<?> previous) {
+        if (previous.isSuccess()) {
+            getIoExecutor().execute(task);
+        } else {
+            task.abort(previous.cause());
+        }
+    }
+
+    /**
+     * 
+     * @param write
+     *            True if the channel must be writable
+     * @return the asynchronous channel, opened if necessary (on an I/O thread)
+     * @throws IOException
+     */
+    private AsynchronousFileChannel getAsyncChannel(boolean write) throws IOException {
+        synchronized (asyncLock) {
+            if (asyncChannel != null && (asyncWritable || !write)) {
+                return asyncChannel;
+            }
+            File file;
+            try {
+                file = getFileFromPath(currentFile);
+            } catch (CommandAbstractException e) {
+                throw new IOException("File is not ready", e);
+            }
+            Set<OpenOption> options = new HashSet<OpenOption>();
+            options.add(StandardOpenOption.READ);
+            if (write) {
+                options.add(StandardOpenOption.WRITE);
+                options.add(StandardOpenOption.CREATE);
+                invalidateDigests();
+            }
+            AsynchronousFileChannel channel = AsynchronousFileChannel.open(file.toPath(),
+                    options, getIoExecutor());
+            if (asyncChannel != null) {
+                asyncChannel.close();
+            }
+            asyncChannel = channel;
+            asyncWritable = write;
+            return channel;
+        }
+    }
+
+    /**
+     * Read the next block of the file, chained after the previous sequential operations. The file
+     * is closed once the last block is read.
+     * 
+     * @return the future of the block, failed with a FileEndOfTransferException at the end of
+     *         the file
+     */
+    public Future<DataBlock> readDataBlockAsync() {
+        final Promise<DataBlock> promise = newPromise();
+        if (!isReady) {
+            fail(promise, new FileTransferException("No file is ready"));
+            return promise;
+        }
+        final int sizeblock = getSession().getBlockSize();
+        chain(new SequentialTask<DataBlock>(promise) {
+            public void run() {
+                read(promise, getPosition(), sizeblock, sizeblock, true);
+            }
+        });
+        return promise;
+    }
+
+    /**
+     * Read a block at the given position, without changing the current position
+     * 
+     * @param offset
+     * @param length
+     * @return the future of the block, failed with a FileEndOfTransferException if the offset is
+     *         at or after the end of the file
+     */
+    public Future<DataBlock> readDataBlockAsync(final long offset, final int length) {
+        final Promise<DataBlock> promise = newPromise();
+        if (!isReady) {
+            fail(promise, new FileTransferException("No file is ready"));
+            return promise;
+        }
+        if (offset < 0 || length <= 0) {
+            fail(promise, new FileTransferException("Wrong position: " + offset +
+                    " or length: " + length));
+            return promise;
+        }
+        getIoExecutor().execute(new Runnable() {
+            public void run() {
+                read(promise, offset, length, length, false);
+            }
+        });
+        return promise;
+    }
+
+    /**
+     * Read on an I/O thread
+     * 
+     * @param promise
+     * @param offset
+     * @param length
+     *            the maximum number of bytes to read
+     * @param sizeblock
+     *            the size under which the block is the last one (sequential mode)
+     * @param sequential
+     *            True to update the position
+     */
+    private void read(final Promise<DataBlock> promise, final long offset, int length,
+            final int sizeblock, final boolean sequential) {
+        final AsynchronousFileChannel channel;
+        final long size;
+        try {
+            channel = getAsyncChannel(false);
+            size = channel.size();
+        } catch (IOException e) {
+            logger.error("Cannot open file:", e);
+            fail(promise, new FileTransferException("Internal error, file is not ready", e));
+            return;
+        }
+        if (offset >= size) {
+            if (sequential) {
+                synchronized (asyncLock) {
+                    closeRequested = true;
+                }
+            }
+            fail(promise, new FileEndOfTransferException("End of file"));
+            return;
+        }
+        final int count = (int) Math.min(length, size - offset);
+        final boolean pooled = isPooledBuffer();
+        final ByteBuf buffer = pooled ? PooledByteBufAllocator.DEFAULT.directBuffer(count, count)
+                : Unpooled.buffer(count, count);
+        final ByteBuffer byteBuffer = buffer.nioBuffer(0, count);
+        channel.read(byteBuffer, offset, null, new CompletionHandler<Integer, Void>() {
+            public void completed(Integer result, Void attachment) {
+                if (result > 0 && byteBuffer.hasRemaining()) {
+                    channel.read(byteBuffer, offset + byteBuffer.position(), null, this);
+                    return;
+                }
+                int read = byteBuffer.position();
+                buffer.writerIndex(read);
+                DataBlock dataBlock = pooled ? DataBlock.newInstance() : new DataBlock();
+                dataBlock.setBlock(buffer);
+                if (sequential) {
+                    try {
+                        setPosition(offset + read);
+                    } catch (IOException e) {
+                        dataBlock.clear();
+                        failed(e, attachment);
+                        return;
+                    }
+                    if (read < sizeblock) {
+                        dataBlock.setEOF(true);
+                        synchronized (asyncLock) {
+                            closeRequested = true;
+                        }
+                    }
+                } else if (offset + read >= size) {
+                    dataBlock.setEOF(true);
+                }
+                succeed(promise, dataBlock);
+            }
+
+            public void failed(Throwable exc, Void attachment) {
+                if (buffer.refCnt() > 0) {
+                    buffer.release();
+                }
+                logger.error("Error during asynchronous read:", exc);
+                fail(promise, new FileTransferException("Internal error, file is not ready",
+                        exc));
+            }
+        });
+    }
+
+    /**
+     * Write the block at the current position, chained after the previous sequential operations.
+     * The block is consumed at once but its buffer is retained until written. The file is closed
+     * once the block marked as EOF is written.
+     * 
+     * @param dataBlock
+     * @return the future of the write
+     */
+    public Future<Void> writeDataBlockAsync(final DataBlock dataBlock) {
+        final Promise<Void> promise = newPromise();
+        if (!isReady) {
+            fail(promise, new FileTransferException("No file is ready while trying to write: " +
+                    dataBlock.toString()));
+            return promise;
+        }
+        final ByteBuf buffer = retainReadable(dataBlock);
+        final boolean eof = dataBlock.isEOF();
+        final boolean first;
+        synchronized (asyncLock) {
+            first = !asyncWritable && lastSequential == null;
+        }
+        chain(new SequentialTask<Void>(promise) {
+            @Override
+            protected void abort(Throwable cause) {
+                buffer.release();
+                super.abort(cause);
+            }
+
+            public void run() {
+                long start = getPosition();
+                if (first) {
+                    try {
+                        // as a new write, the content after the position is dropped
+                        getAsyncChannel(true).truncate(start);
+                    } catch (IOException e) {
+                        buffer.release();
+                        logger.error("Cannot open file for write:", e);
+                        fail(promise, new FileTransferException(
+                                "Internal error, file is not ready", e));
+                        return;
+                    }
+                }
+                write(promise, start, buffer, true, eof);
+            }
+        });
+        return promise;
+    }
+
+    /**
+     * Write the block at the given position, without changing the current position. The block is
+     * consumed at once but its buffer is retained until written.
+     * 
+     * @param offset
+     * @param dataBlock
+     * @return the future of the write
+     */
+    public Future<Void> writeDataBlockAsync(final long offset, final DataBlock dataBlock) {
+        final Promise<Void> promise = newPromise();
+        if (!isReady) {
+            fail(promise, new FileTransferException("No file is ready while trying to write: " +
+                    dataBlock.toString()));
+            return promise;
+        }
+        if (offset < 0) {
+            fail(promise, new FileTransferException("Wrong position: " + offset));
+            return promise;
+        }
+        final ByteBuf buffer = retainReadable(dataBlock);
+        getIoExecutor().execute(new Runnable() {
+            public void run() {
+                write(promise, offset, buffer, false, false);
+            }
+        });
+        return promise;
+    }
+
+    /**
+     * 
+     * @param dataBlock
+     * @return a retained slice of the readable bytes of the block, now consumed
+     */
+    private static ByteBuf retainReadable(DataBlock dataBlock) {
+        ByteBuf block = dataBlock.getBlock();
+        if (block == null) {
+            return Unpooled.EMPTY_BUFFER;
+        }
+        ByteBuf buffer = block.retainedSlice();
+        block.skipBytes(buffer.readableBytes());
+        return buffer;
+    }
+
+    /**
+     * Write on an I/O thread
+     * 
+     * @param promise
+     * @param offset
+     * @param buffer
+     *            released once written
+     * @param sequential
+     *            True to update the position
+     * @param eof
+     *            True to close the file once written
+     */
+    private void write(final Promise<Void> promise, final long offset, final ByteBuf buffer,
+            final boolean sequential, final boolean eof) {
+        final AsynchronousFileChannel channel;
+        try {
+            channel = getAsyncChannel(true);
+        } catch (IOException e) {
+            buffer.release();
+            logger.error("Cannot open file for write:", e);
+            fail(promise, new FileTransferException("Internal error, file is not ready", e));
+            return;
+        }
+        final int length = buffer.readableBytes();
+        final ByteBuffer byteBuffer = buffer.nioBuffer();
+        CompletionHandler<Integer, Void> handler = new CompletionHandler<Integer, Void>() {
+            public void completed(Integer result, Void attachment) {
+                if (byteBuffer.hasRemaining()) {
+                    channel.write(byteBuffer, offset + byteBuffer.position(), null, this);
+                    return;
+                }
+                buffer.release();
+                if (sequential) {
+                    try {
+                        setPosition(offset + length);
+                    } catch (IOException e) {
+                        failed(e, attachment);
+                        return;
+                    }
+                } else {
+                    segmentMap.add(offset, offset + length);
+                }
+                if (eof) {
+                    try {
+                        FilesystemBasedFileParameterImpl fileParameter = getFileParameter();
+                        if (fileParameter != null &&
+                                fileParameter.fsyncPolicy != FsyncPolicy.NONE) {
+                            channel.force(false);
+                        }
+                    } catch (IOException e) {
+                        failed(e, attachment);
+                        return;
+                    }
+                    synchronized (asyncLock) {
+                        closeRequested = true;
+                    }
+                }
+                succeed(promise, null);
+            }
+
+            public void failed(Throwable exc, Void attachment) {
+                if (buffer.refCnt() > 0) {
+                    buffer.release();
+                }
+                logger.error("Error during asynchronous write:", exc);
+                fail(promise, new FileTransferException("Internal error, file is not ready",
+                        exc));
+            }
+        };
+        if (length == 0) {
+            handler.completed(0, null);
+            return;
+        }
+        channel.write(byteBuffer, offset, null, handler);
+    }
+
+    /**
+     * Close the file once all the pending asynchronous operations are completed, without blocking
+     * the caller (to use from an event loop)
+     * 
+     * @return the future of the close
+     */
+    public Future<Void> closeFileAsync() {
+        Promise<Void> promise = new DefaultPromise<Void>(asyncExecutor);
+        synchronized (asyncLock) {
+            closeRequested = true;
+            closePromises.add(promise);
+        }
+        // the close itself may block too
+        getIoExecutor().execute(new Runnable() {
+            public void run() {
+                closeIfRequested();
+            }
+        });
+        return promise;
+    }
+
+    /**
+     * Wait for all the pending asynchronous operations then close the file. It blocks the caller,
+     * so must not be called from an event loop (see {@link #closeFileAsync()}) nor from a listener
+     * of this file on its I/O executor.
+     */
+    @Override
+    public boolean closeFile() throws CommandAbstractException {
+        List<Promise<Void>> promises;
+        boolean closed;
+        synchronized (asyncLock) {
+            while (!pending.isEmpty()) {
+                try {
+                    asyncLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new Reply550Exception("Close interrupted");
+                }
+            }
+            promises = takeClosePromises();
+            try {
+                closed = closeNow();
+            } catch (CommandAbstractException e) {
+                completeClose(promises, e);
+                throw e;
+            }
+        }
+        completeClose(promises, null);
+        return closed;
+    }
+
+    /**
+     * Close the file without waiting, under the lock and once no operation is pending
+     * 
+     * @return True
+     * @throws CommandAbstractException
+     */
+    private boolean closeNow() throws CommandAbstractException {
+        closeRequested = false;
+        lastSequential = null;
+        if (asyncChannel != null) {
+            try {
+                asyncChannel.close();
+            } catch (IOException e) {
+                throw new Reply550Exception("Close in error");
+            } finally {
+                if (asyncWritable) {
+                    invalidateDigests();
+                }
+                asyncChannel = null;
+                asyncWritable = false;
+            }
+        }
+        return super.closeFile();
+    }
+
+    @Override
+    public boolean isInReading() throws CommandAbstractException {
+        synchronized (asyncLock) {
+            if (isReady && asyncChannel != null && !asyncWritable) {
+                return true;
+            }
+        }
+        return super.isInReading();
+    }
+
+    @Override
+    public boolean isInWriting() throws CommandAbstractException {
+        synchronized (asyncLock) {
+            if (isReady && asyncWritable) {
+                return true;
+            }
+        }
+        return super.isInWriting();
+    }
+}
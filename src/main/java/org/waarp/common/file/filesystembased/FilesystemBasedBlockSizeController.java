@@ -0,0 +1,249 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.file.filesystembased;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.waarp.common.file.SessionInterface;
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+
+/**
+ * Adaptive size of the blocks read from files for one session, tuned by hill climbing on the
+ * measured throughput.<br>
+ * <br>
+ * The time between 2 consecutive blocks (the read of one block plus the send of the previous one)
+ * is measured over windows of at least windowBlocks blocks and windowNanos ns. After each window,
+ * the size is doubled or halved within [min, max] in the current direction as long as the
+ * throughput improves, the direction being reversed when it gets worse. While the throughput is
+ * stable, the size is kept and another size is probed every probeWindows windows.<br>
+ * <br>
+ * Since blocks are then of variable size, a restart must be based on the position and not on a
+ * rank of fixed size blocks.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class FilesystemBasedBlockSizeController {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(FilesystemBasedBlockSizeController.class);
+
+    /**
+     * Minimum number of blocks of one measure
+     */
+    public static int windowBlocks = 16;
+
+    /**
+     * Minimum duration in ns of one measure
+     */
+    public static long windowNanos = 100L * 1000 * 1000;
+
+    /**
+     * Relative change of throughput under which it is considered stable
+     */
+    public static double tolerance = 0.05;
+
+    /**
+     * Number of stable windows before another size is probed
+     */
+    public static int probeWindows = 8;
+
+    /**
+     * Controllers by session
+     */
+    private static final Map<SessionInterface, FilesystemBasedBlockSizeController> controllers = new WeakHashMap<SessionInterface, FilesystemBasedBlockSizeController>();
+
+    private final int minSize;
+    private final int maxSize;
+    private int blockSize;
+    private int direction = 1;
+    private double lastThroughput = -1;
+    private int stableWindows = 0;
+    private long previousBlock = 0;
+    private long windowBytes = 0;
+    private long windowTime = 0;
+    private int windowCount = 0;
+    private double throughput = 0;
+    private long latency = 0;
+    private long changes = 0;
+
+    /**
+     * @param blockSize
+     *            the initial block size
+     * @param minSize
+     * @param maxSize
+     */
+    public FilesystemBasedBlockSizeController(int blockSize, int minSize, int maxSize) {
+        this.minSize = Math.max(minSize, 1);
+        this.maxSize = Math.max(maxSize, this.minSize);
+        this.blockSize = Math.min(Math.max(blockSize, this.minSize), this.maxSize);
+    }
+
+    /**
+     * 
+     * @param session
+     * @param minSize
+     * @param maxSize
+     * @return the controller of this session, created from its block size if necessary
+     */
+    public static FilesystemBasedBlockSizeController getInstance(SessionInterface session,
+            int minSize, int maxSize) {
+        synchronized (controllers) {
+            FilesystemBasedBlockSizeController controller = controllers.get(session);
+            if (controller == null) {
+                controller = new FilesystemBasedBlockSizeController(session.getBlockSize(),
+                        minSize, maxSize);
+                controllers.put(session, controller);
+            }
+            return controller;
+        }
+    }
+
+    /**
+     * Forget the controller of this session
+     * 
+     * @param session
+     */
+    public static void remove(SessionInterface session) {
+        synchronized (controllers) {
+            controllers.remove(session);
+        }
+    }
+
+    /**
+     * 
+     * @return the size of the next block to read
+     */
+    public synchronized int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * 
+     * @return the throughput in bytes/s of the last complete measure (0 if none)
+     */
+    public synchronized double getThroughput() {
+        return throughput;
+    }
+
+    /**
+     * 
+     * @return the smoothed time in ns between 2 blocks
+     */
+    public synchronized long getLatency() {
+        return latency;
+    }
+
+    /**
+     * 
+     * @return the number of changes of the block size
+     */
+    public synchronized long getChanges() {
+        return changes;
+    }
+
+    /**
+     * Start a new transfer: the time since the last block of the previous one is not measured
+     */
+    public synchronized void start() {
+        previousBlock = 0;
+    }
+
+    /**
+     * Account one block just read
+     * 
+     * @param bytes
+     *            its size
+     */
+    public void onBlock(int bytes) {
+        onBlock(bytes, System.nanoTime());
+    }
+
+    /**
+     * 
+     * @param bytes
+     * @param now
+     *            current time in ns
+     */
+    synchronized void onBlock(int bytes, long now) {
+        long previous = previousBlock;
+        previousBlock = now;
+        if (previous == 0 || bytes <= 0) {
+            return;
+        }
+        long elapsed = Math.max(now - previous, 1);
+        latency = latency == 0 ? elapsed : latency - (latency >> 3) + (elapsed >> 3);
+        windowBytes += bytes;
+        windowTime += elapsed;
+        windowCount++;
+        if (windowCount < windowBlocks || windowTime < windowNanos) {
+            return;
+        }
+        throughput = windowBytes * 1e9 / windowTime;
+        windowBytes = 0;
+        windowTime = 0;
+        windowCount = 0;
+        adapt(throughput);
+    }
+
+    /**
+     * Hill climbing step after one measure
+     * 
+     * @param current
+     *            the throughput measured with the current block size
+     */
+    private void adapt(double current) {
+        double previous = lastThroughput;
+        lastThroughput = current;
+        if (previous < 0 || current > previous * (1 + tolerance)) {
+            // first measure or better: go on
+            stableWindows = 0;
+            move();
+        } else if (current < previous * (1 - tolerance)) {
+            // worse: go back
+            stableWindows = 0;
+            direction = -direction;
+            move();
+        } else if (++stableWindows >= probeWindows) {
+            stableWindows = 0;
+            move();
+        }
+    }
+
+    /**
+     * Change the block size in the current direction, reversing it at a bound
+     */
+    private void move() {
+        long next = direction > 0 ? (long) blockSize * 2 : blockSize / 2;
+        if (next > maxSize || next < minSize) {
+            direction = -direction;
+            next = direction > 0 ? (long) blockSize * 2 : blockSize / 2;
+        }
+        next = Math.min(Math.max(next, minSize), maxSize);
+        if (next != blockSize) {
+            logger.debug("Block size changed from {} to {} at {} B/s", blockSize, next,
+                    (long) lastThroughput);
+            blockSize = (int) next;
+            changes++;
+        }
+    }
+}
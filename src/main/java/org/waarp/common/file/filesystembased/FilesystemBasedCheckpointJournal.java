@@ -0,0 +1,379 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.file.filesystembased;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * Append only checkpoint journal of one written file, such that a transfer interrupted by a crash
+ * can be restarted from the last committed offset instead of from the beginning.<br>
+ * <br>
+ * Each record holds the start of the segment written since the previous record (or since the
+ * position the write started from), its end as the committed offset, the CRC32 of its bytes, and
+ * a chain hash computed from the previous chain hash and those values. The written file is synced
+ * before each record is appended, and the journal is synced after, every checkpointBytes. When
+ * reloaded, the last record whose chain is valid and whose segment CRC matches the partial file
+ * gives the restart offset, rereading only this segment (a torn last record is ignored).<br>
+ * <br>
+ * Journals are kept in their own persistent directory, mirroring the absolute path of the written
+ * files, such that they are neither listed with the business files nor picked up by a
+ * FileMonitor.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class FilesystemBasedCheckpointJournal {
+    /**
+     * Extension of the journal file
+     */
+    public static final String EXTENSION = ".ckpt";
+
+    /**
+     * Default directory of the journals, under the home directory of the user running the server
+     * (not under java.io.tmpdir, often cleared at reboot, when the journals are needed)
+     */
+    public static final File DEFAULT_DIRECTORY = new File(System.getProperty("user.home"),
+            ".waarp" + File.separator + "checkpoint");
+
+    /**
+     * segment start + offset + segment CRC + chain
+     */
+    private static final int RECORD_SIZE = 32;
+
+    private final File journalFile;
+    private final long interval;
+    private final CRC32 segmentCrc = new CRC32();
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+    private byte[] chunk = null;
+    private RandomAccessFile randomAccessFile = null;
+    private FileChannel journalChannel = null;
+    private long segmentStart = 0;
+    private long lastOffset = 0;
+    private long lastChain = 0;
+    private long nextCheckpoint = 0;
+
+    /**
+     * @param journalFile
+     *            the journal file
+     * @param interval
+     *            number of bytes between 2 checkpoints
+     */
+    public FilesystemBasedCheckpointJournal(File journalFile, long interval) {
+        this.journalFile = journalFile;
+        this.interval = Math.max(interval, 1);
+    }
+
+    /**
+     * 
+     * @param directory
+     *            the directory of the journals (null means DEFAULT_DIRECTORY)
+     * @param file
+     *            the written file
+     * @return the journal file associated with this file
+     */
+    public static File getJournalFile(File directory, File file) {
+        if (directory == null) {
+            directory = DEFAULT_DIRECTORY;
+        }
+        // a drive letter is not valid within a path
+        return new File(directory, file.getAbsolutePath().replace(':', '_') + EXTENSION);
+    }
+
+    /**
+     * 
+     * @param journalFile
+     * @param file
+     *            the partially written file
+     * @return the last verified offset from this journal (0 if none): the last record whose
+     *         segment CRC matches the bytes of the file, going back one record at a time
+     * @throws IOException
+     */
+    public static long readLastOffset(File journalFile, File file) throws IOException {
+        if (!journalFile.isFile() || !file.isFile()) {
+            return 0;
+        }
+        RandomAccessFile raf = new RandomAccessFile(journalFile, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = scan(channel, Long.MAX_VALUE)[2];
+            if (size == 0) {
+                return 0;
+            }
+            RandomAccessFile written = new RandomAccessFile(file, "r");
+            try {
+                ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE);
+                byte[] chunk = new byte[8192];
+                for (long pos = size - RECORD_SIZE; pos >= 0; pos -= RECORD_SIZE) {
+                    readRecord(channel, pos, buffer);
+                    long start = buffer.getLong();
+                    long offset = buffer.getLong();
+                    long crc = buffer.getLong();
+                    if (crc(written, start, offset, chunk) == crc) {
+                        return offset;
+                    }
+                }
+                return 0;
+            } finally {
+                written.close();
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * 
+     * @param file
+     * @param start
+     * @param end
+     * @param chunk
+     *            working buffer
+     * @return the CRC32 of the bytes of the file from start to end, or -1 if the file is shorter
+     * @throws IOException
+     */
+    private static long crc(RandomAccessFile file, long start, long end, byte[] chunk)
+            throws IOException {
+        if (end > file.length()) {
+            return -1;
+        }
+        CRC32 checksum = new CRC32();
+        file.seek(start);
+        long length = end - start;
+        while (length > 0) {
+            int size = (int) Math.min(length, chunk.length);
+            file.readFully(chunk, 0, size);
+            checksum.update(chunk, 0, size);
+            length -= size;
+        }
+        return checksum.getValue();
+    }
+
+    /**
+     * Read the record at the given position of the journal, ready to be read from the buffer
+     * 
+     * @param channel
+     * @param pos
+     * @param buffer
+     * @return False if the journal ends before this record is complete
+     * @throws IOException
+     */
+    private static boolean readRecord(FileChannel channel, long pos, ByteBuffer buffer)
+            throws IOException {
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, pos + buffer.position()) < 0) {
+                return false;
+            }
+        }
+        buffer.flip();
+        return true;
+    }
+
+    /**
+     * Scan the valid records up to the given position
+     * 
+     * @param channel
+     * @param maxOffset
+     *            records after this offset are not taken into account
+     * @return the last valid offset, its chain hash, and the size of the journal up to this
+     *         record
+     * @throws IOException
+     */
+    private static long[] scan(FileChannel channel, long maxOffset) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE);
+        long[] last = new long[] {
+                0, 0, 0 };
+        long size = channel.size();
+        long pos = 0;
+        while (pos + RECORD_SIZE <= size) {
+            if (!readRecord(channel, pos, buffer)) {
+                return last;
+            }
+            long start = buffer.getLong();
+            long offset = buffer.getLong();
+            long crc = buffer.getLong();
+            long chain = buffer.getLong();
+            if (start < last[0] || offset < start || offset > maxOffset ||
+                    chain(last[1], start, offset, crc) != chain) {
+                break;
+            }
+            pos += RECORD_SIZE;
+            last[0] = offset;
+            last[1] = chain;
+            last[2] = pos;
+        }
+        return last;
+    }
+
+    /**
+     * 
+     * @param previous
+     * @param start
+     * @param offset
+     * @param crc
+     * @return the chain hash of a record
+     */
+    private static long chain(long previous, long start, long offset, long crc) {
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE);
+        buffer.putLong(previous).putLong(start).putLong(offset).putLong(crc);
+        CRC32 checksum = new CRC32();
+        checksum.update(buffer.array());
+        return checksum.getValue();
+    }
+
+    /**
+     * Open the journal for a write starting at the given position: records after this position
+     * are dropped and the chain continues from the last remaining one, the next segment starting
+     * at this position. If already opened, the journal is reopened at this position.
+     * 
+     * @param position
+     *            the position where the write starts
+     * @throws IOException
+     */
+    public void open(long position) throws IOException {
+        close();
+        File parent = journalFile.getParentFile();
+        if (parent != null && !parent.mkdirs() && !parent.isDirectory()) {
+            throw new IOException("Cannot create directory: " + parent);
+        }
+        randomAccessFile = new RandomAccessFile(journalFile, "rw");
+        journalChannel = randomAccessFile.getChannel();
+        long[] last = scan(journalChannel, position);
+        journalChannel.truncate(last[2]);
+        journalChannel.position(last[2]);
+        lastOffset = last[0];
+        lastChain = last[1];
+        segmentStart = position;
+        segmentCrc.reset();
+        nextCheckpoint = position + interval;
+    }
+
+    /**
+     * Account the given buffer, about to be skipped, as written since the previous checkpoint
+     * 
+     * @param buffer
+     *            the written buffer (its readable bytes)
+     */
+    public void update(ByteBuf buffer) {
+        int length = buffer.readableBytes();
+        if (buffer.hasArray()) {
+            segmentCrc.update(buffer.array(), buffer.arrayOffset() + buffer.readerIndex(),
+                    length);
+            return;
+        }
+        if (chunk == null) {
+            chunk = new byte[8192];
+        }
+        int index = buffer.readerIndex();
+        while (length > 0) {
+            int size = Math.min(length, chunk.length);
+            buffer.getBytes(index, chunk, 0, size);
+            segmentCrc.update(chunk, 0, size);
+            index += size;
+            length -= size;
+        }
+    }
+
+    /**
+     * Record a checkpoint if the interval is reached
+     * 
+     * @param position
+     *            the position in the file after the written buffers
+     * @param fileChannel
+     *            the channel of the written file, synced before the checkpoint is recorded
+     * @return True if a checkpoint was recorded
+     * @throws IOException
+     */
+    public boolean checkpointIfNeeded(long position, FileChannel fileChannel)
+            throws IOException {
+        if (position >= nextCheckpoint) {
+            checkpoint(position, fileChannel);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Sync the written file then append and sync a record for the given offset
+     * 
+     * @param offset
+     * @param fileChannel
+     * @throws IOException
+     */
+    public void checkpoint(long offset, FileChannel fileChannel) throws IOException {
+        if (journalChannel == null) {
+            throw new IOException("Checkpoint journal not opened");
+        }
+        if (fileChannel != null) {
+            fileChannel.force(false);
+        }
+        long crc = segmentCrc.getValue();
+        long chain = chain(lastChain, segmentStart, offset, crc);
+        record.clear();
+        record.putLong(segmentStart).putLong(offset).putLong(crc).putLong(chain);
+        record.flip();
+        while (record.hasRemaining()) {
+            journalChannel.write(record);
+        }
+        journalChannel.force(false);
+        lastOffset = offset;
+        lastChain = chain;
+        segmentStart = offset;
+        segmentCrc.reset();
+        nextCheckpoint = offset + interval;
+    }
+
+    /**
+     * 
+     * @return the last committed offset
+     */
+    public long getLastOffset() {
+        return lastOffset;
+    }
+
+    /**
+     * Close the journal, keeping it for a later restart
+     */
+    public void close() {
+        if (randomAccessFile != null) {
+            try {
+                randomAccessFile.close();
+            } catch (IOException e) {
+            }
+            randomAccessFile = null;
+            journalChannel = null;
+        }
+    }
+
+    /**
+     * Close and delete the journal, once the transfer is over
+     * 
+     * @return True if deleted
+     */
+    public boolean delete() {
+        close();
+        return !journalFile.exists() || journalFile.delete();
+    }
+}
@@ -0,0 +1,286 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.file.filesystembased;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+import org.waarp.common.digest.FilesystemBasedDigest.DigestAlgo;
+import org.waarp.common.utility.WaarpThreadFactory;
+
+/**
+ * Digest engine reading a file once through a large direct buffer and feeding each chunk to all
+ * the requested digests.<br>
+ * <br>
+ * When only CRC32 is requested on a large file, segments are computed in parallel and combined,
+ * since CRC32 allows it. Other digests are sequential by definition and are computed in one pass.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class FilesystemBasedDigestEngine {
+    /**
+     * Size of the buffer used to read files
+     */
+    public static int bufferSize = 1024 * 1024;
+
+    /**
+     * Minimal size of a file for its CRC32 to be computed in parallel segments
+     */
+    public static long parallelThreshold = 64L * 1024 * 1024;
+
+    /**
+     * Number of threads (and segments) for parallel CRC32
+     */
+    public static int parallelism = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Shared executor for parallel CRC32
+     */
+    private static ExecutorService executor = null;
+
+    /**
+     * Reading buffer by thread
+     */
+    private static final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>();
+
+    private FilesystemBasedDigestEngine() {
+    }
+
+    /**
+     * 
+     * @return the shared executor for parallel CRC32
+     */
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(Math.max(parallelism, 1),
+                    new WaarpThreadFactory("DigestEngine"));
+        }
+        return executor;
+    }
+
+    /**
+     * 
+     * @param direct
+     * @return the reading buffer of the current thread, cleared
+     */
+    private static ByteBuffer getBuffer(boolean direct) {
+        ByteBuffer buffer = buffers.get();
+        if (buffer == null || buffer.capacity() != bufferSize || buffer.isDirect() != direct) {
+            buffer = direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer
+                    .allocate(bufferSize);
+            buffers.set(buffer);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Compute all the given digests reading the file once
+     * 
+     * @param file
+     * @param algos
+     * @return the digests by algorithm (checksums as 4 bytes in big endian)
+     * @throws IOException
+     */
+    public static Map<DigestAlgo, byte[]> getDigests(File file, DigestAlgo... algos)
+            throws IOException {
+        if (algos.length == 1 && algos[0] == DigestAlgo.CRC32 && parallelism > 1 &&
+                file.length() >= parallelThreshold) {
+            Map<DigestAlgo, byte[]> result = new EnumMap<DigestAlgo, byte[]>(DigestAlgo.class);
+            result.put(DigestAlgo.CRC32,
+                    FilesystemBasedTransferDigest.fromChecksum(getParallelCrc32(file)));
+            return result;
+        }
+        FilesystemBasedTransferDigest digest = new FilesystemBasedTransferDigest(algos);
+        FileInputStream inputStream = new FileInputStream(file);
+        try {
+            FileChannel fileChannel = inputStream.getChannel();
+            ByteBuffer buffer = getBuffer(true);
+            while (fileChannel.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        } finally {
+            inputStream.close();
+        }
+        return digest.finish();
+    }
+
+    /**
+     * 
+     * @param file
+     * @return the CRC32 of the file, computed by parallel segments
+     * @throws IOException
+     */
+    static long getParallelCrc32(File file) throws IOException {
+        final long size = file.length();
+        int nb = Math.max(parallelism, 1);
+        final long segment = (size + nb - 1) / nb;
+        final FileInputStream inputStream = new FileInputStream(file);
+        try {
+            final FileChannel fileChannel = inputStream.getChannel();
+            List<Future<Long>> futures = new ArrayList<Future<Long>>(nb);
+            for (long start = 0; start < size; start += segment) {
+                final long from = start;
+                final long to = Math.min(start + segment, size);
+                futures.add(getExecutor().submit(new Callable<Long>() {
+                    public Long call() throws IOException {
+                        return getCrc32(fileChannel, from, to);
+                    }
+                }));
+            }
+            long crc = 0;
+            long start = 0;
+            for (Future<Long> future : futures) {
+                long length = Math.min(segment, size - start);
+                crc = crc32Combine(crc, get(future), length);
+                start += length;
+            }
+            return crc;
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * 
+     * @param fileChannel
+     * @param from
+     * @param to
+     * @return the CRC32 of the segment [from, to[ using positional reads
+     * @throws IOException
+     */
+    private static long getCrc32(FileChannel fileChannel, long from, long to)
+            throws IOException {
+        CRC32 crc32 = new CRC32();
+        ByteBuffer buffer = getBuffer(false);
+        long position = from;
+        while (position < to) {
+            buffer.limit((int) Math.min(buffer.capacity(), to - position));
+            int read = fileChannel.read(buffer, position);
+            if (read < 0) {
+                break;
+            }
+            crc32.update(buffer.array(), buffer.arrayOffset(), buffer.position());
+            position += buffer.position();
+            buffer.clear();
+        }
+        return crc32.getValue();
+    }
+
+    /**
+     * 
+     * @param future
+     * @return the CRC32 computed by this future
+     * @throws IOException
+     */
+    private static long get(Future<Long> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while computing CRC32");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Combine 2 CRC32 of consecutive segments (as crc32_combine from zlib)
+     * 
+     * @param crc1
+     *            CRC32 of the first segment
+     * @param crc2
+     *            CRC32 of the second segment
+     * @param length2
+     *            length of the second segment
+     * @return the CRC32 of both segments
+     */
+    static long crc32Combine(long crc1, long crc2, long length2) {
+        if (length2 <= 0) {
+            return crc1;
+        }
+        long[] even = new long[32];
+        long[] odd = new long[32];
+        // operator for one zero bit
+        odd[0] = 0xedb88320L;
+        long row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        // operator for 2 then 4 zero bits
+        gf2MatrixSquare(even, odd);
+        gf2MatrixSquare(odd, even);
+        // apply length2 zero bytes to crc1
+        long length = length2;
+        do {
+            gf2MatrixSquare(even, odd);
+            if ((length & 1) != 0) {
+                crc1 = gf2MatrixTimes(even, crc1);
+            }
+            length >>= 1;
+            if (length == 0) {
+                break;
+            }
+            gf2MatrixSquare(odd, even);
+            if ((length & 1) != 0) {
+                crc1 = gf2MatrixTimes(odd, crc1);
+            }
+            length >>= 1;
+        } while (length != 0);
+        return crc1 ^ crc2;
+    }
+
+    private static long gf2MatrixTimes(long[] matrix, long vector) {
+        long sum = 0;
+        int i = 0;
+        while (vector != 0) {
+            if ((vector & 1) != 0) {
+                sum ^= matrix[i];
+            }
+            vector >>>= 1;
+            i++;
+        }
+        return sum;
+    }
+
+    private static void gf2MatrixSquare(long[] square, long[] matrix) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = gf2MatrixTimes(matrix, matrix[n]);
+        }
+    }
+}
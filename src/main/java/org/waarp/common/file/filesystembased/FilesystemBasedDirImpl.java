@@ -18,19 +18,23 @@
 package org.waarp.common.file.filesystembased;
 
 import java.io.File;
-import java.io.FileFilter;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
 import java.util.ArrayList;
-import java.util.Calendar;
-import java.util.Date;
+import java.util.EnumMap;
 import java.util.List;
-import java.util.Locale;
-import java.util.zip.CRC32;
-import java.util.zip.CheckedInputStream;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
 
 import org.waarp.common.command.exception.CommandAbstractException;
 import org.waarp.common.command.exception.Reply550Exception;
@@ -38,10 +42,12 @@ import org.waarp.common.command.exception.Reply553Exception;
 import org.waarp.common.digest.FilesystemBasedDigest;
 import org.waarp.common.digest.FilesystemBasedDigest.DigestAlgo;
 import org.waarp.common.file.AbstractDir;
+import org.waarp.common.file.DigestCache;
+import org.waarp.common.file.DirListingHandler;
 import org.waarp.common.file.FileInterface;
 import org.waarp.common.file.OptsMLSxInterface;
 import org.waarp.common.file.SessionInterface;
-import org.waarp.common.file.filesystembased.specific.FilesystemBasedCommonsIo;
+import org.waarp.common.file.filesystembased.FilesystemBasedDirListingCache.ListingEntry;
 import org.waarp.common.file.filesystembased.specific.FilesystemBasedDirJdk5;
 import org.waarp.common.file.filesystembased.specific.FilesystemBasedDirJdk6;
 import org.waarp.common.file.filesystembased.specific.FilesystemBasedDirJdkAbstract;
@@ -62,6 +68,22 @@ public abstract class FilesystemBasedDirImpl extends AbstractDir {
     private static final WaarpLogger logger = WaarpLoggerFactory
             .getLogger(FilesystemBasedDirImpl.class);
 
+    /**
+     * Are POSIX attributes available, such that one stat gives all the information of an entry
+     */
+    private static final boolean POSIX_ATTRIBUTES = FileSystems.getDefault()
+            .supportedFileAttributeViews().contains("posix");
+
+    /**
+     * User running this server, whose access rights are shown in the listings
+     */
+    private static final String PROCESS_USER = System.getProperty("user.name");
+
+    /**
+     * Primary group of this user, as the group of its home directory (null if unknown)
+     */
+    private static final String PROCESS_GROUP = getProcessGroup();
+
     /**
      * Class that handles specifity of one Jdk or another
      */
@@ -99,6 +121,11 @@ public abstract class FilesystemBasedDirImpl extends AbstractDir {
         filesystemBasedFtpDirJdk = filesystemBasedFtpDirJdkChoice;
     }
 
+    /**
+     * Optional cache of directory listings
+     */
+    private FilesystemBasedDirListingCache listingCache = null;
+
     /**
      * @param session
      * @param optsMLSx
@@ -113,6 +140,35 @@ public abstract class FilesystemBasedDirImpl extends AbstractDir {
         this.optsMLSx.setOptsType((byte) 1);
     }
 
+    /**
+     * 
+     * @return the listing cache used by this directory, or null if none
+     */
+    public FilesystemBasedDirListingCache getListingCache() {
+        return listingCache;
+    }
+
+    /**
+     * 
+     * @param listingCache
+     *            the listing cache to use (which can be shared by all sessions), or null for none
+     */
+    public void setListingCache(FilesystemBasedDirListingCache listingCache) {
+        this.listingCache = listingCache;
+    }
+
+    /**
+     * Drop the cached listing of the directory containing this file, since the file is created,
+     * written, renamed or deleted
+     * 
+     * @param file
+     */
+    public void invalidateListing(File file) {
+        if (listingCache != null) {
+            listingCache.invalidateParent(file);
+        }
+    }
+
     /**
      * Finds all files matching a wildcard expression (based on '?', '~' or '*').
      * 
@@ -170,28 +226,9 @@ public abstract class FilesystemBasedDirImpl extends AbstractDir {
             }
             wildcardFile = parent;
         }
+        // One depth first walk from the root, each name being matched by a compiled pattern
         List<File> basedPaths = new ArrayList<File>();
-        // First set root
-        basedPaths.add(new File(subdirs.get(0)));
-        int i = 1;
-        // For each wilcard subdirectory
-        while (i < subdirs.size()) {
-            // Set current filter
-            FileFilter fileFilter = FilesystemBasedCommonsIo
-                    .getWildcardFileFilter(subdirs.get(i));
-            List<File> newBasedPaths = new ArrayList<File>();
-            // Look for matches in all the current search paths
-            for (File dir : basedPaths) {
-                if (dir.isDirectory()) {
-                    for (File match : dir.listFiles(fileFilter)) {
-                        newBasedPaths.add(match);
-                    }
-                }
-            }
-            // base Search Path changes now
-            basedPaths = newBasedPaths;
-            i++;
-        }
+        walkWildcard(new File(subdirs.get(0)), subdirs, 1, basedPaths);
         // Valid each file first
         for (File file : basedPaths) {
             String relativePath = ((FilesystemBasedAuthImpl) getSession()
@@ -203,6 +240,57 @@ public abstract class FilesystemBasedDirImpl extends AbstractDir {
         return resultPaths;
     }
 
+    /**
+     * Depth first walk matching the names of the path one by one. A name without wildcard is
+     * checked directly without listing its parent, and entries that are not directories are
+     * pruned as long as names remain.
+     * 
+     * @param dir
+     *            the current directory
+     * @param subdirs
+     *            the names of the path (the root first)
+     * @param index
+     *            the index of the name to match in this directory
+     * @param matches
+     *            the files matching the whole path
+     */
+    private static void walkWildcard(File dir, List<String> subdirs, int index,
+            List<File> matches) {
+        if (index >= subdirs.size()) {
+            matches.add(dir);
+            return;
+        }
+        String name = subdirs.get(index);
+        boolean last = index == subdirs.size() - 1;
+        Pattern pattern = FilesystemBasedWildcard.getPattern(name);
+        if (pattern == null) {
+            File child = new File(dir, name);
+            if (last ? child.exists() : child.isDirectory()) {
+                walkWildcard(child, subdirs, index + 1, matches);
+            }
+            return;
+        }
+        DirectoryStream<Path> stream;
+        try {
+            stream = Files.newDirectoryStream(dir.toPath());
+        } catch (IOException e) {
+            // not a directory or not readable
+            return;
+        }
+        try {
+            for (Path entry : stream) {
+                if (pattern.matcher(entry.getFileName().toString()).matches() &&
+                        (last || Files.isDirectory(entry))) {
+                    walkWildcard(entry.toFile(), subdirs, index + 1, matches);
+                }
+            }
+        } catch (DirectoryIteratorException e) {
+            // directory changed while read: keep what was found
+        } finally {
+            closeDirectoryStream(stream);
+        }
+    }
+
     /**
      * Get the FileInterface from this path, checking first its validity
      * 
@@ -302,6 +390,7 @@ public abstract class FilesystemBasedDirImpl extends AbstractDir {
         newDir = this.validatePath(newDir);
         File newdir = getFileFromPath(newDir);
         if (newdir.mkdir()) {
+            invalidateListing(newdir);
             return newDir;
         }
         throw new Reply550Exception("Cannot create directory " + newDir);
@@ -319,6 +408,10 @@ public abstract class FilesystemBasedDirImpl extends AbstractDir {
         extDir = this.validatePath(extDir);
         File dir = getFileFromPath(extDir);
         if (dir.delete()) {
+            invalidateListing(dir);
+            if (listingCache != null) {
+                listingCache.invalidate(dir.toPath());
+            }
             return extDir;
         }
         throw new Reply550Exception("Cannot delete directory " + extDir);
@@ -352,49 +445,42 @@ public abstract class FilesystemBasedDirImpl extends AbstractDir {
      * @return the Modification time as a String YYYYMMDDHHMMSS.sss
      */
     protected String getModificationTime(File file) {
-        long mstime = file.lastModified();
-        Calendar calendar = Calendar.getInstance();
-        calendar.setTimeInMillis(mstime);
-        int year = calendar.get(Calendar.YEAR);
-        int month = calendar.get(Calendar.MONTH) + 1;
-        int day = calendar.get(Calendar.DAY_OF_MONTH);
-        int hour = calendar.get(Calendar.HOUR_OF_DAY);
-        int minute = calendar.get(Calendar.MINUTE);
-        int second = calendar.get(Calendar.SECOND);
-        int ms = calendar.get(Calendar.MILLISECOND);
-        StringBuilder sb = new StringBuilder(18);
-        sb.append(year);
-        if (month < 10) {
-            sb.append(0);
-        }
-        sb.append(month);
-        if (day < 10) {
-            sb.append(0);
-        }
-        sb.append(day);
-        if (hour < 10) {
-            sb.append(0);
-        }
-        sb.append(hour);
-        if (minute < 10) {
-            sb.append(0);
-        }
-        sb.append(minute);
-        if (second < 10) {
-            sb.append(0);
-        }
-        sb.append(second).append('.');
-        if (ms < 10) {
-            sb.append(0);
-        }
-        if (ms < 100) {
-            sb.append(0);
-        }
-        sb.append(ms);
-        return sb.toString();
+        return getModificationTime(file.lastModified());
+    }
+
+    /**
+     * Return the Modification time
+     * 
+     * @param mstime
+     *            the modification time in ms
+     * @return the Modification time as a String YYYYMMDDHHMMSS.sss
+     */
+    protected String getModificationTime(long mstime) {
+        return FilesystemBasedListingFormatter.getInstance()
+                .appendModificationTime(new StringBuilder(18), mstime).toString();
     }
 
     public List<String> list(String path) throws CommandAbstractException {
+        final List<String> newPaths = new ArrayList<String>();
+        list(path, new DirListingHandler() {
+            public void onLine(CharSequence line) {
+                newPaths.add(line.toString());
+            }
+        });
+        return newPaths;
+    }
+
+    /**
+     * List all files from the given path (could be a file or a directory), streaming the names to
+     * the handler while the directory is read
+     * 
+     * @param path
+     * @param handler
+     *            receiving each path
+     * @throws CommandAbstractException
+     */
+    public void list(String path, DirListingHandler handler)
+            throws CommandAbstractException {
         checkIdentify();
         // First get all base directories
         String newpath = path;
@@ -415,28 +501,64 @@ public abstract class FilesystemBasedDirImpl extends AbstractDir {
         if (paths.isEmpty()) {
             throw new Reply550Exception("No files found");
         }
+        FilesystemBasedAuthImpl auth = (FilesystemBasedAuthImpl) getSession().getAuth();
         // Now if they are directories, list inside them
-        List<String> newPaths = new ArrayList<String>();
         for (String file : paths) {
-            File dir = getFileFromPath(file);
-            if (dir.exists()) {
-                if (dir.isDirectory()) {
-                    String[] files = dir.list();
-                    for (String finalFile : files) {
-                        String relativePath = ((FilesystemBasedAuthImpl) getSession()
-                                .getAuth()).getRelativePath(finalFile);
-                        newPaths.add(relativePath);
+            Path dir = getFileFromPath(file).toPath();
+            BasicFileAttributes attributes = readAttributes(dir);
+            if (attributes == null) {
+                continue;
+            }
+            if (attributes.isDirectory()) {
+                List<ListingEntry> cached = listingCache == null ? null : listingCache
+                        .get(dir);
+                if (cached != null) {
+                    for (ListingEntry entry : cached) {
+                        handler.onLine(auth.getRelativePath(getName(entry.getPath())));
                     }
-                } else {
-                    newPaths.add(file);
+                    continue;
+                }
+                DirectoryStream<Path> stream = openDirectoryStream(dir);
+                try {
+                    for (Path entry : stream) {
+                        handler.onLine(auth.getRelativePath(entry.getFileName().toString()));
+                    }
+                } catch (DirectoryIteratorException e) {
+                    throw new Reply550Exception("Cannot list directory: " + file);
+                } finally {
+                    closeDirectoryStream(stream);
                 }
+            } else {
+                handler.onLine(file);
             }
         }
-        return newPaths;
     }
 
     public List<String> listFull(String path, boolean lsFormat)
             throws CommandAbstractException {
+        final List<String> newPaths = new ArrayList<String>();
+        listFull(path, lsFormat, new DirListingHandler() {
+            public void onLine(CharSequence line) {
+                newPaths.add(line.toString());
+            }
+        });
+        return newPaths;
+    }
+
+    /**
+     * List all files with other informations from the given path (could be a file or a
+     * directory), streaming each line to the handler while the directory is read. Each entry is
+     * read with only one access to its attributes.
+     * 
+     * @param path
+     * @param lsFormat
+     *            True if ls Format, else MLSx format
+     * @param handler
+     *            receiving each line
+     * @throws CommandAbstractException
+     */
+    public void listFull(String path, boolean lsFormat, DirListingHandler handler)
+            throws CommandAbstractException {
         checkIdentify();
         boolean listAllFiles = false;
         String newpath = path;
@@ -458,38 +580,216 @@ public abstract class FilesystemBasedDirImpl extends AbstractDir {
         if (paths.isEmpty()) {
             throw new Reply550Exception("No files found");
         }
+        // resolved once for the whole listing
+        Path currentDirPath = getFileFromPath(currentDir).toPath();
+        long now = System.currentTimeMillis();
+        FilesystemBasedListingFormatter formatter = FilesystemBasedListingFormatter
+                .getInstance();
         // Now if they are directories, list inside them
-        List<String> newPaths = new ArrayList<String>();
         for (String file : paths) {
-            File dir = getFileFromPath(file);
-            if (dir.exists()) {
-                if (dir.isDirectory()) {
-                    File[] files = dir.listFiles();
-                    for (File finalFile : files) {
-                        if (lsFormat) {
-                            newPaths.add(lsInfo(finalFile));
-                        } else {
-                            newPaths.add(mlsxInfo(finalFile));
+            Path dir = getFileFromPath(file).toPath();
+            BasicFileAttributes attributes = readAttributes(dir);
+            if (attributes == null) {
+                continue;
+            }
+            if (attributes.isDirectory()) {
+                List<ListingEntry> cached = listingCache == null ? null : listingCache
+                        .get(dir);
+                if (cached != null) {
+                    for (ListingEntry entry : cached) {
+                        handler.onLine(fullInfo(entry.getPath(), entry.getAttributes(),
+                                lsFormat, currentDirPath, now, formatter));
+                    }
+                    continue;
+                }
+                long generation = listingCache == null ? 0 : listingCache.prepare(dir);
+                List<ListingEntry> entries = listingCache == null ? null
+                        : new ArrayList<ListingEntry>();
+                DirectoryStream<Path> stream = openDirectoryStream(dir);
+                try {
+                    for (Path entry : stream) {
+                        BasicFileAttributes entryAttributes = readAttributes(entry);
+                        if (entryAttributes != null) {
+                            handler.onLine(fullInfo(entry, entryAttributes, lsFormat,
+                                    currentDirPath, now, formatter));
+                            if (entries != null) {
+                                entries.add(new ListingEntry(entry, entryAttributes));
+                            }
                         }
                     }
-                } else {
-                    if (lsFormat) {
-                        newPaths.add(lsInfo(dir));
-                    } else {
-                        newPaths.add(mlsxInfo(dir));
+                    if (entries != null) {
+                        listingCache.put(dir, entries, generation);
                     }
+                } catch (DirectoryIteratorException e) {
+                    throw new Reply550Exception("Cannot list directory: " + file);
+                } finally {
+                    closeDirectoryStream(stream);
                 }
+            } else {
+                handler.onLine(fullInfo(dir, attributes, lsFormat, currentDirPath, now,
+                        formatter));
             }
         }
         if (listAllFiles) {
-            File dir = new File(getFileFromPath(newpath), SEPARATOR + "..");
-            if (lsFormat) {
-                newPaths.add(lsInfo(dir));
-            } else {
-                newPaths.add(mlsxInfo(dir));
+            Path dir = new File(getFileFromPath(newpath), SEPARATOR + "..").toPath();
+            BasicFileAttributes attributes = readAttributes(dir);
+            if (attributes != null) {
+                handler.onLine(fullInfo(dir, attributes, lsFormat, currentDirPath, now,
+                        formatter));
             }
         }
-        return newPaths;
+    }
+
+    /**
+     * 
+     * @param dir
+     * @return the DirectoryStream on this directory
+     * @throws CommandAbstractException
+     */
+    private static DirectoryStream<Path> openDirectoryStream(Path dir)
+            throws CommandAbstractException {
+        try {
+            return Files.newDirectoryStream(dir);
+        } catch (IOException e) {
+            throw new Reply550Exception("Cannot list directory: " + dir.getFileName());
+        }
+    }
+
+    /**
+     * 
+     * @param stream
+     *            to close
+     */
+    private static void closeDirectoryStream(DirectoryStream<Path> stream) {
+        try {
+            stream.close();
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * Read all the attributes of one entry at once (POSIX ones if available)
+     * 
+     * @param path
+     * @return the attributes, or null if the entry does not exist or cannot be read
+     */
+    protected static BasicFileAttributes readAttributes(Path path) {
+        try {
+            if (POSIX_ATTRIBUTES) {
+                return Files.readAttributes(path, PosixFileAttributes.class);
+            }
+            return Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (IOException e) {
+            return null;
+        } catch (UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 
+     * @return the primary group of the user running this server, as the group of its home
+     *         directory if owned by this user, else null
+     */
+    private static String getProcessGroup() {
+        String home = System.getProperty("user.home");
+        if (!POSIX_ATTRIBUTES || PROCESS_USER == null || home == null) {
+            return null;
+        }
+        try {
+            PosixFileAttributes attributes = Files.readAttributes(Paths.get(home),
+                    PosixFileAttributes.class);
+            if (PROCESS_USER.equals(attributes.owner().getName())) {
+                return attributes.group().getName();
+            }
+        } catch (IOException e) {
+        } catch (RuntimeException e) {
+        }
+        return null;
+    }
+
+    /**
+     * 
+     * @param path
+     * @param attributes
+     * @param permission
+     *            one of OWNER_READ, OWNER_WRITE, OWNER_EXECUTE
+     * @return True if allowed to the user running this server, as File.canRead() and so on
+     */
+    private static boolean hasPermission(Path path, BasicFileAttributes attributes,
+            PosixFilePermission permission) {
+        return hasPermission(path, attributes, permission, PROCESS_USER, PROCESS_GROUP);
+    }
+
+    /**
+     * With POSIX attributes, the rights are computed from the already read attributes, without
+     * another access check: all for root (execute if any execute bit is set, for files), else the
+     * owner bits if the user owns the entry, the group bits if the entry belongs to its group
+     * (supplementary groups are not known), or the others bits.
+     * 
+     * @param path
+     * @param attributes
+     * @param permission
+     *            one of OWNER_READ, OWNER_WRITE, OWNER_EXECUTE
+     * @param user
+     *            the user whose rights are computed
+     * @param group
+     *            the primary group of this user (may be null)
+     * @return True if allowed to the user
+     */
+    static boolean hasPermission(Path path, BasicFileAttributes attributes,
+            PosixFilePermission permission, String user, String group) {
+        if (attributes instanceof PosixFileAttributes && user != null) {
+            PosixFileAttributes posixAttributes = (PosixFileAttributes) attributes;
+            Set<PosixFilePermission> permissions = posixAttributes.permissions();
+            if ("root".equals(user)) {
+                if (permission != PosixFilePermission.OWNER_EXECUTE ||
+                        posixAttributes.isDirectory()) {
+                    return true;
+                }
+                return permissions.contains(PosixFilePermission.OWNER_EXECUTE) ||
+                        permissions.contains(PosixFilePermission.GROUP_EXECUTE) ||
+                        permissions.contains(PosixFilePermission.OTHERS_EXECUTE);
+            }
+            // GROUP_ and OTHERS_ follow OWNER_ by 3 in the enumeration
+            int shift = 6;
+            if (user.equals(posixAttributes.owner().getName())) {
+                shift = 0;
+            } else if (group != null && group.equals(posixAttributes.group().getName())) {
+                shift = 3;
+            }
+            return permissions.contains(PosixFilePermission.values()[permission.ordinal() +
+                    shift]);
+        }
+        switch (permission) {
+            case OWNER_READ:
+                return Files.isReadable(path);
+            case OWNER_WRITE:
+                return Files.isWritable(path);
+            default:
+                return Files.isExecutable(path);
+        }
+    }
+
+    /**
+     * 
+     * @param path
+     * @param attributes
+     * @param lsFormat
+     * @param currentDirPath
+     *            the current directory, resolved once for the listing
+     * @param now
+     *            the time of the listing
+     * @param formatter
+     *            the formatter of the current thread
+     * @return the ls or MLSx information of this entry, in the line buffer of the formatter
+     */
+    private CharSequence fullInfo(Path path, BasicFileAttributes attributes, boolean lsFormat,
+            Path currentDirPath, long now, FilesystemBasedListingFormatter formatter) {
+        if (lsFormat) {
+            return lsInfo(path, attributes, now, formatter);
+        }
+        return mlsxInfo(path, attributes, currentDirPath, formatter);
     }
 
     public String fileFull(String path, boolean lsFormat)
@@ -545,38 +845,67 @@ public abstract class FilesystemBasedDirImpl extends AbstractDir {
                 .append("1 ")// hard link ?
                 .append("anybody\t")// owner ?
                 .append("anygroup\t")// group ?
-                .append(file.length())// size
+                .append(getListedSize(file.toPath(), file.length()))// size
                 .append('\t');
-        long lastmod = file.lastModified();
-        String fmt = null;
-        // It seems Full Time is not recognized by some FTP client
-        /*
-         * if(isFullTime()) { fmt = "EEE MMM dd HH:mm:ss yyyy"; } else {
-         */
-        long currentTime = System.currentTimeMillis();
-        if (currentTime > lastmod + 6L * 30L * 24L * 60L * 60L * 1000L // Old.
-                || currentTime < lastmod - 60L * 60L * 1000L) { // In the
-            // future.
-            // The file is fairly old or in the future.
-            // POSIX says the cutoff is 6 months old;
-            // approximate this by 6*30 days.
-            // Allow a 1 hour slop factor for what is considered "the future",
-            // to allow for NFS server/client clock disagreement.
-            // Show the year instead of the time of day.
-            fmt = "MMM dd  yyyy";
-        } else {
-            fmt = "MMM dd HH:mm";
-        }
-        /* } */
-        SimpleDateFormat dateFormat = (SimpleDateFormat) DateFormat
-                .getDateTimeInstance(DateFormat.LONG, DateFormat.LONG,
-                        Locale.ENGLISH);
-        dateFormat.applyPattern(fmt);
-        builder.append(dateFormat.format(new Date(lastmod)))// date
-                .append('\t').append(file.getName());
+        FilesystemBasedListingFormatter.getInstance().appendLsDate(builder,
+                file.lastModified(), System.currentTimeMillis());
+        builder.append('\t').append(file.getName());
         return builder.toString();
     }
 
+    /**
+     * 
+     * @param path
+     * @param attributes
+     *            of this entry
+     * @param now
+     *            the time of the listing
+     * @param formatter
+     *            the formatter of the current thread
+     * @return the ls format information, in the line buffer of the formatter
+     */
+    protected CharSequence lsInfo(Path path, BasicFileAttributes attributes, long now,
+            FilesystemBasedListingFormatter formatter) {
+        StringBuilder builder = formatter.newLine()
+                .append((attributes.isDirectory() ? 'd' : '-'))
+                .append((hasPermission(path, attributes, PosixFilePermission.OWNER_READ) ? 'r'
+                        : '-'))
+                .append((hasPermission(path, attributes, PosixFilePermission.OWNER_WRITE) ? 'w'
+                        : '-'))
+                .append((hasPermission(path, attributes, PosixFilePermission.OWNER_EXECUTE) ? 'x'
+                        : '-'));
+        // Group and others not supported
+        builder.append("---").append("---").append(' ')
+                .append("1 ")// hard link ?
+                .append("anybody\t")// owner ?
+                .append("anygroup\t")// group ?
+                .append(getListedSize(path, attributes.size()))// size
+                .append('\t');
+        formatter.appendLsDate(builder, attributes.lastModifiedTime().toMillis(), now);
+        return builder.append('\t').append(getName(path));
+    }
+
+    /**
+     * 
+     * @param path
+     * @param size
+     *            the size of the entry on disk
+     * @return the size shown in listings, by default the size on disk
+     */
+    protected long getListedSize(Path path, long size) {
+        return size;
+    }
+
+    /**
+     * 
+     * @param path
+     * @return the name of the entry
+     */
+    private static String getName(Path path) {
+        Path name = path.getFileName();
+        return name == null ? path.toString() : name.toString();
+    }
+
     /**
      * 
      * @param file
@@ -586,7 +915,8 @@ public abstract class FilesystemBasedDirImpl extends AbstractDir {
         // don't have create, unique, lang, media-type, charset
         StringBuilder builder = new StringBuilder(" ");
         if (getOptsMLSx().getOptsSize() == 1) {
-            builder.append("Size=").append(file.length()).append(';');
+            builder.append("Size=").append(getListedSize(file.toPath(), file.length()))
+                    .append(';');
         }
         if (getOptsMLSx().getOptsModify() == 1) {
             builder.append("Modify=").append(this.getModificationTime(file)).append(';');
@@ -643,6 +973,73 @@ public abstract class FilesystemBasedDirImpl extends AbstractDir {
         return builder.toString();
     }
 
+    /**
+     * 
+     * @param path
+     * @param attributes
+     *            of this entry
+     * @param currentDirPath
+     *            the current directory, resolved once for the listing
+     * @param formatter
+     *            the formatter of the current thread
+     * @return the MLSx information: ' Fact=facts;...; filename', in the line buffer of the
+     *         formatter
+     */
+    protected CharSequence mlsxInfo(Path path, BasicFileAttributes attributes,
+            Path currentDirPath, FilesystemBasedListingFormatter formatter) {
+        // don't have create, unique, lang, media-type, charset
+        StringBuilder builder = formatter.newLine().append(' ');
+        if (getOptsMLSx().getOptsSize() == 1) {
+            builder.append("Size=").append(getListedSize(path, attributes.size())).append(';');
+        }
+        if (getOptsMLSx().getOptsModify() == 1) {
+            builder.append("Modify=");
+            formatter.appendModificationTime(builder, attributes.lastModifiedTime().toMillis())
+                    .append(';');
+        }
+        if (getOptsMLSx().getOptsType() == 1) {
+            builder.append("Type=");
+            if (currentDirPath.equals(path)) {
+                builder.append("cdir");
+            } else if (attributes.isDirectory()) {
+                builder.append("dir");
+            } else {
+                builder.append("file");
+            }
+            builder.append(';');
+        }
+        if (getOptsMLSx().getOptsPerm() == 1) {
+            builder.append("Perm=");
+            boolean canWrite = hasPermission(path, attributes, PosixFilePermission.OWNER_WRITE);
+            boolean canRead = hasPermission(path, attributes, PosixFilePermission.OWNER_READ);
+            if (attributes.isRegularFile()) {
+                if (canWrite) {
+                    builder.append('a').append('d').append('f').append('w');
+                }
+                if (canRead) {
+                    builder.append('r');
+                }
+            } else {
+                // Directory
+                if (canWrite) {
+                    builder.append('c');
+                    try {
+                        if (this.validatePath(path.toFile()) != null) {
+                            builder.append('d').append('m').append('p');
+                        }
+                    } catch (CommandAbstractException e) {
+                    }
+                }
+                if (canRead) {
+                    builder.append('l').append('e');
+                }
+            }
+            builder.append(';');
+        }
+
+        return builder.append(' ').append(getName(path));
+    }
+
     public long getFreeSpace() throws CommandAbstractException {
         checkIdentify();
         File directory = getFileFromPath(currentDir);
@@ -683,40 +1080,69 @@ public abstract class FilesystemBasedDirImpl extends AbstractDir {
     }
 
     public long getCRC(String path) throws CommandAbstractException {
+        return FilesystemBasedTransferDigest.toChecksum(
+                getDigests(path, DigestAlgo.CRC32).get(DigestAlgo.CRC32));
+    }
+
+    /**
+     * Get several digests of one file, reading it only once for all the digests not already in
+     * the {@link DigestCache} (see {@link FilesystemBasedDigestEngine})
+     * 
+     * @param path
+     * @param algos
+     * @return the digests by algorithm (checksums as 4 bytes in big endian)
+     * @throws CommandAbstractException
+     */
+    public Map<DigestAlgo, byte[]> getDigests(String path, DigestAlgo... algos)
+            throws CommandAbstractException {
         File file = getTrueFile(path);
-        CheckedInputStream cis = null;
-        try {
-            try {
-                // Computer CRC32 checksum
-                cis = new CheckedInputStream(new FileInputStream(file),
-                        new CRC32());
-            } catch (FileNotFoundException e) {
-                throw new Reply550Exception("File not found: " + path);
-            }
-            byte[] buf = new byte[session.getBlockSize()];
-            while (cis.read(buf) >= 0) {
+        Map<DigestAlgo, byte[]> result = new EnumMap<DigestAlgo, byte[]>(DigestAlgo.class);
+        List<DigestAlgo> missing = new ArrayList<DigestAlgo>(algos.length);
+        for (DigestAlgo algo : algos) {
+            byte[] cached = DigestCache.get(file, algo);
+            if (cached != null) {
+                result.put(algo, cached);
+            } else {
+                missing.add(algo);
             }
-            long result = cis.getChecksum().getValue();
+        }
+        if (missing.isEmpty()) {
             return result;
+        }
+        DigestCache.Stamp stamp = new DigestCache.Stamp(file);
+        try {
+            Map<DigestAlgo, byte[]> computed = FilesystemBasedDigestEngine.getDigests(file,
+                    missing.toArray(new DigestAlgo[missing.size()]));
+            DigestCache.put(file, stamp, computed);
+            result.putAll(computed);
+        } catch (FileNotFoundException e) {
+            throw new Reply550Exception("File not found: " + path);
         } catch (IOException e) {
             throw new Reply550Exception("Error while reading file: " + path);
-        } finally {
-            if (cis != null) {
-                try {
-                    cis.close();
-                } catch (IOException e) {
-                }
+        }
+        for (DigestAlgo algo : missing) {
+            if (!result.containsKey(algo)) {
+                throw new Reply550Exception("Digest not supported: " + algo);
             }
         }
+        return result;
     }
 
     public byte[] getMD5(String path) throws CommandAbstractException {
         File file = getTrueFile(path);
+        byte[] cached = DigestCache.get(file, DigestAlgo.MD5);
+        if (cached != null) {
+            return cached;
+        }
+        DigestCache.Stamp stamp = new DigestCache.Stamp(file);
         try {
+            byte[] digest;
             if (FilesystemBasedFileParameterImpl.useNio) {
-                return FilesystemBasedDigest.getHashMd5Nio(file);
+                digest = FilesystemBasedDigest.getHashMd5Nio(file);
+            } else {
+                digest = FilesystemBasedDigest.getHashMd5(file);
             }
-            return FilesystemBasedDigest.getHashMd5(file);
+            return putInCache(file, stamp, DigestAlgo.MD5, digest);
         } catch (IOException e1) {
             throw new Reply550Exception("Error while reading file: " + path);
         }
@@ -724,11 +1150,19 @@ public abstract class FilesystemBasedDirImpl extends AbstractDir {
 
     public byte[] getSHA1(String path) throws CommandAbstractException {
         File file = getTrueFile(path);
+        byte[] cached = DigestCache.get(file, DigestAlgo.SHA1);
+        if (cached != null) {
+            return cached;
+        }
+        DigestCache.Stamp stamp = new DigestCache.Stamp(file);
         try {
+            byte[] digest;
             if (FilesystemBasedFileParameterImpl.useNio) {
-                return FilesystemBasedDigest.getHashSha1Nio(file);
+                digest = FilesystemBasedDigest.getHashSha1Nio(file);
+            } else {
+                digest = FilesystemBasedDigest.getHashSha1(file);
             }
-            return FilesystemBasedDigest.getHashSha1(file);
+            return putInCache(file, stamp, DigestAlgo.SHA1, digest);
         } catch (IOException e1) {
             throw new Reply550Exception("Error while reading file: " + path);
         }
@@ -736,8 +1170,14 @@ public abstract class FilesystemBasedDirImpl extends AbstractDir {
 
     public byte[] getSHA256(String path) throws CommandAbstractException {
         File file = getTrueFile(path);
+        byte[] cached = DigestCache.get(file, DigestAlgo.SHA256);
+        if (cached != null) {
+            return cached;
+        }
+        DigestCache.Stamp stamp = new DigestCache.Stamp(file);
         try {
-            return FilesystemBasedDigest.getHash(file, FilesystemBasedFileParameterImpl.useNio, DigestAlgo.SHA256);
+            return putInCache(file, stamp, DigestAlgo.SHA256, FilesystemBasedDigest.getHash(file,
+                    FilesystemBasedFileParameterImpl.useNio, DigestAlgo.SHA256));
         } catch (IOException e1) {
             throw new Reply550Exception("Error while reading file: " + path);
         }
@@ -745,10 +1185,34 @@ public abstract class FilesystemBasedDirImpl extends AbstractDir {
 
     public byte[] getSHA512(String path) throws CommandAbstractException {
         File file = getTrueFile(path);
+        byte[] cached = DigestCache.get(file, DigestAlgo.SHA512);
+        if (cached != null) {
+            return cached;
+        }
+        DigestCache.Stamp stamp = new DigestCache.Stamp(file);
         try {
-            return FilesystemBasedDigest.getHash(file, FilesystemBasedFileParameterImpl.useNio, DigestAlgo.SHA512);
+            return putInCache(file, stamp, DigestAlgo.SHA512, FilesystemBasedDigest.getHash(file,
+                    FilesystemBasedFileParameterImpl.useNio, DigestAlgo.SHA512));
         } catch (IOException e1) {
             throw new Reply550Exception("Error while reading file: " + path);
         }
     }
+
+    /**
+     * 
+     * @param file
+     * @param stamp
+     *            taken before computing the digest
+     * @param algo
+     * @param digest
+     *            the digest just computed on the file
+     * @return the digest
+     */
+    private static byte[] putInCache(File file, DigestCache.Stamp stamp, DigestAlgo algo,
+            byte[] digest) {
+        if (digest != null) {
+            DigestCache.put(file, stamp, algo, digest);
+        }
+        return digest;
+    }
 }
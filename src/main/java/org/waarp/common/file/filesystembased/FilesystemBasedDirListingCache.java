@@ -0,0 +1,348 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.file.filesystembased;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.common.lru.SynchronizedLruCache;
+import org.waarp.common.utility.WaarpThreadFactory;
+
+/**
+ * Cache of directory listings (entries and their attributes) by directory, optionally set on
+ * FilesystemBasedDirImpl and which can be shared by all the sessions, such that clients polling
+ * the same directories do not rescan them each time.<br>
+ * <br>
+ * A cached directory is registered on a WatchService and its listing is dropped as soon as an
+ * entry is created, deleted or modified in it. Since some filesystems (network ones in particular)
+ * do not emit events, a listing is also dropped after its time to live. The number of directories
+ * is bounded, and directories with more than maxEntries entries are never cached.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class FilesystemBasedDirListingCache {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(FilesystemBasedDirListingCache.class);
+
+    /**
+     * One entry of a cached directory
+     * 
+     * @author Frederic Bregier
+     * 
+     */
+    public static class ListingEntry {
+        private final Path path;
+        private final BasicFileAttributes attributes;
+
+        /**
+         * @param path
+         * @param attributes
+         */
+        public ListingEntry(Path path, BasicFileAttributes attributes) {
+            this.path = path;
+            this.attributes = attributes;
+        }
+
+        /**
+         * @return the path of this entry
+         */
+        public Path getPath() {
+            return path;
+        }
+
+        /**
+         * @return the attributes of this entry when the directory was read
+         */
+        public BasicFileAttributes getAttributes() {
+            return attributes;
+        }
+    }
+
+    private final SynchronizedLruCache<Path, List<ListingEntry>> listings;
+    private final Map<Path, WatchKey> watchKeys = new ConcurrentHashMap<Path, WatchKey>();
+    private final int capacity;
+    private final int maxEntries;
+    private final AtomicLong invalidations = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private WatchService watchService = null;
+
+    /**
+     * @param capacity
+     *            maximum number of cached directories
+     * @param maxEntries
+     *            maximum number of entries of a cached directory
+     * @param ttl
+     *            time to live in ms of a listing, for filesystems without events
+     * @param useWatchService
+     *            True to drop listings on filesystem events
+     */
+    public FilesystemBasedDirListingCache(int capacity, int maxEntries, long ttl,
+            boolean useWatchService) {
+        this.capacity = Math.max(capacity, 1);
+        this.maxEntries = maxEntries;
+        listings = new SynchronizedLruCache<Path, List<ListingEntry>>(this.capacity,
+                Math.max(ttl, 1));
+        if (useWatchService) {
+            try {
+                watchService = FileSystems.getDefault().newWatchService();
+            } catch (IOException e) {
+                logger.warn("No WatchService available, only time to live is used", e);
+            } catch (UnsupportedOperationException e) {
+                logger.warn("No WatchService available, only time to live is used", e);
+            }
+        }
+        if (watchService != null) {
+            new WaarpThreadFactory("DirListingCache").newThread(new Runnable() {
+                public void run() {
+                    watch();
+                }
+            }).start();
+        }
+    }
+
+    /**
+     * Loop on the events of the WatchService until it is closed
+     */
+    private void watch() {
+        try {
+            for (;;) {
+                WatchKey key = watchService.take();
+                // whatever the event (including overflow), the directory changed
+                key.pollEvents();
+                Path dir = (Path) key.watchable();
+                key.cancel();
+                invalidate(dir);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException e) {
+            // closed
+        }
+    }
+
+    /**
+     * 
+     * @param dir
+     * @return the key of this directory in the cache
+     */
+    private static Path getKey(Path dir) {
+        return dir.toAbsolutePath().normalize();
+    }
+
+    /**
+     * Prepare the caching of the listing of a directory: it is registered on the WatchService
+     * first, such that a change while it is read is not missed.
+     * 
+     * @param dir
+     *            the directory about to be read
+     * @return the generation to give to put() once the directory is read, or -1 if it cannot be
+     *         cached
+     */
+    public long prepare(Path dir) {
+        dir = getKey(dir);
+        if (watchService != null && !watchKeys.containsKey(dir)) {
+            try {
+                watchKeys.put(dir, dir.register(watchService,
+                        StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE,
+                        StandardWatchEventKinds.ENTRY_MODIFY));
+            } catch (IOException e) {
+                return -1;
+            } catch (ClosedWatchServiceException e) {
+                return -1;
+            }
+            if (watchKeys.size() > capacity) {
+                cancelEvicted(dir);
+            }
+        }
+        return invalidations.get();
+    }
+
+    /**
+     * 
+     * @param dir
+     * @return the cached listing of this directory, or null
+     */
+    public List<ListingEntry> get(Path dir) {
+        List<ListingEntry> entries = listings.get(getKey(dir));
+        if (entries == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return entries;
+    }
+
+    /**
+     * Add the listing of a directory, unless something was invalidated since it was prepared or it
+     * is too large
+     * 
+     * @param dir
+     * @param entries
+     * @param generation
+     *            the value returned by prepare() before the directory was read
+     * @return True if the listing is cached
+     */
+    public boolean put(Path dir, List<ListingEntry> entries, long generation) {
+        if (generation < 0 || entries.size() > maxEntries) {
+            return false;
+        }
+        dir = getKey(dir);
+        if (watchService != null && !watchKeys.containsKey(dir)) {
+            // not watched (anymore) since prepared
+            return false;
+        }
+        if (generation != invalidations.get()) {
+            // a change happened while the directory was read
+            return false;
+        }
+        listings.put(dir, Collections.unmodifiableList(new ArrayList<ListingEntry>(entries)));
+        return true;
+    }
+
+    /**
+     * Stop to watch directories no more in the cache. The listings being read are then not
+     * cached.
+     * 
+     * @param keep
+     *            the directory being prepared, whose listing is not yet in the cache
+     */
+    private void cancelEvicted(Path keep) {
+        boolean cancelled = false;
+        Iterator<Map.Entry<Path, WatchKey>> iterator = watchKeys.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Path, WatchKey> entry = iterator.next();
+            if (!entry.getKey().equals(keep) && listings.get(entry.getKey()) == null) {
+                entry.getValue().cancel();
+                iterator.remove();
+                cancelled = true;
+            }
+        }
+        if (cancelled) {
+            invalidations.incrementAndGet();
+        }
+    }
+
+    /**
+     * Drop the listing of this directory
+     * 
+     * @param dir
+     */
+    public void invalidate(Path dir) {
+        dir = getKey(dir);
+        invalidations.incrementAndGet();
+        listings.remove(dir);
+        WatchKey key = watchKeys.remove(dir);
+        if (key != null) {
+            key.cancel();
+        }
+    }
+
+    /**
+     * Drop the listing of the directory containing this file (created, written, renamed or
+     * deleted)
+     * 
+     * @param file
+     */
+    public void invalidateParent(File file) {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            invalidate(parent.toPath());
+        }
+    }
+
+    /**
+     * Drop all listings
+     */
+    public void clear() {
+        invalidations.incrementAndGet();
+        listings.clear();
+        for (WatchKey key : watchKeys.values()) {
+            key.cancel();
+        }
+        watchKeys.clear();
+    }
+
+    /**
+     * Drop all listings and stop the WatchService
+     */
+    public void close() {
+        clear();
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    /**
+     * 
+     * @return the number of listings found in the cache
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * 
+     * @return the number of listings not found in the cache
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * 
+     * @return the ratio of listings found in the cache (0 if none asked)
+     */
+    public double getHitRatio() {
+        long hit = hits.get();
+        long total = hit + misses.get();
+        return total == 0 ? 0 : (double) hit / total;
+    }
+
+    /**
+     * 
+     * @return the number of cached directories
+     */
+    public int size() {
+        return listings.size();
+    }
+}
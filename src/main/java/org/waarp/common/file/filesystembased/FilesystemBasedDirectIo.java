@@ -0,0 +1,455 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.file.filesystembased;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.internal.PlatformDependent;
+
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+
+/**
+ * Sequential read or write of one file bypassing the page cache (O_DIRECT), such that very large
+ * transfers do not evict the cached data of the other files.<br>
+ * <br>
+ * Direct I/O requires the positions, the sizes and the memory addresses to be aligned on the block
+ * size of the filesystem: the data goes through an aligned staging buffer, taken from a small pool
+ * shared by all transfers. An unaligned start position is handled by reading the partial first
+ * block, and the last partial block of a written file is padded then the file is truncated to its
+ * real length.<br>
+ * <br>
+ * The DIRECT open option only exists from JDK 10 (com.sun.nio.file.ExtendedOpenOption) and not on
+ * all filesystems: it is looked up by reflection, and {@link #open(File, boolean, long, int)}
+ * returns null when direct I/O is not available, such that the caller falls back to standard I/O.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class FilesystemBasedDirectIo {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(FilesystemBasedDirectIo.class);
+
+    /**
+     * Block size used when the filesystem one is unknown
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 4096;
+
+    /**
+     * Maximum number of staging buffers kept in the pool
+     */
+    public static int maxPooledBuffers = 16;
+
+    private static final OpenOption DIRECT = getDirectOption();
+    private static final Method GET_BLOCK_SIZE = getBlockSizeMethod();
+    private static final Queue<ByteBuffer> pool = new ConcurrentLinkedQueue<ByteBuffer>();
+
+    private final FileChannel channel;
+    private final int blockSize;
+    private final boolean write;
+    private ByteBuffer staging;
+    /**
+     * Position in the file of the start of the staging buffer (always aligned)
+     */
+    private long stagingPosition;
+    /**
+     * Read mode: bytes to skip at the start of the next staging buffer
+     */
+    private int skip = 0;
+    /**
+     * Read mode: True once the end of the file is reached
+     */
+    private boolean eof = false;
+    /**
+     * Write mode: current length of the file
+     */
+    private long length;
+
+    private FilesystemBasedDirectIo(FileChannel channel, int blockSize, ByteBuffer staging,
+            boolean write, long position) {
+        this.channel = channel;
+        this.blockSize = blockSize;
+        this.staging = staging;
+        this.write = write;
+        stagingPosition = position - position % blockSize;
+        length = position;
+        if (!write) {
+            skip = (int) (position - stagingPosition);
+            staging.limit(0);
+        }
+    }
+
+    /**
+     * 
+     * @return the DIRECT open option if this JDK has one, else null
+     */
+    private static OpenOption getDirectOption() {
+        try {
+            Class<?> extended = Class.forName("com.sun.nio.file.ExtendedOpenOption");
+            for (Object option : extended.getEnumConstants()) {
+                if ("DIRECT".equals(((Enum<?>) option).name())) {
+                    return (OpenOption) option;
+                }
+            }
+        } catch (ClassNotFoundException e) {
+            // not available
+        } catch (LinkageError e) {
+            // not available
+        }
+        return null;
+    }
+
+    /**
+     * 
+     * @return the FileStore.getBlockSize method if this JDK has one, else null
+     */
+    private static Method getBlockSizeMethod() {
+        try {
+            return FileStore.class.getMethod("getBlockSize");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 
+     * @return True if this JDK may open files in direct I/O mode
+     */
+    public static boolean isSupported() {
+        return DIRECT != null && PlatformDependent.hasUnsafe();
+    }
+
+    /**
+     * 
+     * @param path
+     *            a file or, if it does not exist yet, a file in the same directory
+     * @return the block size of the filesystem of this path
+     */
+    public static int getBlockSize(Path path) {
+        if (GET_BLOCK_SIZE == null) {
+            return DEFAULT_BLOCK_SIZE;
+        }
+        try {
+            Path existing = path;
+            while (existing != null && !Files.exists(existing)) {
+                existing = existing.getParent();
+            }
+            if (existing == null) {
+                return DEFAULT_BLOCK_SIZE;
+            }
+            long size = ((Number) GET_BLOCK_SIZE.invoke(Files.getFileStore(existing)))
+                    .longValue();
+            if (size <= 0 || size > 1024 * 1024 || Long.bitCount(size) != 1) {
+                return DEFAULT_BLOCK_SIZE;
+            }
+            return (int) size;
+        } catch (Exception e) {
+            return DEFAULT_BLOCK_SIZE;
+        }
+    }
+
+    /**
+     * 
+     * @param size
+     *            a multiple of alignment
+     * @param alignment
+     * @return a direct buffer of this size whose address is aligned, from the pool if possible
+     */
+    static ByteBuffer allocateAligned(int size, int alignment) {
+        for (int i = 0; i < maxPooledBuffers; i++) {
+            ByteBuffer buffer = pool.poll();
+            if (buffer == null) {
+                break;
+            }
+            if (buffer.capacity() == size &&
+                    PlatformDependent.directBufferAddress(buffer) % alignment == 0) {
+                buffer.clear();
+                return buffer;
+            }
+            // not compatible, dropped
+        }
+        ByteBuffer raw = ByteBuffer.allocateDirect(size + alignment);
+        long address = PlatformDependent.directBufferAddress(raw);
+        int shift = (int) ((alignment - address % alignment) % alignment);
+        raw.position(shift);
+        raw.limit(shift + size);
+        return raw.slice();
+    }
+
+    /**
+     * Give back a staging buffer to the pool
+     * 
+     * @param buffer
+     */
+    static void releaseAligned(ByteBuffer buffer) {
+        if (pool.size() < maxPooledBuffers) {
+            pool.offer(buffer);
+        }
+    }
+
+    /**
+     * Open a file in direct I/O mode
+     * 
+     * @param file
+     * @param write
+     *            True for a sequential write (the file is truncated to the position), False for a
+     *            sequential read
+     * @param position
+     *            the start position
+     * @param bufferSize
+     *            the size of the staging buffer (rounded to the block size)
+     * @return the direct I/O file, or null if direct I/O is not available for this file
+     */
+    public static FilesystemBasedDirectIo open(File file, boolean write, long position,
+            int bufferSize) {
+        if (!isSupported()) {
+            return null;
+        }
+        Path path = file.toPath();
+        int blockSize = getBlockSize(path);
+        int size = Math.max(bufferSize + blockSize - 1, blockSize) / blockSize * blockSize;
+        Set<OpenOption> options = new HashSet<OpenOption>();
+        options.add(StandardOpenOption.READ);
+        options.add(DIRECT);
+        if (write) {
+            options.add(StandardOpenOption.WRITE);
+            options.add(StandardOpenOption.CREATE);
+        }
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(path, options);
+        } catch (UnsupportedOperationException e) {
+            logger.debug("Direct I/O not supported for {}", file);
+            return null;
+        } catch (IOException e) {
+            // as EINVAL on filesystems without O_DIRECT
+            logger.debug("Direct I/O not available for {}: {}", file, e.getMessage());
+            return null;
+        }
+        ByteBuffer staging = allocateAligned(size, blockSize);
+        FilesystemBasedDirectIo directIo = new FilesystemBasedDirectIo(channel, blockSize,
+                staging, write, position);
+        if (write) {
+            try {
+                directIo.startWrite(position);
+            } catch (IOException e) {
+                logger.debug("Direct I/O not available for {}: {}", file, e.getMessage());
+                directIo.abort();
+                return null;
+            }
+        }
+        return directIo;
+    }
+
+    /**
+     * Truncate the file to the position and load its partial last block
+     * 
+     * @param position
+     * @throws IOException
+     */
+    private void startWrite(long position) throws IOException {
+        if (channel.size() < position) {
+            throw new IOException("File is smaller than the required position");
+        }
+        int partial = (int) (position - stagingPosition);
+        if (partial > 0) {
+            staging.limit(blockSize);
+            // one aligned read only, since a short read is at the end of the file
+            channel.read(staging, stagingPosition);
+            if (staging.position() < partial) {
+                throw new IOException("Cannot read the last block");
+            }
+            staging.limit(staging.capacity());
+            staging.position(partial);
+        }
+        channel.truncate(position);
+    }
+
+    /**
+     * 
+     * @return the block size used for the alignment
+     */
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * 
+     * @return the underlying channel (in direct I/O mode)
+     */
+    public FileChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Read the next bytes of the file
+     * 
+     * @param buffer
+     *            where the bytes are written
+     * @param length
+     *            the maximum number of bytes to read
+     * @return the number of bytes read, less than length only at the end of the file
+     * @throws IOException
+     */
+    public int read(ByteBuf buffer, int length) throws IOException {
+        int read = 0;
+        while (read < length) {
+            if (!staging.hasRemaining() && !fill()) {
+                break;
+            }
+            int count = Math.min(staging.remaining(), length - read);
+            ByteBuffer slice = staging.duplicate();
+            slice.limit(slice.position() + count);
+            buffer.writeBytes(slice);
+            staging.position(staging.position() + count);
+            read += count;
+        }
+        return read;
+    }
+
+    /**
+     * Fill the staging buffer from the file
+     * 
+     * @return False at the end of the file
+     * @throws IOException
+     */
+    private boolean fill() throws IOException {
+        if (eof) {
+            return false;
+        }
+        stagingPosition += staging.limit();
+        staging.clear();
+        int read = channel.read(staging, stagingPosition);
+        if (read < staging.capacity()) {
+            // a short read only happens at the end of the file
+            eof = true;
+        }
+        staging.flip();
+        if (skip > 0) {
+            staging.position(Math.min(skip, staging.limit()));
+            skip = 0;
+        }
+        return staging.hasRemaining();
+    }
+
+    /**
+     * Write the readable bytes of the buffer (not consumed) at the end of the file
+     * 
+     * @param buffer
+     * @throws IOException
+     */
+    public void write(ByteBuf buffer) throws IOException {
+        int index = buffer.readerIndex();
+        int remaining = buffer.readableBytes();
+        while (remaining > 0) {
+            int count = Math.min(staging.remaining(), remaining);
+            ByteBuffer slice = staging.duplicate();
+            slice.limit(slice.position() + count);
+            buffer.getBytes(index, slice);
+            staging.position(staging.position() + count);
+            index += count;
+            remaining -= count;
+            length += count;
+            if (!staging.hasRemaining()) {
+                flush(staging.capacity());
+            }
+        }
+    }
+
+    /**
+     * Write the staging buffer up to size (aligned) at its position
+     * 
+     * @param size
+     * @throws IOException
+     */
+    private void flush(int size) throws IOException {
+        staging.position(0);
+        staging.limit(size);
+        long position = stagingPosition;
+        while (staging.hasRemaining()) {
+            position += channel.write(staging, position);
+        }
+        stagingPosition += staging.capacity();
+        staging.clear();
+    }
+
+    /**
+     * 
+     * @return the current length of the written file, or -1 in read mode
+     */
+    public long getLength() {
+        return write ? length : -1;
+    }
+
+    /**
+     * Write the last partial block if any then close the file
+     * 
+     * @param sync
+     *            True to sync the written file before closing it
+     * @throws IOException
+     */
+    public void close(boolean sync) throws IOException {
+        try {
+            if (write && staging != null && staging.position() > 0) {
+                int tail = staging.position();
+                int padded = (tail + blockSize - 1) / blockSize * blockSize;
+                while (staging.position() < padded) {
+                    staging.put((byte) 0);
+                }
+                flush(padded);
+                channel.truncate(length);
+            }
+            if (write && sync) {
+                channel.force(false);
+            }
+        } finally {
+            abort();
+        }
+    }
+
+    /**
+     * Close the file without writing the last partial block
+     */
+    public void abort() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+        }
+        if (staging != null) {
+            releaseAligned(staging);
+            staging = null;
+        }
+    }
+}
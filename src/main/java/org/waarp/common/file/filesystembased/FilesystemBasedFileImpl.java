@@ -24,20 +24,34 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.channel.FileRegion;
 
 import org.waarp.common.command.exception.CommandAbstractException;
 import org.waarp.common.command.exception.Reply550Exception;
+import org.waarp.common.digest.FilesystemBasedDigest.DigestAlgo;
 import org.waarp.common.exception.FileEndOfTransferException;
 import org.waarp.common.exception.FileTransferException;
 import org.waarp.common.file.AbstractFile;
 import org.waarp.common.file.DataBlock;
+import org.waarp.common.file.DigestCache;
 import org.waarp.common.file.DirInterface;
+import org.waarp.common.file.FileParameterInterface;
 import org.waarp.common.file.SessionInterface;
+import org.waarp.common.file.filesystembased.FilesystemBasedFileParameterImpl.FsyncPolicy;
 import org.waarp.common.logging.WaarpLogger;
 import org.waarp.common.logging.WaarpLoggerFactory;
 
@@ -192,6 +206,27 @@ public abstract class FilesystemBasedFileImpl extends AbstractFile {
     }
 
     public boolean closeFile() throws CommandAbstractException {
+        synchronized (segmentLock) {
+            if (segmentUsers > 0) {
+                // closed by the last releaseSegments
+                return false;
+            }
+        }
+        FileTransferException behindError = null;
+        if (writeBehind != null) {
+            // a new stage for the next transfer
+            writeBehind.awaitDrained();
+            try {
+                writeBehind.checkError();
+            } catch (FileTransferException e) {
+                behindError = e;
+            }
+            writeBehind = null;
+        }
+        if (readAhead != null) {
+            readAhead.close();
+            readAhead = null;
+        }
         if (bfileChannelIn != null) {
             try {
                 bfileChannelIn.close();
@@ -200,11 +235,21 @@ public abstract class FilesystemBasedFileImpl extends AbstractFile {
             bfileChannelIn = null;
             bbyteBuffer = null;
         }
+        mappedWindow = null;
+        mappedFileSize = -1;
+        closeSegmentChannel();
+        closeDirectIo();
+        transferSize = -1;
+        blockSizeController = null;
         if (fileOutputStream != null) {
             /*
              * try { rafOut.getFD().sync(); } catch (SyncFailedException e1) { } catch (IOException
              * e1) { }
              */
+            if (checkpointJournal != null) {
+                checkpointJournal.close();
+                checkpointJournal = null;
+            }
             try {
                 fileOutputStream.flush();
                 fileOutputStream.close();
@@ -212,19 +257,34 @@ public abstract class FilesystemBasedFileImpl extends AbstractFile {
                 // ignore
             } catch (IOException e) {
                 throw new Reply550Exception("Close in error");
+            } finally {
+                invalidateDigests();
             }
             fileOutputStream = null;
         }
         position = 0;
         isReady = false;
+        if (behindError != null) {
+            throw new Reply550Exception("Write in error: " + behindError.getMessage());
+        }
         // Do not clear the filename itself
         return true;
     }
 
     public boolean abortFile() throws CommandAbstractException {
+        synchronized (segmentLock) {
+            segmentUsers = 0;
+        }
+        if (writeBehind != null) {
+            writeBehind.cancel();
+            writeBehind.awaitDrained();
+            writeBehind = null;
+        }
+        transferDigest = null;
         if (isInWriting() &&
                 ((FilesystemBasedFileParameterImpl) getSession()
                         .getFileParameter()).deleteOnAbort) {
+            deleteCheckpointJournal();
             delete();
         }
         closeFile();
@@ -246,14 +306,14 @@ public abstract class FilesystemBasedFileImpl extends AbstractFile {
         if (!isReady) {
             return false;
         }
-        return bfileChannelIn != null;
+        return bfileChannelIn != null || (directIo != null && directIo.getLength() < 0);
     }
 
     public boolean isInWriting() throws CommandAbstractException {
         if (!isReady) {
             return false;
         }
-        return fileOutputStream != null;
+        return fileOutputStream != null || (directIo != null && directIo.getLength() >= 0);
     }
 
     public boolean canRead() throws CommandAbstractException {
@@ -293,7 +353,11 @@ public abstract class FilesystemBasedFileImpl extends AbstractFile {
             return true;
         }
         closeFile();
-        return getFileFromPath(currentFile).delete();
+        File file = getFileFromPath(currentFile);
+        DigestCache.invalidate(file);
+        boolean deleted = file.delete();
+        invalidateListing(file);
+        return deleted;
     }
 
     public boolean renameTo(String path) throws CommandAbstractException {
@@ -315,6 +379,8 @@ public abstract class FilesystemBasedFileImpl extends AbstractFile {
                 return true;
             }
             if (newFile.getParentFile().canWrite()) {
+                DigestCache.invalidate(file);
+                DigestCache.invalidate(newFile);
                 if (!file.renameTo(newFile)) {
                     FileOutputStream fileOutputStream = null;
                     try {
@@ -346,6 +412,8 @@ public abstract class FilesystemBasedFileImpl extends AbstractFile {
                         }
                     }
                 }
+                invalidateListing(file);
+                invalidateListing(newFile);
                 currentFile = getRelativePath(newFile);
                 isReady = true;
                 logger.debug("File renamed to: {} and real position: {}", this, newFile);
@@ -362,13 +430,41 @@ public abstract class FilesystemBasedFileImpl extends AbstractFile {
     public DataBlock readDataBlock() throws FileTransferException,
             FileEndOfTransferException {
         if (isReady) {
-            DataBlock dataBlock = new DataBlock();
             ByteBuf buffer = null;
-            buffer = getBlock(getSession().getBlockSize());
+            long start = position;
+            boolean pooled = isPooledBuffer();
+            FilesystemBasedBlockSizeController controller = getBlockSizeController();
+            int sizeblock = controller != null ? controller.getBlockSize() : getSession()
+                    .getBlockSize();
+            try {
+                if (getDirectIo(false) != null) {
+                    pooled = true;
+                    buffer = getDirectBlock(sizeblock);
+                } else if (isMappedRead()) {
+                    buffer = getMappedBlock(sizeblock);
+                } else if (getReadAheadDepth() > 0) {
+                    pooled = true;
+                    buffer = getReadAheadBlock(sizeblock);
+                } else if (pooled) {
+                    buffer = getPooledBlock(sizeblock);
+                } else {
+                    buffer = getBlock(sizeblock);
+                }
+            } catch (FileEndOfTransferException e) {
+                // the length is a multiple of the block size, so no last short block
+                finishTransferDigest();
+                throw e;
+            }
             if (buffer != null) {
+                DataBlock dataBlock = pooled ? DataBlock.newInstance() : new DataBlock();
                 dataBlock.setBlock(buffer);
-                if (dataBlock.getByteCount() < getSession().getBlockSize()) {
+                updateTransferDigest(start, buffer);
+                if (controller != null) {
+                    controller.onBlock(dataBlock.getByteCount());
+                }
+                if (dataBlock.getByteCount() < sizeblock) {
                     dataBlock.setEOF(true);
+                    finishTransferDigest();
                 }
                 return dataBlock;
             }
@@ -379,6 +475,11 @@ public abstract class FilesystemBasedFileImpl extends AbstractFile {
     public void writeDataBlock(DataBlock dataBlock)
             throws FileTransferException {
         if (isReady) {
+            FilesystemBasedWriteBehind behind = getWriteBehind();
+            if (behind != null) {
+                writeBehind(behind, dataBlock.getBlock(), dataBlock.isEOF());
+                return;
+            }
             if (dataBlock.isEOF()) {
                 writeBlockEnd(dataBlock.getBlock());
                 return;
@@ -389,141 +490,1195 @@ public abstract class FilesystemBasedFileImpl extends AbstractFile {
         throw new FileTransferException("No file is ready while trying to write: " + dataBlock.toString());
     }
 
+    @Override
+    public FileRegion getFileRegion(long position, long length)
+            throws FileEndOfTransferException, FileTransferException {
+        if (!isReady) {
+            throw new FileTransferException("No file is ready");
+        }
+        if (fileOutputStream != null) {
+            throw new FileTransferException("File is in writing mode");
+        }
+        File trueFile;
+        try {
+            trueFile = getFileFromPath(currentFile);
+        } catch (CommandAbstractException e) {
+            throw new FileTransferException("Internal error, file is not ready", e);
+        }
+        long size = trueFile.length();
+        if (position < 0 || position > size) {
+            throw new FileTransferException("Wrong position: " + position + " for size: " + size);
+        }
+        long count = size - position;
+        if (length >= 0 && length < count) {
+            count = length;
+        }
+        if (count <= 0) {
+            endOfRead();
+            throw new FileEndOfTransferException("End of file");
+        }
+        FileChannel fileChannel;
+        try {
+            @SuppressWarnings("resource")
+            RandomAccessFile raf = new RandomAccessFile(trueFile, "r");
+            fileChannel = raf.getChannel();
+        } catch (FileNotFoundException e) {
+            logger.error("File not found in getFileRegion:", e);
+            throw new FileTransferException("Internal error, file is not ready", e);
+        }
+        // bytes sent without copy cannot be digested
+        transferDigest = null;
+        FileRegion region = new DefaultFileRegion(fileChannel, position, count);
+        if (position + count >= size) {// last region
+            endOfRead();
+        } else {
+            try {
+                setPosition(position + count);
+            } catch (IOException e) {
+                region.release();
+                throw new FileTransferException("Cannot change position", e);
+            }
+        }
+        return region;
+    }
+
+    @Override
+    public void writeDataBlock(long offset, DataBlock dataBlock)
+            throws FileTransferException {
+        if (!isReady) {
+            throw new FileTransferException("No file is ready while trying to write: " +
+                    dataBlock.toString());
+        }
+        if (offset < 0) {
+            throw new FileTransferException("Wrong position: " + offset);
+        }
+        ByteBuf buffer = dataBlock.getBlock();
+        if (buffer == null || !buffer.isReadable()) {
+            return;
+        }
+        int length = buffer.readableBytes();
+        // segments are not in order so cannot be digested
+        transferDigest = null;
+        FileChannel fileChannel = getSegmentChannel(true);
+        try {
+            long current = offset;
+            for (ByteBuffer byteBuffer : buffer.nioBuffers()) {
+                while (byteBuffer.hasRemaining()) {
+                    current += fileChannel.write(byteBuffer, current);
+                }
+            }
+        } catch (IOException e) {
+            logger.error("Error during positional write:", e);
+            throw new FileTransferException("Internal error, file is not ready", e);
+        }
+        buffer.skipBytes(length);
+        segmentMap.add(offset, offset + length);
+    }
+
+    @Override
+    public DataBlock readDataBlock(long offset, int length)
+            throws FileEndOfTransferException, FileTransferException {
+        if (!isReady) {
+            throw new FileTransferException("No file is ready");
+        }
+        FileChannel fileChannel = getSegmentChannel(false);
+        long size;
+        try {
+            size = fileChannel.size();
+        } catch (IOException e) {
+            logger.error("Error during positional read:", e);
+            throw new FileTransferException("Internal error, file is not ready", e);
+        }
+        if (offset < 0 || length <= 0) {
+            throw new FileTransferException("Wrong position: " + offset + " or length: " + length);
+        }
+        if (offset >= size) {
+            throw new FileEndOfTransferException("End of file");
+        }
+        int sizeblock = (int) Math.min(length, size - offset);
+        boolean pooled = isPooledBuffer();
+        ByteBuf buffer = pooled ? PooledByteBufAllocator.DEFAULT.directBuffer(sizeblock, sizeblock)
+                : Unpooled.buffer(sizeblock, sizeblock);
+        try {
+            int sizeout = 0;
+            while (sizeout < sizeblock) {
+                int sizeread = buffer.writeBytes(fileChannel, offset + sizeout,
+                        sizeblock - sizeout);
+                if (sizeread <= 0) {
+                    break;
+                }
+                sizeout += sizeread;
+            }
+        } catch (IOException e) {
+            buffer.release();
+            logger.error("Error during positional read:", e);
+            throw new FileTransferException("Internal error, file is not ready", e);
+        }
+        DataBlock dataBlock = pooled ? DataBlock.newInstance() : new DataBlock();
+        dataBlock.setBlock(buffer);
+        if (offset + buffer.readableBytes() >= size) {
+            dataBlock.setEOF(true);
+        }
+        return dataBlock;
+    }
+
     /**
-     * Valid Position of this file
+     * Register one data connection moving segments of this file by positional reads or writes.
+     * While some are registered, closeFile does nothing, such that the segment done first does not
+     * close the channels still used by the others: the file is closed by the last
+     * releaseSegments.
      */
-    private long position = 0;
+    public void retainSegments() {
+        synchronized (segmentLock) {
+            segmentUsers++;
+        }
+    }
 
     /**
-     * FileOutputStream Out
+     * Unregister one data connection registered by retainSegments, closing the file if it was the
+     * last one
+     * 
+     * @return True if the file was closed
+     * @throws CommandAbstractException
      */
-    private FileOutputStream fileOutputStream = null;
+    public boolean releaseSegments() throws CommandAbstractException {
+        synchronized (segmentLock) {
+            if (segmentUsers <= 0) {
+                return false;
+            }
+            segmentUsers--;
+            if (segmentUsers > 0) {
+                return false;
+            }
+        }
+        return closeFile();
+    }
+
     /**
-     * FileChannel In
+     * Returns the FileChannel shared by all positional reads, or the one shared by all positional
+     * writes, opened if necessary. Both are only closed by closeFile, once all segments are done.
+     * 
+     * @param write
+     *            True if the channel must be writable
+     * @return the FileChannel
+     * @throws FileTransferException
      */
-    private FileChannel bfileChannelIn = null;
+    private FileChannel getSegmentChannel(boolean write) throws FileTransferException {
+        synchronized (segmentLock) {
+            FileChannel channel = write ? segmentWriteChannel : segmentReadChannel;
+            if (channel != null) {
+                return channel;
+            }
+            File trueFile;
+            try {
+                trueFile = getFileFromPath(currentFile);
+            } catch (CommandAbstractException e) {
+                throw new FileTransferException("Internal error, file is not ready", e);
+            }
+            try {
+                @SuppressWarnings("resource")
+                RandomAccessFile raf = new RandomAccessFile(trueFile, write ? "rw" : "r");
+                channel = raf.getChannel();
+            } catch (FileNotFoundException e) {
+                logger.error("File not found in getSegmentChannel:", e);
+                throw new FileTransferException("Internal error, file is not ready", e);
+            }
+            if (write) {
+                segmentWriteChannel = channel;
+                DigestCache.invalidate(trueFile);
+            } else {
+                segmentReadChannel = channel;
+            }
+            return channel;
+        }
+    }
 
     /**
-     * Associated ByteBuffer
+     * Close the FileChannels used by positional reads and writes if any, syncing the written one
+     * if a FsyncPolicy is set
      */
-    private ByteBuffer bbyteBuffer = null;
+    private void closeSegmentChannel() {
+        synchronized (segmentLock) {
+            if (segmentReadChannel != null) {
+                try {
+                    segmentReadChannel.close();
+                } catch (IOException e) {
+                }
+                segmentReadChannel = null;
+            }
+            if (segmentWriteChannel == null) {
+                return;
+            }
+            FilesystemBasedFileParameterImpl fileParameter = getFileParameter();
+            try {
+                if (fileParameter != null && fileParameter.fsyncPolicy != FsyncPolicy.NONE) {
+                    segmentWriteChannel.force(false);
+                }
+            } catch (IOException e) {
+                logger.error("Error during sync:", e);
+            } finally {
+                try {
+                    segmentWriteChannel.close();
+                } catch (IOException e) {
+                }
+                invalidateDigests();
+                segmentWriteChannel = null;
+            }
+        }
+    }
 
     /**
-     * Return the current position in the FileInterface. In write mode, it is the current file
-     * length.
      * 
-     * @return the position
+     * @return True if read blocks should be allocated from the pooled allocator
      */
-    public long getPosition() {
-        return position;
+    protected boolean isPooledBuffer() {
+        FilesystemBasedFileParameterImpl fileParameter = getFileParameter();
+        return fileParameter != null && fileParameter.usePooledBuffer;
     }
 
     /**
-     * Change the position in the file.
      * 
-     * @param position
-     *            the position to set
-     * @throws IOException
+     * @return the number of blocks to read in advance (0 if no read ahead)
      */
-    public void setPosition(long position) throws IOException {
-        this.position = position;
+    protected int getReadAheadDepth() {
+        if (readAhead != null) {
+            return 1;
+        }
+        FilesystemBasedFileParameterImpl fileParameter = getFileParameter();
+        if (fileParameter == null) {
+            return 0;
+        }
+        return fileParameter.readAheadDepth;
+    }
+
+    /**
+     * 
+     * @return the number of blocks already read in advance when asked (read ahead mode)
+     */
+    public long getReadAheadHits() {
+        return readAheadHits;
+    }
+
+    /**
+     * 
+     * @return the number of blocks not yet read in advance when asked (read ahead mode)
+     */
+    public long getReadAheadMisses() {
+        return readAheadMisses;
+    }
+
+    /**
+     * 
+     * @return True if the current file is (or has to be) read through memory mapped windows
+     */
+    protected boolean isMappedRead() {
+        if (mappedFileSize >= 0) {
+            return true;
+        }
         if (bfileChannelIn != null) {
-            bfileChannelIn = bfileChannelIn.position(position);
+            // already in standard read mode
+            return false;
         }
-        /*
-         * if (rafOut != null) { rafOut.seek(position); }
-         */
-        if (fileOutputStream != null) {
-            fileOutputStream.flush();
-            fileOutputStream.close();
-            fileOutputStream = getFileOutputStream(true);
-            if (fileOutputStream == null) {
-                throw new IOException("File cannot changed of Position");
+        FilesystemBasedFileParameterImpl fileParameter = getFileParameter();
+        if (fileParameter == null || fileParameter.mmapThreshold <= 0) {
+            return false;
+        }
+        try {
+            return getFileFromPath(currentFile).length() >= fileParameter.mmapThreshold;
+        } catch (CommandAbstractException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 
+     * @return the FilesystemBasedFileParameterImpl of the session or null if not a Filesystem
+     *         based one
+     */
+    protected FilesystemBasedFileParameterImpl getFileParameter() {
+        FileParameterInterface fileParameter = getSession().getFileParameter();
+        if (fileParameter instanceof FilesystemBasedFileParameterImpl) {
+            return (FilesystemBasedFileParameterImpl) fileParameter;
+        }
+        return null;
+    }
+
+    /**
+     * 
+     * @return the adaptive block size controller of the session if enabled, else null
+     */
+    protected FilesystemBasedBlockSizeController getBlockSizeController() {
+        if (blockSizeController == null) {
+            FilesystemBasedFileParameterImpl fileParameter = getFileParameter();
+            if (fileParameter == null || !fileParameter.adaptiveBlockSize) {
+                return null;
             }
+            blockSizeController = FilesystemBasedBlockSizeController.getInstance(getSession(),
+                    fileParameter.minBlockSize, fileParameter.maxBlockSize);
+            blockSizeController.start();
         }
+        return blockSizeController;
     }
 
-    private byte[] reusableBytes = null;
+    /**
+     * Set the size of the current transfer when known in advance (as for a received file whose
+     * size is announced), such that a write can use direct I/O
+     * 
+     * @param size
+     *            the size of the transfer, or -1 if unknown
+     */
+    public void setTransferSize(long size) {
+        transferSize = size;
+    }
 
     /**
-     * Write the current FileInterface with the given ByteBuf. The file is not limited to 2^32
-     * bytes since this write operation is in add mode.
      * 
-     * In case of error, the current already written blocks are maintained and the position is not
-     * changed.
+     * @param write
+     *            True for a write, False for a read
+     * @return the current file in direct I/O mode, opened if the transfer reaches the direct I/O
+     *         threshold and no other mode is in use, or null for standard I/O
+     */
+    private FilesystemBasedDirectIo getDirectIo(boolean write) {
+        if (directIo != null) {
+            return (directIo.getLength() >= 0) == write ? directIo : null;
+        }
+        if (directIoChecked || bfileChannelIn != null || fileOutputStream != null ||
+                mappedFileSize >= 0 || readAhead != null) {
+            return null;
+        }
+        directIoChecked = true;
+        FilesystemBasedFileParameterImpl fileParameter = getFileParameter();
+        if (fileParameter == null || fileParameter.directIoThreshold <= 0 ||
+                !FilesystemBasedDirectIo.isSupported()) {
+            return null;
+        }
+        File trueFile;
+        try {
+            trueFile = getFileFromPath(currentFile);
+        } catch (CommandAbstractException e) {
+            return null;
+        }
+        long size = write ? transferSize : trueFile.length();
+        if (size < fileParameter.directIoThreshold) {
+            return null;
+        }
+        directIo = FilesystemBasedDirectIo.open(trueFile, write, position,
+                fileParameter.directIoBufferSize);
+        if (directIo != null && write) {
+            invalidateDigests();
+        }
+        return directIo;
+    }
+
+    /**
+     * Close the current file in direct I/O mode if any, writing its last partial block
      * 
-     * @param buffer
-     *            added to the file
-     * @throws FileTransferException
+     * @throws CommandAbstractException
      */
-    private void writeBlock(ByteBuf buffer) throws FileTransferException {
-        if (!isReady) {
-            throw new FileTransferException("No file is ready");
+    private void closeDirectIo() throws CommandAbstractException {
+        directIoChecked = false;
+        if (directIo == null) {
+            return;
         }
-        // An empty buffer is allowed
-        if (buffer == null) {
-            return;// could do FileEndOfTransfer ?
+        FilesystemBasedDirectIo direct = directIo;
+        directIo = null;
+        boolean write = direct.getLength() >= 0;
+        FilesystemBasedFileParameterImpl fileParameter = getFileParameter();
+        try {
+            direct.close(write && fileParameter != null &&
+                    fileParameter.fsyncPolicy != FsyncPolicy.NONE);
+        } catch (IOException e) {
+            throw new Reply550Exception("Close in error");
+        } finally {
+            if (write) {
+                invalidateDigests();
+            }
         }
-        if (fileOutputStream == null) {
-            // rafOut = getRandomFile();
-            fileOutputStream = getFileOutputStream(position > 0);
+    }
+
+    @Override
+    public void writeDataBlocks(List<DataBlock> dataBlocks)
+            throws FileTransferException {
+        if (!isReady) {
+            throw new FileTransferException("No file is ready while trying to write: " +
+                    dataBlocks.size() + " blocks");
         }
-        if (fileOutputStream == null) {
-            throw new FileTransferException("Internal error, file is not ready");
+        if (dataBlocks.isEmpty()) {
+            return;
         }
-        int bufferSize = buffer.readableBytes();
-        int start = 0;
-        byte[] newbuf;
-        if (buffer.hasArray()) {
-            start = buffer.arrayOffset();
-            newbuf = buffer.array();
-            buffer.readerIndex(buffer.readerIndex() + bufferSize);
-        } else {
-            if (reusableBytes == null || reusableBytes.length != bufferSize) {
-                reusableBytes = new byte[bufferSize];
+        if (getWriteBehind() != null) {
+            for (DataBlock dataBlock : dataBlocks) {
+                writeDataBlock(dataBlock);
             }
-            newbuf = reusableBytes;
-            buffer.readBytes(newbuf);
+            return;
         }
-        try {
-            fileOutputStream.write(newbuf, start, bufferSize);
-        } catch (IOException e2) {
-            logger.error("Error during write:", e2);
+        ByteBuf[] buffers = new ByteBuf[dataBlocks.size()];
+        int nb = 0;
+        boolean eof = false;
+        for (DataBlock dataBlock : dataBlocks) {
+            if (eof) {
+                throw new FileTransferException("Block received after end of file: " +
+                        dataBlock.toString());
+            }
+            buffers[nb++] = dataBlock.getBlock();
+            eof = dataBlock.isEOF();
+        }
+        writeBlocks(buffers);
+        if (eof) {
+            syncAtEnd();
+            deleteCheckpointJournal();
             try {
                 closeFile();
-            } catch (CommandAbstractException e1) {
+            } catch (CommandAbstractException e) {
+                throw new FileTransferException("Close in error", e);
             }
-            // NO this.realFile.delete(); NO DELETE SINCE BY BLOCK IT CAN BE
-            // REDO
-            throw new FileTransferException("Internal error, file is not ready");
+            finishTransferDigest();
         }
-        position += bufferSize;
     }
 
     /**
-     * End the Write of the current FileInterface with the given ByteBuf. The file is not
-     * limited to 2^32 bytes since this write operation is in add mode.
+     * Account the block on the caller's thread (position and transfer digest) then queue its
+     * bytes to the write behind stage, the block being consumed when this returns. After the last
+     * block, the transfer is ended on the caller's thread once all the queued blocks are written,
+     * their error if any being thrown here.
      * 
+     * @param behind
      * @param buffer
-     *            added to the file
+     *            the block to write (may be null)
+     * @param eof
+     *            True if this is the last block
      * @throws FileTransferException
      */
-    private void writeBlockEnd(ByteBuf buffer)
+    private void writeBehind(FilesystemBasedWriteBehind behind, ByteBuf buffer, boolean eof)
             throws FileTransferException {
-        writeBlock(buffer);
-        try {
-            closeFile();
-        } catch (CommandAbstractException e) {
-            throw new FileTransferException("Close in error", e);
+        behind.checkError();
+        openForWrite();
+        long start = position;
+        int length = buffer == null ? 0 : buffer.readableBytes();
+        if (length > 0) {
+            try {
+                behind.write(buffer, start + length);
+            } catch (FileTransferException e) {
+                transferDigest = null;
+                throw e;
+            }
+            updateTransferDigest(start, buffer);
+            position = start + length;
+            buffer.skipBytes(length);
+        }
+        if (eof) {
+            endOfQueuedBlocks(behind);
         }
     }
 
     /**
-     * Get the current block ByteBuf of the current FileInterface. There is therefore no
-     * limitation of the file size to 2^32 bytes.
+     * Write the given buffers from the write behind stage, in one gathering write. Called by the
+     * I/O thread, so only the file itself and the checkpoint journal are updated, the buffers
+     * being neither consumed nor accounted in the position.
      * 
-     * The returned block is limited to sizeblock. If the returned block is less than sizeblock
-     * length, it is the last block to read.
+     * @param buffers
+     * @param end
+     *            the position in the file once those buffers are written
+     * @throws FileTransferException
+     */
+    void writeQueuedBlocks(ByteBuf[] buffers, long end) throws FileTransferException {
+        long bufferSize = 0;
+        for (ByteBuf buffer : buffers) {
+            bufferSize += buffer.readableBytes();
+        }
+        try {
+            writeToFile(end - bufferSize, bufferSize, buffers);
+        } catch (IOException e) {
+            logger.error("Error during write:", e);
+            throw new FileTransferException("Internal error, file is not ready", e);
+        }
+    }
+
+    /**
+     * End the transfer once the last queued block is written by the write behind stage
+     * 
+     * @param behind
+     * @throws FileTransferException
+     *             if one of the queued blocks was not written
+     */
+    private void endOfQueuedBlocks(FilesystemBasedWriteBehind behind)
+            throws FileTransferException {
+        behind.awaitDrained();
+        try {
+            behind.checkError();
+        } catch (FileTransferException e) {
+            transferDigest = null;
+            throw e;
+        }
+        syncAtEnd();
+        deleteCheckpointJournal();
+        try {
+            closeFile();
+        } catch (CommandAbstractException e) {
+            throw new FileTransferException("Close in error", e);
+        }
+        finishTransferDigest();
+    }
+
+    /**
+     * Set the data channel on which the backpressure is applied in write behind mode (its
+     * autoRead is disabled while too many blocks are waiting to be written)
+     * 
+     * @param channel
+     */
+    public void setWriteBehindChannel(Channel channel) {
+        writeBehindChannel = channel;
+        if (writeBehind != null) {
+            writeBehind.setChannel(channel);
+        }
+    }
+
+    /**
+     * 
+     * @return the write behind stage if this mode is active, else null
+     */
+    private FilesystemBasedWriteBehind getWriteBehind() {
+        if (writeBehind == null) {
+            FilesystemBasedFileParameterImpl fileParameter = getFileParameter();
+            if (fileParameter != null && fileParameter.writeBehind) {
+                writeBehind = new FilesystemBasedWriteBehind(this,
+                        fileParameter.writeBehindHighWatermark,
+                        fileParameter.writeBehindLowWatermark, writeBehindChannel);
+            }
+        }
+        return writeBehind;
+    }
+
+    /**
+     * Sync the written file according to the FsyncPolicy after some bytes were written
+     * 
+     * @param written
+     *            the number of bytes written just before
+     * @throws IOException
+     */
+    private void syncIfNeeded(long written) throws IOException {
+        FilesystemBasedFileParameterImpl fileParameter = getFileParameter();
+        if (fileParameter == null || fileOutputStream == null) {
+            return;
+        }
+        bytesSinceSync += written;
+        boolean sync = false;
+        switch (fileParameter.fsyncPolicy) {
+            case EVERY_BYTES:
+                sync = bytesSinceSync >= fileParameter.fsyncBytes;
+                break;
+            case EVERY_PERIOD:
+                sync = System.currentTimeMillis() - lastSync >= fileParameter.fsyncPeriod;
+                break;
+            default:
+                break;
+        }
+        if (sync) {
+            fileOutputStream.getChannel().force(false);
+            bytesSinceSync = 0;
+            lastSync = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Feed the transfer digests with the given block, starting a new computation at the beginning
+     * of the file and dropping it if some bytes were not fed in order
+     * 
+     * @param start
+     *            the position in the file of the block
+     * @param buffer
+     *            the block (its readable bytes are not consumed)
+     */
+    private void updateTransferDigest(long start, ByteBuf buffer) {
+        if (transferDigest == null) {
+            if (start != 0) {
+                return;
+            }
+            FilesystemBasedFileParameterImpl fileParameter = getFileParameter();
+            if (fileParameter == null || fileParameter.transferDigestAlgos == null) {
+                return;
+            }
+            transferDigest = new FilesystemBasedTransferDigest(fileParameter.transferDigestAlgos);
+            transferDigests = null;
+            if (transferDigest.isEmpty()) {
+                transferDigest = null;
+                return;
+            }
+        } else if (transferDigest.getPosition() != start) {
+            transferDigest = null;
+            return;
+        }
+        transferDigest.update(buffer);
+    }
+
+    /**
+     * Compute the final transfer digests once the whole file was transferred, and put them in the
+     * DigestCache for FilesystemBasedDirImpl
+     */
+    private void finishTransferDigest() {
+        if (transferDigest == null) {
+            return;
+        }
+        FilesystemBasedTransferDigest digest = transferDigest;
+        transferDigest = null;
+        File trueFile;
+        try {
+            trueFile = getFileFromPath(currentFile);
+        } catch (CommandAbstractException e) {
+            return;
+        }
+        DigestCache.Stamp stamp = new DigestCache.Stamp(trueFile);
+        if (digest.getPosition() != trueFile.length()) {
+            return;
+        }
+        transferDigests = digest.finish();
+        DigestCache.put(trueFile, stamp, transferDigests);
+    }
+
+    /**
+     * Forget the cached digests of the current file since it is written
+     */
+    protected void invalidateDigests() {
+        try {
+            File file = getFileFromPath(currentFile);
+            DigestCache.invalidate(file);
+            invalidateListing(file);
+        } catch (CommandAbstractException e) {
+        }
+    }
+
+    /**
+     * Drop the cached listing of the directory containing this file, if any
+     * 
+     * @param file
+     */
+    private void invalidateListing(File file) {
+        DirInterface dir = getDir();
+        if (dir instanceof FilesystemBasedDirImpl) {
+            ((FilesystemBasedDirImpl) dir).invalidateListing(file);
+        }
+    }
+
+    @Override
+    public byte[] getTransferDigest(DigestAlgo algo) {
+        Map<DigestAlgo, byte[]> transferDigests = this.transferDigests;
+        if (transferDigests == null) {
+            return null;
+        }
+        byte[] digest = transferDigests.get(algo);
+        return digest == null ? null : digest.clone();
+    }
+
+    /**
+     * Open the checkpoint journal of the written file if enabled, continuing it from the current
+     * position
+     */
+    private void openCheckpointJournal() {
+        FilesystemBasedFileParameterImpl fileParameter = getFileParameter();
+        if (fileParameter == null || fileParameter.checkpointBytes <= 0) {
+            return;
+        }
+        try {
+            checkpointJournal = new FilesystemBasedCheckpointJournal(
+                    FilesystemBasedCheckpointJournal.getJournalFile(
+                            fileParameter.checkpointDirectory, getFileFromPath(currentFile)),
+                    fileParameter.checkpointBytes);
+            checkpointJournal.open(position);
+        } catch (CommandAbstractException e) {
+            logger.warn("Cannot open checkpoint journal: {}", e.getMessage());
+            checkpointJournal = null;
+        } catch (IOException e) {
+            logger.warn("Cannot open checkpoint journal: {}", e.getMessage());
+            checkpointJournal.close();
+            checkpointJournal = null;
+        }
+    }
+
+    /**
+     * Account the written buffers in the checkpoint journal if any. An error on the journal only
+     * disables it, not the transfer.
+     * 
+     * @param buffers
+     *            the written buffers, not yet skipped
+     * @param newPosition
+     *            the position after those buffers
+     * @param fileChannel
+     *            the channel of the written file
+     */
+    private void updateCheckpointJournal(ByteBuf[] buffers, long newPosition,
+            FileChannel fileChannel) {
+        if (checkpointJournal == null) {
+            return;
+        }
+        try {
+            for (ByteBuf buffer : buffers) {
+                if (buffer != null) {
+                    checkpointJournal.update(buffer);
+                }
+            }
+            checkpointJournal.checkpointIfNeeded(newPosition, fileChannel);
+        } catch (IOException e) {
+            logger.warn("Checkpoint journal disabled: {}", e.getMessage());
+            checkpointJournal.close();
+            checkpointJournal = null;
+        }
+    }
+
+    /**
+     * Delete the checkpoint journal of the written file, once completed or aborted
+     */
+    private void deleteCheckpointJournal() {
+        if (checkpointJournal != null) {
+            checkpointJournal.delete();
+            checkpointJournal = null;
+            return;
+        }
+        FilesystemBasedFileParameterImpl fileParameter = getFileParameter();
+        if (fileParameter != null && fileParameter.checkpointBytes > 0) {
+            try {
+                File journal = FilesystemBasedCheckpointJournal.getJournalFile(
+                        fileParameter.checkpointDirectory, getFileFromPath(currentFile));
+                if (journal.exists() && !journal.delete()) {
+                    logger.warn("Cannot delete checkpoint journal: {}", journal);
+                }
+            } catch (CommandAbstractException e) {
+            }
+        }
+    }
+
+    /**
+     * 
+     * @return the last verified position from the checkpoint journal of the current file (0 if
+     *         none), such that an interrupted write may restart from there
+     */
+    public long getCheckpointPosition() {
+        FilesystemBasedFileParameterImpl fileParameter = getFileParameter();
+        try {
+            File trueFile = getFileFromPath(currentFile);
+            return FilesystemBasedCheckpointJournal.readLastOffset(
+                    FilesystemBasedCheckpointJournal.getJournalFile(
+                            fileParameter == null ? null : fileParameter.checkpointDirectory,
+                            trueFile), trueFile);
+        } catch (CommandAbstractException e) {
+            return 0;
+        } catch (IOException e) {
+            logger.warn("Cannot read checkpoint journal: {}", e.getMessage());
+            return 0;
+        }
+    }
+
+    /**
+     * Sync the written file at the end of the transfer if a FsyncPolicy is set
+     * 
+     * @throws FileTransferException
+     */
+    private void syncAtEnd() throws FileTransferException {
+        FilesystemBasedFileParameterImpl fileParameter = getFileParameter();
+        if (fileParameter == null || fileOutputStream == null ||
+                fileParameter.fsyncPolicy == FsyncPolicy.NONE) {
+            return;
+        }
+        try {
+            fileOutputStream.getChannel().force(false);
+        } catch (IOException e) {
+            logger.error("Error during sync:", e);
+            throw new FileTransferException("Cannot sync the file", e);
+        }
+    }
+
+    /**
+     * Valid Position of this file
+     */
+    private volatile long position = 0;
+
+    /**
+     * Write behind stage if any
+     */
+    private FilesystemBasedWriteBehind writeBehind = null;
+
+    /**
+     * Channel on which the backpressure is applied in write behind mode
+     */
+    private Channel writeBehindChannel = null;
+
+    /**
+     * Digests being computed on the current transfer if any
+     */
+    private FilesystemBasedTransferDigest transferDigest = null;
+
+    /**
+     * Digests of the last complete transfer if any
+     */
+    private volatile Map<DigestAlgo, byte[]> transferDigests = null;
+
+    /**
+     * Checkpoint journal of the written file if any
+     */
+    private FilesystemBasedCheckpointJournal checkpointJournal = null;
+
+    /**
+     * Bytes written since last sync
+     */
+    private long bytesSinceSync = 0;
+
+    /**
+     * Time of last sync
+     */
+    private long lastSync = 0;
+
+    /**
+     * FileOutputStream Out
+     */
+    private FileOutputStream fileOutputStream = null;
+    /**
+     * FileChannel In
+     */
+    private FileChannel bfileChannelIn = null;
+
+    /**
+     * Associated ByteBuffer
+     */
+    private ByteBuffer bbyteBuffer = null;
+
+    /**
+     * FileChannel shared by positional reads, kept open when positional writes start
+     */
+    private FileChannel segmentReadChannel = null;
+
+    /**
+     * FileChannel shared by positional writes
+     */
+    private FileChannel segmentWriteChannel = null;
+
+    /**
+     * Number of data connections registered by retainSegments
+     */
+    private int segmentUsers = 0;
+
+    /**
+     * Lock for the segment channels
+     */
+    private final Object segmentLock = new Object();
+
+    /**
+     * Read ahead stage if any
+     */
+    private FilesystemBasedReadAhead readAhead = null;
+
+    /**
+     * Read ahead statistics of the current or last read
+     */
+    private long readAheadHits = 0;
+    private long readAheadMisses = 0;
+
+    /**
+     * Current memory mapped window when reading through memory mapped windows
+     */
+    private MappedByteBuffer mappedWindow = null;
+
+    /**
+     * Position in the file of the current memory mapped window
+     */
+    private long mappedWindowStart = 0;
+
+    /**
+     * Size of the file read through memory mapped windows (-1 if not in this mode)
+     */
+    private long mappedFileSize = -1;
+
+    /**
+     * Current file in direct I/O mode, if the transfer bypasses the page cache
+     */
+    private FilesystemBasedDirectIo directIo = null;
+
+    /**
+     * True once direct I/O was tried for the current transfer (not tried again after a fallback)
+     */
+    private boolean directIoChecked = false;
+
+    /**
+     * Size of the current transfer if known in advance, else -1
+     */
+    private long transferSize = -1;
+
+    /**
+     * Adaptive block size of the session, once the current read transfer has started
+     */
+    private FilesystemBasedBlockSizeController blockSizeController = null;
+
+    /**
+     * Return the current position in the FileInterface. In write mode, it is the current file
+     * length.
+     * 
+     * @return the position
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * Change the position in the file.
+     * 
+     * @param position
+     *            the position to set
+     * @throws IOException
+     */
+    public void setPosition(long position) throws IOException {
+        if (writeBehind != null) {
+            writeBehind.awaitDrained();
+        }
+        if (directIo != null) {
+            // reopened at the new position by the next read or write
+            FilesystemBasedDirectIo direct = directIo;
+            directIo = null;
+            directIoChecked = false;
+            direct.close(false);
+        }
+        this.position = position;
+        if (checkpointJournal != null) {
+            // the records after the new position are dropped, keeping the offsets increasing
+            try {
+                checkpointJournal.open(position);
+            } catch (IOException e) {
+                logger.warn("Checkpoint journal disabled: {}", e.getMessage());
+                checkpointJournal.close();
+                checkpointJournal = null;
+            }
+        }
+        if (readAhead != null) {
+            readAhead.reset(position);
+        }
+        if (bfileChannelIn != null && mappedFileSize < 0) {
+            // in memory mapped mode, the next window is mapped from the new position
+            bfileChannelIn = bfileChannelIn.position(position);
+        }
+        /*
+         * if (rafOut != null) { rafOut.seek(position); }
+         */
+        if (fileOutputStream != null) {
+            fileOutputStream.flush();
+            fileOutputStream.close();
+            fileOutputStream = getFileOutputStream(true);
+            if (fileOutputStream == null) {
+                throw new IOException("File cannot changed of Position");
+            }
+        }
+    }
+
+    /**
+     * Write the current FileInterface with the given ByteBuf. The file is not limited to 2^32
+     * bytes since this write operation is in add mode.
+     * 
+     * In case of error, the current already written blocks are maintained and the position is not
+     * changed.
+     * 
+     * @param buffer
+     *            added to the file
+     * @throws FileTransferException
+     */
+    private void writeBlock(ByteBuf buffer) throws FileTransferException {
+        if (!isReady) {
+            throw new FileTransferException("No file is ready");
+        }
+        // An empty buffer is allowed
+        if (buffer == null) {
+            return;// could do FileEndOfTransfer ?
+        }
+        writeBlocks(buffer);
+    }
+
+    /**
+     * Write the current FileInterface with the given ByteBufs in one gathering write on the
+     * FileChannel, so without intermediate copy whatever the kind of buffers (direct or
+     * composite).
+     * 
+     * In case of error, the current already written blocks are maintained and the position is not
+     * changed.
+     * 
+     * @param buffers
+     *            added to the file (null ones are ignored)
+     * @throws FileTransferException
+     */
+    private void writeBlocks(ByteBuf... buffers) throws FileTransferException {
+        if (!isReady) {
+            throw new FileTransferException("No file is ready");
+        }
+        FilesystemBasedDirectIo direct = getDirectIo(true);
+        if (direct != null) {
+            writeDirectBlocks(direct, buffers);
+            return;
+        }
+        openForWrite();
+        long bufferSize = 0;
+        for (ByteBuf buffer : buffers) {
+            if (buffer != null) {
+                bufferSize += buffer.readableBytes();
+            }
+        }
+        try {
+            writeToFile(position, bufferSize, buffers);
+        } catch (IOException e2) {
+            logger.error("Error during write:", e2);
+            try {
+                closeFile();
+            } catch (CommandAbstractException e1) {
+            }
+            // NO this.realFile.delete(); NO DELETE SINCE BY BLOCK IT CAN BE
+            // REDO
+            throw new FileTransferException("Internal error, file is not ready");
+        }
+        long start = position;
+        for (ByteBuf buffer : buffers) {
+            if (buffer != null) {
+                updateTransferDigest(start, buffer);
+                start += buffer.readableBytes();
+            }
+        }
+        for (ByteBuf buffer : buffers) {
+            if (buffer != null) {
+                buffer.skipBytes(buffer.readableBytes());
+            }
+        }
+        position += bufferSize;
+    }
+
+    /**
+     * Open the current file for writing at the current position if not already done, in direct
+     * I/O mode or through a FileOutputStream
+     * 
+     * @throws FileTransferException
+     */
+    private void openForWrite() throws FileTransferException {
+        if (!isReady) {
+            throw new FileTransferException("No file is ready");
+        }
+        if (getDirectIo(true) != null) {
+            return;
+        }
+        if (fileOutputStream == null) {
+            fileOutputStream = getFileOutputStream(position > 0);
+            bytesSinceSync = 0;
+            lastSync = System.currentTimeMillis();
+            if (fileOutputStream != null) {
+                invalidateDigests();
+                openCheckpointJournal();
+            }
+        }
+        if (fileOutputStream == null) {
+            throw new FileTransferException("Internal error, file is not ready");
+        }
+    }
+
+    /**
+     * Write the readable bytes of the given ByteBufs to the file opened by openForWrite, in one
+     * gathering write on the FileChannel (or through the staging buffer in direct I/O mode), and
+     * account them in the checkpoint journal. The buffers are not consumed.
+     * 
+     * @param start
+     *            the position in the file of the first buffer
+     * @param bufferSize
+     *            the total readable bytes of the buffers
+     * @param buffers
+     *            added to the file (null ones are ignored)
+     * @throws IOException
+     */
+    private void writeToFile(long start, long bufferSize, ByteBuf... buffers)
+            throws IOException {
+        FilesystemBasedDirectIo direct = directIo;
+        if (direct != null && direct.getLength() >= 0) {
+            for (ByteBuf buffer : buffers) {
+                if (buffer != null) {
+                    direct.write(buffer);
+                }
+            }
+            return;
+        }
+        ByteBuffer[] nioBuffers;
+        if (buffers.length == 1 && buffers[0] != null) {
+            nioBuffers = buffers[0].nioBuffers();
+        } else {
+            List<ByteBuffer> list = new ArrayList<ByteBuffer>(buffers.length);
+            for (ByteBuf buffer : buffers) {
+                if (buffer != null) {
+                    Collections.addAll(list, buffer.nioBuffers());
+                }
+            }
+            nioBuffers = list.toArray(new ByteBuffer[list.size()]);
+        }
+        FileChannel fileChannel = fileOutputStream.getChannel();
+        long written = 0;
+        while (written < bufferSize) {
+            written += fileChannel.write(nioBuffers);
+        }
+        syncIfNeeded(bufferSize);
+        updateCheckpointJournal(buffers, start + bufferSize, fileChannel);
+    }
+
+    /**
+     * Write the current FileInterface with the given ByteBufs through the aligned staging buffer
+     * of the direct I/O mode
+     * 
+     * @param direct
+     * @param buffers
+     *            added to the file (null ones are ignored)
+     * @throws FileTransferException
+     */
+    private void writeDirectBlocks(FilesystemBasedDirectIo direct, ByteBuf... buffers)
+            throws FileTransferException {
+        long bufferSize = 0;
+        try {
+            for (ByteBuf buffer : buffers) {
+                if (buffer != null) {
+                    direct.write(buffer);
+                    bufferSize += buffer.readableBytes();
+                }
+            }
+        } catch (IOException e2) {
+            logger.error("Error during direct write:", e2);
+            try {
+                closeFile();
+            } catch (CommandAbstractException e1) {
+            }
+            throw new FileTransferException("Internal error, file is not ready");
+        }
+        long start = position;
+        for (ByteBuf buffer : buffers) {
+            if (buffer != null) {
+                updateTransferDigest(start, buffer);
+                start += buffer.readableBytes();
+                buffer.skipBytes(buffer.readableBytes());
+            }
+        }
+        position += bufferSize;
+    }
+
+    /**
+     * End the Write of the current FileInterface with the given ByteBuf. The file is not
+     * limited to 2^32 bytes since this write operation is in add mode.
+     * 
+     * @param buffer
+     *            added to the file
+     * @throws FileTransferException
+     */
+    private void writeBlockEnd(ByteBuf buffer)
+            throws FileTransferException {
+        writeBlock(buffer);
+        syncAtEnd();
+        deleteCheckpointJournal();
+        try {
+            closeFile();
+        } catch (CommandAbstractException e) {
+            throw new FileTransferException("Close in error", e);
+        }
+        finishTransferDigest();
+    }
+
+    /**
+     * Get the current block ByteBuf of the current FileInterface. There is therefore no
+     * limitation of the file size to 2^32 bytes.
+     * 
+     * The returned block is limited to sizeblock. If the returned block is less than sizeblock
+     * length, it is the last block to read.
      * 
      * @param sizeblock
      *            is the limit size for the block array
@@ -538,20 +1693,14 @@ public abstract class FilesystemBasedFileImpl extends AbstractFile {
         }
         if (bfileChannelIn == null) {
             bfileChannelIn = getFileChannel();
-            if (bfileChannelIn != null) {
-                if (bbyteBuffer != null) {
-                    if (bbyteBuffer.capacity() != sizeblock) {
-                        bbyteBuffer = null;
-                        bbyteBuffer = ByteBuffer.allocateDirect(sizeblock);
-                    }
-                } else {
-                    bbyteBuffer = ByteBuffer.allocateDirect(sizeblock);
-                }
-            }
         }
         if (bfileChannelIn == null) {
             throw new FileTransferException("Internal error, file is not ready");
         }
+        // the block size may change between two blocks (adaptive block size)
+        if (bbyteBuffer == null || bbyteBuffer.capacity() != sizeblock) {
+            bbyteBuffer = ByteBuffer.allocateDirect(sizeblock);
+        }
         int sizeout = 0;
         while (sizeout < sizeblock) {
             try {
@@ -570,27 +1719,233 @@ public abstract class FilesystemBasedFileImpl extends AbstractFile {
             }
         }
         if (sizeout <= 0) {
+            endOfRead();
+            throw new FileEndOfTransferException("End of file");
+        }
+        bbyteBuffer.flip();
+        position += sizeout;
+        ByteBuf buffer = Unpooled.wrappedBuffer(bbyteBuffer);
+        bbyteBuffer.clear();
+        if (sizeout < sizeblock) {// last block
+            endOfRead();
+        }
+        return buffer;
+    }
+
+    /**
+     * Get the current block ByteBuf of the current FileInterface as getPooledBlock but read
+     * through the aligned staging buffer of the direct I/O mode
+     * 
+     * @param sizeblock
+     *            is the limit size for the block array
+     * @return the resulting block ByteBuf (even empty)
+     * @throws FileTransferException
+     * @throws FileEndOfTransferException
+     */
+    private ByteBuf getDirectBlock(int sizeblock) throws FileTransferException,
+            FileEndOfTransferException {
+        ByteBuf buffer = PooledByteBufAllocator.DEFAULT.directBuffer(sizeblock, sizeblock);
+        int sizeout;
+        try {
+            sizeout = directIo.read(buffer, sizeblock);
+        } catch (IOException e) {
+            logger.error("Error during direct read:", e);
+            buffer.release();
             try {
                 closeFile();
             } catch (CommandAbstractException e1) {
             }
-            isReady = false;
+            throw new FileTransferException("Internal error, file is not ready");
+        }
+        if (sizeout <= 0) {
+            buffer.release();
+            endOfRead();
+            throw new FileEndOfTransferException("End of file");
+        }
+        position += sizeout;
+        if (sizeout < sizeblock) {// last block
+            endOfRead();
+        }
+        return buffer;
+    }
+
+    /**
+     * Get the current block ByteBuf of the current FileInterface as getBlock but in a new buffer
+     * from the pooled allocator. The caller owns the returned buffer and is in charge of releasing
+     * it, so that it can be kept after the next read.
+     * 
+     * @param sizeblock
+     *            is the limit size for the block array
+     * @return the resulting block ByteBuf (even empty)
+     * @throws FileTransferException
+     * @throws FileEndOfTransferException
+     */
+    private ByteBuf getPooledBlock(int sizeblock) throws FileTransferException,
+            FileEndOfTransferException {
+        if (!isReady) {
+            throw new FileTransferException("No file is ready");
+        }
+        if (bfileChannelIn == null) {
+            bfileChannelIn = getFileChannel();
+        }
+        if (bfileChannelIn == null) {
+            throw new FileTransferException("Internal error, file is not ready");
+        }
+        ByteBuf buffer = PooledByteBufAllocator.DEFAULT.directBuffer(sizeblock, sizeblock);
+        int sizeout = 0;
+        while (sizeout < sizeblock) {
+            try {
+                int sizeread = buffer.writeBytes(bfileChannelIn, sizeblock - sizeout);
+                if (sizeread <= 0) {
+                    break;
+                }
+                sizeout += sizeread;
+            } catch (IOException e) {
+                logger.error("Error during get:", e);
+                buffer.release();
+                try {
+                    closeFile();
+                } catch (CommandAbstractException e1) {
+                }
+                throw new FileTransferException("Internal error, file is not ready");
+            }
+        }
+        if (sizeout <= 0) {
+            buffer.release();
+            endOfRead();
             throw new FileEndOfTransferException("End of file");
         }
-        bbyteBuffer.flip();
         position += sizeout;
-        ByteBuf buffer = Unpooled.wrappedBuffer(bbyteBuffer);
-        bbyteBuffer.clear();
         if (sizeout < sizeblock) {// last block
+            endOfRead();
+        }
+        return buffer;
+    }
+
+    /**
+     * Get the current block ByteBuf of the current FileInterface as getBlock but as a view of the
+     * current memory mapped window of the file, sliding the window when the position goes out of
+     * it. The kernel to heap copy is therefore avoided.
+     * 
+     * @param sizeblock
+     *            is the limit size for the block array
+     * @return the resulting block ByteBuf (even empty)
+     * @throws FileTransferException
+     * @throws FileEndOfTransferException
+     */
+    private ByteBuf getMappedBlock(int sizeblock) throws FileTransferException,
+            FileEndOfTransferException {
+        if (!isReady) {
+            throw new FileTransferException("No file is ready");
+        }
+        try {
+            if (bfileChannelIn == null) {
+                bfileChannelIn = getFileChannel();
+                if (bfileChannelIn == null) {
+                    throw new FileTransferException("Internal error, file is not ready");
+                }
+                mappedFileSize = bfileChannelIn.size();
+            }
+            if (position >= mappedFileSize) {
+                endOfRead();
+                throw new FileEndOfTransferException("End of file");
+            }
+            int sizeout = (int) Math.min(sizeblock, mappedFileSize - position);
+            if (mappedWindow == null || position < mappedWindowStart ||
+                    position + sizeout > mappedWindowStart + mappedWindow.capacity()) {
+                long windowSize = Math.max(getFileParameter().mmapWindowSize, sizeblock);
+                windowSize = Math.min(windowSize, mappedFileSize - position);
+                mappedWindow = bfileChannelIn.map(MapMode.READ_ONLY, position, windowSize);
+                mappedWindowStart = position;
+            }
+            int offset = (int) (position - mappedWindowStart);
+            ByteBuffer view = mappedWindow.duplicate();
+            view.position(offset);
+            view.limit(offset + sizeout);
+            ByteBuf buffer = Unpooled.wrappedBuffer(view.slice());
+            position += sizeout;
+            if (sizeout < sizeblock) {// last block
+                endOfRead();
+            }
+            return buffer;
+        } catch (IOException e) {
+            logger.error("Error during get:", e);
+            try {
+                closeFile();
+            } catch (CommandAbstractException e1) {
+            }
+            throw new FileTransferException("Internal error, file is not ready");
+        }
+    }
+
+    /**
+     * Get the current block ByteBuf of the current FileInterface as getPooledBlock, but from the
+     * blocks read in advance by the read ahead stage, which then reads the next ones while this
+     * one is sent.
+     * 
+     * @param sizeblock
+     *            is the limit size for the block array
+     * @return the resulting block ByteBuf (even empty)
+     * @throws FileTransferException
+     * @throws FileEndOfTransferException
+     */
+    private ByteBuf getReadAheadBlock(int sizeblock) throws FileTransferException,
+            FileEndOfTransferException {
+        if (!isReady) {
+            throw new FileTransferException("No file is ready");
+        }
+        if (readAhead == null) {
+            if (bfileChannelIn == null) {
+                bfileChannelIn = getFileChannel();
+            }
+            if (bfileChannelIn == null) {
+                throw new FileTransferException("Internal error, file is not ready");
+            }
+            readAhead = new FilesystemBasedReadAhead(bfileChannelIn, position, sizeblock,
+                    getFileParameter().readAheadDepth);
+            readAheadHits = 0;
+            readAheadMisses = 0;
+        }
+        ByteBuf buffer;
+        try {
+            buffer = readAhead.next(sizeblock);
+        } catch (IOException e) {
+            logger.error("Error during get:", e);
             try {
                 closeFile();
             } catch (CommandAbstractException e1) {
             }
-            isReady = false;
+            throw new FileTransferException("Internal error, file is not ready");
+        } finally {
+            if (readAhead != null) {
+                readAheadHits = readAhead.getHits();
+                readAheadMisses = readAhead.getMisses();
+            }
+        }
+        int sizeout = buffer.readableBytes();
+        if (sizeout <= 0) {
+            buffer.release();
+            endOfRead();
+            throw new FileEndOfTransferException("End of file");
+        }
+        position += sizeout;
+        if (sizeout < sizeblock) {// last block
+            endOfRead();
         }
         return buffer;
     }
 
+    /**
+     * Close the file once the last block is read
+     */
+    private void endOfRead() {
+        try {
+            closeFile();
+        } catch (CommandAbstractException e1) {
+        }
+        isReady = false;
+    }
+
     /**
      * Write the FileInterface to the fileChannelOut, thus bypassing the limitation of the file size
      * to 2^32 bytes.
@@ -17,6 +17,9 @@
  */
 package org.waarp.common.file.filesystembased;
 
+import java.io.File;
+
+import org.waarp.common.digest.FilesystemBasedDigest.DigestAlgo;
 import org.waarp.common.file.FileParameterInterface;
 
 /**
@@ -26,6 +29,43 @@ import org.waarp.common.file.FileParameterInterface;
  * 
  */
 public class FilesystemBasedFileParameterImpl implements FileParameterInterface {
+    /**
+     * Durability policy for written files
+     * 
+     */
+    public static enum FsyncPolicy {
+        /**
+         * No explicit sync, the system decides
+         */
+        NONE,
+        /**
+         * Sync once the last block is written
+         */
+        ON_EOF,
+        /**
+         * Sync each time fsyncBytes were written since last sync, and at the end
+         */
+        EVERY_BYTES,
+        /**
+         * Sync at the first write once fsyncPeriod ms elapsed since last sync, and at the end
+         */
+        EVERY_PERIOD
+    }
+
+    /**
+     * Number of threads of the I/O executor shared by all write behind files
+     */
+    public static int writeBehindThreads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Number of threads of the I/O executor shared by all read ahead files
+     */
+    public static int readAheadThreads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Number of threads of the I/O executor shared by all asynchronous files
+     */
+    public static int asyncIoThreads = Runtime.getRuntime().availableProcessors();
 
     /**
      * Should a file MD5 SHA1 be computed using NIO. In low usage, direct access is faster. In high
@@ -37,4 +77,108 @@ public class FilesystemBasedFileParameterImpl implements FileParameterInterface
      * Should the file be deleted when the transfer is aborted on STOR like commands
      */
     public boolean deleteOnAbort = false;
+
+    /**
+     * Should the blocks read from files be allocated from the pooled allocator. In that case,
+     * each DataBlock comes from DataBlock.newInstance() and the caller owns its block: it has to
+     * release it (usually done by Netty once written) and may recycle the DataBlock once sent.
+     */
+    public boolean usePooledBuffer = false;
+
+    /**
+     * Files whose size is at least this threshold are read through memory mapped windows, each
+     * DataBlock being a view on the current window (0 means never)
+     */
+    public long mmapThreshold = 0;
+
+    /**
+     * Size of one memory mapped window when reading through memory mapped windows
+     */
+    public int mmapWindowSize = 64 * 1024 * 1024;
+
+    /**
+     * Transfers of at least this size bypass the page cache (direct I/O) where the JDK and the
+     * filesystem support it, falling back to standard I/O otherwise (0 means never). The size of a
+     * written file is only known if given by setTransferSize.
+     */
+    public long directIoThreshold = 0;
+
+    /**
+     * Size of the aligned staging buffer of a direct I/O transfer
+     */
+    public int directIoBufferSize = 1024 * 1024;
+
+    /**
+     * Number of blocks read in advance while the current one is sent (0 means no read ahead).
+     * Blocks are then allocated from the pooled allocator as with usePooledBuffer.
+     */
+    public int readAheadDepth = 0;
+
+    /**
+     * Should the size of the blocks read from files be tuned by session according to the
+     * measured throughput (see FilesystemBasedBlockSizeController), between minBlockSize and
+     * maxBlockSize, instead of the fixed block size of the session
+     */
+    public boolean adaptiveBlockSize = false;
+
+    /**
+     * Minimum size of the blocks read from files in adaptive mode
+     */
+    public int minBlockSize = 8 * 1024;
+
+    /**
+     * Maximum size of the blocks read from files in adaptive mode
+     */
+    public int maxBlockSize = 1024 * 1024;
+
+    /**
+     * Should received blocks be written by the I/O executor (write behind) instead of the network
+     * thread
+     */
+    public boolean writeBehind = false;
+
+    /**
+     * Number of queued blocks from which the data channel stops reading (write behind)
+     */
+    public int writeBehindHighWatermark = 16;
+
+    /**
+     * Number of queued blocks under which the data channel reads again (write behind)
+     */
+    public int writeBehindLowWatermark = 4;
+
+    /**
+     * Durability policy for written files
+     */
+    public FsyncPolicy fsyncPolicy = FsyncPolicy.NONE;
+
+    /**
+     * Number of bytes between 2 syncs for FsyncPolicy.EVERY_BYTES
+     */
+    public long fsyncBytes = 64L * 1024 * 1024;
+
+    /**
+     * Delay in ms between 2 syncs for FsyncPolicy.EVERY_PERIOD
+     */
+    public long fsyncPeriod = 1000;
+
+    /**
+     * Number of bytes between 2 records of the checkpoint journal of written files (0 means no
+     * journal). At each record, the written file and the journal are synced.
+     */
+    public long checkpointBytes = 0;
+
+    /**
+     * Directory of the checkpoint journals, out of the business directories (null means
+     * FilesystemBasedCheckpointJournal.DEFAULT_DIRECTORY, under the user's home directory). It
+     * must be on a persistent local filesystem for the journals to survive a reboot.
+     */
+    public File checkpointDirectory = null;
+
+    /**
+     * Digests computed on the blocks of each complete transfer (null means none), available from
+     * getTransferDigest and reused by the digest methods of FilesystemBasedDirImpl while the file
+     * is unchanged
+     */
+    public DigestAlgo[] transferDigestAlgos = null;
 }
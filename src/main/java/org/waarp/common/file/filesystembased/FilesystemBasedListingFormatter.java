@@ -0,0 +1,191 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.file.filesystembased;
+
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Formatter of the dates of listings (ls and MLSx formats), confined to one thread.<br>
+ * <br>
+ * The date formats are created once by thread instead of once by entry, and the formatted date is
+ * cached by minute, such that entries modified within the same minute (most of a directory in
+ * general) share the same formatted prefix. The line buffer is reused from one entry to the next
+ * of a listing. The default time zone is checked each time the formatter of a thread is got, such
+ * that a change of it applies to the next listings of the pooled threads too.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class FilesystemBasedListingFormatter {
+    private static final long MINUTE = 60L * 1000L;
+    /**
+     * POSIX says the cutoff is 6 months old; approximate this by 6*30 days
+     */
+    private static final long OLD = 6L * 30L * 24L * 60L * 60L * 1000L;
+    /**
+     * 1 hour slop factor for what is considered "the future", to allow for NFS server/client
+     * clock disagreement
+     */
+    private static final long FUTURE = 60L * 60L * 1000L;
+
+    private static final ThreadLocal<FilesystemBasedListingFormatter> formatters = new ThreadLocal<FilesystemBasedListingFormatter>() {
+        @Override
+        protected FilesystemBasedListingFormatter initialValue() {
+            return new FilesystemBasedListingFormatter();
+        }
+    };
+
+    private final StringBuilder line = new StringBuilder(128);
+    // It seems Full Time is not recognized by some FTP client: "EEE MMM dd HH:mm:ss yyyy"
+    private final SimpleDateFormat recentFormat = new SimpleDateFormat("MMM dd HH:mm",
+            Locale.ENGLISH);
+    private final SimpleDateFormat oldFormat = new SimpleDateFormat("MMM dd  yyyy",
+            Locale.ENGLISH);
+    private final Calendar calendar = Calendar.getInstance();
+    private final Date date = new Date();
+    private TimeZone timeZone = calendar.getTimeZone();
+
+    private long lsMinute = Long.MIN_VALUE;
+    private boolean lsOld = false;
+    private String lsDate = null;
+    private long modifyMinute = Long.MIN_VALUE;
+    private String modifyPrefix = null;
+
+    private FilesystemBasedListingFormatter() {
+    }
+
+    /**
+     * 
+     * @return the formatter of the current thread
+     */
+    public static FilesystemBasedListingFormatter getInstance() {
+        FilesystemBasedListingFormatter formatter = formatters.get();
+        formatter.checkTimeZone();
+        return formatter;
+    }
+
+    /**
+     * Follow a change of the default time zone, dropping the dates cached in the previous one
+     */
+    private void checkTimeZone() {
+        TimeZone current = TimeZone.getDefault();
+        if (current.equals(timeZone)) {
+            return;
+        }
+        timeZone = current;
+        recentFormat.setTimeZone(current);
+        oldFormat.setTimeZone(current);
+        calendar.setTimeZone(current);
+        lsDate = null;
+        modifyPrefix = null;
+    }
+
+    /**
+     * 
+     * @return the line buffer, emptied. It is reused by the next call.
+     */
+    public StringBuilder newLine() {
+        line.setLength(0);
+        return line;
+    }
+
+    /**
+     * 
+     * @param time
+     * @return the minute containing this time (as a number of minutes since the epoch)
+     */
+    private static long getMinute(long time) {
+        long minute = time / MINUTE;
+        if (time < 0 && minute * MINUTE != time) {
+            minute--;
+        }
+        return minute;
+    }
+
+    /**
+     * Append the date as in 'ls' command
+     * 
+     * @param builder
+     * @param lastModified
+     * @param now
+     *            the reference time to decide if the date is old or in the future
+     * @return the builder
+     */
+    public StringBuilder appendLsDate(StringBuilder builder, long lastModified, long now) {
+        // The file is fairly old or in the future: show the year instead of the time of day.
+        boolean old = now > lastModified + OLD || now < lastModified - FUTURE;
+        long minute = getMinute(lastModified);
+        if (lsDate == null || minute != lsMinute || old != lsOld) {
+            date.setTime(lastModified);
+            lsDate = old ? oldFormat.format(date) : recentFormat.format(date);
+            lsMinute = minute;
+            lsOld = old;
+        }
+        return builder.append(lsDate);
+    }
+
+    /**
+     * Append the modification time as YYYYMMDDHHMMSS.sss
+     * 
+     * @param builder
+     * @param mstime
+     *            the modification time in ms
+     * @return the builder
+     */
+    public StringBuilder appendModificationTime(StringBuilder builder, long mstime) {
+        long minute = getMinute(mstime);
+        if (modifyPrefix == null || minute != modifyMinute) {
+            calendar.setTimeInMillis(mstime);
+            StringBuilder prefix = new StringBuilder(12);
+            prefix.append(calendar.get(Calendar.YEAR));
+            appendTwoDigits(prefix, calendar.get(Calendar.MONTH) + 1);
+            appendTwoDigits(prefix, calendar.get(Calendar.DAY_OF_MONTH));
+            appendTwoDigits(prefix, calendar.get(Calendar.HOUR_OF_DAY));
+            appendTwoDigits(prefix, calendar.get(Calendar.MINUTE));
+            modifyPrefix = prefix.toString();
+            modifyMinute = minute;
+        }
+        int inMinute = (int) (mstime - minute * MINUTE);
+        int second = inMinute / 1000;
+        int ms = inMinute % 1000;
+        builder.append(modifyPrefix);
+        appendTwoDigits(builder, second);
+        builder.append('.');
+        if (ms < 100) {
+            builder.append('0');
+        }
+        return appendTwoDigits(builder, ms);
+    }
+
+    /**
+     * 
+     * @param builder
+     * @param value
+     * @return the builder with the value on at least 2 digits
+     */
+    private static StringBuilder appendTwoDigits(StringBuilder builder, int value) {
+        if (value < 10) {
+            builder.append('0');
+        }
+        return builder.append(value);
+    }
+}
@@ -0,0 +1,245 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.file.filesystembased;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+
+import org.waarp.common.utility.WaarpThreadFactory;
+
+/**
+ * Read ahead stage for one FilesystemBasedFileImpl: the next blocks are read in pooled buffers by
+ * a shared I/O executor while the current one is sent, such that the disk latency is not in the
+ * transfer loop.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class FilesystemBasedReadAhead {
+    /**
+     * Shared I/O executor
+     */
+    private static ExecutorService executor = null;
+
+    /**
+     * Number of blocks already read when asked, for all files
+     */
+    private static final AtomicLong globalHits = new AtomicLong();
+
+    /**
+     * Number of blocks not yet read when asked, for all files
+     */
+    private static final AtomicLong globalMisses = new AtomicLong();
+
+    private final FileChannel fileChannel;
+    private final int depth;
+    private final ArrayDeque<Future<ByteBuf>> prefetched;
+    private int blockSize;
+    private long nextPosition;
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * @param fileChannel
+     *            the channel to read from (positional reads only, not closed by this object)
+     * @param position
+     *            the position of the next block
+     * @param blockSize
+     *            the size of each block
+     * @param depth
+     *            number of blocks read in advance
+     */
+    FilesystemBasedReadAhead(FileChannel fileChannel, long position, int blockSize, int depth) {
+        this.fileChannel = fileChannel;
+        this.nextPosition = position;
+        this.blockSize = blockSize;
+        this.depth = Math.max(depth, 1);
+        prefetched = new ArrayDeque<Future<ByteBuf>>(this.depth + 1);
+    }
+
+    /**
+     * 
+     * @return the shared I/O executor
+     */
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(
+                    Math.max(FilesystemBasedFileParameterImpl.readAheadThreads, 1),
+                    new WaarpThreadFactory("FileReadAhead"));
+        }
+        return executor;
+    }
+
+    /**
+     * 
+     * @param sizeblock
+     *            the size of the block (if different from the previous one, prefetched blocks are
+     *            dropped)
+     * @return the next block, owned by the caller, empty at end of file
+     * @throws IOException
+     */
+    ByteBuf next(int sizeblock) throws IOException {
+        if (sizeblock != blockSize) {
+            long position = nextPosition - (long) prefetched.size() * blockSize;
+            reset(position);
+            blockSize = sizeblock;
+        }
+        if (prefetched.isEmpty()) {
+            prefetch();
+        }
+        Future<ByteBuf> future = prefetched.poll();
+        if (future.isDone()) {
+            hits++;
+            globalHits.incrementAndGet();
+        } else {
+            misses++;
+            globalMisses.incrementAndGet();
+        }
+        ByteBuf buffer = get(future);
+        // refill while this block is sent
+        if (buffer.readableBytes() == blockSize) {
+            while (prefetched.size() < depth) {
+                prefetch();
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * Submit the read of the next block
+     */
+    private void prefetch() {
+        final long position = nextPosition;
+        final int size = blockSize;
+        nextPosition += size;
+        prefetched.add(getExecutor().submit(new Callable<ByteBuf>() {
+            public ByteBuf call() throws IOException {
+                ByteBuf buffer = PooledByteBufAllocator.DEFAULT.directBuffer(size, size);
+                try {
+                    int sizeout = 0;
+                    while (sizeout < size) {
+                        int sizeread = buffer.writeBytes(fileChannel, position + sizeout,
+                                size - sizeout);
+                        if (sizeread <= 0) {
+                            break;
+                        }
+                        sizeout += sizeread;
+                    }
+                } catch (IOException e) {
+                    buffer.release();
+                    throw e;
+                }
+                return buffer;
+            }
+        }));
+    }
+
+    /**
+     * 
+     * @param future
+     * @return the block read by this future
+     * @throws IOException
+     */
+    private static ByteBuf get(Future<ByteBuf> future) throws IOException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return future.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    throw new IOException(e.getCause());
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Drop the prefetched blocks and restart from the given position
+     * 
+     * @param position
+     */
+    void reset(long position) {
+        close();
+        nextPosition = position;
+    }
+
+    /**
+     * Drop the prefetched blocks, releasing them
+     */
+    void close() {
+        Future<ByteBuf> future;
+        while ((future = prefetched.poll()) != null) {
+            try {
+                get(future).release();
+            } catch (IOException e) {
+                // ignore since dropped
+            }
+        }
+    }
+
+    /**
+     * 
+     * @return the number of blocks already read when asked for this file
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * 
+     * @return the number of blocks not yet read when asked for this file
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * 
+     * @return the number of blocks already read when asked, for all files
+     */
+    public static long getGlobalHits() {
+        return globalHits.get();
+    }
+
+    /**
+     * 
+     * @return the number of blocks not yet read when asked, for all files
+     */
+    public static long getGlobalMisses() {
+        return globalMisses.get();
+    }
+}
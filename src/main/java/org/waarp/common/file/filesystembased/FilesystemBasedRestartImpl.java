@@ -17,6 +17,9 @@
  */
 package org.waarp.common.file.filesystembased;
 
+import java.io.File;
+import java.io.IOException;
+
 import org.waarp.common.exception.NoRestartException;
 import org.waarp.common.file.Restart;
 import org.waarp.common.file.SessionInterface;
@@ -50,6 +53,35 @@ public abstract class FilesystemBasedRestartImpl extends Restart {
         throw new NoRestartException("Restart is not set");
     }
 
+    /**
+     * Restart the next write of the given file from the last verified offset of its checkpoint
+     * journal (see {@link FilesystemBasedCheckpointJournal}), rereading only its last segment
+     * 
+     * @param file
+     *            the partially written file
+     * @return True if a restart position was found
+     */
+    public boolean restartFromCheckpoint(File file) {
+        long offset;
+        try {
+            File directory = null;
+            if (getSession().getFileParameter() instanceof FilesystemBasedFileParameterImpl) {
+                directory = ((FilesystemBasedFileParameterImpl) getSession()
+                        .getFileParameter()).checkpointDirectory;
+            }
+            offset = FilesystemBasedCheckpointJournal.readLastOffset(
+                    FilesystemBasedCheckpointJournal.getJournalFile(directory, file), file);
+        } catch (IOException e) {
+            return false;
+        }
+        if (offset <= 0) {
+            return false;
+        }
+        setSet(true);
+        position = offset;
+        return true;
+    }
+
     @Override
     public int getMaxSize(int nextBlock) {
         if (limit > 0) {
@@ -0,0 +1,224 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.file.filesystembased;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+import io.netty.buffer.ByteBuf;
+
+import org.waarp.common.digest.FilesystemBasedDigest.DigestAlgo;
+
+/**
+ * Digests computed incrementally on the blocks of one transfer, such that the integrity check of
+ * a file just sent or received does not need to read it again.<br>
+ * <br>
+ * Once the whole file is fed, the final values are put in the DigestCache, so that the digest
+ * methods of FilesystemBasedDirImpl can reuse them as long as the file is unchanged.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class FilesystemBasedTransferDigest {
+    private final Map<DigestAlgo, MessageDigest> messageDigests = new EnumMap<DigestAlgo, MessageDigest>(
+            DigestAlgo.class);
+    private final Map<DigestAlgo, Checksum> checksums = new EnumMap<DigestAlgo, Checksum>(
+            DigestAlgo.class);
+    private byte[] chunk = null;
+    private long position = 0;
+
+    /**
+     * @param algos
+     *            the digests to compute (unsupported ones are ignored)
+     */
+    public FilesystemBasedTransferDigest(DigestAlgo... algos) {
+        for (DigestAlgo algo : algos) {
+            switch (algo) {
+                case CRC32:
+                    checksums.put(algo, new CRC32());
+                    break;
+                case ADLER32:
+                    checksums.put(algo, new Adler32());
+                    break;
+                default:
+                    String name = getMessageDigestName(algo);
+                    if (name != null) {
+                        try {
+                            messageDigests.put(algo, MessageDigest.getInstance(name));
+                        } catch (NoSuchAlgorithmException e) {
+                            // ignore unsupported
+                        }
+                    }
+                    break;
+            }
+        }
+    }
+
+    /**
+     * 
+     * @param algo
+     * @return the name of the corresponding MessageDigest, or null if it is a checksum or unknown
+     */
+    static String getMessageDigestName(DigestAlgo algo) {
+        switch (algo) {
+            case MD5:
+                return "MD5";
+            case MD2:
+                return "MD2";
+            case SHA1:
+                return "SHA-1";
+            case SHA256:
+                return "SHA-256";
+            case SHA384:
+                return "SHA-384";
+            case SHA512:
+                return "SHA-512";
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * 
+     * @return True if at least one digest is computed
+     */
+    public boolean isEmpty() {
+        return messageDigests.isEmpty() && checksums.isEmpty();
+    }
+
+    /**
+     * 
+     * @return the number of bytes already fed
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * Feed the readable bytes of the buffer, without consuming them
+     * 
+     * @param buffer
+     */
+    public void update(ByteBuf buffer) {
+        int length = buffer.readableBytes();
+        if (length == 0) {
+            return;
+        }
+        if (buffer.hasArray()) {
+            position += length;
+            update(buffer.array(), buffer.arrayOffset() + buffer.readerIndex(), length);
+            return;
+        }
+        for (ByteBuffer byteBuffer : buffer.nioBuffers()) {
+            update(byteBuffer);
+        }
+    }
+
+    /**
+     * Feed the remaining bytes of the buffer, without consuming them
+     * 
+     * @param buffer
+     */
+    public void update(ByteBuffer buffer) {
+        int length = buffer.remaining();
+        if (length == 0) {
+            return;
+        }
+        position += length;
+        if (buffer.hasArray()) {
+            update(buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+            return;
+        }
+        for (MessageDigest messageDigest : messageDigests.values()) {
+            messageDigest.update(buffer.duplicate());
+        }
+        if (checksums.isEmpty()) {
+            return;
+        }
+        if (chunk == null) {
+            chunk = new byte[8192];
+        }
+        ByteBuffer view = buffer.duplicate();
+        while (view.hasRemaining()) {
+            int size = Math.min(view.remaining(), chunk.length);
+            view.get(chunk, 0, size);
+            for (Checksum checksum : checksums.values()) {
+                checksum.update(chunk, 0, size);
+            }
+        }
+    }
+
+    /**
+     * 
+     * @param bytes
+     * @param offset
+     * @param length
+     */
+    private void update(byte[] bytes, int offset, int length) {
+        for (Checksum checksum : checksums.values()) {
+            checksum.update(bytes, offset, length);
+        }
+        for (MessageDigest messageDigest : messageDigests.values()) {
+            messageDigest.update(bytes, offset, length);
+        }
+    }
+
+    /**
+     * Compute the final values. This object must not be fed anymore.
+     * 
+     * @return the final values by algorithm (checksums as 4 bytes in big endian)
+     */
+    public Map<DigestAlgo, byte[]> finish() {
+        Map<DigestAlgo, byte[]> results = new EnumMap<DigestAlgo, byte[]>(DigestAlgo.class);
+        for (Entry<DigestAlgo, Checksum> entry : checksums.entrySet()) {
+            results.put(entry.getKey(), fromChecksum(entry.getValue().getValue()));
+        }
+        for (Entry<DigestAlgo, MessageDigest> entry : messageDigests.entrySet()) {
+            results.put(entry.getKey(), entry.getValue().digest());
+        }
+        return results;
+    }
+
+    /**
+     * 
+     * @param value
+     * @return the checksum as 4 bytes in big endian
+     */
+    public static byte[] fromChecksum(long value) {
+        return new byte[] {
+                (byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8),
+                (byte) value };
+    }
+
+    /**
+     * 
+     * @param bytes
+     * @return the checksum from 4 bytes in big endian
+     */
+    public static long toChecksum(byte[] bytes) {
+        return ((bytes[0] & 0xFFL) << 24) | ((bytes[1] & 0xFFL) << 16) |
+                ((bytes[2] & 0xFFL) << 8) | (bytes[3] & 0xFFL);
+    }
+}
@@ -0,0 +1,120 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.file.filesystembased;
+
+import java.util.regex.Pattern;
+
+import org.waarp.common.lru.SynchronizedLruCache;
+
+/**
+ * Compiled wildcard expressions ('*' for any sequence, '?' for one character, case sensitive as
+ * the WildcardFileFilter of Apache Commons IO) on one name of a path.<br>
+ * <br>
+ * The compiled patterns are kept in a bounded cache shared by all sessions, since clients sending
+ * many similar requests (as mget) reuse the same expressions.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class FilesystemBasedWildcard {
+    /**
+     * Maximum number of compiled expressions kept
+     */
+    public static int capacity = 1000;
+
+    /**
+     * Time to live in ms of a compiled expression
+     */
+    public static long ttl = 3600L * 1000L;
+
+    private static SynchronizedLruCache<String, Pattern> cache = null;
+
+    private FilesystemBasedWildcard() {
+    }
+
+    /**
+     * 
+     * @return the cache, created if necessary
+     */
+    private static synchronized SynchronizedLruCache<String, Pattern> getCache() {
+        if (cache == null) {
+            cache = new SynchronizedLruCache<String, Pattern>(Math.max(capacity, 1),
+                    Math.max(ttl, 1));
+        }
+        return cache;
+    }
+
+    /**
+     * 
+     * @param name
+     * @return True if this name contains a wildcard ('*' or '?')
+     */
+    public static boolean hasWildcard(String name) {
+        return name.indexOf('*') >= 0 || name.indexOf('?') >= 0;
+    }
+
+    /**
+     * 
+     * @param name
+     *            one name of a path, possibly with wildcards
+     * @return the compiled Pattern of this name, or null if it has no wildcard
+     */
+    public static Pattern getPattern(String name) {
+        if (!hasWildcard(name)) {
+            return null;
+        }
+        SynchronizedLruCache<String, Pattern> patterns = getCache();
+        Pattern pattern = patterns.get(name);
+        if (pattern == null) {
+            pattern = compile(name);
+            patterns.put(name, pattern);
+        }
+        return pattern;
+    }
+
+    /**
+     * 
+     * @param name
+     * @return the Pattern equivalent to this wildcard expression
+     */
+    static Pattern compile(String name) {
+        StringBuilder regex = new StringBuilder(name.length() + 16);
+        int start = 0;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c == '*' || c == '?') {
+                if (i > start) {
+                    regex.append(Pattern.quote(name.substring(start, i)));
+                }
+                regex.append(c == '*' ? ".*" : ".");
+                start = i + 1;
+            }
+        }
+        if (start < name.length()) {
+            regex.append(Pattern.quote(name.substring(start)));
+        }
+        return Pattern.compile(regex.toString(), Pattern.DOTALL);
+    }
+
+    /**
+     * Forget all compiled expressions
+     */
+    public static void clear() {
+        getCache().clear();
+    }
+}
@@ -0,0 +1,321 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.file.filesystembased;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+
+import org.waarp.common.exception.FileTransferException;
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.common.utility.WaarpThreadFactory;
+
+/**
+ * Write behind stage for one FilesystemBasedFileImpl: received blocks are queued and written by a
+ * shared I/O executor, such that a slow disk does not block the network thread. The file keeps its
+ * position and transfer digests on the caller's thread, the I/O thread only writes the bytes (and
+ * the checkpoint journal). The transfer is ended by the caller's thread once the queue is drained.<br>
+ * <br>
+ * If a Channel is given, the backpressure is done by disabling its autoRead when the queue reaches
+ * the high watermark, and enabling it again once drained under the low watermark. Whatever the
+ * mode, the queue is bounded: the caller is blocked when it is full (blocks still received after
+ * autoRead was disabled).
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+class FilesystemBasedWriteBehind implements Runnable {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(FilesystemBasedWriteBehind.class);
+
+    /**
+     * Maximum number of blocks written in one gathering write
+     */
+    private static final int MAX_BATCH = 64;
+
+    /**
+     * Shared I/O executor
+     */
+    private static ExecutorService executor = null;
+
+    /**
+     * One queued block
+     */
+    private static final class QueuedBlock {
+        /**
+         * Own view of the bytes to write
+         */
+        private final ByteBuf block;
+        /**
+         * Position in the file once this block is written
+         */
+        private final long end;
+
+        private QueuedBlock(ByteBuf block, long end) {
+            this.block = block;
+            this.end = end;
+        }
+    }
+
+    private final FilesystemBasedFileImpl file;
+    private final LinkedBlockingQueue<QueuedBlock> queue;
+    private final int highWatermark;
+    private final int lowWatermark;
+    /**
+     * Maximum number of queued blocks
+     */
+    private final int capacity;
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private final AtomicInteger pending = new AtomicInteger(0);
+    private volatile Channel channel;
+    private volatile FileTransferException error = null;
+    private volatile boolean cancelled = false;
+
+    /**
+     * @param file
+     *            the file to write to
+     * @param highWatermark
+     *            number of queued blocks from which the channel stops reading
+     * @param lowWatermark
+     *            number of queued blocks under which the channel reads again
+     * @param channel
+     *            the channel to apply the backpressure on (may be null)
+     */
+    FilesystemBasedWriteBehind(FilesystemBasedFileImpl file, int highWatermark,
+            int lowWatermark, Channel channel) {
+        this.file = file;
+        this.highWatermark = Math.max(highWatermark, 1);
+        this.lowWatermark = Math.min(Math.max(lowWatermark, 0), this.highWatermark - 1);
+        capacity = this.highWatermark * 2;
+        queue = new LinkedBlockingQueue<QueuedBlock>(capacity);
+        this.channel = channel;
+    }
+
+    /**
+     * 
+     * @return the shared I/O executor
+     */
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(
+                    Math.max(FilesystemBasedFileParameterImpl.writeBehindThreads, 1),
+                    new WaarpThreadFactory("FileWriteBehind"));
+        }
+        return executor;
+    }
+
+    /**
+     * 
+     * @param channel
+     *            the channel to apply the backpressure on (may be null)
+     */
+    void setChannel(Channel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Queue the readable bytes of the block to be written. The queue keeps its own retained view
+     * of them, so the caller may consume and release its block as soon as this returns.
+     * 
+     * @param block
+     *            the block to write
+     * @param end
+     *            the position in the file once this block is written
+     * @throws FileTransferException
+     *             if a previous write was in error or the transfer was aborted
+     */
+    void write(ByteBuf block, long end) throws FileTransferException {
+        checkError();
+        if (cancelled) {
+            throw new FileTransferException("Transfer aborted");
+        }
+        waitForRoom();
+        if (cancelled) {
+            throw new FileTransferException("Transfer aborted");
+        }
+        ByteBuf own = block.retainedDuplicate();
+        pending.incrementAndGet();
+        if (!queue.offer(new QueuedBlock(own, end))) {
+            // only one caller by file, so never full after waitForRoom
+            pending.decrementAndGet();
+            own.release();
+            throw new FileTransferException("Write behind queue is full");
+        }
+        Channel current = channel;
+        if (current != null) {
+            // under the lock so as not to disable it just after the last drained batch
+            synchronized (this) {
+                if (queue.size() >= highWatermark && current.config().isAutoRead()) {
+                    current.config().setAutoRead(false);
+                }
+            }
+        }
+        schedule();
+    }
+
+    /**
+     * Block the caller while the queue is full
+     * 
+     * @throws FileTransferException
+     */
+    private void waitForRoom() throws FileTransferException {
+        synchronized (this) {
+            while (queue.size() >= capacity && error == null && !cancelled) {
+                try {
+                    wait(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new FileTransferException("Interrupted while queueing block", e);
+                }
+            }
+        }
+        checkError();
+    }
+
+    /**
+     * Submit the drain task if not already running
+     */
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            getExecutor().execute(this);
+        }
+    }
+
+    public void run() {
+        List<QueuedBlock> blocks = new ArrayList<QueuedBlock>(MAX_BATCH);
+        List<ByteBuf> buffers = new ArrayList<ByteBuf>(MAX_BATCH);
+        try {
+            while (queue.drainTo(blocks, MAX_BATCH) > 0) {
+                try {
+                    if (error == null && !cancelled) {
+                        write(blocks, buffers);
+                    }
+                } catch (FileTransferException e) {
+                    logger.error("Error during write behind:", e);
+                    error = e;
+                } catch (RuntimeException e) {
+                    logger.error("Error during write behind:", e);
+                    error = new FileTransferException("Internal error, file is not ready", e);
+                } finally {
+                    for (QueuedBlock queued : blocks) {
+                        queued.block.release();
+                    }
+                    Channel current = channel;
+                    if (current != null) {
+                        synchronized (this) {
+                            if (queue.size() <= lowWatermark &&
+                                    !current.config().isAutoRead()) {
+                                current.config().setAutoRead(true);
+                            }
+                        }
+                    }
+                    done(blocks.size());
+                    blocks.clear();
+                    buffers.clear();
+                }
+            }
+        } finally {
+            scheduled.set(false);
+            if (!queue.isEmpty()) {
+                // blocks added while finishing
+                schedule();
+            }
+        }
+    }
+
+    /**
+     * Write one batch of queued blocks in one gathering write
+     * 
+     * @param blocks
+     * @param buffers
+     *            working list
+     * @throws FileTransferException
+     */
+    private void write(List<QueuedBlock> blocks, List<ByteBuf> buffers)
+            throws FileTransferException {
+        for (QueuedBlock queued : blocks) {
+            buffers.add(queued.block);
+        }
+        file.writeQueuedBlocks(buffers.toArray(new ByteBuf[buffers.size()]),
+                blocks.get(blocks.size() - 1).end);
+    }
+
+    /**
+     * Account the written blocks and wake up waiting threads
+     * 
+     * @param nb
+     */
+    private void done(int nb) {
+        pending.addAndGet(-nb);
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Wait for all queued blocks to be written
+     */
+    void awaitDrained() {
+        boolean interrupted = false;
+        synchronized (this) {
+            while (pending.get() > 0) {
+                try {
+                    wait(100);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Discard the blocks not yet written (for abort)
+     */
+    void cancel() {
+        cancelled = true;
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * 
+     * @throws FileTransferException
+     *             if a previous write was in error
+     */
+    void checkError() throws FileTransferException {
+        FileTransferException exception = error;
+        if (exception != null) {
+            throw new FileTransferException(exception.getMessage(), exception);
+        }
+    }
+}
@@ -0,0 +1,455 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.file.memorybased;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.waarp.common.command.exception.CommandAbstractException;
+import org.waarp.common.command.exception.Reply550Exception;
+import org.waarp.common.digest.FilesystemBasedDigest.DigestAlgo;
+import org.waarp.common.file.AbstractDir;
+import org.waarp.common.file.FileInterface;
+import org.waarp.common.file.OptsMLSxInterface;
+import org.waarp.common.file.SessionInterface;
+import org.waarp.common.file.filesystembased.FilesystemBasedListingFormatter;
+import org.waarp.common.file.filesystembased.FilesystemBasedTransferDigest;
+import org.waarp.common.file.filesystembased.FilesystemBasedWildcard;
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+
+/**
+ * Directory implementation for Memory Based: directories and files only exist in the
+ * {@link MemoryBasedStore} given at creation.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public abstract class MemoryBasedDirImpl extends AbstractDir {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(MemoryBasedDirImpl.class);
+
+    /**
+     * Storage of files and directories
+     */
+    protected final MemoryBasedStore store;
+
+    /**
+     * @param session
+     * @param optsMLSx
+     * @param store
+     *            the storage of files and directories (can be shared by all sessions)
+     */
+    public MemoryBasedDirImpl(SessionInterface session,
+            OptsMLSxInterface optsMLSx, MemoryBasedStore store) {
+        this.session = session;
+        this.optsMLSx = optsMLSx;
+        this.store = store;
+        this.optsMLSx.setOptsModify((byte) 1);
+        this.optsMLSx.setOptsPerm((byte) 1);
+        this.optsMLSx.setOptsSize((byte) 1);
+        this.optsMLSx.setOptsType((byte) 1);
+    }
+
+    /**
+     * 
+     * @return the storage of files and directories
+     */
+    public MemoryBasedStore getStore() {
+        return store;
+    }
+
+    @Override
+    public void initAfterIdentification() {
+        super.initAfterIdentification();
+        // the business directory of the user exists from the start
+        store.mkdirs(currentDir);
+    }
+
+    /**
+     * Finds all files matching a wildcard expression (based on '?' or '*').
+     * 
+     * @param pathWithWildcard
+     *            The wildcard expression with a business path.
+     * @return List of String as relative paths matching the wildcard expression. Those files are
+     *         tested as valid from business point of view.
+     * @throws CommandAbstractException
+     */
+    protected List<String> wildcardFiles(String pathWithWildcard)
+            throws CommandAbstractException {
+        List<String> resultPaths = new ArrayList<String>();
+        // First check if pathWithWildcard contains wildcards
+        if (!FilesystemBasedWildcard.hasWildcard(pathWithWildcard)) {
+            // No so simply return the list containing this path after
+            // validating it
+            if (getSession().getAuth().isBusinessPathValid(pathWithWildcard)) {
+                resultPaths.add(pathWithWildcard);
+            }
+            return resultPaths;
+        }
+        String[] names = MemoryBasedStore.normalize(pathWithWildcard).substring(1).split(
+                SEPARATOR);
+        List<String> matches = new ArrayList<String>();
+        walkWildcard(SEPARATOR, names, 0, matches);
+        for (String match : matches) {
+            resultPaths.add(this.validatePath(match));
+        }
+        return resultPaths;
+    }
+
+    /**
+     * Depth first walk matching the names of the path one by one
+     * 
+     * @param dir
+     *            the current directory
+     * @param names
+     *            the names of the path
+     * @param index
+     *            the index of the name to match in this directory
+     * @param matches
+     *            the paths matching the whole path
+     */
+    private void walkWildcard(String dir, String[] names, int index, List<String> matches) {
+        if (index >= names.length) {
+            matches.add(dir);
+            return;
+        }
+        String prefix = dir.equals(SEPARATOR) ? SEPARATOR : dir + SEPARATOR;
+        Pattern pattern = FilesystemBasedWildcard.getPattern(names[index]);
+        if (pattern == null) {
+            if (store.get(prefix + names[index]) != null) {
+                walkWildcard(prefix + names[index], names, index + 1, matches);
+            }
+            return;
+        }
+        for (String child : store.getChildren(dir)) {
+            if (pattern.matcher(child).matches()) {
+                walkWildcard(prefix + child, names, index + 1, matches);
+            }
+        }
+    }
+
+    /**
+     * 
+     * @param path
+     * @return the entry of this path, checking first its validity
+     * @throws CommandAbstractException
+     */
+    protected MemoryBasedEntry getEntry(String path) throws CommandAbstractException {
+        return store.get(validatePath(path));
+    }
+
+    /**
+     * 
+     * @param path
+     * @return the single path matching this path
+     * @throws CommandAbstractException
+     */
+    private String getSinglePath(String path) throws CommandAbstractException {
+        String newpath = consolidatePath(path);
+        List<String> paths = wildcardFiles(normalizePath(newpath));
+        if (paths.size() != 1) {
+            throw new Reply550Exception("File not found: " + paths.size() +
+                    " founds");
+        }
+        return this.validatePath(paths.get(0));
+    }
+
+    public boolean changeDirectory(String path) throws CommandAbstractException {
+        checkIdentify();
+        String extDir = getSinglePath(path);
+        if (isDirectory(extDir)) {
+            currentDir = extDir;
+            return true;
+        }
+        throw new Reply550Exception("Directory not found: " + extDir);
+    }
+
+    public boolean changeDirectoryNotChecked(String path) throws CommandAbstractException {
+        checkIdentify();
+        currentDir = getSinglePath(path);
+        return true;
+    }
+
+    public String mkdir(String directory) throws CommandAbstractException {
+        checkIdentify();
+        String newDir = this.validatePath(consolidatePath(directory));
+        if (store.mkdir(newDir)) {
+            return newDir;
+        }
+        throw new Reply550Exception("Cannot create directory " + newDir);
+    }
+
+    public String rmdir(String directory) throws CommandAbstractException {
+        checkIdentify();
+        String extDir = getSinglePath(directory);
+        MemoryBasedEntry entry = store.get(extDir);
+        if (entry != null && entry.isDirectory() && store.delete(extDir)) {
+            return extDir;
+        }
+        throw new Reply550Exception("Cannot delete directory " + extDir);
+    }
+
+    public boolean isDirectory(String path) throws CommandAbstractException {
+        checkIdentify();
+        MemoryBasedEntry entry = getEntry(path);
+        return entry != null && entry.isDirectory();
+    }
+
+    public boolean isFile(String path) throws CommandAbstractException {
+        checkIdentify();
+        MemoryBasedEntry entry = getEntry(path);
+        return entry != null && !entry.isDirectory();
+    }
+
+    public String getModificationTime(String path)
+            throws CommandAbstractException {
+        checkIdentify();
+        MemoryBasedEntry entry = getEntry(path);
+        if (entry != null) {
+            return FilesystemBasedListingFormatter.getInstance()
+                    .appendModificationTime(new StringBuilder(18), entry.lastModified())
+                    .toString();
+        }
+        throw new Reply550Exception("\"" + path + "\" does not exist");
+    }
+
+    public List<String> list(String path) throws CommandAbstractException {
+        checkIdentify();
+        List<String> newPaths = new ArrayList<String>();
+        for (String file : getListedPaths(path)) {
+            MemoryBasedEntry entry = store.get(file);
+            if (entry == null) {
+                continue;
+            }
+            if (entry.isDirectory()) {
+                newPaths.addAll(store.getChildren(file));
+            } else {
+                newPaths.add(file);
+            }
+        }
+        return newPaths;
+    }
+
+    public List<String> listFull(String path, boolean lsFormat)
+            throws CommandAbstractException {
+        checkIdentify();
+        List<String> newPaths = new ArrayList<String>();
+        String current = this.validatePath(currentDir);
+        long now = System.currentTimeMillis();
+        FilesystemBasedListingFormatter formatter = FilesystemBasedListingFormatter
+                .getInstance();
+        for (String file : getListedPaths(path)) {
+            MemoryBasedEntry entry = store.get(file);
+            if (entry == null) {
+                continue;
+            }
+            if (entry.isDirectory()) {
+                String prefix = file.equals(SEPARATOR) ? SEPARATOR : file + SEPARATOR;
+                for (String child : store.getChildren(file)) {
+                    MemoryBasedEntry childEntry = store.get(prefix + child);
+                    if (childEntry != null) {
+                        newPaths.add(fullInfo(prefix + child, childEntry, lsFormat, current,
+                                now, formatter));
+                    }
+                }
+            } else {
+                newPaths.add(fullInfo(file, entry, lsFormat, current, now, formatter));
+            }
+        }
+        return newPaths;
+    }
+
+    /**
+     * 
+     * @param path
+     *            as given to list (possibly with "-a" and wildcards)
+     * @return the validated paths to list
+     * @throws CommandAbstractException
+     */
+    private List<String> getListedPaths(String path) throws CommandAbstractException {
+        String newpath = path;
+        if (newpath == null || newpath.isEmpty()) {
+            newpath = currentDir;
+        }
+        if (newpath.startsWith("-a") || newpath.startsWith("-A")) {
+            String[] args = newpath.split(" ");
+            if (args.length > 1) {
+                newpath = args[1];
+            } else {
+                newpath = currentDir;
+            }
+        }
+        newpath = consolidatePath(newpath);
+        List<String> paths = wildcardFiles(newpath);
+        if (paths.isEmpty()) {
+            throw new Reply550Exception("No files found");
+        }
+        List<String> validPaths = new ArrayList<String>(paths.size());
+        for (String file : paths) {
+            validPaths.add(this.validatePath(file));
+        }
+        return validPaths;
+    }
+
+    public String fileFull(String path, boolean lsFormat)
+            throws CommandAbstractException {
+        checkIdentify();
+        String file = getSinglePath(path);
+        MemoryBasedEntry entry = store.get(file);
+        if (entry != null) {
+            return "Listing of \"" + file + "\"\n" +
+                    fullInfo(file, entry, lsFormat, this.validatePath(currentDir),
+                            System.currentTimeMillis(),
+                            FilesystemBasedListingFormatter.getInstance()) +
+                    "\nEnd of listing";
+        }
+        return "No file with name \"" + path + "\"";
+    }
+
+    /**
+     * 
+     * @param path
+     * @param entry
+     * @param lsFormat
+     * @param current
+     *            the current directory
+     * @param now
+     *            the time of the listing
+     * @param formatter
+     * @return the ls or MLSx information of this entry
+     */
+    private String fullInfo(String path, MemoryBasedEntry entry, boolean lsFormat,
+            String current, long now, FilesystemBasedListingFormatter formatter) {
+        StringBuilder builder = formatter.newLine();
+        if (lsFormat) {
+            // Group and others not supported
+            builder.append(entry.isDirectory() ? "drwx" : "-rw-").append("------ ")
+                    .append("1 ")// hard link ?
+                    .append("anybody\t")// owner ?
+                    .append("anygroup\t")// group ?
+                    .append(entry.length())// size
+                    .append('\t');
+            formatter.appendLsDate(builder, entry.lastModified(), now);
+            builder.append('\t').append(MemoryBasedStore.getName(path));
+            return builder.toString();
+        }
+        // don't have create, unique, lang, media-type, charset
+        builder.append(' ');
+        if (getOptsMLSx().getOptsSize() == 1) {
+            builder.append("Size=").append(entry.length()).append(';');
+        }
+        if (getOptsMLSx().getOptsModify() == 1) {
+            builder.append("Modify=");
+            formatter.appendModificationTime(builder, entry.lastModified()).append(';');
+        }
+        if (getOptsMLSx().getOptsType() == 1) {
+            builder.append("Type=");
+            if (path.equals(current)) {
+                builder.append("cdir");
+            } else if (entry.isDirectory()) {
+                builder.append("dir");
+            } else {
+                builder.append("file");
+            }
+            builder.append(';');
+        }
+        if (getOptsMLSx().getOptsPerm() == 1) {
+            builder.append("Perm=").append(entry.isDirectory() ? "cdmple" : "adfwr").append(';');
+        }
+        builder.append(' ').append(MemoryBasedStore.getName(path));
+        return builder.toString();
+    }
+
+    public long getFreeSpace() throws CommandAbstractException {
+        checkIdentify();
+        return store.getFreeMemory();
+    }
+
+    public FileInterface setUniqueFile()
+            throws CommandAbstractException {
+        checkIdentify();
+        String prefix = currentDir.equals(SEPARATOR) ? SEPARATOR : currentDir + SEPARATOR;
+        for (int i = 0; i < 100; i++) {
+            String filename = prefix + getSession().getAuth().getUser() +
+                    Long.toHexString(System.nanoTime()) + this.session.getUniqueExtension();
+            String path = this.validatePath(filename);
+            if (store.get(path) == null && store.createFile(path) != null) {
+                return newFile(path, false);
+            }
+        }
+        throw new Reply550Exception("Cannot create unique file");
+    }
+
+    public boolean canRead() throws CommandAbstractException {
+        checkIdentify();
+        return exists();
+    }
+
+    public boolean canWrite() throws CommandAbstractException {
+        checkIdentify();
+        return exists();
+    }
+
+    public boolean exists() throws CommandAbstractException {
+        checkIdentify();
+        return getEntry(currentDir) != null;
+    }
+
+    public long getCRC(String path) throws CommandAbstractException {
+        return FilesystemBasedTransferDigest.toChecksum(getDigest(path, DigestAlgo.CRC32));
+    }
+
+    public byte[] getMD5(String path) throws CommandAbstractException {
+        return getDigest(path, DigestAlgo.MD5);
+    }
+
+    public byte[] getSHA1(String path) throws CommandAbstractException {
+        return getDigest(path, DigestAlgo.SHA1);
+    }
+
+    /**
+     * 
+     * @param path
+     * @param algo
+     * @return the digest of this file, computed on its chunks
+     * @throws CommandAbstractException
+     */
+    private byte[] getDigest(String path, DigestAlgo algo) throws CommandAbstractException {
+        checkIdentify();
+        MemoryBasedEntry entry = getEntry(path);
+        if (entry == null || entry.isDirectory()) {
+            throw new Reply550Exception("\"" + path + "\" does not exist");
+        }
+        FilesystemBasedTransferDigest digest = new FilesystemBasedTransferDigest(algo);
+        try {
+            entry.update(digest);
+        } catch (IOException e) {
+            logger.warn("Cannot compute digest of " + path, e);
+            throw new Reply550Exception("Error while reading file: " + path);
+        }
+        Map<DigestAlgo, byte[]> digests = digest.finish();
+        return digests.get(algo);
+    }
+}
@@ -0,0 +1,326 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.file.memorybased;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import org.waarp.common.file.filesystembased.FilesystemBasedTransferDigest;
+
+/**
+ * One file or directory of a {@link MemoryBasedStore}. The content of a file is held in off heap
+ * chunks, or in a temporary file once spilled to disk.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class MemoryBasedEntry {
+    private final MemoryBasedStore store;
+    private final boolean directory;
+    private final List<ByteBuf> chunks = new ArrayList<ByteBuf>();
+    private volatile long lastModified = System.currentTimeMillis();
+    private volatile long length = 0;
+    private File spillFile = null;
+    private RandomAccessFile spillAccess = null;
+    private FileChannel spillChannel = null;
+
+    /**
+     * @param store
+     * @param directory
+     */
+    MemoryBasedEntry(MemoryBasedStore store, boolean directory) {
+        this.store = store;
+        this.directory = directory;
+    }
+
+    /**
+     * 
+     * @return True if this entry is a directory
+     */
+    public boolean isDirectory() {
+        return directory;
+    }
+
+    /**
+     * 
+     * @return the length of the file (0 for a directory)
+     */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * 
+     * @return the last modification time in ms
+     */
+    public long lastModified() {
+        return lastModified;
+    }
+
+    /**
+     * Set the modification time to now
+     */
+    void touch() {
+        lastModified = System.currentTimeMillis();
+    }
+
+    /**
+     * 
+     * @return True if the content of this file is on disk
+     */
+    public synchronized boolean isSpilled() {
+        return spillChannel != null;
+    }
+
+    /**
+     * Write the readable bytes of the buffer at the given position, without consuming them
+     * 
+     * @param position
+     *            if beyond the current length, the gap is filled with zeros
+     * @param buffer
+     * @return the number of written bytes
+     * @throws IOException
+     *             if the memory budget is exhausted and no spill is possible
+     */
+    public synchronized int write(long position, ByteBuf buffer) throws IOException {
+        if (directory) {
+            throw new IOException("Cannot write a directory");
+        }
+        if (position < 0) {
+            throw new IOException("Invalid position: " + position);
+        }
+        int size = buffer.readableBytes();
+        long end = position + size;
+        if (spillChannel == null && store.shouldSpill(end)) {
+            spill();
+        }
+        if (spillChannel == null && !ensureCapacity(end)) {
+            if (!store.canSpill()) {
+                throw new IOException("Memory budget exhausted");
+            }
+            spill();
+        }
+        if (spillChannel != null) {
+            int index = buffer.readerIndex();
+            int remaining = size;
+            long pos = position;
+            while (remaining > 0) {
+                int written = buffer.getBytes(index, spillChannel, pos, remaining);
+                index += written;
+                pos += written;
+                remaining -= written;
+            }
+        } else {
+            int chunkSize = store.getChunkSize();
+            // chunks are not cleared at allocation
+            long gap = length;
+            while (gap < position) {
+                int offset = (int) (gap % chunkSize);
+                int count = (int) Math.min(position - gap, chunkSize - offset);
+                chunks.get((int) (gap / chunkSize)).setZero(offset, count);
+                gap += count;
+            }
+            int index = buffer.readerIndex();
+            int remaining = size;
+            long pos = position;
+            while (remaining > 0) {
+                ByteBuf chunk = chunks.get((int) (pos / chunkSize));
+                int offset = (int) (pos % chunkSize);
+                int count = Math.min(remaining, chunkSize - offset);
+                chunk.setBytes(offset, buffer, index, count);
+                index += count;
+                pos += count;
+                remaining -= count;
+            }
+        }
+        if (end > length) {
+            length = end;
+        }
+        touch();
+        return size;
+    }
+
+    /**
+     * Allocate the chunks needed to hold the given size
+     * 
+     * @param size
+     * @return False if the memory budget is exhausted
+     */
+    private boolean ensureCapacity(long size) {
+        int chunkSize = store.getChunkSize();
+        while ((long) chunks.size() * chunkSize < size) {
+            ByteBuf chunk = store.allocateChunk();
+            if (chunk == null) {
+                return false;
+            }
+            chunks.add(chunk);
+        }
+        return true;
+    }
+
+    /**
+     * Move the content of this file to disk and give back its memory
+     * 
+     * @throws IOException
+     */
+    private void spill() throws IOException {
+        File file = store.createSpillFile();
+        RandomAccessFile access = new RandomAccessFile(file, "rw");
+        FileChannel channel = access.getChannel();
+        try {
+            int chunkSize = store.getChunkSize();
+            long pos = 0;
+            for (ByteBuf chunk : chunks) {
+                int count = (int) Math.min(chunkSize, length - pos);
+                int index = 0;
+                while (count > 0) {
+                    int written = chunk.getBytes(index, channel, pos, count);
+                    index += written;
+                    pos += written;
+                    count -= written;
+                }
+                if (pos >= length) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            access.close();
+            store.deleteSpillFile(file);
+            throw e;
+        }
+        releaseChunks(0);
+        spillFile = file;
+        spillAccess = access;
+        spillChannel = channel;
+    }
+
+    /**
+     * 
+     * @param keep
+     *            number of chunks to keep
+     */
+    private void releaseChunks(int keep) {
+        while (chunks.size() > keep) {
+            store.releaseChunk(chunks.remove(chunks.size() - 1));
+        }
+    }
+
+    /**
+     * 
+     * @param position
+     * @param size
+     *            maximum number of bytes to read
+     * @return a new buffer with the bytes from this position (empty at the end of the file)
+     * @throws IOException
+     */
+    public synchronized ByteBuf read(long position, int size) throws IOException {
+        if (directory) {
+            throw new IOException("Cannot read a directory");
+        }
+        int count = (int) Math.max(Math.min(size, length - position), 0);
+        ByteBuf buffer = Unpooled.buffer(count);
+        if (spillChannel != null) {
+            long pos = position;
+            while (buffer.isWritable()) {
+                int read = buffer.writeBytes(spillChannel, pos, buffer.writableBytes());
+                if (read < 0) {
+                    break;
+                }
+                pos += read;
+            }
+            return buffer;
+        }
+        int chunkSize = store.getChunkSize();
+        long pos = position;
+        while (count > 0) {
+            ByteBuf chunk = chunks.get((int) (pos / chunkSize));
+            int offset = (int) (pos % chunkSize);
+            int part = Math.min(count, chunkSize - offset);
+            buffer.writeBytes(chunk, offset, part);
+            pos += part;
+            count -= part;
+        }
+        return buffer;
+    }
+
+    /**
+     * Cut the file to the given size if it is longer
+     * 
+     * @param size
+     * @throws IOException
+     */
+    public synchronized void truncate(long size) throws IOException {
+        if (directory || size >= length) {
+            return;
+        }
+        if (spillChannel != null) {
+            spillChannel.truncate(size);
+        } else {
+            int chunkSize = store.getChunkSize();
+            releaseChunks((int) ((size + chunkSize - 1) / chunkSize));
+        }
+        length = size;
+        touch();
+    }
+
+    /**
+     * Feed the whole content of this file to the digest
+     * 
+     * @param digest
+     * @throws IOException
+     */
+    public synchronized void update(FilesystemBasedTransferDigest digest) throws IOException {
+        int chunkSize = store.getChunkSize();
+        long pos = 0;
+        while (pos < length) {
+            int count = (int) Math.min(chunkSize, length - pos);
+            if (spillChannel != null) {
+                ByteBuf buffer = read(pos, count);
+                digest.update(buffer);
+            } else {
+                digest.update(chunks.get((int) (pos / chunkSize)).slice(0, count));
+            }
+            pos += count;
+        }
+    }
+
+    /**
+     * Give back the memory or the temporary file of this entry
+     */
+    synchronized void release() {
+        releaseChunks(0);
+        if (spillAccess != null) {
+            try {
+                spillAccess.close();
+            } catch (IOException e) {
+            }
+            store.deleteSpillFile(spillFile);
+            spillAccess = null;
+            spillChannel = null;
+            spillFile = null;
+        }
+        length = 0;
+    }
+}
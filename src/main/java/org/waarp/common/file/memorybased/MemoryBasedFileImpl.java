@@ -0,0 +1,436 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.file.memorybased;
+
+import java.io.IOException;
+
+import io.netty.buffer.ByteBuf;
+
+import org.waarp.common.command.exception.CommandAbstractException;
+import org.waarp.common.exception.FileEndOfTransferException;
+import org.waarp.common.exception.FileTransferException;
+import org.waarp.common.file.AbstractFile;
+import org.waarp.common.file.DataBlock;
+import org.waarp.common.file.DirInterface;
+import org.waarp.common.file.SessionInterface;
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+
+/**
+ * File implementation for Memory Based: the content is held by a {@link MemoryBasedEntry} of the
+ * store of the directory.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public abstract class MemoryBasedFileImpl extends AbstractFile {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(MemoryBasedFileImpl.class);
+
+    /**
+     * SessionInterface
+     */
+    protected final SessionInterface session;
+
+    /**
+     * DirInterface associated with this file at creation. It is not necessary the directory that
+     * owns this file.
+     */
+    private final MemoryBasedDirImpl dir;
+
+    /**
+     * Current file if any
+     */
+    protected String currentFile = null;
+
+    /**
+     * Is this file in append mode
+     */
+    protected boolean isAppend = false;
+
+    /**
+     * Valid Position of this file
+     */
+    private long position = 0;
+
+    /**
+     * Entry opened for read or write, if any
+     */
+    private MemoryBasedEntry reading = null;
+    private MemoryBasedEntry writing = null;
+
+    /**
+     * @param session
+     * @param dir
+     *            It is not necessary the directory that owns this file.
+     * @param path
+     * @param append
+     * @throws CommandAbstractException
+     */
+    public MemoryBasedFileImpl(SessionInterface session,
+            MemoryBasedDirImpl dir, String path, boolean append)
+            throws CommandAbstractException {
+        this.session = session;
+        this.dir = dir;
+        currentFile = path;
+        isAppend = append;
+        if (append) {
+            MemoryBasedEntry entry = getEntry();
+            position = entry == null ? 0 : entry.length();
+        } else {
+            position = 0;
+        }
+        isReady = true;
+    }
+
+    public void clear() throws CommandAbstractException {
+        super.clear();
+        currentFile = null;
+        isAppend = false;
+    }
+
+    public SessionInterface getSession() {
+        return session;
+    }
+
+    public DirInterface getDir() {
+        return dir;
+    }
+
+    /**
+     * 
+     * @return the validated path of the current file in the store
+     * @throws CommandAbstractException
+     */
+    protected String getStorePath() throws CommandAbstractException {
+        return dir.validatePath(currentFile);
+    }
+
+    /**
+     * 
+     * @return the entry of the current file, or null if it does not exist
+     * @throws CommandAbstractException
+     */
+    protected MemoryBasedEntry getEntry() throws CommandAbstractException {
+        return dir.getStore().get(getStorePath());
+    }
+
+    public boolean isDirectory() throws CommandAbstractException {
+        checkIdentify();
+        MemoryBasedEntry entry = getEntry();
+        return entry != null && entry.isDirectory();
+    }
+
+    public boolean isFile() throws CommandAbstractException {
+        checkIdentify();
+        MemoryBasedEntry entry = getEntry();
+        return entry != null && !entry.isDirectory();
+    }
+
+    public String getFile() throws CommandAbstractException {
+        checkIdentify();
+        return currentFile;
+    }
+
+    public boolean closeFile() throws CommandAbstractException {
+        reading = null;
+        writing = null;
+        position = 0;
+        isReady = false;
+        // Do not clear the filename itself
+        return true;
+    }
+
+    public boolean abortFile() throws CommandAbstractException {
+        if (isInWriting() &&
+                ((MemoryBasedFileParameterImpl) getSession().getFileParameter()).deleteOnAbort) {
+            delete();
+        }
+        closeFile();
+        return true;
+    }
+
+    public long length() throws CommandAbstractException {
+        checkIdentify();
+        if (!isReady) {
+            return -1;
+        }
+        MemoryBasedEntry entry = getEntry();
+        if (entry == null) {
+            return -1;
+        }
+        return entry.length();
+    }
+
+    public boolean isInReading() throws CommandAbstractException {
+        return isReady && reading != null;
+    }
+
+    public boolean isInWriting() throws CommandAbstractException {
+        return isReady && writing != null;
+    }
+
+    public boolean canRead() throws CommandAbstractException {
+        checkIdentify();
+        return isFile();
+    }
+
+    public boolean canWrite() throws CommandAbstractException {
+        checkIdentify();
+        if (!isReady) {
+            return false;
+        }
+        MemoryBasedEntry entry = getEntry();
+        if (entry != null) {
+            return !entry.isDirectory();
+        }
+        MemoryBasedEntry parent = dir.getStore().get(MemoryBasedStore.getParent(
+                MemoryBasedStore.normalize(getStorePath())));
+        return parent != null && parent.isDirectory();
+    }
+
+    public boolean exists() throws CommandAbstractException {
+        checkIdentify();
+        if (!isReady) {
+            return false;
+        }
+        return getEntry() != null;
+    }
+
+    public boolean delete() throws CommandAbstractException {
+        checkIdentify();
+        if (!isReady) {
+            return false;
+        }
+        if (!exists()) {
+            return true;
+        }
+        closeFile();
+        return dir.getStore().delete(getStorePath());
+    }
+
+    public boolean renameTo(String path) throws CommandAbstractException {
+        checkIdentify();
+        if (!isReady) {
+            logger.warn("File not ready: {}", this);
+            return false;
+        }
+        String target = dir.validatePath(path);
+        if (dir.getStore().rename(getStorePath(), target)) {
+            currentFile = target;
+            isReady = true;
+            logger.debug("File renamed to: {}", this);
+            return true;
+        }
+        logger.warn("Cannot rename file: {} to {}", currentFile, target);
+        return false;
+    }
+
+    /**
+     * Return the current position in the FileInterface. In write mode, it is the current file
+     * length.
+     * 
+     * @return the position
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * Change the position in the file.
+     * 
+     * @param position
+     *            the position to set
+     * @throws IOException
+     */
+    public void setPosition(long position) throws IOException {
+        this.position = position;
+    }
+
+    /**
+     * 
+     * @return the entry of the current file, created and cut to the current position at the
+     *         first write
+     * @throws FileTransferException
+     */
+    private MemoryBasedEntry getWritingEntry() throws FileTransferException {
+        if (writing == null) {
+            try {
+                writing = dir.getStore().createFile(getStorePath());
+                if (writing == null) {
+                    throw new FileTransferException("Cannot create file: " + currentFile);
+                }
+                writing.truncate(position);
+            } catch (CommandAbstractException e) {
+                throw new FileTransferException("Internal error, file is not ready", e);
+            } catch (IOException e) {
+                throw new FileTransferException("Internal error, file is not ready", e);
+            }
+        }
+        return writing;
+    }
+
+    /**
+     * 
+     * @return the entry of the current file opened for read
+     * @throws FileTransferException
+     */
+    private MemoryBasedEntry getReadingEntry() throws FileTransferException {
+        if (reading == null) {
+            try {
+                reading = getEntry();
+            } catch (CommandAbstractException e) {
+                throw new FileTransferException("Internal error, file is not ready", e);
+            }
+            if (reading == null || reading.isDirectory()) {
+                reading = null;
+                throw new FileTransferException("File not found: " + currentFile);
+            }
+        }
+        return reading;
+    }
+
+    public void writeDataBlock(DataBlock dataBlock)
+            throws FileTransferException {
+        if (!isReady) {
+            throw new FileTransferException("No file is ready while trying to write: " +
+                    dataBlock.toString());
+        }
+        ByteBuf buffer = dataBlock.getBlock();
+        if (buffer != null) {
+            try {
+                int size = getWritingEntry().write(position, buffer);
+                buffer.skipBytes(size);
+                position += size;
+            } catch (IOException e) {
+                logger.error("Error during write:", e);
+                throw new FileTransferException("Internal error, file is not ready", e);
+            }
+        }
+        if (dataBlock.isEOF()) {
+            try {
+                closeFile();
+            } catch (CommandAbstractException e) {
+            }
+        }
+    }
+
+    public DataBlock readDataBlock() throws FileTransferException,
+            FileEndOfTransferException {
+        if (!isReady) {
+            throw new FileTransferException("No file is ready");
+        }
+        int sizeblock = getSession().getBlockSize();
+        ByteBuf buffer;
+        try {
+            buffer = getReadingEntry().read(position, sizeblock);
+        } catch (IOException e) {
+            logger.error("Error during read:", e);
+            throw new FileTransferException("Internal error, file is not ready", e);
+        }
+        int sizeout = buffer.readableBytes();
+        if (sizeout < sizeblock) {// last block
+            try {
+                closeFile();
+            } catch (CommandAbstractException e) {
+            }
+        }
+        if (sizeout <= 0) {
+            buffer.release();
+            throw new FileEndOfTransferException("End of file");
+        }
+        position += sizeout;
+        DataBlock dataBlock = new DataBlock();
+        dataBlock.setBlock(buffer);
+        if (sizeout < sizeblock) {
+            dataBlock.setEOF(true);
+        }
+        return dataBlock;
+    }
+
+    @Override
+    public void writeDataBlock(long offset, DataBlock dataBlock)
+            throws FileTransferException {
+        if (!isReady) {
+            throw new FileTransferException("No file is ready while trying to write: " +
+                    dataBlock.toString());
+        }
+        if (offset < 0) {
+            throw new FileTransferException("Wrong position: " + offset);
+        }
+        ByteBuf buffer = dataBlock.getBlock();
+        if (buffer == null || !buffer.isReadable()) {
+            return;
+        }
+        MemoryBasedEntry entry;
+        try {
+            entry = dir.getStore().createFile(getStorePath());
+        } catch (CommandAbstractException e) {
+            throw new FileTransferException("Internal error, file is not ready", e);
+        }
+        if (entry == null) {
+            throw new FileTransferException("Cannot create file: " + currentFile);
+        }
+        try {
+            int length = entry.write(offset, buffer);
+            buffer.skipBytes(length);
+            segmentMap.add(offset, offset + length);
+        } catch (IOException e) {
+            logger.error("Error during positional write:", e);
+            throw new FileTransferException("Internal error, file is not ready", e);
+        }
+    }
+
+    @Override
+    public DataBlock readDataBlock(long offset, int length)
+            throws FileEndOfTransferException, FileTransferException {
+        if (!isReady) {
+            throw new FileTransferException("No file is ready");
+        }
+        if (offset < 0 || length <= 0) {
+            throw new FileTransferException("Wrong position: " + offset + " or length: " + length);
+        }
+        MemoryBasedEntry entry = getReadingEntry();
+        long size = entry.length();
+        if (offset >= size) {
+            throw new FileEndOfTransferException("End of file");
+        }
+        ByteBuf buffer;
+        try {
+            buffer = entry.read(offset, length);
+        } catch (IOException e) {
+            logger.error("Error during positional read:", e);
+            throw new FileTransferException("Internal error, file is not ready", e);
+        }
+        DataBlock dataBlock = new DataBlock();
+        dataBlock.setBlock(buffer);
+        if (offset + buffer.readableBytes() >= size) {
+            dataBlock.setEOF(true);
+        }
+        return dataBlock;
+    }
+
+    @Override
+    public String toString() {
+        return "File: " + currentFile + " Ready " + isReady + " isAppend " + isAppend +
+                " position " + position;
+    }
+}
@@ -0,0 +1,483 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.file.memorybased;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+
+/**
+ * In memory storage of files and directories, shared by all the sessions using it.<br>
+ * <br>
+ * The content of a file is a list of off heap chunks allocated within a global memory budget.
+ * When a spill directory is given, a file growing beyond the spill threshold, or needing more
+ * memory than available in the budget, is moved to a temporary file in this directory, such that
+ * small transient files never reach the disk while large ones do not exhaust the memory. A spill
+ * file is deleted with its entry, and the remaining ones by close().<br>
+ * <br>
+ * Paths are business paths ('/' separated, absolute), as returned by validatePath.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class MemoryBasedStore {
+    /**
+     * Default size of one chunk of memory
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+    private static final char SEPARATORCHAR = '/';
+    private static final String SEPARATOR = "/";
+
+    private final TreeMap<String, MemoryBasedEntry> entries = new TreeMap<String, MemoryBasedEntry>();
+    private final ByteBufAllocator allocator = PooledByteBufAllocator.DEFAULT;
+    private final long memoryBudget;
+    private final long spillThreshold;
+    private final File spillDirectory;
+    private final int chunkSize;
+    private final AtomicLong usedMemory = new AtomicLong();
+    // spill files not yet deleted
+    private final Set<File> spillFiles =
+            Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+
+    /**
+     * @param memoryBudget
+     *            maximum number of bytes of memory used by all files
+     * @param spillThreshold
+     *            size beyond which a file is moved to disk
+     * @param spillDirectory
+     *            directory of the files moved to disk, or null to never use the disk (writes
+     *            beyond the budget then fail)
+     */
+    public MemoryBasedStore(long memoryBudget, long spillThreshold, File spillDirectory) {
+        this(memoryBudget, spillThreshold, spillDirectory, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param memoryBudget
+     *            maximum number of bytes of memory used by all files
+     * @param spillThreshold
+     *            size beyond which a file is moved to disk
+     * @param spillDirectory
+     *            directory of the files moved to disk, or null to never use the disk (writes
+     *            beyond the budget then fail)
+     * @param chunkSize
+     *            size of one chunk of memory
+     */
+    public MemoryBasedStore(long memoryBudget, long spillThreshold, File spillDirectory,
+            int chunkSize) {
+        this.memoryBudget = memoryBudget;
+        this.spillThreshold = spillThreshold;
+        this.spillDirectory = spillDirectory;
+        this.chunkSize = Math.max(chunkSize, 1024);
+        entries.put(SEPARATOR, new MemoryBasedEntry(this, true));
+    }
+
+    /**
+     * 
+     * @return the size of one chunk of memory
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * 
+     * @return the maximum number of bytes of memory used by all files
+     */
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * 
+     * @return the number of bytes of memory currently used
+     */
+    public long getUsedMemory() {
+        return usedMemory.get();
+    }
+
+    /**
+     * 
+     * @return the number of bytes of memory still available
+     */
+    public long getFreeMemory() {
+        return Math.max(memoryBudget - usedMemory.get(), 0);
+    }
+
+    /**
+     * 
+     * @return True if files can be moved to disk
+     */
+    boolean canSpill() {
+        return spillDirectory != null;
+    }
+
+    /**
+     * 
+     * @param size
+     * @return True if a file of this size must be moved to disk
+     */
+    boolean shouldSpill(long size) {
+        return spillDirectory != null && size > spillThreshold;
+    }
+
+    /**
+     * 
+     * @return a new temporary file for a file moved to disk
+     * @throws IOException
+     */
+    File createSpillFile() throws IOException {
+        if (spillDirectory == null) {
+            throw new IOException("No spill directory");
+        }
+        File file = File.createTempFile("mem", ".spill", spillDirectory);
+        spillFiles.add(file);
+        return file;
+    }
+
+    /**
+     * 
+     * @param file
+     *            a file from createSpillFile, no more used
+     */
+    void deleteSpillFile(File file) {
+        if (file.delete() || !file.exists()) {
+            spillFiles.remove(file);
+        }
+    }
+
+    /**
+     * 
+     * @return the number of spill files not yet deleted
+     */
+    public int getSpillFileCount() {
+        return spillFiles.size();
+    }
+
+    /**
+     * 
+     * @return a new chunk of memory, or null if the budget is exhausted
+     */
+    ByteBuf allocateChunk() {
+        for (;;) {
+            long used = usedMemory.get();
+            if (used + chunkSize > memoryBudget) {
+                return null;
+            }
+            if (usedMemory.compareAndSet(used, used + chunkSize)) {
+                break;
+            }
+        }
+        try {
+            return allocator.directBuffer(chunkSize, chunkSize);
+        } catch (OutOfMemoryError e) {
+            usedMemory.addAndGet(-chunkSize);
+            return null;
+        }
+    }
+
+    /**
+     * 
+     * @param chunk
+     *            a chunk from allocateChunk, given back
+     */
+    void releaseChunk(ByteBuf chunk) {
+        chunk.release();
+        usedMemory.addAndGet(-chunkSize);
+    }
+
+    /**
+     * 
+     * @param path
+     * @return the normalized path: absolute, without trailing nor double separator
+     */
+    public static String normalize(String path) {
+        if (path == null || path.isEmpty()) {
+            return SEPARATOR;
+        }
+        StringBuilder builder = new StringBuilder(path.length() + 1);
+        char previous = 0;
+        for (int i = 0; i < path.length(); i++) {
+            char c = path.charAt(i);
+            if (c == '\\') {
+                c = SEPARATORCHAR;
+            }
+            if (c == SEPARATORCHAR && previous == SEPARATORCHAR) {
+                continue;
+            }
+            if (i == 0 && c != SEPARATORCHAR) {
+                builder.append(SEPARATORCHAR);
+            }
+            builder.append(c);
+            previous = c;
+        }
+        if (builder.length() > 1 && builder.charAt(builder.length() - 1) == SEPARATORCHAR) {
+            builder.setLength(builder.length() - 1);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * 
+     * @param path
+     *            normalized path
+     * @return the parent path, or null for the root
+     */
+    static String getParent(String path) {
+        if (path.equals(SEPARATOR)) {
+            return null;
+        }
+        int pos = path.lastIndexOf(SEPARATORCHAR);
+        return pos <= 0 ? SEPARATOR : path.substring(0, pos);
+    }
+
+    /**
+     * 
+     * @param path
+     *            normalized path
+     * @return the name of the path (last element)
+     */
+    static String getName(String path) {
+        if (path.equals(SEPARATOR)) {
+            return SEPARATOR;
+        }
+        return path.substring(path.lastIndexOf(SEPARATORCHAR) + 1);
+    }
+
+    /**
+     * 
+     * @param path
+     *            normalized directory path
+     * @return the prefix of all the paths under this directory
+     */
+    private static String getPrefix(String path) {
+        return path.equals(SEPARATOR) ? SEPARATOR : path + SEPARATOR;
+    }
+
+    /**
+     * 
+     * @param path
+     * @return the entry of this path, or null if it does not exist
+     */
+    public synchronized MemoryBasedEntry get(String path) {
+        return entries.get(normalize(path));
+    }
+
+    /**
+     * 
+     * @param path
+     * @return the existing file of this path, or a new empty file if its directory exists, else
+     *         null
+     */
+    public synchronized MemoryBasedEntry createFile(String path) {
+        String key = normalize(path);
+        MemoryBasedEntry entry = entries.get(key);
+        if (entry != null) {
+            return entry.isDirectory() ? null : entry;
+        }
+        MemoryBasedEntry parent = entries.get(getParent(key));
+        if (parent == null || !parent.isDirectory()) {
+            return null;
+        }
+        entry = new MemoryBasedEntry(this, false);
+        entries.put(key, entry);
+        parent.touch();
+        return entry;
+    }
+
+    /**
+     * 
+     * @param path
+     * @return True if the directory is created (its parent must exist)
+     */
+    public synchronized boolean mkdir(String path) {
+        String key = normalize(path);
+        if (entries.containsKey(key)) {
+            return false;
+        }
+        MemoryBasedEntry parent = entries.get(getParent(key));
+        if (parent == null || !parent.isDirectory()) {
+            return false;
+        }
+        entries.put(key, new MemoryBasedEntry(this, true));
+        parent.touch();
+        return true;
+    }
+
+    /**
+     * Create the directory and all its missing parents
+     * 
+     * @param path
+     * @return True if the directory exists at the end
+     */
+    public synchronized boolean mkdirs(String path) {
+        String key = normalize(path);
+        MemoryBasedEntry entry = entries.get(key);
+        if (entry != null) {
+            return entry.isDirectory();
+        }
+        String parent = getParent(key);
+        return parent != null && mkdirs(parent) && mkdir(key);
+    }
+
+    /**
+     * Delete a file or an empty directory
+     * 
+     * @param path
+     * @return True if deleted
+     */
+    public synchronized boolean delete(String path) {
+        String key = normalize(path);
+        MemoryBasedEntry entry = entries.get(key);
+        if (entry == null || key.equals(SEPARATOR)) {
+            return false;
+        }
+        if (entry.isDirectory() && hasChildren(key)) {
+            return false;
+        }
+        entries.remove(key);
+        entries.get(getParent(key)).touch();
+        entry.release();
+        return true;
+    }
+
+    /**
+     * 
+     * @param path
+     *            normalized directory path
+     * @return True if the directory is not empty
+     */
+    private boolean hasChildren(String path) {
+        String prefix = getPrefix(path);
+        String next = entries.higherKey(prefix);
+        return next != null && next.startsWith(prefix);
+    }
+
+    /**
+     * 
+     * @param path
+     *            normalized directory path
+     * @return all the paths under this directory
+     */
+    private SortedMap<String, MemoryBasedEntry> getSubTree(String path) {
+        String prefix = getPrefix(path);
+        // '/' + 1 is '0': all the paths starting with the prefix
+        return entries.subMap(prefix, false, prefix.substring(0, prefix.length() - 1) + '0',
+                false);
+    }
+
+    /**
+     * Rename a file or a directory (with its content). The target must not exist and its parent
+     * must be a directory.
+     * 
+     * @param from
+     * @param to
+     * @return True if renamed
+     */
+    public synchronized boolean rename(String from, String to) {
+        String source = normalize(from);
+        String target = normalize(to);
+        MemoryBasedEntry entry = entries.get(source);
+        if (entry == null || source.equals(SEPARATOR) || entries.containsKey(target) ||
+                target.startsWith(getPrefix(source))) {
+            return false;
+        }
+        MemoryBasedEntry parent = entries.get(getParent(target));
+        if (parent == null || !parent.isDirectory()) {
+            return false;
+        }
+        if (entry.isDirectory()) {
+            SortedMap<String, MemoryBasedEntry> subTree = getSubTree(source);
+            Map<String, MemoryBasedEntry> moved = new TreeMap<String, MemoryBasedEntry>(subTree);
+            subTree.clear();
+            for (Map.Entry<String, MemoryBasedEntry> child : moved.entrySet()) {
+                entries.put(target + child.getKey().substring(source.length()),
+                        child.getValue());
+            }
+        }
+        entries.remove(source);
+        entries.put(target, entry);
+        entries.get(getParent(source)).touch();
+        parent.touch();
+        return true;
+    }
+
+    /**
+     * 
+     * @param path
+     *            a directory
+     * @return the names of the entries of this directory (empty if not a directory)
+     */
+    public synchronized List<String> getChildren(String path) {
+        String key = normalize(path);
+        List<String> names = new ArrayList<String>();
+        String prefix = getPrefix(key);
+        for (String child : getSubTree(key).keySet()) {
+            if (child.indexOf(SEPARATORCHAR, prefix.length()) < 0) {
+                names.add(child.substring(prefix.length()));
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Delete all files and directories, giving back their memory
+     */
+    public synchronized void clear() {
+        Iterator<Map.Entry<String, MemoryBasedEntry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, MemoryBasedEntry> entry = iterator.next();
+            if (!entry.getKey().equals(SEPARATOR)) {
+                entry.getValue().release();
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Delete all files and directories, and the spill files that could not be deleted until now
+     */
+    public synchronized void close() {
+        clear();
+        for (File file : new ArrayList<File>(spillFiles)) {
+            deleteSpillFile(file);
+        }
+    }
+
+    /**
+     * 
+     * @return the number of files and directories (including the root)
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+}
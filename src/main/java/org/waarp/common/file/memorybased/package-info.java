@@ -0,0 +1,7 @@
+/**
+ * Classes implementing FileInterface and Directory according to an in memory storage (off heap
+ * chunks within a memory budget, spilled to disk beyond a threshold)
+ * 
+ * @apiviz.landmark
+ */
+package org.waarp.common.file.memorybased;
@@ -24,7 +24,9 @@ import java.util.List;
 import org.waarp.common.command.exception.CommandAbstractException;
 import org.waarp.common.command.exception.Reply550Exception;
 import org.waarp.common.command.exception.Reply553Exception;
+import org.waarp.common.digest.FilesystemBasedDigest.DigestAlgo;
 import org.waarp.common.file.AbstractDir;
+import org.waarp.common.file.DigestCache;
 import org.waarp.common.file.FileInterface;
 import org.waarp.common.file.OptsMLSxInterface;
 import org.waarp.common.file.SessionInterface;
@@ -375,44 +377,111 @@ public abstract class PassthroughBasedDirImpl extends AbstractDir {
     }
 
     public long getCRC(String path) throws CommandAbstractException {
+        byte[] crc = getDigest(path, DigestAlgo.CRC32);
+        return ((crc[0] & 0xFFL) << 24) | ((crc[1] & 0xFFL) << 16) | ((crc[2] & 0xFFL) << 8) |
+                (crc[3] & 0xFFL);
+    }
+
+    public byte[] getMD5(String path) throws CommandAbstractException {
+        return getDigest(path, DigestAlgo.MD5);
+    }
+
+    public byte[] getSHA1(String path) throws CommandAbstractException {
+        return getDigest(path, DigestAlgo.SHA1);
+    }
+
+    /**
+     * Get the digest of one file from the {@link DigestCache} if the file is unchanged, else from
+     * the PassthroughFile
+     * 
+     * @param path
+     * @param algo
+     *            one of CRC32 (as 4 bytes in big endian), MD5 or SHA1
+     * @return the digest
+     * @throws CommandAbstractException
+     */
+    private byte[] getDigest(String path, DigestAlgo algo) throws CommandAbstractException {
         PassthroughFile file;
         try {
             file = factory.create(pdir, path);
         } catch (PassthroughException e) {
             throw new Reply550Exception("Cannot get File " + path);
         }
+        String key = DigestCache.getKey(getFileFromPath(path));
+        long length = file.length();
+        long lastModified;
         try {
-            return file.getCRC();
-        } catch (PassthroughException e) {
-            throw new Reply550Exception("CRC error " + e.getMessage());
-        }
-    }
-
-    public byte[] getMD5(String path) throws CommandAbstractException {
-        PassthroughFile file;
-        try {
-            file = factory.create(pdir, path);
+            lastModified = getModificationStamp(file.getModificationTime());
         } catch (PassthroughException e) {
             throw new Reply550Exception("Cannot get File " + path);
         }
+        byte[] digest = DigestCache.get(key, length, lastModified, algo);
+        if (digest != null) {
+            return digest;
+        }
         try {
-            return file.getMD5();
+            switch (algo) {
+                case CRC32:
+                    long crc = file.getCRC();
+                    digest = new byte[] {
+                            (byte) (crc >>> 24), (byte) (crc >>> 16), (byte) (crc >>> 8),
+                            (byte) crc };
+                    break;
+                case MD5:
+                    digest = file.getMD5();
+                    break;
+                case SHA1:
+                    digest = file.getSHA1();
+                    break;
+                default:
+                    throw new Reply550Exception("Digest not supported: " + algo);
+            }
         } catch (PassthroughException e) {
             throw new Reply550Exception("CRC error " + e.getMessage());
         }
+        if (digest != null && isUnchanged(file, length, lastModified)) {
+            DigestCache.put(key, length, lastModified, algo, digest);
+        }
+        return digest;
     }
 
-    public byte[] getSHA1(String path) throws CommandAbstractException {
-        PassthroughFile file;
+    /**
+     * 
+     * @param file
+     * @param length
+     * @param lastModified
+     *            the stamp taken before computing the digest
+     * @return True if the file still has this length and modification time
+     */
+    private boolean isUnchanged(PassthroughFile file, long length, long lastModified) {
         try {
-            file = factory.create(pdir, path);
+            return file.length() == length &&
+                    getModificationStamp(file.getModificationTime()) == lastModified;
         } catch (PassthroughException e) {
-            throw new Reply550Exception("Cannot get File " + path);
+            return false;
         }
-        try {
-            return file.getSHA1();
-        } catch (PassthroughException e) {
-            throw new Reply550Exception("CRC error " + e.getMessage());
+    }
+
+    /**
+     * 
+     * @param modificationTime
+     *            as returned by the PassthroughFile
+     * @return a value changing with the modification time
+     */
+    private static long getModificationStamp(String modificationTime) {
+        if (modificationTime == null) {
+            return 0;
+        }
+        StringBuilder digits = new StringBuilder(modificationTime.length());
+        for (int i = 0; i < modificationTime.length(); i++) {
+            char c = modificationTime.charAt(i);
+            if (Character.isDigit(c)) {
+                digits.append(c);
+            }
+        }
+        if (digits.length() > 0 && digits.length() <= 18) {
+            return Long.parseLong(digits.toString());
         }
+        return modificationTime.hashCode();
     }
 }
@@ -29,6 +29,7 @@ import org.waarp.common.exception.FileEndOfTransferException;
 import org.waarp.common.exception.FileTransferException;
 import org.waarp.common.file.AbstractFile;
 import org.waarp.common.file.DataBlock;
+import org.waarp.common.file.DigestCache;
 import org.waarp.common.file.DirInterface;
 import org.waarp.common.file.SessionInterface;
 import org.waarp.common.logging.WaarpLogger;
@@ -77,6 +78,11 @@ public abstract class PassthroughBasedFileImpl extends AbstractFile {
      */
     protected boolean isAppend = false;
 
+    /**
+     * Are the cached digests of the current file invalidated since it is written
+     */
+    private boolean digestsInvalidated = false;
+
     /**
      * Passthrough object
      */
@@ -154,6 +160,18 @@ public abstract class PassthroughBasedFileImpl extends AbstractFile {
         return new File(truedir);
     }
 
+    /**
+     * Forget the cached digests of a file written, renamed or deleted
+     * 
+     * @param path
+     */
+    private void invalidateDigests(String path) {
+        try {
+            DigestCache.invalidate(getFileFromPath(path));
+        } catch (CommandAbstractException e) {
+        }
+    }
+
     /**
      * Get the relative path (without mount point)
      * 
@@ -185,6 +203,12 @@ public abstract class PassthroughBasedFileImpl extends AbstractFile {
             pfile.close();
         } catch (PassthroughException e) {
             throw new Reply450Exception(e.getMessage());
+        } finally {
+            if (digestsInvalidated) {
+                // written
+                invalidateDigests(currentFile);
+                digestsInvalidated = false;
+            }
         }
         position = 0;
         isReady = false;
@@ -260,6 +284,7 @@ public abstract class PassthroughBasedFileImpl extends AbstractFile {
             return true;
         }
         closeFile();
+        invalidateDigests(currentFile);
         try {
             return pfile.delete();
         } catch (PassthroughException e) {
@@ -272,6 +297,8 @@ public abstract class PassthroughBasedFileImpl extends AbstractFile {
         if (!isReady) {
             return false;
         }
+        invalidateDigests(currentFile);
+        invalidateDigests(path);
         try {
             return pfile.renameTo(path);
         } catch (PassthroughException e) {
@@ -372,6 +399,10 @@ public abstract class PassthroughBasedFileImpl extends AbstractFile {
             return;// could do FileEndOfTransfer ?
         }
         int bufferSize = buffer.readableBytes();
+        if (!digestsInvalidated) {
+            invalidateDigests(currentFile);
+            digestsInvalidated = true;
+        }
         int size;
         try {
             size = pfile.write(buffer);
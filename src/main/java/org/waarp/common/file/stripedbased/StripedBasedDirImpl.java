@@ -0,0 +1,200 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.file.stripedbased;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import org.waarp.common.command.exception.CommandAbstractException;
+import org.waarp.common.command.exception.Reply550Exception;
+import org.waarp.common.digest.FilesystemBasedDigest.DigestAlgo;
+import org.waarp.common.file.DigestCache;
+import org.waarp.common.file.OptsMLSxInterface;
+import org.waarp.common.file.SessionInterface;
+import org.waarp.common.file.filesystembased.FilesystemBasedDirImpl;
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+
+/**
+ * Directory implementation for Striped Based: the business tree (directories and manifests) is a
+ * standard filesystem tree, while the content of each file is striped across the roots of the
+ * {@link StripedStorage}, under the same relative path.<br>
+ * <br>
+ * Sizes shown in listings and digests are the ones of the striped content, not of the manifests.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public abstract class StripedBasedDirImpl extends FilesystemBasedDirImpl {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(StripedBasedDirImpl.class);
+
+    /**
+     * Storage of the stripes
+     */
+    protected final StripedStorage storage;
+
+    /**
+     * @param session
+     * @param optsMLSx
+     * @param storage
+     *            the storage of the stripes (can be shared by all sessions)
+     */
+    public StripedBasedDirImpl(SessionInterface session,
+            OptsMLSxInterface optsMLSx, StripedStorage storage) {
+        super(session, optsMLSx);
+        this.storage = storage;
+    }
+
+    /**
+     * 
+     * @return the storage of the stripes
+     */
+    public StripedStorage getStorage() {
+        return storage;
+    }
+
+    /**
+     * 
+     * @param file
+     * @return the manifest of this file, or null if it is not a striped file
+     */
+    private static StripedManifest readManifest(File file) {
+        if (!file.isFile() || file.length() > StripedManifest.MAX_SIZE) {
+            return null;
+        }
+        try {
+            return StripedManifest.read(file);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    protected long getListedSize(Path path, long size) {
+        if (size > StripedManifest.MAX_SIZE) {
+            return size;
+        }
+        File file = path.toFile();
+        StripedManifest manifest = readManifest(file);
+        if (manifest == null) {
+            return size;
+        }
+        return storage.getLength(getRelativePath(file), manifest);
+    }
+
+    @Override
+    public String rmdir(String directory) throws CommandAbstractException {
+        String extDir = super.rmdir(directory);
+        for (int i = 0; i < storage.getStripes(); i++) {
+            File stripeDir = storage.getStripeFile(extDir, i);
+            if (stripeDir.isDirectory() && !stripeDir.delete()) {
+                logger.warn("Cannot delete stripe directory: {}", stripeDir);
+            }
+        }
+        return extDir;
+    }
+
+    @Override
+    public Map<DigestAlgo, byte[]> getDigests(String path, DigestAlgo... algos)
+            throws CommandAbstractException {
+        File file = getTrueFile(path);
+        StripedManifest manifest = readManifest(file);
+        if (manifest == null) {
+            return super.getDigests(path, algos);
+        }
+        Map<DigestAlgo, byte[]> result = new EnumMap<DigestAlgo, byte[]>(DigestAlgo.class);
+        List<DigestAlgo> missing = new ArrayList<DigestAlgo>(algos.length);
+        for (DigestAlgo algo : algos) {
+            // the manifest is rewritten at the end of each write, so its key is safe
+            byte[] cached = DigestCache.get(file, algo);
+            if (cached != null) {
+                result.put(algo, cached);
+            } else {
+                missing.add(algo);
+            }
+        }
+        if (missing.isEmpty()) {
+            return result;
+        }
+        DigestCache.Stamp stamp = new DigestCache.Stamp(file);
+        try {
+            Map<DigestAlgo, byte[]> computed = storage.getDigests(getRelativePath(file),
+                    manifest, missing.toArray(new DigestAlgo[missing.size()]));
+            if (manifest.getLength() >= 0) {
+                DigestCache.put(file, stamp, computed);
+            }
+            result.putAll(computed);
+        } catch (IOException e) {
+            throw new Reply550Exception("Error while reading file: " + path);
+        }
+        for (DigestAlgo algo : missing) {
+            if (!result.containsKey(algo)) {
+                throw new Reply550Exception("Digest not supported: " + algo);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 
+     * @param path
+     * @param algo
+     * @return the digest of a striped file, or null if it is not a striped file
+     * @throws CommandAbstractException
+     */
+    private byte[] getStripedDigest(String path, DigestAlgo algo)
+            throws CommandAbstractException {
+        if (readManifest(getTrueFile(path)) == null) {
+            return null;
+        }
+        return getDigests(path, algo).get(algo);
+    }
+
+    @Override
+    public byte[] getMD5(String path) throws CommandAbstractException {
+        byte[] digest = getStripedDigest(path, DigestAlgo.MD5);
+        return digest != null ? digest : super.getMD5(path);
+    }
+
+    @Override
+    public byte[] getSHA1(String path) throws CommandAbstractException {
+        byte[] digest = getStripedDigest(path, DigestAlgo.SHA1);
+        return digest != null ? digest : super.getSHA1(path);
+    }
+
+    @Override
+    public byte[] getSHA256(String path) throws CommandAbstractException {
+        byte[] digest = getStripedDigest(path, DigestAlgo.SHA256);
+        return digest != null ? digest : super.getSHA256(path);
+    }
+
+    @Override
+    public byte[] getSHA512(String path) throws CommandAbstractException {
+        byte[] digest = getStripedDigest(path, DigestAlgo.SHA512);
+        return digest != null ? digest : super.getSHA512(path);
+    }
+}
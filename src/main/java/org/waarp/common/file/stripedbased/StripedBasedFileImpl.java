@@ -0,0 +1,761 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.file.stripedbased;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import org.waarp.common.command.exception.CommandAbstractException;
+import org.waarp.common.command.exception.Reply450Exception;
+import org.waarp.common.exception.FileEndOfTransferException;
+import org.waarp.common.exception.FileTransferException;
+import org.waarp.common.file.AbstractFile;
+import org.waarp.common.file.DataBlock;
+import org.waarp.common.file.DigestCache;
+import org.waarp.common.file.DirInterface;
+import org.waarp.common.file.SessionInterface;
+import org.waarp.common.file.filesystembased.FilesystemBasedAuthImpl;
+import org.waarp.common.file.filesystembased.FilesystemBasedFileParameterImpl;
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+
+/**
+ * File implementation for Striped Based: the file in the business directory is a
+ * {@link StripedManifest} and the content is striped across the roots of the
+ * {@link StripedStorage}.<br>
+ * <br>
+ * Writes are split by chunk and queued to the I/O thread of the disk of each chunk, such that all
+ * disks write in parallel; reads prefetch one chunk per stripe ahead. A file in writing has a
+ * manifest with a length of -1, and its length (for a restart) is then the contiguous length of
+ * its stripes.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public abstract class StripedBasedFileImpl extends AbstractFile {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(StripedBasedFileImpl.class);
+
+    /**
+     * SessionInterface
+     */
+    protected final SessionInterface session;
+
+    /**
+     * DirInterface associated with this file at creation. It is not necessary the directory that
+     * owns this file.
+     */
+    private final StripedBasedDirImpl dir;
+
+    /**
+     * {@link FilesystemBasedAuthImpl}
+     */
+    private final FilesystemBasedAuthImpl auth;
+
+    /**
+     * Current file if any
+     */
+    protected String currentFile = null;
+
+    /**
+     * Is this file in append mode
+     */
+    protected boolean isAppend = false;
+
+    /**
+     * Valid Position of this file
+     */
+    private long position = 0;
+
+    /**
+     * Manifest and channels of the stripes, once opened
+     */
+    private StripedManifest manifest = null;
+    private FileChannel[] channels = null;
+    private boolean writing = false;
+    private long length = 0;
+
+    /**
+     * Pending writes, in order
+     */
+    private final ArrayDeque<Future<Void>> pendingWrites = new ArrayDeque<Future<Void>>();
+
+    /**
+     * Prefetched chunks, in order, and the next chunk to prefetch
+     */
+    private final ArrayDeque<Future<ByteBuf>> readAhead = new ArrayDeque<Future<ByteBuf>>();
+    private long nextChunk = -1;
+    private ByteBuf currentChunk = null;
+
+    /**
+     * @param session
+     * @param dir
+     *            It is not necessary the directory that owns this file.
+     * @param path
+     * @param append
+     * @throws CommandAbstractException
+     */
+    public StripedBasedFileImpl(SessionInterface session,
+            StripedBasedDirImpl dir, String path, boolean append)
+            throws CommandAbstractException {
+        this.session = session;
+        auth = (FilesystemBasedAuthImpl) session.getAuth();
+        this.dir = dir;
+        currentFile = path;
+        isAppend = append;
+        if (append) {
+            try {
+                setPosition(length());
+            } catch (IOException e) {
+                // not ready
+                return;
+            }
+        } else {
+            try {
+                setPosition(0);
+            } catch (IOException e) {
+            }
+        }
+        isReady = true;
+    }
+
+    public void clear() throws CommandAbstractException {
+        super.clear();
+        currentFile = null;
+        isAppend = false;
+    }
+
+    public SessionInterface getSession() {
+        return session;
+    }
+
+    public DirInterface getDir() {
+        return dir;
+    }
+
+    /**
+     * Get the manifest File from this path, checking first its validity
+     * 
+     * @param path
+     * @return the manifest File
+     * @throws CommandAbstractException
+     */
+    protected File getFileFromPath(String path) throws CommandAbstractException {
+        String newdir = getDir().validatePath(path);
+        if (dir.isAbsolute(newdir)) {
+            return new File(newdir);
+        }
+        String truedir = auth.getAbsolutePath(newdir);
+        return new File(truedir);
+    }
+
+    /**
+     * 
+     * @return the business path of the current file, as used under the stripe roots
+     * @throws CommandAbstractException
+     */
+    protected String getStripePath() throws CommandAbstractException {
+        return getDir().validatePath(currentFile);
+    }
+
+    /**
+     * 
+     * @return the manifest of the current file, or null if it does not exist or is not striped
+     * @throws CommandAbstractException
+     */
+    protected StripedManifest readManifest() throws CommandAbstractException {
+        try {
+            return StripedManifest.read(getFileFromPath(currentFile));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    public boolean isDirectory() throws CommandAbstractException {
+        checkIdentify();
+        return getFileFromPath(currentFile).isDirectory();
+    }
+
+    public boolean isFile() throws CommandAbstractException {
+        checkIdentify();
+        return getFileFromPath(currentFile).isFile();
+    }
+
+    public String getFile() throws CommandAbstractException {
+        checkIdentify();
+        return currentFile;
+    }
+
+    public boolean closeFile() throws CommandAbstractException {
+        FileTransferException error = null;
+        try {
+            waitWrites(0);
+        } catch (FileTransferException e) {
+            error = e;
+        }
+        cancelReadAhead();
+        if (writing && error == null) {
+            try {
+                File file = getFileFromPath(currentFile);
+                manifest.setLength(length);
+                manifest.write(file);
+                DigestCache.invalidate(file);
+            } catch (IOException e) {
+                logger.error("Cannot write manifest:", e);
+                error = new FileTransferException("Cannot write manifest", e);
+            }
+        }
+        StripedStorage.closeChannels(channels);
+        channels = null;
+        manifest = null;
+        writing = false;
+        position = 0;
+        isReady = false;
+        // Do not clear the filename itself
+        if (error != null) {
+            throw new Reply450Exception(error.getMessage());
+        }
+        return true;
+    }
+
+    public boolean abortFile() throws CommandAbstractException {
+        if (isInWriting() &&
+                ((FilesystemBasedFileParameterImpl) getSession().getFileParameter()).deleteOnAbort) {
+            delete();
+        }
+        try {
+            closeFile();
+        } catch (Reply450Exception e) {
+            // aborted anyway
+        }
+        return true;
+    }
+
+    public long length() throws CommandAbstractException {
+        checkIdentify();
+        if (writing) {
+            return length;
+        }
+        File file = getFileFromPath(currentFile);
+        if (!file.exists()) {
+            return -1;
+        }
+        StripedManifest current = readManifest();
+        if (current == null) {
+            return file.length();
+        }
+        return dir.getStorage().getLength(getStripePath(), current);
+    }
+
+    public boolean isInReading() throws CommandAbstractException {
+        return isReady && channels != null && !writing;
+    }
+
+    public boolean isInWriting() throws CommandAbstractException {
+        return isReady && writing;
+    }
+
+    public boolean canRead() throws CommandAbstractException {
+        checkIdentify();
+        if (!isReady) {
+            return false;
+        }
+        return getFileFromPath(currentFile).canRead();
+    }
+
+    public boolean canWrite() throws CommandAbstractException {
+        checkIdentify();
+        if (!isReady) {
+            return false;
+        }
+        File file = getFileFromPath(currentFile);
+        if (file.exists()) {
+            return file.canWrite();
+        }
+        return file.getParentFile().canWrite();
+    }
+
+    public boolean exists() throws CommandAbstractException {
+        checkIdentify();
+        if (!isReady) {
+            return false;
+        }
+        return getFileFromPath(currentFile).exists();
+    }
+
+    public boolean delete() throws CommandAbstractException {
+        checkIdentify();
+        if (!isReady) {
+            return false;
+        }
+        if (!exists()) {
+            return true;
+        }
+        try {
+            closeFile();
+        } catch (Reply450Exception e) {
+            // deleted anyway
+        }
+        File file = getFileFromPath(currentFile);
+        StripedManifest current = readManifest();
+        if (current != null) {
+            dir.getStorage().deleteStripes(getStripePath(), current);
+        }
+        DigestCache.invalidate(file);
+        boolean deleted = file.delete();
+        dir.invalidateListing(file);
+        return deleted;
+    }
+
+    public boolean renameTo(String path) throws CommandAbstractException {
+        checkIdentify();
+        if (!isReady) {
+            logger.warn("File not ready: {}", this);
+            return false;
+        }
+        File file = getFileFromPath(currentFile);
+        File newFile = getFileFromPath(path);
+        if (newFile.exists()) {
+            logger.warn("Target file already exists: " + newFile.getAbsolutePath());
+            return false;
+        }
+        if (newFile.getAbsolutePath().equals(file.getAbsolutePath())) {
+            // already in the right position
+            return true;
+        }
+        if (channels != null || !pendingWrites.isEmpty()) {
+            // the stripes must not move while written or read
+            closeFile();
+            isReady = true;
+        }
+        StripedManifest current = readManifest();
+        String from = getStripePath();
+        String to = getDir().validatePath(path);
+        DigestCache.invalidate(file);
+        // the stripes first, such that the manifest never points to missing stripes
+        if (current != null && !dir.getStorage().renameStripes(from, to, current)) {
+            logger.warn("Cannot rename the stripes of {} to {}", file, newFile);
+            return false;
+        }
+        if (!file.renameTo(newFile)) {
+            logger.warn("Cannot rename file: {} to {}", file, newFile);
+            if (current != null && !dir.getStorage().renameStripes(to, from, current)) {
+                logger.error("Cannot put back the stripes of {} from {}", file, newFile);
+            }
+            return false;
+        }
+        dir.invalidateListing(file);
+        dir.invalidateListing(newFile);
+        currentFile = auth.getRelativePath(StripedBasedDirImpl.normalizePath(newFile
+                .getAbsolutePath()));
+        isReady = true;
+        logger.debug("File renamed to: {} and real position: {}", this, newFile);
+        return true;
+    }
+
+    /**
+     * Return the current position in the FileInterface. In write mode, it is the current file
+     * length.
+     * 
+     * @return the position
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * Change the position in the file.
+     * 
+     * @param position
+     *            the position to set
+     * @throws IOException
+     */
+    public void setPosition(long position) throws IOException {
+        if (writing) {
+            throw new IOException("Cannot change the position while writing");
+        }
+        cancelReadAhead();
+        this.position = position;
+    }
+
+    /**
+     * Open the current file for write at the current position: the manifest is marked in writing
+     * and the stripes are cut to this position.
+     * 
+     * @throws FileTransferException
+     */
+    private void openWrite() throws FileTransferException {
+        if (writing) {
+            return;
+        }
+        StripedStorage storage = dir.getStorage();
+        try {
+            if (channels != null) {
+                throw new FileTransferException("File is in reading");
+            }
+            File file = getFileFromPath(currentFile);
+            String path = getStripePath();
+            StripedManifest current = StripedManifest.read(file);
+            if (current == null || position == 0) {
+                if (current != null) {
+                    storage.deleteStripes(path, current);
+                }
+                current = storage.newManifest();
+            }
+            current.setLength(-1);
+            current.write(file);
+            DigestCache.invalidate(file);
+            channels = storage.openChannels(path, current, true);
+            for (int i = 0; i < channels.length; i++) {
+                channels[i].truncate(current.getStripeLength(position, i));
+            }
+            manifest = current;
+            length = position;
+            writing = true;
+            dir.invalidateListing(file);
+        } catch (CommandAbstractException e) {
+            throw new FileTransferException("Internal error, file is not ready", e);
+        } catch (IOException e) {
+            StripedStorage.closeChannels(channels);
+            channels = null;
+            logger.error("Cannot open stripes:", e);
+            throw new FileTransferException("Internal error, file is not ready", e);
+        }
+    }
+
+    /**
+     * Queue the write of the readable bytes of the buffer at the given position, split by chunk
+     * 
+     * @param start
+     *            position in the file
+     * @param buffer
+     * @return the number of bytes queued
+     * @throws FileTransferException
+     */
+    private int queueWrite(long start, ByteBuf buffer) throws FileTransferException {
+        int chunkSize = manifest.getChunkSize();
+        int index = buffer.readerIndex();
+        int remaining = buffer.readableBytes();
+        long current = start;
+        while (remaining > 0) {
+            int count = (int) Math.min(remaining, chunkSize - current % chunkSize);
+            final ByteBuf piece = buffer.retainedSlice(index, count);
+            final long piecePosition = current;
+            final FileChannel[] pieceChannels = channels;
+            final StripedManifest pieceManifest = manifest;
+            pendingWrites.add(dir.getStorage().getExecutor(manifest.getStripe(current))
+                    .submit(new Callable<Void>() {
+                        public Void call() throws IOException {
+                            try {
+                                StripedStorage.writeChunk(pieceChannels, pieceManifest,
+                                        piecePosition, piece);
+                            } finally {
+                                piece.release();
+                            }
+                            return null;
+                        }
+                    }));
+            index += count;
+            current += count;
+            remaining -= count;
+        }
+        // bound the memory retained by pending writes
+        waitWrites(manifest.getStripes() * 4);
+        return buffer.readableBytes();
+    }
+
+    /**
+     * Wait for the pending writes until at most the given number remains
+     * 
+     * @param maxPending
+     * @throws FileTransferException
+     */
+    private void waitWrites(int maxPending) throws FileTransferException {
+        FileTransferException error = null;
+        while (pendingWrites.size() > maxPending) {
+            Future<Void> future = pendingWrites.poll();
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                error = new FileTransferException("Interrupted while writing", e);
+            } catch (ExecutionException e) {
+                logger.error("Error during striped write:", e.getCause());
+                error = new FileTransferException("Internal error, file is not ready",
+                        e.getCause());
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    public void writeDataBlock(DataBlock dataBlock)
+            throws FileTransferException {
+        if (!isReady) {
+            throw new FileTransferException("No file is ready while trying to write: " +
+                    dataBlock.toString());
+        }
+        openWrite();
+        ByteBuf buffer = dataBlock.getBlock();
+        if (buffer != null && buffer.isReadable()) {
+            int size = queueWrite(position, buffer);
+            buffer.skipBytes(size);
+            position += size;
+            length = position;
+        }
+        if (dataBlock.isEOF()) {
+            try {
+                closeFile();
+            } catch (CommandAbstractException e) {
+                throw new FileTransferException("Internal error, file is not ready", e);
+            }
+        }
+    }
+
+    @Override
+    public void writeDataBlock(long offset, DataBlock dataBlock)
+            throws FileTransferException {
+        if (!isReady) {
+            throw new FileTransferException("No file is ready while trying to write: " +
+                    dataBlock.toString());
+        }
+        if (offset < 0) {
+            throw new FileTransferException("Wrong position: " + offset);
+        }
+        ByteBuf buffer = dataBlock.getBlock();
+        if (buffer == null || !buffer.isReadable()) {
+            return;
+        }
+        openWrite();
+        int size = queueWrite(offset, buffer);
+        waitWrites(0);
+        buffer.skipBytes(size);
+        segmentMap.add(offset, offset + size);
+        length = Math.max(length, offset + size);
+    }
+
+    /**
+     * Open the current file for read
+     * 
+     * @throws FileTransferException
+     */
+    private void openRead() throws FileTransferException {
+        if (channels != null) {
+            return;
+        }
+        try {
+            StripedManifest current = readManifest();
+            if (current == null) {
+                throw new FileTransferException("File is not a striped file: " + currentFile);
+            }
+            String path = getStripePath();
+            length = dir.getStorage().getLength(path, current);
+            channels = dir.getStorage().openChannels(path, current, false);
+            manifest = current;
+        } catch (CommandAbstractException e) {
+            throw new FileTransferException("Internal error, file is not ready", e);
+        } catch (IOException e) {
+            logger.error("Cannot open stripes:", e);
+            throw new FileTransferException("Internal error, file is not ready", e);
+        }
+    }
+
+    /**
+     * Drop the prefetched chunks
+     */
+    private void cancelReadAhead() {
+        for (Future<ByteBuf> future : readAhead) {
+            try {
+                future.get().release();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                // ignore since dropped
+            }
+        }
+        readAhead.clear();
+        if (currentChunk != null) {
+            currentChunk.release();
+            currentChunk = null;
+        }
+        nextChunk = -1;
+    }
+
+    /**
+     * Prefetch the next chunks, one per stripe
+     */
+    private void scheduleReadAhead() {
+        int chunkSize = manifest.getChunkSize();
+        while (readAhead.size() < manifest.getStripes() && nextChunk * chunkSize < length) {
+            final long chunkPosition = nextChunk * chunkSize;
+            final int size = (int) Math.min(chunkSize, length - chunkPosition);
+            final FileChannel[] chunkChannels = channels;
+            final StripedManifest chunkManifest = manifest;
+            readAhead.add(dir.getStorage().getExecutor(manifest.getStripe(chunkPosition))
+                    .submit(new Callable<ByteBuf>() {
+                        public ByteBuf call() throws IOException {
+                            ByteBuf chunk = StripedStorage.readChunk(chunkChannels,
+                                    chunkManifest, chunkPosition, size);
+                            if (chunk.readableBytes() < size) {
+                                chunk.release();
+                                throw new IOException("Missing data in stripe " +
+                                        chunkManifest.getStripe(chunkPosition));
+                            }
+                            return chunk;
+                        }
+                    }));
+            nextChunk++;
+        }
+    }
+
+    /**
+     * 
+     * @return the next prefetched chunk, or null at the end of the file
+     * @throws FileTransferException
+     */
+    private ByteBuf nextReadAhead() throws FileTransferException {
+        scheduleReadAhead();
+        Future<ByteBuf> future = readAhead.poll();
+        if (future == null) {
+            return null;
+        }
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FileTransferException("Interrupted while reading", e);
+        } catch (ExecutionException e) {
+            logger.error("Error during striped read:", e.getCause());
+            throw new FileTransferException("Internal error, file is not ready", e.getCause());
+        }
+    }
+
+    public DataBlock readDataBlock() throws FileTransferException,
+            FileEndOfTransferException {
+        if (!isReady) {
+            throw new FileTransferException("No file is ready");
+        }
+        openRead();
+        int sizeblock = getSession().getBlockSize();
+        if (nextChunk < 0) {
+            // (re)start the prefetch from the current position
+            int chunkSize = manifest.getChunkSize();
+            nextChunk = position / chunkSize;
+            currentChunk = nextReadAhead();
+            if (currentChunk != null) {
+                currentChunk.skipBytes((int) Math.min(position % chunkSize,
+                        currentChunk.readableBytes()));
+            }
+        }
+        ByteBuf buffer = Unpooled.buffer((int) Math.max(Math.min(sizeblock, length - position),
+                0));
+        while (buffer.isWritable()) {
+            if (currentChunk == null) {
+                break;
+            }
+            if (!currentChunk.isReadable()) {
+                currentChunk.release();
+                currentChunk = nextReadAhead();
+                continue;
+            }
+            buffer.writeBytes(currentChunk, Math.min(currentChunk.readableBytes(),
+                    buffer.writableBytes()));
+        }
+        int sizeout = buffer.readableBytes();
+        if (sizeout < sizeblock) {// last block
+            try {
+                closeFile();
+            } catch (CommandAbstractException e) {
+            }
+        }
+        if (sizeout <= 0) {
+            buffer.release();
+            throw new FileEndOfTransferException("End of file");
+        }
+        position += sizeout;
+        DataBlock dataBlock = new DataBlock();
+        dataBlock.setBlock(buffer);
+        if (sizeout < sizeblock) {
+            dataBlock.setEOF(true);
+        }
+        return dataBlock;
+    }
+
+    @Override
+    public DataBlock readDataBlock(long offset, int length)
+            throws FileEndOfTransferException, FileTransferException {
+        if (!isReady) {
+            throw new FileTransferException("No file is ready");
+        }
+        if (offset < 0 || length <= 0) {
+            throw new FileTransferException("Wrong position: " + offset + " or length: " + length);
+        }
+        openRead();
+        if (offset >= this.length) {
+            throw new FileEndOfTransferException("End of file");
+        }
+        int chunkSize = manifest.getChunkSize();
+        int sizeblock = (int) Math.min(length, this.length - offset);
+        ByteBuf buffer = Unpooled.buffer(sizeblock, sizeblock);
+        long current = offset;
+        try {
+            while (buffer.isWritable()) {
+                int count = (int) Math.min(buffer.writableBytes(), chunkSize - current %
+                        chunkSize);
+                ByteBuf chunk = StripedStorage.readChunk(channels, manifest, current, count);
+                try {
+                    if (!chunk.isReadable()) {
+                        break;
+                    }
+                    current += chunk.readableBytes();
+                    buffer.writeBytes(chunk);
+                } finally {
+                    chunk.release();
+                }
+            }
+        } catch (IOException e) {
+            buffer.release();
+            logger.error("Error during positional read:", e);
+            throw new FileTransferException("Internal error, file is not ready", e);
+        }
+        DataBlock dataBlock = new DataBlock();
+        dataBlock.setBlock(buffer);
+        if (offset + buffer.readableBytes() >= this.length) {
+            dataBlock.setEOF(true);
+        }
+        return dataBlock;
+    }
+
+    @Override
+    public String toString() {
+        return "File: " + currentFile + " Ready " + isReady + " isAppend " + isAppend +
+                " position " + position;
+    }
+}
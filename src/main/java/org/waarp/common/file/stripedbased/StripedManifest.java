@@ -0,0 +1,226 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.file.stripedbased;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+
+import org.waarp.common.utility.WaarpStringUtils;
+
+/**
+ * Manifest of a striped file: number of stripes, chunk size and length. Chunk k of the file is in
+ * stripe (k modulo stripes), at position (k / stripes) * chunkSize in this stripe.<br>
+ * <br>
+ * The manifest is a small text file whose first line is MAGIC. While the file is written, the
+ * length is -1 and the real length is computed from the sizes of the stripes.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class StripedManifest {
+    /**
+     * First line of a manifest
+     */
+    public static final String MAGIC = "WaarpStriped 1";
+
+    /**
+     * Maximum size of a manifest file
+     */
+    public static final int MAX_SIZE = 256;
+
+    private final int stripes;
+    private final int chunkSize;
+    private long length;
+
+    /**
+     * @param stripes
+     * @param chunkSize
+     * @param length
+     *            -1 if in writing
+     */
+    public StripedManifest(int stripes, int chunkSize, long length) {
+        this.stripes = stripes;
+        this.chunkSize = chunkSize;
+        this.length = length;
+    }
+
+    /**
+     * @return the number of stripes
+     */
+    public int getStripes() {
+        return stripes;
+    }
+
+    /**
+     * @return the size of one chunk
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * @return the length of the file, or -1 if in writing
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * @param length
+     *            the length of the file, or -1 if in writing
+     */
+    public void setLength(long length) {
+        this.length = length;
+    }
+
+    /**
+     * 
+     * @param position
+     *            in the file
+     * @return the stripe holding this position
+     */
+    public int getStripe(long position) {
+        return (int) ((position / chunkSize) % stripes);
+    }
+
+    /**
+     * 
+     * @param position
+     *            in the file
+     * @return the position in its stripe
+     */
+    public long getStripeOffset(long position) {
+        long chunk = position / chunkSize;
+        return (chunk / stripes) * chunkSize + position % chunkSize;
+    }
+
+    /**
+     * 
+     * @param length
+     *            of the file
+     * @param stripe
+     * @return the size of this stripe for a file of this length
+     */
+    public long getStripeLength(long length, int stripe) {
+        long chunks = length / chunkSize;
+        long size = (chunks / stripes) * chunkSize;
+        int rest = (int) (chunks % stripes);
+        if (stripe < rest) {
+            size += chunkSize;
+        } else if (stripe == rest) {
+            size += length % chunkSize;
+        }
+        return size;
+    }
+
+    /**
+     * 
+     * @param stripeSizes
+     *            the current size of each stripe
+     * @return the length of the file without any hole, according to the sizes of its stripes
+     */
+    public long getContiguousLength(long[] stripeSizes) {
+        long length = 0;
+        for (long chunk = 0;; chunk++) {
+            int stripe = (int) (chunk % stripes);
+            long start = (chunk / stripes) * chunkSize;
+            long available = stripeSizes[stripe] - start;
+            if (available < chunkSize) {
+                return length + Math.max(available, 0);
+            }
+            length += chunkSize;
+        }
+    }
+
+    /**
+     * 
+     * @param file
+     * @return the manifest in this file, or null if it is not a manifest
+     * @throws IOException
+     */
+    public static StripedManifest read(File file) throws IOException {
+        if (!file.isFile() || file.length() > MAX_SIZE) {
+            return null;
+        }
+        char[] content = new char[MAX_SIZE];
+        int size = 0;
+        Reader reader = new InputStreamReader(new FileInputStream(file), WaarpStringUtils.UTF8);
+        try {
+            int read;
+            while (size < MAX_SIZE && (read = reader.read(content, size, MAX_SIZE - size)) > 0) {
+                size += read;
+            }
+        } finally {
+            reader.close();
+        }
+        String[] lines = new String(content, 0, size).split("\n");
+        if (lines.length < 4 || !lines[0].equals(MAGIC)) {
+            return null;
+        }
+        try {
+            return new StripedManifest(Integer.parseInt(getValue(lines[1], "stripes")),
+                    Integer.parseInt(getValue(lines[2], "chunkSize")), Long.parseLong(getValue(
+                            lines[3], "length")));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 
+     * @param line
+     * @param key
+     * @return the value of the line "key=value"
+     */
+    private static String getValue(String line, String key) {
+        if (!line.startsWith(key + "=")) {
+            throw new NumberFormatException("Missing " + key);
+        }
+        return line.substring(key.length() + 1).trim();
+    }
+
+    /**
+     * Write this manifest and sync it
+     * 
+     * @param file
+     * @throws IOException
+     */
+    public void write(File file) throws IOException {
+        FileOutputStream outputStream = new FileOutputStream(file);
+        try {
+            Writer writer = new OutputStreamWriter(outputStream, WaarpStringUtils.UTF8);
+            writer.write(toString());
+            writer.flush();
+            outputStream.getFD().sync();
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return MAGIC + "\nstripes=" + stripes + "\nchunkSize=" + chunkSize + "\nlength=" +
+                length + "\n";
+    }
+}
@@ -0,0 +1,362 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.file.stripedbased;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import org.waarp.common.digest.FilesystemBasedDigest.DigestAlgo;
+import org.waarp.common.file.filesystembased.FilesystemBasedTransferDigest;
+import org.waarp.common.utility.WaarpThreadFactory;
+
+/**
+ * Configuration of the striped storage: the root directories holding the stripes (one per disk)
+ * and the size of the chunks. Each root has its own I/O thread, such that all disks are used in
+ * parallel while each one receives sequential requests.<br>
+ * <br>
+ * Stripe i of the file with business path P is the file P under root i. The order of the roots
+ * must not change once files are written (new roots may only be added at the end).
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class StripedStorage {
+    /**
+     * Default size of a chunk
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+    private final File[] roots;
+    private final int chunkSize;
+    private final ExecutorService[] executors;
+
+    /**
+     * @param roots
+     *            the root directories of the stripes, one per disk
+     * @param chunkSize
+     *            size of a chunk
+     */
+    public StripedStorage(File[] roots, int chunkSize) {
+        if (roots == null || roots.length == 0) {
+            throw new IllegalArgumentException("At least one root is needed");
+        }
+        this.roots = roots.clone();
+        this.chunkSize = Math.max(chunkSize, 4096);
+        executors = new ExecutorService[roots.length];
+    }
+
+    /**
+     * 
+     * @return the number of stripes of new files
+     */
+    public int getStripes() {
+        return roots.length;
+    }
+
+    /**
+     * 
+     * @return the size of a chunk of new files
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * 
+     * @return a new manifest for a file in writing
+     */
+    public StripedManifest newManifest() {
+        return new StripedManifest(roots.length, chunkSize, -1);
+    }
+
+    /**
+     * 
+     * @param path
+     *            the business path of the file
+     * @param stripe
+     * @return the file of this stripe
+     */
+    public File getStripeFile(String path, int stripe) {
+        return new File(roots[stripe], path);
+    }
+
+    /**
+     * 
+     * @param stripe
+     * @return the I/O executor of the disk of this stripe
+     */
+    public synchronized ExecutorService getExecutor(int stripe) {
+        if (executors[stripe] == null) {
+            executors[stripe] = Executors.newSingleThreadExecutor(new WaarpThreadFactory(
+                    "StripedIO" + stripe));
+        }
+        return executors[stripe];
+    }
+
+    /**
+     * 
+     * @param path
+     *            the business path of the file
+     * @param manifest
+     * @return the length of the file without any hole from the sizes of its stripes
+     */
+    public long getContiguousLength(String path, StripedManifest manifest) {
+        long[] sizes = new long[manifest.getStripes()];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = getStripeFile(path, i).length();
+        }
+        return manifest.getContiguousLength(sizes);
+    }
+
+    /**
+     * 
+     * @param path
+     *            the business path of the file
+     * @param manifest
+     * @return the length of the file, from the manifest if complete, else from the stripes
+     */
+    public long getLength(String path, StripedManifest manifest) {
+        if (manifest.getLength() >= 0) {
+            return manifest.getLength();
+        }
+        return getContiguousLength(path, manifest);
+    }
+
+    /**
+     * Open the channels of all the stripes of a file
+     * 
+     * @param path
+     *            the business path of the file
+     * @param manifest
+     * @param write
+     *            True to open in write mode (creating directories and files)
+     * @return the channels, null for the stripes not existing in read mode
+     * @throws IOException
+     */
+    public FileChannel[] openChannels(String path, StripedManifest manifest, boolean write)
+            throws IOException {
+        FileChannel[] channels = new FileChannel[manifest.getStripes()];
+        try {
+            for (int i = 0; i < channels.length; i++) {
+                File file = getStripeFile(path, i);
+                if (write) {
+                    File parent = file.getParentFile();
+                    if (parent != null && !parent.isDirectory() && !parent.mkdirs() &&
+                            !parent.isDirectory()) {
+                        throw new IOException("Cannot create directory: " + parent);
+                    }
+                } else if (!file.isFile()) {
+                    continue;
+                }
+                @SuppressWarnings("resource")
+                RandomAccessFile raf = new RandomAccessFile(file, write ? "rw" : "r");
+                channels[i] = raf.getChannel();
+            }
+        } catch (IOException e) {
+            closeChannels(channels);
+            throw e;
+        }
+        return channels;
+    }
+
+    /**
+     * 
+     * @param channels
+     *            to close
+     */
+    public static void closeChannels(FileChannel[] channels) {
+        if (channels == null) {
+            return;
+        }
+        for (int i = 0; i < channels.length; i++) {
+            if (channels[i] != null) {
+                try {
+                    channels[i].close();
+                } catch (IOException e) {
+                }
+                channels[i] = null;
+            }
+        }
+    }
+
+    /**
+     * Read a part of a file, which must not cross a chunk boundary
+     * 
+     * @param channels
+     * @param manifest
+     * @param position
+     *            in the file
+     * @param length
+     * @return a new buffer with the bytes read (less than length at the end of a stripe)
+     * @throws IOException
+     */
+    public static ByteBuf readChunk(FileChannel[] channels, StripedManifest manifest,
+            long position, int length) throws IOException {
+        ByteBuf buffer = Unpooled.buffer(length, length);
+        FileChannel channel = channels[manifest.getStripe(position)];
+        if (channel == null) {
+            return buffer;
+        }
+        long offset = manifest.getStripeOffset(position);
+        while (buffer.isWritable()) {
+            int read = buffer.writeBytes(channel, offset, buffer.writableBytes());
+            if (read <= 0) {
+                break;
+            }
+            offset += read;
+        }
+        return buffer;
+    }
+
+    /**
+     * Write a part of a file, which must not cross a chunk boundary
+     * 
+     * @param channels
+     * @param manifest
+     * @param position
+     *            in the file
+     * @param buffer
+     *            the readable bytes are written (not consumed)
+     * @throws IOException
+     */
+    public static void writeChunk(FileChannel[] channels, StripedManifest manifest,
+            long position, ByteBuf buffer) throws IOException {
+        FileChannel channel = channels[manifest.getStripe(position)];
+        long offset = manifest.getStripeOffset(position);
+        int index = buffer.readerIndex();
+        int remaining = buffer.readableBytes();
+        while (remaining > 0) {
+            int written = buffer.getBytes(index, channel, offset, remaining);
+            index += written;
+            offset += written;
+            remaining -= written;
+        }
+    }
+
+    /**
+     * Compute the digests of a striped file reading its chunks in order
+     * 
+     * @param path
+     *            the business path of the file
+     * @param manifest
+     * @param algos
+     * @return the digests by algorithm (checksums as 4 bytes in big endian)
+     * @throws IOException
+     */
+    public Map<DigestAlgo, byte[]> getDigests(String path, StripedManifest manifest,
+            DigestAlgo... algos) throws IOException {
+        FilesystemBasedTransferDigest digest = new FilesystemBasedTransferDigest(algos);
+        long length = getLength(path, manifest);
+        FileChannel[] channels = openChannels(path, manifest, false);
+        try {
+            long position = 0;
+            while (position < length) {
+                int size = (int) Math.min(manifest.getChunkSize(), length - position);
+                ByteBuf buffer = readChunk(channels, manifest, position, size);
+                try {
+                    if (buffer.readableBytes() < size) {
+                        throw new IOException("Missing data in stripe " +
+                                manifest.getStripe(position));
+                    }
+                    digest.update(buffer);
+                } finally {
+                    buffer.release();
+                }
+                position += size;
+            }
+        } finally {
+            closeChannels(channels);
+        }
+        return digest.finish();
+    }
+
+    /**
+     * Delete all the stripes of a file
+     * 
+     * @param path
+     *            the business path of the file
+     * @param manifest
+     * @return True if all deleted
+     */
+    public boolean deleteStripes(String path, StripedManifest manifest) {
+        boolean deleted = true;
+        for (int i = 0; i < manifest.getStripes(); i++) {
+            File file = getStripeFile(path, i);
+            if (file.exists() && !file.delete()) {
+                deleted = false;
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Rename all the stripes of a file. If one stripe cannot be renamed (including when its target
+     * already exists), the stripes already renamed are put back.
+     * 
+     * @param from
+     *            the business path of the file
+     * @param to
+     *            the new business path of the file
+     * @param manifest
+     * @return True if all renamed, False if none was
+     */
+    public boolean renameStripes(String from, String to, StripedManifest manifest) {
+        int stripes = manifest.getStripes();
+        boolean[] renamed = new boolean[stripes];
+        for (int i = 0; i < stripes; i++) {
+            File file = getStripeFile(from, i);
+            if (!file.exists()) {
+                continue;
+            }
+            File target = getStripeFile(to, i);
+            File parent = target.getParentFile();
+            if (target.exists() ||
+                    (parent != null && !parent.mkdirs() && !parent.isDirectory()) ||
+                    !file.renameTo(target)) {
+                for (int j = 0; j < i; j++) {
+                    if (renamed[j]) {
+                        getStripeFile(to, j).renameTo(getStripeFile(from, j));
+                    }
+                }
+                return false;
+            }
+            renamed[i] = true;
+        }
+        return true;
+    }
+
+    /**
+     * Stop the I/O threads
+     */
+    public synchronized void close() {
+        for (int i = 0; i < executors.length; i++) {
+            if (executors[i] != null) {
+                executors[i].shutdown();
+                executors[i] = null;
+            }
+        }
+    }
+}
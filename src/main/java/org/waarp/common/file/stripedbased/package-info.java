@@ -0,0 +1,8 @@
+/**
+ * Classes implementing FileInterface and Directory where the content of each file is striped in
+ * fixed size chunks across several root directories (on separate disks), the file itself in the
+ * business directory holding only a small manifest
+ * 
+ * @apiviz.landmark
+ */
+package org.waarp.common.file.stripedbased;
@@ -22,13 +22,19 @@ package org.waarp.common.filemonitor;
 
 import java.io.File;
 import java.io.FileFilter;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map.Entry;
@@ -51,6 +57,7 @@ import org.waarp.common.database.DbConstant;
 import org.waarp.common.digest.FilesystemBasedDigest;
 import org.waarp.common.digest.FilesystemBasedDigest.DigestAlgo;
 import org.waarp.common.file.AbstractDir;
+import org.waarp.common.file.filesystembased.FilesystemBasedTransferDigest;
 import org.waarp.common.future.WaarpFuture;
 import org.waarp.common.json.JsonHandler;
 import org.waarp.common.logging.WaarpLogger;
@@ -79,6 +86,31 @@ public class FileMonitor {
     protected static final DigestAlgo defaultDigestAlgo = DigestAlgo.MD5;
     protected static final long minimalDelay = 100;
     protected static final long defaultDelay = 1000;
+    protected static final long defaultFullScanTime = 600000;
+    protected static final int defaultSampleBlockSize = 65536;
+    protected static final int defaultSampleBlocks = 4;
+
+    /**
+     * How a file whose size and modification time did not change since the previous check is
+     * declared stable
+     * 
+     * @author "Frederic Bregier"
+     *
+     */
+    public static enum StabilityCheck {
+        /**
+         * Size and modification time only
+         */
+        SIZE_TIME,
+        /**
+         * Hash of the head, the tail and some middle blocks of the file
+         */
+        SAMPLED_HASH,
+        /**
+         * Hash of the whole file
+         */
+        FULL_HASH
+    }
 
     protected WaarpFuture future = null;
     protected WaarpFuture internalfuture = null;
@@ -93,12 +125,31 @@ public class FileMonitor {
     protected Timer timer = null;
     protected Timer timerWaarp = null; // used only if elapseWaarpTime > defaultDelay (1s)
     protected boolean scanSubDir = false;
+    protected boolean useWatchService = false;
+    protected long fullScanTime = defaultFullScanTime; // safety net in WatchService mode
+    protected long lastFullScan = 0;
+    protected FileMonitorWatcher watcher = null;
+    protected int scanParallelism = Runtime.getRuntime().availableProcessors();
+    protected FileMonitorScanner scanner = null;
+    protected long lastScanDuration = -1; // in ms
+    protected StabilityCheck stabilityCheck = StabilityCheck.SAMPLED_HASH;
+    protected int sampleBlockSize = defaultSampleBlockSize;
+    protected int sampleBlocks = defaultSampleBlocks; // middle blocks
+    protected ByteBuffer sampleBuffer = null;
+    protected long bytesHashed = 0;
+    protected long lastScanBytesHashed = -1;
 
     protected boolean initialized = false;
     protected File checkFile = null;
 
     protected final ConcurrentHashMap<String, FileItem> fileItems =
             new ConcurrentHashMap<String, FileMonitor.FileItem>();
+    // keys of the items changed or removed since the last save
+    protected final Set<String> changedItems =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    protected FileMonitorStatusStore statusStore = null;
+    // used items when compacted, fileItems keeping only the active ones
+    protected FileMonitorItemIndex itemIndex = null;
     protected ConcurrentHashMap<String, FileItem> lastFileItems =
             new ConcurrentHashMap<String, FileMonitor.FileItem>();
 
@@ -232,6 +283,82 @@ public class FileMonitor {
         }
     }
 
+    /**
+     * Use a WatchService instead of listing all directories at each check: only the created or
+     * modified files and the files not yet stable are checked, while a full scan is still done
+     * every fullScanTime or when some events are lost. Must be set before start().
+     * 
+     * @param useWatchService
+     *            True to use a WatchService (if available, else back to full scans)
+     * @param fullScanTime
+     *            the time in ms between 2 full scans as a safety net (default is 10 minutes)
+     */
+    public void setUseWatchService(boolean useWatchService, long fullScanTime) {
+        this.useWatchService = useWatchService;
+        if (fullScanTime >= defaultDelay) {
+            this.fullScanTime = fullScanTime;
+        }
+    }
+
+    /**
+     * Set the number of threads listing the directories in parallel during full scans. Must be
+     * set before start().
+     * 
+     * @param scanParallelism
+     *            the number of threads (default is the number of processors)
+     */
+    public void setScanParallelism(int scanParallelism) {
+        if (scanParallelism > 0) {
+            this.scanParallelism = scanParallelism;
+        }
+    }
+
+    /**
+     * Set how a file is declared stable: its size and modification time must be the same in 2
+     * consecutive checks, then, unless SIZE_TIME, its hash must be the same in 2 consecutive checks
+     * too. The default is SAMPLED_HASH, FULL_HASH reads each candidate file entirely.
+     * 
+     * @param stabilityCheck
+     */
+    public void setStabilityCheck(StabilityCheck stabilityCheck) {
+        if (stabilityCheck != null) {
+            this.stabilityCheck = stabilityCheck;
+        }
+    }
+
+    /**
+     * 
+     * @param sampleBlockSize
+     *            the size of each block read by SAMPLED_HASH (default is 64KB)
+     * @param sampleBlocks
+     *            the number of middle blocks read by SAMPLED_HASH, besides the head and the tail
+     *            (default is 4)
+     */
+    public void setSampling(int sampleBlockSize, int sampleBlocks) {
+        if (sampleBlockSize > 0) {
+            this.sampleBlockSize = sampleBlockSize;
+        }
+        if (sampleBlocks >= 0) {
+            this.sampleBlocks = sampleBlocks;
+        }
+    }
+
+    /**
+     * 
+     * @return the number of bytes read to compute hashes during the last scan step, -1 if none yet
+     */
+    public long getLastScanBytesHashed() {
+        return lastScanBytesHashed;
+    }
+
+    /**
+     * 
+     * @return the duration in ms of the last scan step (listing and checks), -1 if none yet
+     */
+    public long getLastScanDuration() {
+        return lastScanDuration;
+    }
+
     /**
      * Add a directory to scan
      * 
@@ -240,6 +367,11 @@ public class FileMonitor {
     public void addDirectory(File directory) {
         if (!this.directories.contains(directory)) {
             this.directories.add(directory);
+            if (watcher != null) {
+                watcher.register(directory);
+                // files already there are found by a full scan
+                lastFullScan = 0;
+            }
         }
     }
 
@@ -250,6 +382,9 @@ public class FileMonitor {
      */
     public void removeDirectory(File directory) {
         this.directories.remove(directory);
+        if (watcher != null) {
+            watcher.unregister(directory);
+        }
     }
 
     protected void setThreadName() {
@@ -317,8 +452,22 @@ public class FileMonitor {
     protected void saveStatus() {
         if (statusFile == null)
             return;
+        if (statusStore != null) {
+            List<String> changed = new ArrayList<String>(changedItems);
+            changedItems.removeAll(changed);
+            try {
+                statusStore.save(changed, getAllFileItems());
+                createChkFile();
+            } catch (IOException e) {
+                logger.warn("Cannot save status: " + e.getMessage());
+                // retry them at next save
+                changedItems.addAll(changed);
+            }
+            return;
+        }
+        changedItems.clear();
         try {
-            JsonHandler.mapper.writeValue(statusFile, fileItems);
+            JsonHandler.mapper.writeValue(statusFile, getAllFileItems());
             createChkFile();
         } catch (JsonGenerationException e) {
         } catch (JsonMappingException e) {
@@ -326,13 +475,152 @@ public class FileMonitor {
         }
     }
 
+    /**
+     * Save the status as a binary snapshot plus an append only journal of the changed items
+     * (statusFile.snap and statusFile.jnl) instead of rewriting the whole JSON status file at each
+     * change. The current status is loaded from them if they exist, else the JSON status is
+     * converted and removed. Must be set before start().
+     * 
+     * @param useStatusJournal
+     */
+    public void setUseStatusJournal(boolean useStatusJournal) {
+        if (!useStatusJournal) {
+            if (statusStore != null) {
+                statusStore.close();
+                statusStore = null;
+                // back to a full JSON status
+                saveStatus();
+            }
+            return;
+        }
+        if (statusFile == null || statusStore != null) {
+            return;
+        }
+        FileMonitorStatusStore store = new FileMonitorStatusStore(statusFile);
+        try {
+            if (store.exists()) {
+                fileItems.clear();
+                store.load(fileItems);
+                compactUsedItems();
+                initialized = true;
+            } else {
+                store.compact(getAllFileItems());
+                if (statusFile.exists() && !statusFile.delete()) {
+                    logger.warn("Cannot remove the previous status file: " + statusFile);
+                }
+            }
+            changedItems.clear();
+            statusStore = store;
+        } catch (IOException e) {
+            logger.warn("Status journal not available, JSON status kept: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Mark this item as changed, such that it is saved in the next status
+     * 
+     * @param fileItem
+     */
+    protected void setChanged(FileItem fileItem) {
+        File file = fileItem.file;
+        if (file != null) {
+            String key = AbstractDir.normalizePath(file.getAbsolutePath());
+            if (itemIndex != null && !fileItems.containsKey(key) && itemIndex.contains(key)) {
+                // changed after being compacted
+                if (!fileItem.used || !itemIndex.put(key, fileItem, false)) {
+                    itemIndex.remove(key);
+                    fileItems.put(key, fileItem);
+                }
+            }
+            changedItems.add(key);
+        }
+    }
+
+    /**
+     * Keep the used items in a compact index instead of one FileItem object each, for
+     * directories where millions of files are kept once used. fileItems then only holds the
+     * active items, the other ones being available as views through getAllFileItems().
+     * 
+     * @param compactIndex
+     */
+    public void setCompactIndex(boolean compactIndex) {
+        if (!compactIndex) {
+            if (itemIndex != null) {
+                for (Entry<String, FileItem> entry : itemIndex.asMap(
+                        new HashMap<String, FileItem>()).entrySet()) {
+                    fileItems.put(entry.getKey(), entry.getValue());
+                }
+                itemIndex = null;
+            }
+            return;
+        }
+        if (itemIndex == null) {
+            itemIndex = new FileMonitorItemIndex(getHashWidth());
+            compactUsedItems();
+        }
+    }
+
+    /**
+     * 
+     * @return the length of the hashes of the current digest
+     */
+    protected int getHashWidth() {
+        switch (digest) {
+            case CRC32:
+            case ADLER32:
+                return 4;
+            case SHA1:
+                return 20;
+            case SHA256:
+                return 32;
+            case SHA384:
+                return 48;
+            case SHA512:
+                return 64;
+            default:
+                return 16;
+        }
+    }
+
+    /**
+     * 
+     * @return all the items, the indexed ones given as views (read only if compacted)
+     */
+    protected Map<String, FileItem> getAllFileItems() {
+        if (itemIndex == null) {
+            return fileItems;
+        }
+        return itemIndex.asMap(fileItems);
+    }
+
+    /**
+     * Move the used items from fileItems to the compact index
+     */
+    protected void compactUsedItems() {
+        if (itemIndex == null) {
+            return;
+        }
+        for (Entry<String, FileItem> entry : fileItems.entrySet()) {
+            FileItem item = entry.getValue();
+            if (!item.used || item.file == null) {
+                continue;
+            }
+            String key = entry.getKey();
+            FileItem last = lastFileItems.get(key);
+            if (itemIndex.put(key, item, item.isStrictlySame(last))) {
+                fileItems.remove(key);
+                lastFileItems.remove(key);
+            }
+        }
+    }
+
     /**
      * 
      * @return the number of fileItems in the current history (active, in error or past)
      */
     public long getCurrentHistoryNb() {
         if (fileItems != null) {
-            return fileItems.size();
+            return fileItems.size() + (itemIndex != null ? itemIndex.size() : 0);
         }
         return -1;
     }
@@ -343,6 +631,9 @@ public class FileMonitor {
      */
     public void setNextAsFullStatus() {
         lastFileItems.clear();
+        if (itemIndex != null) {
+            itemIndex.clearReported();
+        }
     }
 
     /**
@@ -366,10 +657,31 @@ public class FileMonitor {
                 newFileItems.put(key.getKey(), key.getValue());
             }
         }
+        Set<String> removedStatus = removedFileItems;
+        if (itemIndex != null) {
+            itemIndex.collectUnreported(newFileItems);
+            Set<String> removedFromIndex = itemIndex.drainRemovedReported();
+            Iterator<String> iterator = removedFromIndex.iterator();
+            while (iterator.hasNext()) {
+                String key = iterator.next();
+                if (fileItems.containsKey(key) || itemIndex.contains(key)) {
+                    // moved back as active
+                    iterator.remove();
+                }
+            }
+            if (!removedFromIndex.isEmpty()) {
+                removedStatus = new HashSet<String>(removedFromIndex);
+                if (removedFileItems != null) {
+                    removedStatus.addAll(removedFileItems);
+                }
+            }
+        }
         FileMonitorInformation fileMonitorInformation = new FileMonitorInformation(name, newFileItems,
-                removedFileItems,
+                removedStatus,
                 directories, stopFile, statusFile, elapseTime, scanSubDir,
                 globalok, globalerror, todayok, todayerror);
+        fileMonitorInformation.lastScanDuration = lastScanDuration;
+        fileMonitorInformation.lastScanBytesHashed = lastScanBytesHashed;
         for (Entry<String, FileItem> key : fileItems.entrySet()) {
             FileItem clone = key.getValue().clone();
             lastFileItems.put(key.getKey(), clone);
@@ -421,6 +733,21 @@ public class FileMonitor {
                     executor = Executors.newCachedThreadPool(new WaarpThreadFactory("FileMonitorRunner_" + name));
                 }
             }
+            if (scanner == null) {
+                scanner = new FileMonitorScanner(scanParallelism);
+            }
+            if (useWatchService && watcher == null) {
+                try {
+                    watcher = new FileMonitorWatcher(name, scanSubDir);
+                    for (File directory : directories) {
+                        watcher.register(directory);
+                    }
+                } catch (IOException e) {
+                    logger.warn("WatchService not available, full scans only: " + e.getMessage());
+                    watcher = null;
+                }
+                lastFullScan = 0;
+            }
             timer.newTimeout(new FileMonitorTimerTask(this), elapseTime, TimeUnit.MILLISECONDS);
         }// else already started
         if (elapseWaarpTime >= defaultDelay && timerWaarp == null && commandCheckIteration != null) {
@@ -447,6 +774,17 @@ public class FileMonitor {
         }
         timer = null;
         timerWaarp = null;
+        if (watcher != null) {
+            watcher.close();
+            watcher = null;
+        }
+        if (scanner != null) {
+            scanner.close();
+            scanner = null;
+        }
+        if (statusStore != null) {
+            statusStore.close();
+        }
         if (executor != null) {
             executor.shutdown();
             executor = null;
@@ -509,10 +847,21 @@ public class FileMonitor {
         if (checkStop()) {
             return false;
         }
-        for (File directory : directories) {
-            logger.info("Scan: " + directory);
-            fileItemsChanged = checkOneDir(fileItemsChanged, directory);
+        long startScan = System.currentTimeMillis();
+        bytesHashed = 0;
+        boolean fullScan = isFullScanNeeded();
+        if (fullScan) {
+            List<File> toScan = new ArrayList<File>(directories);
+            for (File directory : toScan) {
+                logger.info("Scan: " + directory);
+            }
+            fileItemsChanged = checkDirs(fileItemsChanged, toScan);
+        } else {
+            fileItemsChanged = checkEvents(fileItemsChanged);
         }
+        lastScanDuration = System.currentTimeMillis() - startScan;
+        lastScanBytesHashed = bytesHashed;
+        logger.debug("Scan step done in {} ms, {} bytes hashed", lastScanDuration, bytesHashed);
         setThreadName();
         boolean error = false;
         // Wait for all commands to finish before continuing
@@ -539,7 +888,36 @@ public class FileMonitor {
             //this.saveStatus();
             return false;
         }
-        // now check that all existing items are still valid
+        compactUsedItems();
+        // now check that the existing items are still valid
+        if (fullScan) {
+            fileItemsChanged = checkAllItems(fileItemsChanged);
+        } else {
+            fileItemsChanged = checkDeletedItems(fileItemsChanged);
+        }
+        if (fileItemsChanged) {
+            this.saveStatus();
+        } else {
+            createChkFile();
+        }
+        if (checkStop()) {
+            return false;
+        }
+        logger.debug("Finishing step");
+
+        if (commandCheckIteration != null && timerWaarp == null) {
+            commandCheckIteration.run(null);
+        }
+        return true;
+    }
+
+    /**
+     * Remove all the items whose file does not exist anymore
+     * 
+     * @param fileItemsChanged
+     * @return True if one item at least was removed
+     */
+    protected boolean checkAllItems(boolean fileItemsChanged) {
         List<FileItem> todel = new LinkedList<FileItem>();
         for (FileItem item : fileItems.values()) {
             if (item.file != null && item.file.isFile()) {
@@ -547,121 +925,328 @@ public class FileMonitor {
             }
             todel.add(item);
         }
+        if (itemIndex != null) {
+            List<String> indexToDel = new ArrayList<String>();
+            int slots = itemIndex.getSlots();
+            for (int slot = 0; slot < slots; slot++) {
+                String key = itemIndex.getKey(slot);
+                if (key != null && !new File(key).isFile()) {
+                    indexToDel.add(key);
+                }
+            }
+            for (String key : indexToDel) {
+                fileItemsChanged = removeIndexItem(key) || fileItemsChanged;
+            }
+        }
         // remove invalid files
         for (FileItem fileItem : todel) {
-            String name = AbstractDir.normalizePath(fileItem.file.getAbsolutePath());
-            fileItems.remove(name);
-            toUse.remove(fileItem);
-            if (commandRemovedFile != null) {
-                commandRemovedFile.run(fileItem);
-            }
-            fileItem.file = null;
-            fileItem.hash = null;
-            fileItem = null;
+            removeFileItem(fileItem);
             fileItemsChanged = true;
         }
-        if (fileItemsChanged) {
-            this.saveStatus();
-        } else {
-            createChkFile();
+        return fileItemsChanged;
+    }
+
+    /**
+     * Remove only the items whose file was reported deleted by the WatchService
+     * 
+     * @param fileItemsChanged
+     * @return True if one item at least was removed
+     */
+    protected boolean checkDeletedItems(boolean fileItemsChanged) {
+        FileMonitorWatcher current = watcher;
+        if (current == null) {
+            return fileItemsChanged;
         }
-        if (checkStop()) {
-            return false;
+        for (File file : current.drainDeletedFiles()) {
+            if (file.isFile()) {
+                // created again since
+                continue;
+            }
+            String name = AbstractDir.normalizePath(file.getAbsolutePath());
+            FileItem fileItem = fileItems.get(name);
+            if (fileItem != null) {
+                removeFileItem(fileItem);
+                fileItemsChanged = true;
+            } else if (itemIndex != null) {
+                fileItemsChanged = removeIndexItem(name) || fileItemsChanged;
+            }
         }
-        logger.debug("Finishing step");
+        return fileItemsChanged;
+    }
 
-        if (commandCheckIteration != null && timerWaarp == null) {
-            commandCheckIteration.run(null);
+    /**
+     * 
+     * @param key
+     * @return True if this used item was removed from the index
+     */
+    private boolean removeIndexItem(String key) {
+        FileItem fileItem = itemIndex.get(key);
+        if (fileItem == null || !itemIndex.remove(key)) {
+            return false;
+        }
+        changedItems.add(key);
+        if (commandRemovedFile != null) {
+            commandRemovedFile.run(fileItem);
         }
         return true;
     }
 
+    /**
+     * 
+     * @param fileItem
+     *            the item to remove from the current items
+     */
+    private void removeFileItem(FileItem fileItem) {
+        String name = AbstractDir.normalizePath(fileItem.file.getAbsolutePath());
+        fileItems.remove(name);
+        changedItems.add(name);
+        toUse.remove(fileItem);
+        if (commandRemovedFile != null) {
+            commandRemovedFile.run(fileItem);
+        }
+        fileItem.file = null;
+        fileItem.hash = null;
+    }
+
     /**
      * @param fileItemsChanged
      * @param directory
      * @return True if one file at least has changed
      */
     protected boolean checkOneDir(boolean fileItemsChanged, File directory) {
+        List<File> toScan = new ArrayList<File>(1);
+        toScan.add(directory);
+        return checkDirs(fileItemsChanged, toScan);
+    }
+
+    /**
+     * Directories are listed in parallel by the scanner, then the found files are checked one by
+     * one, as the commands are.
+     * 
+     * @param fileItemsChanged
+     * @param toScan
+     * @return True if one file at least has changed
+     */
+    protected boolean checkDirs(boolean fileItemsChanged, List<File> toScan) {
         try {
-            File[] files = directory.listFiles(filter);
+            List<File> files;
+            if (scanner != null) {
+                files = scanner.scan(toScan, filter, scanSubDir);
+            } else {
+                FileMonitorScanner oneShot = new FileMonitorScanner(1);
+                try {
+                    files = oneShot.scan(toScan, filter, scanSubDir);
+                } finally {
+                    oneShot.close();
+                }
+            }
             for (File file : files) {
                 if (checkStop()) {
                     return false;
                 }
-                if (file.isDirectory()) {
-                    continue;
-                }
-                String name = AbstractDir.normalizePath(file.getAbsolutePath());
-                FileItem fileItem = fileItems.get(name);
-                if (fileItem == null) {
-                    // never seen until now
-                    fileItems.put(name, new FileItem(file));
-                    fileItemsChanged = true;
-                    continue;
+                fileItemsChanged = checkOneFile(fileItemsChanged, file);
+            }
+        } catch (Throwable e) {
+            setThreadName();
+            logger.error("Issue during Directory and File Checking", e);
+            // ignore
+        }
+        return fileItemsChanged;
+    }
+
+    /**
+     * @param fileItemsChanged
+     * @param file
+     * @return True if one file at least has changed
+     */
+    protected boolean checkOneFile(boolean fileItemsChanged, File file) {
+        String name = AbstractDir.normalizePath(file.getAbsolutePath());
+        FileItem fileItem = fileItems.get(name);
+        if (fileItem == null) {
+            if (itemIndex != null && itemIndex.contains(name)) {
+                // already used so ignore
+                return fileItemsChanged;
+            }
+            // never seen until now
+            if (file instanceof FileMonitorScanner.ScannedFile) {
+                file = ((FileMonitorScanner.ScannedFile) file).getFile();
+            }
+            fileItems.put(name, new FileItem(file));
+            changedItems.add(name);
+            return true;
+        }
+        if (fileItem.used) {
+            // already used so ignore
+            return fileItemsChanged;
+        }
+        // the scanned file gives the time and size read while listing
+        long lastTimeModified = file.lastModified();
+        long length = file.length();
+        if (lastTimeModified != fileItem.lastTime || length != fileItem.length) {
+            // changed or second time check
+            fileItem.lastTime = lastTimeModified;
+            fileItem.length = length;
+            changedItems.add(name);
+            return true;
+        }
+        // now check Hash or third time
+        try {
+            if (stabilityCheck != StabilityCheck.SIZE_TIME) {
+                byte[] hash = getStabilityHash(fileItem.file, length);
+                if (hash == null || fileItem.hash == null) {
+                    fileItem.hash = hash;
+                    changedItems.add(name);
+                    return true;
                 }
-                if (fileItem.used) {
-                    // already used so ignore
-                    continue;
+                if (!Arrays.equals(hash, fileItem.hash)) {
+                    fileItem.hash = hash;
+                    changedItems.add(name);
+                    return true;
                 }
-                long lastTimeModified = fileItem.file.lastModified();
-                if (lastTimeModified != fileItem.lastTime) {
-                    // changed or second time check
-                    fileItem.lastTime = lastTimeModified;
-                    fileItemsChanged = true;
-                    continue;
+            }
+            if (checkStop()) {
+                return false;
+            }
+            // now time and hash are the same so act on it
+            fileItem.timeUsed = System.currentTimeMillis();
+            changedItems.add(name);
+            if (commandValidFileFactory != null) {
+                FileMonitorCommandRunnableFuture torun = commandValidFileFactory.create(fileItem);
+                if (executor != null) {
+                    Future<?> torunFuture = executor.submit(torun);
+                    results.add(torunFuture);
+                } else {
+                    torun.run(fileItem);
                 }
-                // now check Hash or third time
-                try {
-                    byte[] hash = FilesystemBasedDigest.getHash(fileItem.file, true, digest);
-                    if (hash == null || fileItem.hash == null) {
-                        fileItem.hash = hash;
-                        fileItemsChanged = true;
-                        continue;
-                    }
-                    if (!Arrays.equals(hash, fileItem.hash)) {
-                        fileItem.hash = hash;
-                        fileItemsChanged = true;
-                        continue;
-                    }
-                    if (checkStop()) {
-                        return false;
-                    }
-                    // now time and hash are the same so act on it
-                    fileItem.timeUsed = System.currentTimeMillis();
-                    if (commandValidFileFactory != null) {
-                        FileMonitorCommandRunnableFuture torun = commandValidFileFactory.create(fileItem);
-                        if (executor != null) {
-                            Future<?> torunFuture = executor.submit(torun);
-                            results.add(torunFuture);
-                        } else {
-                            torun.run(fileItem);
-                        }
-                    } else if (commandValidFile != null) {
-                        commandValidFile.run(fileItem);
-                    } else {
-                        toUse.add(fileItem);
+            } else if (commandValidFile != null) {
+                commandValidFile.run(fileItem);
+            } else {
+                toUse.add(fileItem);
+            }
+            fileItemsChanged = true;
+        } catch (Throwable e) {
+            setThreadName();
+            logger.error("Error during final file check", e);
+            return fileItemsChanged;
+        }
+        return fileItemsChanged;
+    }
+
+    /**
+     * 
+     * @param file
+     * @param length
+     *            the current length of the file
+     * @return the hash used to check the stability of this file, according to stabilityCheck
+     * @throws IOException
+     */
+    protected byte[] getStabilityHash(File file, long length) throws IOException {
+        if (stabilityCheck == StabilityCheck.FULL_HASH ||
+                length <= (long) sampleBlockSize * (sampleBlocks + 2)) {
+            bytesHashed += length;
+            return FilesystemBasedDigest.getHash(file, true, digest);
+        }
+        return getSampledHash(file, length);
+    }
+
+    /**
+     * 
+     * @param file
+     * @param length
+     *            the current length of the file
+     * @return the hash of the length, the head, the tail and the middle blocks of the file
+     * @throws IOException
+     */
+    protected byte[] getSampledHash(File file, long length) throws IOException {
+        if (sampleBuffer == null || sampleBuffer.capacity() != sampleBlockSize) {
+            sampleBuffer = ByteBuffer.allocate(sampleBlockSize);
+        }
+        FilesystemBasedTransferDigest transferDigest = new FilesystemBasedTransferDigest(digest);
+        ByteBuffer lengthBuffer = ByteBuffer.allocate(8);
+        lengthBuffer.putLong(length).flip();
+        transferDigest.update(lengthBuffer);
+        FileInputStream inputStream = new FileInputStream(file);
+        try {
+            FileChannel fileChannel = inputStream.getChannel();
+            long last = length - sampleBlockSize;
+            for (int i = 0; i <= sampleBlocks + 1; i++) {
+                // head, middle blocks evenly spread, then tail
+                long position = last * i / (sampleBlocks + 1);
+                sampleBuffer.clear();
+                while (sampleBuffer.hasRemaining()) {
+                    if (fileChannel.read(sampleBuffer, position + sampleBuffer.position()) < 0) {
+                        // truncated in between
+                        return null;
                     }
-                    fileItemsChanged = true;
-                } catch (Throwable e) {
-                    setThreadName();
-                    logger.error("Error during final file check", e);
-                    continue;
                 }
+                sampleBuffer.flip();
+                transferDigest.update(sampleBuffer);
+                bytesHashed += sampleBlockSize;
             }
-            if (scanSubDir) {
-                files = directory.listFiles();
-                for (File file : files) {
-                    if (checkStop()) {
-                        return false;
-                    }
-                    if (file.isDirectory()) {
-                        fileItemsChanged = checkOneDir(fileItemsChanged, file);
+        } finally {
+            inputStream.close();
+        }
+        return transferDigest.finish().get(digest);
+    }
+
+    /**
+     * 
+     * @return True if all directories have to be listed (always if no WatchService is used)
+     */
+    protected boolean isFullScanNeeded() {
+        if (watcher == null) {
+            return true;
+        }
+        long now = System.currentTimeMillis();
+        if (watcher.isOverflow() || now - lastFullScan >= fullScanTime) {
+            lastFullScan = now;
+            // events received until now are covered by this scan
+            watcher.drainFiles();
+            watcher.drainDirectories();
+            watcher.drainDeletedFiles();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Check only the new directories, the files created or modified according to the WatchService
+     * and the files not yet stable
+     * 
+     * @param fileItemsChanged
+     * @return True if one file at least has changed
+     */
+    protected boolean checkEvents(boolean fileItemsChanged) {
+        try {
+            Set<File> files = new HashSet<File>(watcher.drainFiles());
+            for (FileItem fileItem : fileItems.values()) {
+                if (!fileItem.used && fileItem.file != null) {
+                    files.add(fileItem.file);
+                }
+            }
+            for (File directory : watcher.drainDirectories()) {
+                // files within are checked once, by the scan of this new directory
+                String prefix = directory.getAbsolutePath() + File.separator;
+                Iterator<File> iterator = files.iterator();
+                while (iterator.hasNext()) {
+                    if (iterator.next().getAbsolutePath().startsWith(prefix)) {
+                        iterator.remove();
                     }
                 }
+                fileItemsChanged = checkOneDir(fileItemsChanged, directory);
+            }
+            for (File file : files) {
+                if (checkStop()) {
+                    return false;
+                }
+                if (file.isDirectory() || !filter.accept(file)) {
+                    continue;
+                }
+                fileItemsChanged = checkOneFile(fileItemsChanged, file);
             }
         } catch (Throwable e) {
             setThreadName();
-            logger.error("Issue during Directory and File Checking", e);
+            logger.error("Issue during File Checking", e);
             // ignore
         }
         return fileItemsChanged;
@@ -784,6 +1369,8 @@ public class FileMonitor {
         public AtomicLong globalerror;
         public AtomicLong todayok;
         public AtomicLong todayerror;
+        public long lastScanDuration;
+        public long lastScanBytesHashed;
 
         public FileMonitorInformation() {
             // empty constructor for JSON
@@ -820,6 +1407,7 @@ public class FileMonitor {
         public File file;
         public byte[] hash = null;
         public long lastTime = Long.MIN_VALUE;
+        public long length = -1;
         public long timeUsed = Long.MIN_VALUE;
         public boolean used = false;
         public long specialId = DbConstant.ILLEGALVALUE;
@@ -854,7 +1442,7 @@ public class FileMonitor {
         public boolean isStrictlySame(FileItem item) {
             return (item != null) &&
                     file.equals(item.file) && (lastTime == item.lastTime) &&
-                    (timeUsed == item.timeUsed) && (used == item.used) &&
+                    (length == item.length) && (timeUsed == item.timeUsed) && (used == item.used) &&
                     (hash != null ? Arrays.equals(hash, item.hash) : item.hash == null);
         }
 
@@ -863,6 +1451,7 @@ public class FileMonitor {
             FileItem clone = new FileItem(file);
             clone.hash = hash;
             clone.lastTime = lastTime;
+            clone.length = length;
             clone.timeUsed = timeUsed;
             clone.used = used;
             clone.specialId = specialId;
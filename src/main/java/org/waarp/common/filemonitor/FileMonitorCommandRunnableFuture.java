@@ -105,6 +105,9 @@ public abstract class FileMonitorCommandRunnableFuture implements Runnable {
                 getMonitor().todayerror.incrementAndGet();
             }
         }
+        if (getMonitor() != null) {
+            getMonitor().setChanged(getFileItem());
+        }
     }
 
     public void cancel() {
@@ -0,0 +1,586 @@
+/**
+   This file is part of Waarp Project.
+
+   Copyright 2009, Frederic Bregier, and individual contributors by the @author
+   tags. See the COPYRIGHT.txt in the distribution for a full listing of
+   individual contributors.
+
+   All Waarp Project is free software: you can redistribute it and/or 
+   modify it under the terms of the GNU General Public License as published 
+   by the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   Waarp is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with Waarp .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.filemonitor;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.waarp.common.filemonitor.FileMonitor.FileItem;
+
+/**
+ * Compact index of the file items already used by a FileMonitor, which are most of the tracked
+ * files in archive like directories.
+ * 
+ * Items are stored as struct of arrays: the parent directories are interned, the names are kept
+ * as UTF-8 bytes in one pool, times, length and special id are primitive arrays and the hash has
+ * a fixed width. An open addressing table of ints gives the slot of a path. FileItems are only
+ * created as views on demand.
+ * 
+ * @author "Frederic Bregier"
+ *
+ */
+public class FileMonitorItemIndex {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int MAX_NAME_LENGTH = 65535;
+    private static final byte USED = 1;
+    private static final byte REPORTED = 2;
+    private static final byte FREE = 4;
+
+    private final List<String> dirs = new ArrayList<String>();
+    private final Map<String, Integer> dirIds = new HashMap<String, Integer>();
+    private final Set<String> removedReported = new HashSet<String>();
+    private int hashWidth;
+    private int count = 0;
+    private int slots = 0;
+    private int freeSlots = 0;
+    private int[] table;
+    private int[] dirOf;
+    private int[] nameOffset;
+    private char[] nameLength;
+    private long[] lastTime;
+    private long[] length;
+    private long[] timeUsed;
+    private long[] specialId;
+    private byte[] hashLength;
+    private byte[] hashes;
+    private byte[] flags;
+    private byte[] names;
+    private int namesSize = 0;
+
+    /**
+     * @param hashWidth
+     *            the expected length of the hashes (extended if needed)
+     */
+    public FileMonitorItemIndex(int hashWidth) {
+        this.hashWidth = Math.max(hashWidth, 0);
+        allocate(INITIAL_CAPACITY, INITIAL_CAPACITY * 16);
+        table = new int[INITIAL_CAPACITY * 2];
+    }
+
+    private void allocate(int capacity, int namesCapacity) {
+        dirOf = new int[capacity];
+        nameOffset = new int[capacity];
+        nameLength = new char[capacity];
+        lastTime = new long[capacity];
+        length = new long[capacity];
+        timeUsed = new long[capacity];
+        specialId = new long[capacity];
+        hashLength = new byte[capacity];
+        hashes = new byte[capacity * hashWidth];
+        flags = new byte[capacity];
+        names = new byte[namesCapacity];
+    }
+
+    private static int grow(int current, int needed) {
+        int size = Math.max(current + (current >> 2), needed);
+        return size < 0 ? Integer.MAX_VALUE - 8 : size;
+    }
+
+    private void ensureSlots(int needed) {
+        if (needed <= flags.length) {
+            return;
+        }
+        int capacity = grow(flags.length, needed);
+        dirOf = Arrays.copyOf(dirOf, capacity);
+        nameOffset = Arrays.copyOf(nameOffset, capacity);
+        nameLength = Arrays.copyOf(nameLength, capacity);
+        lastTime = Arrays.copyOf(lastTime, capacity);
+        length = Arrays.copyOf(length, capacity);
+        timeUsed = Arrays.copyOf(timeUsed, capacity);
+        specialId = Arrays.copyOf(specialId, capacity);
+        hashLength = Arrays.copyOf(hashLength, capacity);
+        hashes = Arrays.copyOf(hashes, capacity * hashWidth);
+        flags = Arrays.copyOf(flags, capacity);
+    }
+
+    private void ensureNames(int needed) {
+        if (needed > names.length) {
+            names = Arrays.copyOf(names, grow(names.length, needed));
+        }
+    }
+
+    private void ensureHashWidth(int width) {
+        if (width <= hashWidth) {
+            return;
+        }
+        byte[] newHashes = new byte[flags.length * width];
+        for (int slot = 0; slot < slots; slot++) {
+            System.arraycopy(hashes, slot * hashWidth, newHashes, slot * width, hashWidth);
+        }
+        hashes = newHashes;
+        hashWidth = width;
+    }
+
+    /**
+     * 
+     * @param key
+     * @return the position of the last separator of the key, the directory part including it
+     */
+    private static int split(String key) {
+        return key.lastIndexOf('/') + 1;
+    }
+
+    private static int hash(int dir, byte[] bytes, int offset, int len) {
+        int h = dir * 0x9E3779B9;
+        for (int i = offset; i < offset + len; i++) {
+            h = 31 * h + bytes[i];
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private int hashOfSlot(int slot) {
+        return hash(dirOf[slot], names, nameOffset[slot], nameLength[slot]);
+    }
+
+    /**
+     * 
+     * @param dir
+     * @param name
+     * @return the position in the table of this entry, or -(insertion position) - 1
+     */
+    private int find(int dir, byte[] name) {
+        int mask = table.length - 1;
+        int pos = hash(dir, name, 0, name.length) & mask;
+        while (table[pos] != 0) {
+            int slot = table[pos] - 1;
+            if (dirOf[slot] == dir && nameLength[slot] == name.length &&
+                    sameName(slot, name)) {
+                return pos;
+            }
+            pos = (pos + 1) & mask;
+        }
+        return -pos - 1;
+    }
+
+    private boolean sameName(int slot, byte[] name) {
+        int offset = nameOffset[slot];
+        for (int i = 0; i < name.length; i++) {
+            if (names[offset + i] != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 
+     * @param key
+     * @return the slot of this key, or -1
+     */
+    private int slotOf(String key) {
+        int sep = split(key);
+        Integer dir = dirIds.get(key.substring(0, sep));
+        if (dir == null) {
+            return -1;
+        }
+        int pos = find(dir, key.substring(sep).getBytes(UTF8));
+        return pos < 0 ? -1 : table[pos] - 1;
+    }
+
+    private void rehash(int size) {
+        table = new int[size];
+        int mask = size - 1;
+        for (int slot = 0; slot < slots; slot++) {
+            if ((flags[slot] & FREE) != 0) {
+                continue;
+            }
+            int pos = hashOfSlot(slot) & mask;
+            while (table[pos] != 0) {
+                pos = (pos + 1) & mask;
+            }
+            table[pos] = slot + 1;
+        }
+    }
+
+    /**
+     * Add or replace an item
+     * 
+     * @param key
+     * @param item
+     * @param reported
+     *            True if this item, as is, was already given in a status
+     * @return False if this item cannot be indexed
+     */
+    public synchronized boolean put(String key, FileItem item, boolean reported) {
+        int sep = split(key);
+        byte[] name = key.substring(sep).getBytes(UTF8);
+        if (item.file == null || name.length > MAX_NAME_LENGTH) {
+            return false;
+        }
+        String dirName = key.substring(0, sep);
+        Integer dir = dirIds.get(dirName);
+        if (dir == null) {
+            dir = dirs.size();
+            dirs.add(dirName);
+            dirIds.put(dirName, dir);
+        }
+        int pos = find(dir, name);
+        int slot;
+        if (pos >= 0) {
+            slot = table[pos] - 1;
+        } else {
+            ensureSlots(slots + 1);
+            ensureNames(namesSize + name.length);
+            slot = slots++;
+            dirOf[slot] = dir;
+            nameOffset[slot] = namesSize;
+            nameLength[slot] = (char) name.length;
+            System.arraycopy(name, 0, names, namesSize, name.length);
+            namesSize += name.length;
+            table[-pos - 1] = slot + 1;
+            count++;
+            if (count * 4 >= table.length * 3) {
+                rehash(table.length * 2);
+            }
+        }
+        lastTime[slot] = item.lastTime;
+        length[slot] = item.length;
+        timeUsed[slot] = item.timeUsed;
+        specialId[slot] = item.specialId;
+        byte[] hash = item.hash;
+        if (hash == null) {
+            hashLength[slot] = -1;
+        } else {
+            ensureHashWidth(hash.length);
+            hashLength[slot] = (byte) hash.length;
+            System.arraycopy(hash, 0, hashes, slot * hashWidth, hash.length);
+        }
+        flags[slot] = (byte) ((item.used ? USED : 0) | (reported ? REPORTED : 0));
+        return true;
+    }
+
+    /**
+     * 
+     * @param key
+     * @return True if this key is indexed
+     */
+    public synchronized boolean contains(String key) {
+        return slotOf(key) >= 0;
+    }
+
+    /**
+     * 
+     * @param key
+     * @return a new FileItem with the values of this key, or null if not indexed
+     */
+    public synchronized FileItem get(String key) {
+        int slot = slotOf(key);
+        return slot < 0 ? null : getItem(slot);
+    }
+
+    /**
+     * 
+     * @param key
+     * @return True if this key was indexed
+     */
+    public synchronized boolean remove(String key) {
+        int sep = split(key);
+        Integer dir = dirIds.get(key.substring(0, sep));
+        if (dir == null) {
+            return false;
+        }
+        int pos = find(dir, key.substring(sep).getBytes(UTF8));
+        if (pos < 0) {
+            return false;
+        }
+        int slot = table[pos] - 1;
+        if ((flags[slot] & REPORTED) != 0) {
+            removedReported.add(key);
+        }
+        flags[slot] = FREE;
+        count--;
+        freeSlots++;
+        // backward shift deletion
+        int mask = table.length - 1;
+        int hole = pos;
+        int next = pos;
+        while (true) {
+            next = (next + 1) & mask;
+            if (table[next] == 0) {
+                break;
+            }
+            int home = hashOfSlot(table[next] - 1) & mask;
+            if (next > hole ? (home <= hole || home > next) : (home <= hole && home > next)) {
+                table[hole] = table[next];
+                hole = next;
+            }
+        }
+        table[hole] = 0;
+        if (freeSlots > INITIAL_CAPACITY && freeSlots > slots / 2) {
+            compact();
+        }
+        return true;
+    }
+
+    /**
+     * Reclaim the slots and names of the removed items
+     */
+    private void compact() {
+        int[] oldDirOf = dirOf;
+        int[] oldNameOffset = nameOffset;
+        char[] oldNameLength = nameLength;
+        long[] oldLastTime = lastTime;
+        long[] oldLength = length;
+        long[] oldTimeUsed = timeUsed;
+        long[] oldSpecialId = specialId;
+        byte[] oldHashLength = hashLength;
+        byte[] oldHashes = hashes;
+        byte[] oldFlags = flags;
+        byte[] oldNames = names;
+        int oldSlots = slots;
+        int capacity = Math.max(INITIAL_CAPACITY, count + (count >> 1));
+        int namesCapacity = 0;
+        for (int slot = 0; slot < oldSlots; slot++) {
+            if ((oldFlags[slot] & FREE) == 0) {
+                namesCapacity += oldNameLength[slot];
+            }
+        }
+        allocate(capacity, Math.max(INITIAL_CAPACITY, namesCapacity + (namesCapacity >> 1)));
+        slots = 0;
+        namesSize = 0;
+        for (int slot = 0; slot < oldSlots; slot++) {
+            if ((oldFlags[slot] & FREE) != 0) {
+                continue;
+            }
+            int target = slots++;
+            dirOf[target] = oldDirOf[slot];
+            nameOffset[target] = namesSize;
+            nameLength[target] = oldNameLength[slot];
+            System.arraycopy(oldNames, oldNameOffset[slot], names, namesSize,
+                    oldNameLength[slot]);
+            namesSize += oldNameLength[slot];
+            lastTime[target] = oldLastTime[slot];
+            length[target] = oldLength[slot];
+            timeUsed[target] = oldTimeUsed[slot];
+            specialId[target] = oldSpecialId[slot];
+            hashLength[target] = oldHashLength[slot];
+            System.arraycopy(oldHashes, slot * hashWidth, hashes, target * hashWidth, hashWidth);
+            flags[target] = oldFlags[slot];
+        }
+        freeSlots = 0;
+        rehash(table.length);
+    }
+
+    /**
+     * 
+     * @return the number of indexed items
+     */
+    public synchronized int size() {
+        return count;
+    }
+
+    /**
+     * 
+     * @return the number of slots, including the free ones (for getKey and getItem)
+     */
+    public synchronized int getSlots() {
+        return slots;
+    }
+
+    /**
+     * 
+     * @param slot
+     * @return the key of this slot, or null if free
+     */
+    public synchronized String getKey(int slot) {
+        if (slot >= slots || (flags[slot] & FREE) != 0) {
+            return null;
+        }
+        return dirs.get(dirOf[slot]) + new String(names, nameOffset[slot], nameLength[slot], UTF8);
+    }
+
+    /**
+     * 
+     * @param slot
+     * @return a new FileItem with the values of this slot, or null if free
+     */
+    public synchronized FileItem getItem(int slot) {
+        String key = getKey(slot);
+        if (key == null) {
+            return null;
+        }
+        FileItem item = new FileItem(new File(key));
+        item.lastTime = lastTime[slot];
+        item.length = length[slot];
+        item.timeUsed = timeUsed[slot];
+        item.specialId = specialId[slot];
+        item.used = (flags[slot] & USED) != 0;
+        if (hashLength[slot] >= 0) {
+            item.hash = Arrays.copyOfRange(hashes, slot * hashWidth, slot * hashWidth +
+                    hashLength[slot]);
+        }
+        return item;
+    }
+
+    /**
+     * Add the items not yet given in a status and mark them as given
+     * 
+     * @param items
+     */
+    public synchronized void collectUnreported(Map<String, FileItem> items) {
+        for (int slot = 0; slot < slots; slot++) {
+            if ((flags[slot] & (FREE | REPORTED)) == 0) {
+                items.put(getKey(slot), getItem(slot));
+                flags[slot] |= REPORTED;
+            }
+        }
+    }
+
+    /**
+     * 
+     * @return the keys of the items removed since given in a status
+     */
+    public synchronized Set<String> drainRemovedReported() {
+        Set<String> removed = new HashSet<String>(removedReported);
+        removedReported.clear();
+        return removed;
+    }
+
+    /**
+     * Such that the next status gives all the items
+     */
+    public synchronized void clearReported() {
+        for (int slot = 0; slot < slots; slot++) {
+            flags[slot] &= ~REPORTED;
+        }
+        removedReported.clear();
+    }
+
+    /**
+     * 
+     * @return an estimation of the memory used by this index in bytes
+     */
+    public synchronized long getMemorySize() {
+        long size = table.length * 4L + flags.length * (4L + 4 + 2 + 8 * 4 + 1 + 1) +
+                hashes.length + names.length;
+        for (String dir : dirs) {
+            // string in both the list and the map
+            size += 2L * dir.length() + 100;
+        }
+        return size;
+    }
+
+    /**
+     * 
+     * @param active
+     *            the items not indexed
+     * @return a read only Map of the active items then the indexed ones (as views)
+     */
+    public Map<String, FileItem> asMap(final Map<String, FileItem> active) {
+        return new AbstractMap<String, FileItem>() {
+            @Override
+            public FileItem get(Object key) {
+                FileItem item = active.get(key);
+                if (item == null && key instanceof String) {
+                    item = FileMonitorItemIndex.this.get((String) key);
+                }
+                return item;
+            }
+
+            @Override
+            public boolean containsKey(Object key) {
+                return active.containsKey(key) ||
+                        (key instanceof String && contains((String) key));
+            }
+
+            @Override
+            public int size() {
+                return active.size() + FileMonitorItemIndex.this.size();
+            }
+
+            @Override
+            public Set<Entry<String, FileItem>> entrySet() {
+                return new AbstractSet<Entry<String, FileItem>>() {
+                    @Override
+                    public int size() {
+                        return active.size() + FileMonitorItemIndex.this.size();
+                    }
+
+                    @Override
+                    public Iterator<Entry<String, FileItem>> iterator() {
+                        return new EntryIterator(active.entrySet().iterator());
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Iterator on the active items then on the slots of the index
+     */
+    private class EntryIterator implements Iterator<Entry<String, FileItem>> {
+        private final Iterator<Entry<String, FileItem>> active;
+        private int slot = 0;
+        private Entry<String, FileItem> next = null;
+
+        private EntryIterator(Iterator<Entry<String, FileItem>> active) {
+            this.active = active;
+        }
+
+        public boolean hasNext() {
+            if (next != null) {
+                return true;
+            }
+            if (active.hasNext()) {
+                next = active.next();
+                return true;
+            }
+            synchronized (FileMonitorItemIndex.this) {
+                while (slot < slots) {
+                    String key = getKey(slot);
+                    if (key != null) {
+                        next = new AbstractMap.SimpleImmutableEntry<String, FileItem>(key,
+                                getItem(slot++));
+                        return true;
+                    }
+                    slot++;
+                }
+            }
+            return false;
+        }
+
+        public Entry<String, FileItem> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Entry<String, FileItem> entry = next;
+            next = null;
+            return entry;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
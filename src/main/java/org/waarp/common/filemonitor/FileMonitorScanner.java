@@ -0,0 +1,222 @@
+/**
+   This file is part of Waarp Project.
+
+   Copyright 2009, Frederic Bregier, and individual contributors by the @author
+   tags. See the COPYRIGHT.txt in the distribution for a full listing of
+   individual contributors.
+
+   All Waarp Project is free software: you can redistribute it and/or 
+   modify it under the terms of the GNU General Public License as published 
+   by the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   Waarp is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with Waarp .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.filemonitor;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+
+/**
+ * Fork-join scanner of the monitored directories: each directory is listed once, with one
+ * attribute read per entry, and the sub directories are scanned in parallel.
+ * 
+ * The found files are given as ScannedFile, whose attributes are those read during the scan, such
+ * that the filter and the first check of the FileMonitor do not access the file system again.
+ * 
+ * @author "Frederic Bregier"
+ *
+ */
+public class FileMonitorScanner {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(FileMonitorScanner.class);
+
+    protected final ForkJoinPool pool;
+
+    /**
+     * @param parallelism
+     *            number of threads listing directories in parallel
+     */
+    public FileMonitorScanner(int parallelism) {
+        this.pool = new ForkJoinPool(Math.max(parallelism, 1));
+    }
+
+    /**
+     * Scan the given directories
+     * 
+     * @param directories
+     * @param filter
+     *            filter of the files (directories are not given to the filter)
+     * @param recursive
+     *            True if the sub directories are scanned too
+     * @return the accepted files found
+     */
+    public List<File> scan(List<File> directories, FileFilter filter, boolean recursive) {
+        Queue<File> found = new ConcurrentLinkedQueue<File>();
+        List<ScanTask> tasks = new ArrayList<ScanTask>(directories.size());
+        for (File directory : directories) {
+            tasks.add(new ScanTask(directory.toPath(), filter, recursive, found));
+        }
+        pool.invoke(new ScanAllTask(tasks));
+        return new ArrayList<File>(found);
+    }
+
+    /**
+     * Stop the threads of this scanner
+     */
+    public void close() {
+        pool.shutdownNow();
+    }
+
+    /**
+     * Scan of several directories
+     */
+    protected static class ScanAllTask extends RecursiveAction {
+        private static final long serialVersionUID = 7062934720373917340L;
+        private final List<ScanTask> tasks;
+
+        protected ScanAllTask(List<ScanTask> tasks) {
+            this.tasks = tasks;
+        }
+
+        @Override
+        protected void compute() {
+            invokeAll(tasks);
+        }
+    }
+
+    /**
+     * Scan of one directory, forking the scan of its sub directories
+     */
+    protected static class ScanTask extends RecursiveAction {
+        private static final long serialVersionUID = -2217546209816785069L;
+        private final Path directory;
+        private final FileFilter filter;
+        private final boolean recursive;
+        private final Queue<File> found;
+
+        protected ScanTask(Path directory, FileFilter filter, boolean recursive,
+                Queue<File> found) {
+            this.directory = directory;
+            this.filter = filter;
+            this.recursive = recursive;
+            this.found = found;
+        }
+
+        @Override
+        protected void compute() {
+            List<ScanTask> subdirs = null;
+            DirectoryStream<Path> stream = null;
+            try {
+                stream = Files.newDirectoryStream(directory);
+                for (Path path : stream) {
+                    BasicFileAttributes attributes;
+                    try {
+                        attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                    } catch (IOException e) {
+                        // removed in between
+                        continue;
+                    }
+                    if (attributes.isDirectory()) {
+                        if (recursive) {
+                            if (subdirs == null) {
+                                subdirs = new ArrayList<ScanTask>();
+                            }
+                            subdirs.add(new ScanTask(path, filter, recursive, found));
+                        }
+                        continue;
+                    }
+                    File file = new ScannedFile(path.toString(), attributes);
+                    if (filter.accept(file)) {
+                        found.add(file);
+                    }
+                }
+            } catch (IOException e) {
+                logger.warn("Cannot list directory " + directory + ": " + e.getMessage());
+            } finally {
+                if (stream != null) {
+                    try {
+                        stream.close();
+                    } catch (IOException e) {
+                    }
+                }
+            }
+            if (subdirs != null) {
+                invokeAll(subdirs);
+            }
+        }
+    }
+
+    /**
+     * File whose attributes are those read during the scan
+     */
+    public static class ScannedFile extends File {
+        private static final long serialVersionUID = -4466120917469716316L;
+        private final boolean isFile;
+        private final long lastModified;
+        private final long length;
+
+        protected ScannedFile(String pathname, BasicFileAttributes attributes) {
+            super(pathname);
+            this.isFile = attributes.isRegularFile();
+            this.lastModified = attributes.lastModifiedTime().toMillis();
+            this.length = attributes.size();
+        }
+
+        @Override
+        public boolean exists() {
+            return true;
+        }
+
+        @Override
+        public boolean isFile() {
+            return isFile;
+        }
+
+        @Override
+        public boolean isDirectory() {
+            return false;
+        }
+
+        @Override
+        public long lastModified() {
+            return lastModified;
+        }
+
+        @Override
+        public long length() {
+            return length;
+        }
+
+        /**
+         * 
+         * @return the same file without the attributes read during the scan
+         */
+        public File getFile() {
+            return new File(getPath());
+        }
+    }
+}
@@ -0,0 +1,387 @@
+/**
+   This file is part of Waarp Project.
+
+   Copyright 2009, Frederic Bregier, and individual contributors by the @author
+   tags. See the COPYRIGHT.txt in the distribution for a full listing of
+   individual contributors.
+
+   All Waarp Project is free software: you can redistribute it and/or 
+   modify it under the terms of the GNU General Public License as published 
+   by the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   Waarp is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with Waarp .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.filemonitor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.zip.CRC32;
+
+import org.waarp.common.filemonitor.FileMonitor.FileItem;
+
+/**
+ * Incremental store of the status of a FileMonitor: a binary snapshot of all the items plus an
+ * append only journal of the items changed or removed since this snapshot.
+ * 
+ * Each save appends only the changed items, and the journal is compacted into a new snapshot once
+ * it holds more records than the snapshot. Both files carry a generation, such that a journal
+ * left by a compaction interrupted before its reset is ignored. A torn last record of the journal
+ * is dropped at load time.
+ * 
+ * @author "Frederic Bregier"
+ *
+ */
+public class FileMonitorStatusStore {
+    /**
+     * Minimal number of records in the journal before a compaction
+     */
+    public static int compactMinRecords = 10000;
+
+    protected static final int SNAPSHOT_MAGIC = 0x57464d53; // WFMS
+    protected static final int JOURNAL_MAGIC = 0x57464d4a; // WFMJ
+    protected static final int VERSION = 1;
+    protected static final int HEADER_SIZE = 16;
+    /**
+     * Length, CRC32 of a record
+     */
+    protected static final int RECORD_HEADER_SIZE = 12;
+    /**
+     * Maximum size of the content of a record (2 UTF strings of at most 64KB and a hash), such
+     * that a corrupted length is rejected before any allocation
+     */
+    protected static final int MAX_RECORD_SIZE = 256 * 1024;
+    protected static final byte PUT = 1;
+    protected static final byte REMOVE = 2;
+
+    protected final File snapshotFile;
+    protected final File journalFile;
+    protected long generation = 0;
+    protected long journalRecords = 0;
+    protected DataOutputStream journal = null;
+    private final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(256);
+    private final DataOutputStream record = new DataOutputStream(recordBytes);
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * @param statusFile
+     *            the status file of the FileMonitor, used as base name of the snapshot and the
+     *            journal
+     */
+    public FileMonitorStatusStore(File statusFile) {
+        this.snapshotFile = new File(statusFile.getAbsolutePath() + ".snap");
+        this.journalFile = new File(statusFile.getAbsolutePath() + ".jnl");
+    }
+
+    /**
+     * 
+     * @return True if a snapshot exists
+     */
+    public boolean exists() {
+        return snapshotFile.isFile();
+    }
+
+    /**
+     * 
+     * @return the number of records in the current journal
+     */
+    public long getJournalRecords() {
+        return journalRecords;
+    }
+
+    /**
+     * Load the snapshot then replay the journal
+     * 
+     * @param items
+     *            the map to fill
+     * @throws IOException
+     */
+    public synchronized void load(Map<String, FileItem> items) throws IOException {
+        DataInputStream input = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(snapshotFile)));
+        try {
+            generation = readHeader(input, SNAPSHOT_MAGIC);
+            long count = input.readLong();
+            long remaining = snapshotFile.length() - HEADER_SIZE - 8;
+            for (long i = 0; i < count; i++) {
+                int size = readRecord(input, items, remaining);
+                if (size < 0) {
+                    throw new IOException("Corrupted status snapshot: " + snapshotFile);
+                }
+                remaining -= size;
+            }
+        } finally {
+            input.close();
+        }
+        journalRecords = 0;
+        if (!journalFile.isFile()) {
+            return;
+        }
+        long valid = HEADER_SIZE;
+        input = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+        try {
+            if (readHeader(input, JOURNAL_MAGIC) != generation) {
+                // already in the snapshot
+                valid = 0;
+            } else {
+                long remaining = journalFile.length() - HEADER_SIZE;
+                int size;
+                while ((size = readRecord(input, items, remaining)) > 0) {
+                    valid += size;
+                    remaining -= size;
+                    journalRecords++;
+                }
+            }
+        } catch (IOException e) {
+            valid = 0;
+        } finally {
+            input.close();
+        }
+        if (valid == 0) {
+            resetJournal();
+        } else if (valid < journalFile.length()) {
+            // drop a torn last record
+            RandomAccessFile raf = new RandomAccessFile(journalFile, "rw");
+            try {
+                raf.setLength(valid);
+            } finally {
+                raf.close();
+            }
+        }
+    }
+
+    private static long readHeader(DataInputStream input, int magic) throws IOException {
+        if (input.readInt() != magic || input.readInt() != VERSION) {
+            throw new IOException("Not a status file");
+        }
+        return input.readLong();
+    }
+
+    /**
+     * Read one record and apply it to the map
+     * 
+     * @param input
+     * @param items
+     * @param remaining
+     *            the number of bytes left in the file
+     * @return the full size of the record, or -1 if none or if it is torn or invalid
+     */
+    private int readRecord(DataInputStream input, Map<String, FileItem> items, long remaining) {
+        if (remaining < RECORD_HEADER_SIZE) {
+            return -1;
+        }
+        byte[] bytes;
+        try {
+            int length = input.readInt();
+            long checksum = input.readLong();
+            // a torn or corrupted length is not allocated
+            if (length <= 0 || length > MAX_RECORD_SIZE ||
+                    length > remaining - RECORD_HEADER_SIZE) {
+                return -1;
+            }
+            bytes = new byte[length];
+            input.readFully(bytes);
+            crc.reset();
+            crc.update(bytes, 0, length);
+            if (crc.getValue() != checksum) {
+                return -1;
+            }
+        } catch (EOFException e) {
+            return -1;
+        } catch (IOException e) {
+            return -1;
+        }
+        int size = RECORD_HEADER_SIZE + bytes.length;
+        try {
+            DataInputStream data = new DataInputStream(new ByteArrayInputStream(bytes));
+            byte type = data.readByte();
+            String key = data.readUTF();
+            if (type == REMOVE) {
+                items.remove(key);
+                return size;
+            }
+            FileItem item = new FileItem(new File(data.readUTF()));
+            int hashLength = data.readInt();
+            if (hashLength >= 0) {
+                item.hash = new byte[hashLength];
+                data.readFully(item.hash);
+            }
+            item.lastTime = data.readLong();
+            item.timeUsed = data.readLong();
+            item.used = data.readBoolean();
+            item.specialId = data.readLong();
+            if (data.available() >= 8) {
+                item.length = data.readLong();
+            }
+            items.put(key, item);
+            return size;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Write one record as length, CRC32 and content
+     * 
+     * @param output
+     * @param key
+     * @param item
+     *            null for a removed item
+     * @throws IOException
+     */
+    private void writeRecord(DataOutputStream output, String key, FileItem item)
+            throws IOException {
+        recordBytes.reset();
+        if (item == null || item.file == null) {
+            record.writeByte(REMOVE);
+            record.writeUTF(key);
+        } else {
+            record.writeByte(PUT);
+            record.writeUTF(key);
+            record.writeUTF(item.file.getPath());
+            byte[] hash = item.hash;
+            if (hash == null) {
+                record.writeInt(-1);
+            } else {
+                record.writeInt(hash.length);
+                record.write(hash);
+            }
+            record.writeLong(item.lastTime);
+            record.writeLong(item.timeUsed);
+            record.writeBoolean(item.used);
+            record.writeLong(item.specialId);
+            record.writeLong(item.length);
+        }
+        record.flush();
+        if (recordBytes.size() > MAX_RECORD_SIZE) {
+            throw new IOException("Status record too large for " + key);
+        }
+        crc.reset();
+        crc.update(recordBytes.toByteArray(), 0, recordBytes.size());
+        output.writeInt(recordBytes.size());
+        output.writeLong(crc.getValue());
+        recordBytes.writeTo(output);
+    }
+
+    /**
+     * Append the changed items to the journal, and compact it if needed
+     * 
+     * @param changed
+     *            the keys of the changed or removed items
+     * @param items
+     *            all the current items
+     * @throws IOException
+     */
+    public synchronized void save(Collection<String> changed, Map<String, FileItem> items)
+            throws IOException {
+        if (journalRecords + changed.size() > Math.max(compactMinRecords, items.size())) {
+            compact(items);
+            return;
+        }
+        if (changed.isEmpty()) {
+            return;
+        }
+        if (journal == null) {
+            if (!journalFile.isFile()) {
+                resetJournal();
+            }
+            journal = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(
+                    journalFile, true)));
+        }
+        for (String key : changed) {
+            writeRecord(journal, key, items.get(key));
+            journalRecords++;
+        }
+        journal.flush();
+    }
+
+    /**
+     * Write a new snapshot of all the items and start an empty journal
+     * 
+     * @param items
+     * @throws IOException
+     */
+    public synchronized void compact(Map<String, FileItem> items) throws IOException {
+        closeJournal();
+        File tmp = new File(snapshotFile.getAbsolutePath() + ".tmp");
+        FileOutputStream outputStream = new FileOutputStream(tmp);
+        try {
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(outputStream));
+            output.writeInt(SNAPSHOT_MAGIC);
+            output.writeInt(VERSION);
+            output.writeLong(generation + 1);
+            List<Entry<String, FileItem>> entries =
+                    new ArrayList<Entry<String, FileItem>>(items.entrySet());
+            output.writeLong(entries.size());
+            for (Entry<String, FileItem> entry : entries) {
+                writeRecord(output, entry.getKey(), entry.getValue());
+            }
+            output.flush();
+            outputStream.getFD().sync();
+        } finally {
+            outputStream.close();
+        }
+        Files.move(tmp.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        generation++;
+        resetJournal();
+    }
+
+    /**
+     * Start an empty journal for the current generation
+     * 
+     * @throws IOException
+     */
+    private void resetJournal() throws IOException {
+        closeJournal();
+        DataOutputStream output = new DataOutputStream(new FileOutputStream(journalFile));
+        try {
+            output.writeInt(JOURNAL_MAGIC);
+            output.writeInt(VERSION);
+            output.writeLong(generation);
+        } finally {
+            output.close();
+        }
+        journalRecords = 0;
+    }
+
+    private void closeJournal() {
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+            }
+            journal = null;
+        }
+    }
+
+    /**
+     * Close the journal (reopened by the next save)
+     */
+    public synchronized void close() {
+        closeJournal();
+    }
+}
@@ -0,0 +1,263 @@
+/**
+   This file is part of Waarp Project.
+
+   Copyright 2009, Frederic Bregier, and individual contributors by the @author
+   tags. See the COPYRIGHT.txt in the distribution for a full listing of
+   individual contributors.
+
+   All Waarp Project is free software: you can redistribute it and/or 
+   modify it under the terms of the GNU General Public License as published 
+   by the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   Waarp is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with Waarp .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.filemonitor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.common.utility.WaarpThreadFactory;
+
+/**
+ * WatchService based notification of the created, modified and deleted files of the monitored
+ * directories, such that the FileMonitor only checks those files instead of listing all the
+ * directories at each step.
+ * 
+ * New sub directories are registered (in recursive mode) and reported to be scanned, since files
+ * may be created before their registration. An overflow of events, the deletion of a watched
+ * directory, or a directory no more watchable, is reported such that the FileMonitor does a full
+ * scan.
+ * 
+ * @author "Frederic Bregier"
+ *
+ */
+public class FileMonitorWatcher {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(FileMonitorWatcher.class);
+
+    protected final WatchService watchService;
+    protected final boolean recursive;
+    protected final Map<WatchKey, Path> keys = new ConcurrentHashMap<WatchKey, Path>();
+    /**
+     * Reverse of keys, to know at once if a deleted path was a watched directory
+     */
+    protected final Map<Path, WatchKey> paths = new ConcurrentHashMap<Path, WatchKey>();
+    protected final Set<File> changedFiles =
+            Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+    protected final Set<File> changedDirectories =
+            Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+    protected final Set<File> deletedFiles =
+            Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+    protected volatile boolean overflow = false;
+    protected final Thread thread;
+
+    /**
+     * @param name
+     *            name of the FileMonitor
+     * @param recursive
+     *            True if the sub directories are monitored too
+     * @throws IOException
+     *             if the WatchService cannot be created
+     */
+    public FileMonitorWatcher(String name, boolean recursive) throws IOException {
+        this.watchService = FileSystems.getDefault().newWatchService();
+        this.recursive = recursive;
+        thread = new WaarpThreadFactory("FileMonitorWatcher_" + name).newThread(new Runnable() {
+            public void run() {
+                processEvents();
+            }
+        });
+        thread.start();
+    }
+
+    /**
+     * Register a directory (and its sub directories in recursive mode)
+     * 
+     * @param directory
+     */
+    public void register(File directory) {
+        try {
+            Path path = directory.toPath().toAbsolutePath().normalize();
+            WatchKey key = path.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+            keys.put(key, path);
+            paths.put(path, key);
+        } catch (IOException e) {
+            logger.warn("Cannot watch directory " + directory + ", full scans only: " +
+                    e.getMessage());
+            overflow = true;
+            return;
+        } catch (ClosedWatchServiceException e) {
+            return;
+        }
+        if (recursive) {
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    if (file.isDirectory()) {
+                        register(file);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Stop watching a directory and its sub directories
+     * 
+     * @param directory
+     */
+    public void unregister(File directory) {
+        Path root = directory.toPath().toAbsolutePath().normalize();
+        Iterator<Entry<WatchKey, Path>> iterator = keys.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Entry<WatchKey, Path> entry = iterator.next();
+            if (entry.getValue().startsWith(root)) {
+                entry.getKey().cancel();
+                paths.remove(entry.getValue());
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Events loop
+     */
+    protected void processEvents() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException e) {
+                return;
+            } catch (ClosedWatchServiceException e) {
+                return;
+            }
+            Path directory = keys.get(key);
+            if (directory != null) {
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        overflow = true;
+                        continue;
+                    }
+                    Path path = directory.resolve((Path) event.context());
+                    File file = path.toFile();
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                        if (paths.containsKey(path)) {
+                            // the files within are no more watched
+                            overflow = true;
+                        } else {
+                            deletedFiles.add(file);
+                        }
+                        continue;
+                    }
+                    if (file.isDirectory()) {
+                        if (recursive && event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                            register(file);
+                            changedDirectories.add(file);
+                        }
+                        continue;
+                    }
+                    changedFiles.add(file);
+                }
+            }
+            if (!key.reset()) {
+                // deleted or no more accessible: its content is checked by a full scan
+                Path removed = keys.remove(key);
+                if (removed != null) {
+                    paths.remove(removed, key);
+                }
+                overflow = true;
+            }
+        }
+    }
+
+    /**
+     * 
+     * @return True (once) if some events were lost, such that a full scan is needed
+     */
+    public boolean isOverflow() {
+        if (overflow) {
+            overflow = false;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 
+     * @return the files created or modified since the last call
+     */
+    public List<File> drainFiles() {
+        return drain(changedFiles);
+    }
+
+    /**
+     * 
+     * @return the new directories to scan since the last call
+     */
+    public List<File> drainDirectories() {
+        return drain(changedDirectories);
+    }
+
+    /**
+     * 
+     * @return the files deleted since the last call (possibly created again since)
+     */
+    public List<File> drainDeletedFiles() {
+        return drain(deletedFiles);
+    }
+
+    private static List<File> drain(Set<File> set) {
+        List<File> list = new ArrayList<File>();
+        Iterator<File> iterator = set.iterator();
+        while (iterator.hasNext()) {
+            list.add(iterator.next());
+            iterator.remove();
+        }
+        return list;
+    }
+
+    /**
+     * Stop watching
+     */
+    public void close() {
+        try {
+            watchService.close();
+        } catch (IOException e) {
+        }
+        thread.interrupt();
+        keys.clear();
+        paths.clear();
+        changedFiles.clear();
+        changedDirectories.clear();
+        deletedFiles.clear();
+    }
+}
@@ -0,0 +1,119 @@
+package org.waarp.common.file;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.EnumMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.waarp.common.digest.FilesystemBasedDigest.DigestAlgo;
+
+public class DigestCacheTest {
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("digestcache", ".dat");
+        write(file, 10);
+        DigestCache.clear();
+    }
+
+    @After
+    public void tearDown() {
+        DigestCache.enabled = true;
+        DigestCache.capacity = 10000;
+        DigestCache.ttl = 24L * 3600 * 1000;
+        DigestCache.clear();
+        file.delete();
+    }
+
+    private static void write(File file, int size) throws Exception {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[size]);
+        } finally {
+            out.close();
+        }
+    }
+
+    @Test
+    public void testPutGet() {
+        byte[] digest = new byte[] {
+                1, 2, 3 };
+        DigestCache.Stamp stamp = new DigestCache.Stamp(file);
+        assertTrue(DigestCache.put(file, stamp, DigestAlgo.MD5, digest));
+        assertArrayEquals(digest, DigestCache.get(file, DigestAlgo.MD5));
+        assertNull(DigestCache.get(file, DigestAlgo.SHA1));
+        // a copy is returned
+        DigestCache.get(file, DigestAlgo.MD5)[0] = 9;
+        assertArrayEquals(digest, DigestCache.get(file, DigestAlgo.MD5));
+        DigestCache.invalidate(file);
+        assertNull(DigestCache.get(file, DigestAlgo.MD5));
+    }
+
+    @Test
+    public void testChangedWhileHashing() throws Exception {
+        DigestCache.Stamp stamp = new DigestCache.Stamp(file);
+        // written while the digests were computed
+        write(file, 20);
+        Map<DigestAlgo, byte[]> digests = new EnumMap<DigestAlgo, byte[]>(DigestAlgo.class);
+        digests.put(DigestAlgo.MD5, new byte[] {
+                1 });
+        assertFalse(DigestCache.put(file, stamp, digests));
+        assertNull(DigestCache.get(file, DigestAlgo.MD5));
+    }
+
+    @Test
+    public void testChangedAfterPut() throws Exception {
+        DigestCache.Stamp stamp = new DigestCache.Stamp(file);
+        assertTrue(DigestCache.put(file, stamp, DigestAlgo.MD5, new byte[] {
+                1 }));
+        write(file, 30);
+        assertNull(DigestCache.get(file, DigestAlgo.MD5));
+    }
+
+    @Test
+    public void testDisabled() {
+        DigestCache.enabled = false;
+        DigestCache.put("/disabled", 10, 1000, DigestAlgo.MD5, new byte[] {
+                1 });
+        assertEquals(0, DigestCache.size());
+        assertNull(DigestCache.get("/disabled", 10, 1000, DigestAlgo.MD5));
+    }
+
+    @Test
+    public void testCapacity() {
+        DigestCache.capacity = 100;
+        byte[] digest = new byte[] {
+                1 };
+        DigestCache.put("/kept", 10, 1000, DigestAlgo.MD5, digest);
+        for (int i = 0; i < 1000; i++) {
+            DigestCache.put("/file" + i, 10, 1000, DigestAlgo.MD5, digest);
+            // the most recently used
+            assertArrayEquals(digest, DigestCache.get("/kept", 10, 1000, DigestAlgo.MD5));
+            assertTrue(DigestCache.size() <= 100);
+        }
+        assertArrayEquals(digest, DigestCache.get("/file999", 10, 1000, DigestAlgo.MD5));
+        assertNull(DigestCache.get("/file0", 10, 1000, DigestAlgo.MD5));
+    }
+
+    @Test
+    public void testTtl() throws Exception {
+        DigestCache.ttl = 50;
+        DigestCache.put("/expired", 10, 1000, DigestAlgo.MD5, new byte[] {
+                1 });
+        assertArrayEquals(new byte[] {
+                1 }, DigestCache.get("/expired", 10, 1000, DigestAlgo.MD5));
+        Thread.sleep(100);
+        assertNull(DigestCache.get("/expired", 10, 1000, DigestAlgo.MD5));
+        assertEquals(0, DigestCache.size());
+    }
+}
@@ -0,0 +1,45 @@
+package org.waarp.common.file;
+
+import java.util.List;
+
+import org.junit.Test;
+import org.waarp.common.file.SegmentMap.Segment;
+
+import static org.junit.Assert.*;
+
+public class SegmentMapTest {
+
+    @Test
+    public void testMerge() {
+        SegmentMap map = new SegmentMap();
+        map.add(100, 200);
+        map.add(300, 400);
+        assertEquals("two ranges", "100-200,300-400", map.toString());
+        map.add(200, 300);
+        assertEquals("adjacent ranges merged", "100-400", map.toString());
+        map.add(50, 150);
+        map.add(350, 500);
+        assertEquals("overlapping ranges merged", "50-500", map.toString());
+        map.add(60, 70);
+        assertEquals("included range ignored", "50-500", map.toString());
+        assertEquals("completed bytes", 450, map.getCompleted());
+        assertTrue("contains", map.contains(100, 500));
+        assertFalse("does not contain", map.contains(0, 100));
+    }
+
+    @Test
+    public void testMissing() {
+        SegmentMap map = new SegmentMap("0-100,200-300");
+        List<Segment> missing = map.getMissing(400);
+        assertEquals("missing ranges", 2, missing.size());
+        assertEquals("first missing", "100-200", missing.get(0).toString());
+        assertEquals("last missing", "300-400", missing.get(1).toString());
+        assertEquals("split missing", 4, map.split(400, 60).size());
+        assertFalse("not complete", map.isComplete(400));
+        map.add(100, 200);
+        map.add(300, 400);
+        assertTrue("complete", map.isComplete(400));
+        assertTrue("nothing missing", map.getMissing(400).isEmpty());
+        assertEquals("reload", map.toString(), new SegmentMap(map.toString()).toString());
+    }
+}
@@ -0,0 +1,188 @@
+package org.waarp.common.file.filesystembased;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.waarp.common.command.exception.CommandAbstractException;
+import org.waarp.common.file.DataBlock;
+
+public class FilesystemBasedAsyncFileImplTest {
+    private static class TestAsyncFile extends FilesystemBasedAsyncFileImpl {
+        TestAsyncFile(FilesystemBasedTestSession session, String path)
+                throws CommandAbstractException {
+            super(session, session.getDir(), path, false);
+        }
+
+        public boolean isReady() {
+            return isReady;
+        }
+
+        public void setReady() {
+            isReady = true;
+        }
+    }
+
+    private File root;
+    private FilesystemBasedTestSession session;
+
+    @BeforeClass
+    public static void setUpClass() {
+        // a single I/O thread, running both the operations and their completions
+        FilesystemBasedFileParameterImpl.asyncIoThreads = 1;
+    }
+
+    @Before
+    public void setUp() {
+        root = new File(System.getProperty("java.io.tmpdir"), "asyncfiletest" + System.nanoTime());
+        assertTrue(root.mkdirs());
+        session = new FilesystemBasedTestSession(root);
+    }
+
+    @After
+    public void tearDown() {
+        session.clear();
+        File[] files = root.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        root.delete();
+    }
+
+    private static byte[] content(File file) throws Exception {
+        byte[] content = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < content.length) {
+                read += in.read(content, read, content.length - read);
+            }
+        } finally {
+            in.close();
+        }
+        return content;
+    }
+
+    private static DataBlock block(ByteBuf buffer, boolean eof) {
+        DataBlock block = new DataBlock();
+        block.setBlock(buffer);
+        block.setEOF(eof);
+        return block;
+    }
+
+    @Test
+    public void testWriteCloseWithOneThread() throws Exception {
+        byte[] content = new byte[64 * 1024];
+        new Random(7).nextBytes(content);
+        for (int i = 0; i < 20; i++) {
+            TestAsyncFile file = new TestAsyncFile(session, "/async" + i);
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int pos = 0; pos < content.length; pos += 8192) {
+                ByteBuf buffer = Unpooled.copiedBuffer(content, pos, 8192);
+                futures.add(file.writeDataBlockAsync(block(buffer, pos + 8192 >= content.length)));
+                buffer.release();
+                // positional operations still pending when the last block is written
+                futures.add(file.writeDataBlockAsync(pos, block(Unpooled.copiedBuffer(content,
+                        pos, 8192), false)));
+            }
+            for (Future<?> future : futures) {
+                assertTrue("Blocked on close", future.await(10, TimeUnit.SECONDS));
+                assertTrue(future.isSuccess());
+            }
+            // closed by the completion of the last operation
+            assertFalse(file.isInWriting());
+            assertArrayEquals(content, content(new File(root, "async" + i)));
+        }
+    }
+
+    @Test
+    public void testChainFailure() throws Exception {
+        TestAsyncFile file = new TestAsyncFile(session, "/missing");
+        Future<DataBlock> read = file.readDataBlockAsync();
+        ByteBuf first = Unpooled.wrappedBuffer(new byte[100]);
+        Future<Void> write = file.writeDataBlockAsync(block(first, false));
+        first.release();
+        ByteBuf second = Unpooled.wrappedBuffer(new byte[100]);
+        Future<Void> next = file.writeDataBlockAsync(block(second, true));
+        second.release();
+        assertTrue(next.await(10, TimeUnit.SECONDS));
+        assertFalse(read.isSuccess());
+        // the writes after the failed read are not done
+        assertFalse(write.isSuccess());
+        assertFalse(next.isSuccess());
+        assertFalse(new File(root, "missing").exists());
+        assertEquals(0, first.refCnt());
+        assertEquals(0, second.refCnt());
+        file.closeFile();
+    }
+
+    @Test
+    public void testReadClosedAtEof() throws Exception {
+        byte[] content = new byte[3 * 8192 + 100];
+        new Random(8).nextBytes(content);
+        File real = new File(root, "read");
+        FileOutputStream out = new FileOutputStream(real);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+        TestAsyncFile file = new TestAsyncFile(session, "/read");
+        file.setReady();
+        List<Future<DataBlock>> futures = new ArrayList<Future<DataBlock>>();
+        for (int i = 0; i < 4; i++) {
+            futures.add(file.readDataBlockAsync());
+        }
+        for (int i = 0; i < 4; i++) {
+            assertTrue(futures.get(i).await(10, TimeUnit.SECONDS));
+            DataBlock block = futures.get(i).getNow();
+            assertEquals(i == 3, block.isEOF());
+            block.getBlock().release();
+        }
+        // closed by the last block, without any call to closeFile
+        assertFalse(file.isInReading());
+        assertFalse(file.isReady());
+    }
+
+    @Test
+    public void testCloseFileAsync() throws Exception {
+        TestAsyncFile file = new TestAsyncFile(session, "/closed");
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (int i = 0; i < 10; i++) {
+            futures.add(file.writeDataBlockAsync(block(Unpooled.wrappedBuffer(new byte[1000]),
+                    false)));
+        }
+        // requested while the writes are pending, completed once they are done
+        Future<Void> close = file.closeFileAsync();
+        assertTrue(close.await(10, TimeUnit.SECONDS));
+        assertTrue(close.isSuccess());
+        for (Future<Void> future : futures) {
+            assertTrue(future.isSuccess());
+        }
+        assertFalse(file.isInWriting());
+        assertEquals(10000, new File(root, "closed").length());
+        // nothing pending
+        close = file.closeFileAsync();
+        assertTrue(close.await(10, TimeUnit.SECONDS));
+        assertTrue(close.isSuccess());
+    }
+}
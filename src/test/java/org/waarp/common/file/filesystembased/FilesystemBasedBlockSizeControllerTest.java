@@ -0,0 +1,53 @@
+package org.waarp.common.file.filesystembased;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class FilesystemBasedBlockSizeControllerTest {
+
+    /**
+     * Simulated link whose throughput is best with blocks of 256 KB
+     */
+    private static long cycle(int size) {
+        double best = 256 * 1024;
+        double distance = Math.abs(Math.log(size / best) / Math.log(2));
+        double throughput = 100e6 / (1 + distance);
+        return (long) (size * 1e9 / throughput);
+    }
+
+    @Test
+    public void testConvergence() {
+        FilesystemBasedBlockSizeController controller = new FilesystemBasedBlockSizeController(
+                16 * 1024, 8 * 1024, 4 * 1024 * 1024);
+        long now = 1;
+        controller.onBlock(0, now);
+        for (int i = 0; i < 20000; i++) {
+            int size = controller.getBlockSize();
+            now += cycle(size);
+            controller.onBlock(size, now);
+        }
+        int size = controller.getBlockSize();
+        assertTrue("size " + size, size >= 128 * 1024 && size <= 512 * 1024);
+        assertTrue(controller.getThroughput() > 40e6);
+        assertTrue(controller.getChanges() > 0);
+    }
+
+    @Test
+    public void testBounds() {
+        FilesystemBasedBlockSizeController controller = new FilesystemBasedBlockSizeController(
+                1024 * 1024, 8 * 1024, 64 * 1024);
+        assertEquals(64 * 1024, controller.getBlockSize());
+        long now = 1;
+        controller.onBlock(0, now);
+        for (int i = 0; i < 5000; i++) {
+            int size = controller.getBlockSize();
+            assertTrue(size >= 8 * 1024 && size <= 64 * 1024);
+            // bigger is always better
+            now += 1000000;
+            controller.onBlock(size, now);
+        }
+        assertTrue(controller.getBlockSize() >= 32 * 1024);
+    }
+}
@@ -0,0 +1,57 @@
+package org.waarp.common.file.filesystembased;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FilesystemBasedDigestEngineTest {
+
+    @Test
+    public void testCrc32Combine() {
+        byte[] bytes = new byte[100000];
+        new Random(42).nextBytes(bytes);
+        CRC32 full = new CRC32();
+        full.update(bytes);
+        for (int split : new int[] {
+                0, 1, 4096, 50000, 99999, 100000 }) {
+            CRC32 first = new CRC32();
+            first.update(bytes, 0, split);
+            CRC32 second = new CRC32();
+            second.update(bytes, split, bytes.length - split);
+            assertEquals("combine at " + split, full.getValue(),
+                    FilesystemBasedDigestEngine.crc32Combine(first.getValue(),
+                            second.getValue(), bytes.length - split));
+        }
+    }
+
+    @Test
+    public void testParallelCrc32() throws IOException {
+        byte[] bytes = new byte[3 * 1024 * 1024 + 17];
+        new Random(7).nextBytes(bytes);
+        File file = File.createTempFile("digest", ".dat");
+        file.deleteOnExit();
+        FileOutputStream outputStream = new FileOutputStream(file);
+        try {
+            outputStream.write(bytes);
+        } finally {
+            outputStream.close();
+        }
+        CRC32 full = new CRC32();
+        full.update(bytes);
+        int parallelism = FilesystemBasedDigestEngine.parallelism;
+        try {
+            FilesystemBasedDigestEngine.parallelism = 4;
+            assertEquals("parallel crc32", full.getValue(),
+                    FilesystemBasedDigestEngine.getParallelCrc32(file));
+        } finally {
+            FilesystemBasedDigestEngine.parallelism = parallelism;
+            file.delete();
+        }
+    }
+}
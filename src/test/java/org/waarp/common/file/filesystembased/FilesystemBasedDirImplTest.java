@@ -0,0 +1,173 @@
+package org.waarp.common.file.filesystembased;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.waarp.common.command.exception.CommandAbstractException;
+import org.waarp.common.file.DirListingHandler;
+import org.waarp.common.file.OptsMLSxInterface;
+
+public class FilesystemBasedDirImplTest {
+    private File root;
+    private FilesystemBasedTestSession session;
+
+    @Before
+    public void setUp() throws Exception {
+        root = new File(System.getProperty("java.io.tmpdir"), "dirimpltest" + System.nanoTime());
+        assertTrue(root.mkdirs());
+        session = new FilesystemBasedTestSession(root);
+        createFile("file");
+        assertTrue(createFile("readonly").setWritable(false));
+        assertTrue(createFile("script").setExecutable(true));
+        assertTrue(new File(root, "sub").mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        session.clear();
+        File[] files = root.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        root.delete();
+    }
+
+    private File createFile(String name) throws Exception {
+        File file = new File(root, name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[123]);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    /**
+     *
+     * @param line
+     * @return the name at the end of a listing line
+     */
+    private static String getName(String line) {
+        int pos = Math.max(line.lastIndexOf('\t'), line.lastIndexOf(' '));
+        return line.substring(pos + 1);
+    }
+
+    @Test
+    public void testListStreamed() throws Exception {
+        final List<String> streamed = new ArrayList<String>();
+        session.getDir().list("/", new DirListingHandler() {
+            public void onLine(CharSequence line) {
+                streamed.add(line.toString());
+            }
+        });
+        List<String> names = new ArrayList<String>();
+        for (String line : streamed) {
+            names.add(getName(line));
+        }
+        Collections.sort(names);
+        assertEquals("[file, readonly, script, sub]", names.toString());
+        assertEquals(streamed.size(), session.getDir().list("/").size());
+    }
+
+    @Test
+    public void testListFullLsPermissions() throws CommandAbstractException {
+        List<String> lines = session.getDir().listFull("/", true);
+        assertEquals(4, lines.size());
+        for (String line : lines) {
+            File file = new File(root, getName(line));
+            // the rights of the user running the server, as File gives them
+            String expected = (file.isDirectory() ? "d" : "-") + (file.canRead() ? 'r' : '-') +
+                    (file.canWrite() ? 'w' : '-') + (file.canExecute() ? 'x' : '-');
+            assertEquals(line, expected, line.substring(0, 4));
+            assertTrue(line, line.contains(file.isDirectory() ? "\t" : "\t123\t"));
+        }
+    }
+
+    @Test
+    public void testListFullMlsxPermissions() throws CommandAbstractException {
+        OptsMLSxInterface opts = session.getDir().getOptsMLSx();
+        opts.setOptsSize((byte) 1);
+        opts.setOptsModify((byte) 0);
+        opts.setOptsType((byte) 1);
+        opts.setOptsPerm((byte) 1);
+        Map<String, String> lines = new HashMap<String, String>();
+        for (String line : session.getDir().listFull("/", false)) {
+            lines.put(getName(line), line);
+        }
+        assertEquals(4, lines.size());
+        File readonly = new File(root, "readonly");
+        assertEquals(" Size=123;Type=file;Perm=" + (readonly.canWrite() ? "adfw" : "") + "r; " +
+                "readonly", lines.get("readonly"));
+        assertEquals(" Size=123;Type=file;Perm=adfwr; file", lines.get("file"));
+        assertTrue(lines.get("sub"), lines.get("sub").contains(";Type=dir;Perm=c"));
+    }
+
+    /**
+     * 
+     * @param path
+     * @param user
+     * @param group
+     * @return the rwx rights of the user computed from the attributes of the path
+     */
+    private static String rights(Path path, String user, String group) throws IOException {
+        PosixFileAttributes attributes = Files.readAttributes(path, PosixFileAttributes.class);
+        return (FilesystemBasedDirImpl.hasPermission(path, attributes,
+                PosixFilePermission.OWNER_READ, user, group) ? "r" : "-") +
+                (FilesystemBasedDirImpl.hasPermission(path, attributes,
+                        PosixFilePermission.OWNER_WRITE, user, group) ? "w" : "-") +
+                (FilesystemBasedDirImpl.hasPermission(path, attributes,
+                        PosixFilePermission.OWNER_EXECUTE, user, group) ? "x" : "-");
+    }
+
+    @Test
+    public void testPermissionFromAttributes() throws Exception {
+        Path path = new File(root, "file").toPath();
+        Assume.assumeTrue(Files.getFileStore(path).supportsFileAttributeView("posix"));
+        UserPrincipal owner;
+        try {
+            owner = path.getFileSystem().getUserPrincipalLookupService()
+                    .lookupPrincipalByName("nobody");
+            Files.setOwner(path, owner);
+        } catch (IOException e) {
+            owner = null;
+        }
+        Assume.assumeTrue(owner != null);
+        String group = Files.readAttributes(path, PosixFileAttributes.class).group().getName();
+        Files.setPosixFilePermissions(path, PosixFilePermissions.fromString("rw-r-x--x"));
+        assertEquals("rw-", rights(path, "nobody", null));
+        assertEquals("r-x", rights(path, "someone", group));
+        assertEquals("--x", rights(path, "someone", "othergroup"));
+        assertEquals("rwx", rights(path, "root", null));
+        Files.setPosixFilePermissions(path, PosixFilePermissions.fromString("r--r--r--"));
+        assertEquals("rw-", rights(path, "root", null));
+        Path sub = new File(root, "sub").toPath();
+        Files.setPosixFilePermissions(sub, PosixFilePermissions.fromString("---------"));
+        assertEquals("rwx", rights(sub, "root", null));
+        assertFalse(FilesystemBasedDirImpl.hasPermission(sub,
+                Files.readAttributes(sub, PosixFileAttributes.class),
+                PosixFilePermission.OWNER_READ, "someone", null));
+    }
+}
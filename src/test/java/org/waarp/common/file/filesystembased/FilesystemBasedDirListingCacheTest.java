@@ -0,0 +1,56 @@
+package org.waarp.common.file.filesystembased;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.waarp.common.file.filesystembased.FilesystemBasedDirListingCache.ListingEntry;
+
+public class FilesystemBasedDirListingCacheTest {
+
+    @Test
+    public void testCache() throws Exception {
+        Path dir = Files.createTempDirectory("listing");
+        FilesystemBasedDirListingCache cache = new FilesystemBasedDirListingCache(10, 100,
+                60000, true);
+        try {
+            List<ListingEntry> entries = new ArrayList<ListingEntry>();
+            assertNull(cache.get(dir));
+            long generation = cache.prepare(dir);
+            assertTrue(cache.put(dir, entries, generation));
+            assertNotNull(cache.get(dir));
+            assertEquals(0.5, cache.getHitRatio(), 0.001);
+            // a change during the read prevents the put
+            generation = cache.prepare(dir);
+            cache.invalidate(dir);
+            assertFalse(cache.put(dir, entries, generation));
+            // a change in the directory drops the listing
+            assertTrue(cache.put(dir, entries, cache.prepare(dir)));
+            File file = new File(dir.toFile(), "file");
+            assertTrue(file.createNewFile());
+            for (int i = 0; i < 100 && cache.size() > 0; i++) {
+                Thread.sleep(50);
+            }
+            assertEquals(0, cache.size());
+            // a change between prepare and put is seen, the directory being already watched
+            generation = cache.prepare(dir);
+            assertTrue(file.delete());
+            for (int i = 0; i < 100 && generation == cache.prepare(dir); i++) {
+                Thread.sleep(50);
+            }
+            assertFalse(cache.put(dir, entries, generation));
+        } finally {
+            cache.close();
+            Files.delete(dir);
+        }
+    }
+}
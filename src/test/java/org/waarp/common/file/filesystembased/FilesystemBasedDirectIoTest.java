@@ -0,0 +1,51 @@
+package org.waarp.common.file.filesystembased;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeNotNull;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import org.junit.Test;
+
+public class FilesystemBasedDirectIoTest {
+
+    @Test
+    public void testWriteRestartRead() throws Exception {
+        File file = File.createTempFile("directio", ".bin");
+        try {
+            byte[] content = new byte[3 * 4096 + 1234];
+            new Random(1).nextBytes(content);
+            FilesystemBasedDirectIo direct = FilesystemBasedDirectIo.open(file, true, 0, 8192);
+            // not available on all filesystems
+            assumeNotNull(direct);
+            direct.write(Unpooled.wrappedBuffer(content, 0, 5000));
+            direct.close(false);
+            assertEquals(5000, file.length());
+            // restart on an unaligned position
+            direct = FilesystemBasedDirectIo.open(file, true, 4500, 8192);
+            direct.write(Unpooled.wrappedBuffer(content, 4500, content.length - 4500));
+            assertEquals(content.length, direct.getLength());
+            direct.close(true);
+            assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+
+            direct = FilesystemBasedDirectIo.open(file, false, 100, 8192);
+            ByteBuf buffer = Unpooled.buffer(content.length);
+            assertEquals(10000, direct.read(buffer, 10000));
+            assertEquals(content.length - 10100, direct.read(buffer, 10000));
+            assertEquals(0, direct.read(buffer, 10000));
+            direct.close(false);
+            byte[] read = new byte[buffer.readableBytes()];
+            buffer.readBytes(read);
+            assertArrayEquals(Arrays.copyOfRange(content, 100, content.length), read);
+        } finally {
+            file.delete();
+        }
+    }
+}
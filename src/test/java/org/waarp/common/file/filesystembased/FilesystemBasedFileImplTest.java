@@ -0,0 +1,505 @@
+package org.waarp.common.file.filesystembased;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.FileRegion;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.waarp.common.digest.FilesystemBasedDigest.DigestAlgo;
+import org.waarp.common.exception.FileEndOfTransferException;
+import org.waarp.common.file.DataBlock;
+import org.waarp.common.file.filesystembased.FilesystemBasedTestSession.TestFile;
+
+public class FilesystemBasedFileImplTest {
+    private File root;
+    private File journals;
+    private FilesystemBasedTestSession session;
+
+    @Before
+    public void setUp() {
+        long id = System.nanoTime();
+        root = new File(System.getProperty("java.io.tmpdir"), "fileimpltest" + id);
+        assertTrue(root.mkdirs());
+        journals = new File(System.getProperty("java.io.tmpdir"), "fileimplckpt" + id);
+        session = new FilesystemBasedTestSession(root);
+    }
+
+    @After
+    public void tearDown() {
+        session.clear();
+        delete(root);
+        delete(journals);
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private File createFile(String name, int size) throws Exception {
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        File file = new File(root, name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static byte[] content(File file) throws Exception {
+        byte[] content = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < content.length) {
+                read += in.read(content, read, content.length - read);
+            }
+        } finally {
+            in.close();
+        }
+        return content;
+    }
+
+    /**
+     * Write the given part of the content block by block as a receiver does
+     */
+    private static void write(TestFile file, byte[] content, int from, int to, boolean eof)
+            throws Exception {
+        for (int pos = from; pos < to; pos += 4096) {
+            int length = Math.min(4096, to - pos);
+            ByteBuf buffer = Unpooled.copiedBuffer(content, pos, length);
+            DataBlock block = new DataBlock();
+            block.setBlock(buffer);
+            block.setEOF(eof && pos + length >= to);
+            file.writeDataBlock(block);
+            buffer.release();
+        }
+    }
+
+    /**
+     * Read the whole file block by block as a sender does
+     */
+    private static byte[] readAll(TestFile file) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        while (true) {
+            DataBlock block;
+            try {
+                block = file.readDataBlock();
+            } catch (FileEndOfTransferException e) {
+                break;
+            }
+            ByteBuf buffer = block.getBlock();
+            byte[] bytes = new byte[buffer.readableBytes()];
+            buffer.readBytes(bytes);
+            out.write(bytes);
+            if (block.isEOF()) {
+                break;
+            }
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testReadPooled() throws Exception {
+        session.getFileParameter().usePooledBuffer = true;
+        File file = createFile("pooled", 5 * 8192 + 100);
+        TestFile testFile = session.newFile("pooled");
+        // the blocks are owned by the caller, so they are all kept without copy until the end
+        List<ByteBuf> buffers = new ArrayList<ByteBuf>();
+        while (true) {
+            DataBlock block;
+            try {
+                block = testFile.readDataBlock();
+            } catch (FileEndOfTransferException e) {
+                break;
+            }
+            assertTrue(block.getBlock().isDirect());
+            buffers.add(block.getBlock());
+            boolean eof = block.isEOF();
+            block.recycle();
+            assertNull(block.getBlock());
+            if (eof) {
+                break;
+            }
+        }
+        assertEquals(6, buffers.size());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (ByteBuf buffer : buffers) {
+            byte[] bytes = new byte[buffer.readableBytes()];
+            buffer.readBytes(bytes);
+            out.write(bytes);
+            assertTrue(buffer.release());
+        }
+        assertArrayEquals(content(file), out.toByteArray());
+    }
+
+    @Test
+    public void testReadMapped() throws Exception {
+        session.getFileParameter().mmapThreshold = 1;
+        // blocks straddle the windows, so that the window is remapped during the read
+        session.getFileParameter().mmapWindowSize = 20000;
+        File file = createFile("mapped", 100000 + 7);
+        byte[] content = content(file);
+        assertArrayEquals(content, readAll(session.newFile("mapped")));
+        // restarted from a position within the second window
+        TestFile testFile = session.newFile("mapped");
+        testFile.setPosition(30000);
+        assertArrayEquals(Arrays.copyOfRange(content, 30000, content.length),
+                readAll(testFile));
+        // too small for the threshold
+        session.getFileParameter().mmapThreshold = content.length + 1;
+        assertArrayEquals(content, readAll(session.newFile("mapped")));
+    }
+
+    @Test
+    public void testFileRegion() throws Exception {
+        File file = createFile("region", 50000);
+        TestFile testFile = session.newFile("region");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        WritableByteChannel channel = Channels.newChannel(out);
+        long position = 0;
+        int regions = 0;
+        while (testFile.isReady()) {
+            FileRegion region = testFile.getFileRegion(position, 20000);
+            while (region.transferred() < region.count()) {
+                region.transferTo(channel, region.transferred());
+            }
+            position += region.count();
+            regions++;
+            if (testFile.isReady()) {
+                // moved as if the blocks were read
+                assertEquals(position, testFile.getPosition());
+            }
+            assertTrue(region.release());
+        }
+        // the last region is shorter and closes the file
+        assertEquals(3, regions);
+        assertEquals(file.length(), position);
+        assertArrayEquals(content(file), out.toByteArray());
+    }
+
+    @Test
+    public void testWriteBlocksGathering() throws Exception {
+        byte[] content = new byte[30000];
+        new Random(12).nextBytes(content);
+        // a heap buffer already partly read
+        ByteBuf heap = Unpooled.wrappedBuffer(content, 0, 10010);
+        heap.skipBytes(10);
+        // a direct buffer
+        ByteBuf direct = Unpooled.directBuffer(10000);
+        direct.writeBytes(content, 10010, 10000);
+        // a composite buffer made of a heap and a direct part
+        CompositeByteBuf composite = Unpooled.compositeBuffer();
+        ByteBuf part = Unpooled.directBuffer(5000);
+        part.writeBytes(content, 25010, 4990);
+        composite.addComponents(true, Unpooled.wrappedBuffer(content, 20010, 5000), part);
+        List<DataBlock> blocks = new ArrayList<DataBlock>();
+        for (ByteBuf buffer : new ByteBuf[] {
+                heap, direct, composite }) {
+            DataBlock block = new DataBlock();
+            block.setBlock(buffer);
+            blocks.add(block);
+        }
+        blocks.get(2).setEOF(true);
+        TestFile file = session.newFile("gathering");
+        file.writeDataBlocks(blocks);
+        // consumed, and the file closed after the EOF block
+        assertEquals(0, heap.readableBytes());
+        assertEquals(0, direct.readableBytes());
+        assertEquals(0, composite.readableBytes());
+        assertFalse(file.isReady());
+        assertArrayEquals(Arrays.copyOfRange(content, 10, content.length),
+                content(new File(root, "gathering")));
+        heap.release();
+        direct.release();
+        composite.release();
+    }
+
+    /**
+     * Read the file from the current position up to the end, releasing each block once copied
+     */
+    private static void readReleased(TestFile file, ByteArrayOutputStream out) throws Exception {
+        while (true) {
+            DataBlock block;
+            try {
+                block = file.readDataBlock();
+            } catch (FileEndOfTransferException e) {
+                break;
+            }
+            byte[] bytes = new byte[block.getByteCount()];
+            block.getBlock().readBytes(bytes);
+            block.getBlock().release();
+            out.write(bytes);
+            if (block.isEOF()) {
+                break;
+            }
+        }
+    }
+
+    @Test
+    public void testReadAhead() throws Exception {
+        session.getFileParameter().readAheadDepth = 4;
+        File file = createFile("ahead", 20 * 8192 + 5);
+        byte[] content = content(file);
+        TestFile testFile = session.newFile("ahead");
+        DataBlock first = testFile.readDataBlock();
+        assertEquals(8192, first.getByteCount());
+        first.getBlock().release();
+        // the next blocks are read meanwhile
+        Thread.sleep(200);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(content, 0, 8192);
+        readReleased(testFile, out);
+        assertArrayEquals(content, out.toByteArray());
+        assertTrue(testFile.getReadAheadHits() > 0);
+        assertEquals(21, testFile.getReadAheadHits() + testFile.getReadAheadMisses());
+        // the blocks read in advance are dropped by a restart and by a change of block size
+        testFile = session.newFile("ahead");
+        testFile.readDataBlock().getBlock().release();
+        testFile.setPosition(50000);
+        DataBlock block = testFile.readDataBlock();
+        out = new ByteArrayOutputStream();
+        byte[] bytes = new byte[block.getByteCount()];
+        block.getBlock().readBytes(bytes);
+        block.getBlock().release();
+        out.write(bytes);
+        session.setBlockSize(5000);
+        readReleased(testFile, out);
+        assertArrayEquals(Arrays.copyOfRange(content, 50000, content.length),
+                out.toByteArray());
+    }
+
+    @Test
+    public void testReadAdaptiveBlockSize() throws Exception {
+        int windowBlocks = FilesystemBasedBlockSizeController.windowBlocks;
+        long windowNanos = FilesystemBasedBlockSizeController.windowNanos;
+        // one measure every 2 blocks, so that the block size grows during the transfer
+        FilesystemBasedBlockSizeController.windowBlocks = 2;
+        FilesystemBasedBlockSizeController.windowNanos = 0;
+        try {
+            File file = createFile("adaptive", 3 * 1024 * 1024 + 123);
+            session.getFileParameter().adaptiveBlockSize = true;
+            session.getFileParameter().minBlockSize = 8192;
+            session.getFileParameter().maxBlockSize = 256 * 1024;
+            TestFile testFile = session.newFile("adaptive");
+            byte[] read = readAll(testFile);
+            assertEquals(file.length(), read.length);
+            assertArrayEquals(content(file), read);
+            assertTrue(FilesystemBasedBlockSizeController.getInstance(session, 8192,
+                    256 * 1024).getChanges() > 0);
+        } finally {
+            FilesystemBasedBlockSizeController.windowBlocks = windowBlocks;
+            FilesystemBasedBlockSizeController.windowNanos = windowNanos;
+        }
+    }
+
+    @Test
+    public void testCheckpointRestart() throws Exception {
+        session.getFileParameter().checkpointBytes = 10000;
+        session.getFileParameter().checkpointDirectory = journals;
+        byte[] content = new byte[100000];
+        new Random(8).nextBytes(content);
+        TestFile file = session.newFile("ckpt");
+        write(file, content, 0, 50000, false);
+        // interrupted: the journal is kept, out of the business directory
+        file.closeFile();
+        assertArrayEquals(new String[] {
+                "ckpt" }, root.list());
+        File journal = FilesystemBasedCheckpointJournal.getJournalFile(journals,
+                new File(root, "ckpt"));
+        assertTrue(journal.isFile());
+        file = session.newFile("ckpt");
+        long checkpoint = file.getCheckpointPosition();
+        assertTrue(checkpoint > 50000 - 10000 - 4096 && checkpoint <= 50000);
+        FilesystemBasedRestartImpl restart = new FilesystemBasedRestartImpl(session) {
+            @Override
+            public boolean restartMarker(String marker) {
+                return false;
+            }
+        };
+        assertTrue(restart.restartFromCheckpoint(new File(root, "ckpt")));
+        assertEquals(checkpoint, restart.getPosition());
+        // restarted from the checkpoint up to the end
+        file.setPosition(checkpoint);
+        write(file, content, (int) checkpoint, content.length, true);
+        assertArrayEquals(content, content(new File(root, "ckpt")));
+        assertFalse(journal.exists());
+    }
+
+    @Test
+    public void testCheckpointReposition() throws Exception {
+        session.getFileParameter().checkpointBytes = 10000;
+        session.getFileParameter().checkpointDirectory = journals;
+        byte[] content = new byte[30000];
+        new Random(9).nextBytes(content);
+        TestFile file = session.newFile("reposition");
+        write(file, content, 0, 30000, false);
+        // written again from a previous position, then interrupted before the former records
+        file.setPosition(5000);
+        write(file, content, 5000, 20000, false);
+        file.closeFile();
+        // the former records are dropped and the journal goes on from the new position
+        File journal = FilesystemBasedCheckpointJournal.getJournalFile(journals,
+                new File(root, "reposition"));
+        // the first segment after the new position is verified from this position
+        assertEquals(5000 + 3 * 4096, FilesystemBasedCheckpointJournal.readLastOffset(journal,
+                new File(root, "reposition")));
+        assertEquals(5000 + 3 * 4096, session.newFile("reposition").getCheckpointPosition());
+    }
+
+    @Test
+    public void testCheckpointVerified() throws Exception {
+        session.getFileParameter().checkpointBytes = 10000;
+        session.getFileParameter().checkpointDirectory = journals;
+        byte[] content = new byte[50000];
+        new Random(10).nextBytes(content);
+        TestFile file = session.newFile("verified");
+        write(file, content, 0, content.length, false);
+        file.closeFile();
+        long checkpoint = session.newFile("verified").getCheckpointPosition();
+        assertEquals(12 * 4096, checkpoint);
+        // bytes of the last segment not on disk: restarted from the previous record
+        RandomAccessFile written = new RandomAccessFile(new File(root, "verified"), "rw");
+        try {
+            written.seek(checkpoint - 10);
+            written.write(~content[(int) checkpoint - 10]);
+        } finally {
+            written.close();
+        }
+        assertEquals(9 * 4096, session.newFile("verified").getCheckpointPosition());
+        // shorter file than the records
+        written = new RandomAccessFile(new File(root, "verified"), "rw");
+        try {
+            written.setLength(5000);
+        } finally {
+            written.close();
+        }
+        assertEquals(0, session.newFile("verified").getCheckpointPosition());
+    }
+
+    @Test
+    public void testSegmentsReadWhileWriting() throws Exception {
+        final byte[] content = new byte[256 * 1024];
+        new Random(10).nextBytes(content);
+        File source = new File(root, "source");
+        FileOutputStream out = new FileOutputStream(source);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+        final TestFile reader = session.newFile("source");
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final CountDownLatch started = new CountDownLatch(1);
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; writing.get(); i++) {
+                        started.countDown();
+                        int offset = (i * 4096) % content.length;
+                        DataBlock block = reader.readDataBlock(offset, 4096);
+                        byte[] bytes = new byte[block.getByteCount()];
+                        block.getBlock().readBytes(bytes);
+                        block.getBlock().release();
+                        assertArrayEquals(Arrays.copyOfRange(content, offset,
+                                offset + 4096), bytes);
+                    }
+                } catch (Throwable e) {
+                    error.set(e);
+                }
+            }
+        };
+        reader.readDataBlock(0, 10).getBlock().release();
+        thread.start();
+        started.await();
+        // the writable channel opened while reading the same file does not close the read one
+        for (int i = 0; i < 20; i++) {
+            ByteBuf buffer = Unpooled.copiedBuffer(content, i * 4096, 4096);
+            DataBlock block = new DataBlock();
+            block.setBlock(buffer);
+            reader.writeDataBlock(i * 4096, block);
+            buffer.release();
+        }
+        writing.set(false);
+        thread.join();
+        if (error.get() != null) {
+            throw new AssertionError(error.get());
+        }
+        reader.closeFile();
+    }
+
+    @Test
+    public void testSegmentsClosedByLastRelease() throws Exception {
+        byte[] content = new byte[20000];
+        new Random(11).nextBytes(content);
+        TestFile file = session.newFile("segments");
+        file.retainSegments();
+        file.retainSegments();
+        for (int i = 0; i < 2; i++) {
+            ByteBuf buffer = Unpooled.copiedBuffer(content, i * 10000, 10000);
+            DataBlock block = new DataBlock();
+            block.setBlock(buffer);
+            file.writeDataBlock(i * 10000, block);
+            buffer.release();
+        }
+        // one segment done: the other one goes on
+        assertFalse(file.releaseSegments());
+        assertFalse(file.closeFile());
+        assertTrue(file.isReady());
+        DataBlock block = file.readDataBlock(10000, 10000);
+        assertTrue(block.isEOF());
+        block.getBlock().release();
+        // the last one closes the file
+        assertTrue(file.releaseSegments());
+        assertFalse(file.isReady());
+        assertArrayEquals(content, content(new File(root, "segments")));
+    }
+
+    @Test
+    public void testReadDigestExactBlocks() throws Exception {
+        session.getFileParameter().transferDigestAlgos = new DigestAlgo[] {
+                DigestAlgo.MD5 };
+        // no last short block: the end is only known from the next read
+        File file = createFile("exact", 4 * 8192);
+        TestFile testFile = session.newFile("exact");
+        byte[] read = readAll(testFile);
+        assertArrayEquals(content(file), read);
+        assertArrayEquals(MessageDigest.getInstance("MD5").digest(read),
+                testFile.getTransferDigest(DigestAlgo.MD5));
+    }
+}
@@ -0,0 +1,67 @@
+package org.waarp.common.file.filesystembased;
+
+import static org.junit.Assert.assertEquals;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+public class FilesystemBasedListingFormatterTest {
+
+    @Test
+    public void testLsDate() {
+        FilesystemBasedListingFormatter formatter = FilesystemBasedListingFormatter.getInstance();
+        long now = System.currentTimeMillis();
+        SimpleDateFormat recent = new SimpleDateFormat("MMM dd HH:mm", Locale.ENGLISH);
+        SimpleDateFormat old = new SimpleDateFormat("MMM dd  yyyy", Locale.ENGLISH);
+        long[] times = new long[] {
+                now, now - 1000, now - 61000, now - 400L * 24 * 3600 * 1000,
+                now + 2L * 3600 * 1000, 0 };
+        for (long time : times) {
+            boolean isOld = now > time + 6L * 30L * 24L * 60L * 60L * 1000L ||
+                    now < time - 60L * 60L * 1000L;
+            String expected = isOld ? old.format(new Date(time)) : recent
+                    .format(new Date(time));
+            assertEquals(expected, formatter.appendLsDate(new StringBuilder(), time, now)
+                    .toString());
+        }
+    }
+
+    @Test
+    public void testModificationTime() {
+        FilesystemBasedListingFormatter formatter = FilesystemBasedListingFormatter.getInstance();
+        SimpleDateFormat format = new SimpleDateFormat("yyyyMMddHHmmss.SSS");
+        long now = System.currentTimeMillis();
+        long[] times = new long[] {
+                now, now + 7, now + 61007, 0, 1234567890123L };
+        for (long time : times) {
+            assertEquals(format.format(new Date(time)),
+                    formatter.appendModificationTime(new StringBuilder(), time).toString());
+        }
+    }
+
+    @Test
+    public void testTimeZoneChange() {
+        TimeZone initial = TimeZone.getDefault();
+        try {
+            long time = 1234567890123L;
+            TimeZone.setDefault(TimeZone.getTimeZone("UTC"));
+            assertEquals("20090213233130.123", FilesystemBasedListingFormatter.getInstance()
+                    .appendModificationTime(new StringBuilder(), time).toString());
+            assertEquals("Feb 13  2009", FilesystemBasedListingFormatter.getInstance()
+                    .appendLsDate(new StringBuilder(), time, time + 400L * 24 * 3600 * 1000)
+                    .toString());
+            // same minute, in the new default time zone of the same thread
+            TimeZone.setDefault(TimeZone.getTimeZone("Asia/Tokyo"));
+            assertEquals("20090214083130.123", FilesystemBasedListingFormatter.getInstance()
+                    .appendModificationTime(new StringBuilder(), time).toString());
+            assertEquals("Feb 14 08:31", FilesystemBasedListingFormatter.getInstance()
+                    .appendLsDate(new StringBuilder(), time, time).toString());
+        } finally {
+            TimeZone.setDefault(initial);
+        }
+    }
+}
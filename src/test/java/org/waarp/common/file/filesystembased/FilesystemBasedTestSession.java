@@ -0,0 +1,144 @@
+package org.waarp.common.file.filesystembased;
+
+import java.io.File;
+
+import org.waarp.common.command.NextCommandReply;
+import org.waarp.common.command.exception.CommandAbstractException;
+import org.waarp.common.command.exception.Reply421Exception;
+import org.waarp.common.command.exception.Reply530Exception;
+import org.waarp.common.file.AuthInterface;
+import org.waarp.common.file.DirInterface;
+import org.waarp.common.file.FileInterface;
+import org.waarp.common.file.Restart;
+import org.waarp.common.file.SessionInterface;
+
+/**
+ * Minimal session rooted in a local directory, to drive the Filesystem Based implementations
+ * from the tests
+ */
+public class FilesystemBasedTestSession implements SessionInterface {
+    private final File root;
+    private final FilesystemBasedFileParameterImpl fileParameter =
+            new FilesystemBasedFileParameterImpl();
+    private final TestAuth auth;
+    private final TestDir dir;
+    private int blockSize = 8192;
+
+    public FilesystemBasedTestSession(File root) {
+        this.root = root;
+        auth = new TestAuth(this);
+        dir = new TestDir(this);
+    }
+
+    public File getRoot() {
+        return root;
+    }
+
+    public void setBlockSize(int blockSize) {
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * @param name
+     *            name of the file under the root
+     * @return a new file of this session
+     * @throws CommandAbstractException
+     */
+    public TestFile newFile(String name) throws CommandAbstractException {
+        return new TestFile(this, dir, DirInterface.SEPARATOR + name, false);
+    }
+
+    public TestDir getDir() {
+        return dir;
+    }
+
+    public AuthInterface getAuth() {
+        return auth;
+    }
+
+    public void clear() {
+        FilesystemBasedBlockSizeController.remove(this);
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public FilesystemBasedFileParameterImpl getFileParameter() {
+        return fileParameter;
+    }
+
+    public Restart getRestart() {
+        return null;
+    }
+
+    public String getUniqueExtension() {
+        return ".stou";
+    }
+
+    public static class TestAuth extends FilesystemBasedAuthImpl {
+        private final FilesystemBasedTestSession session;
+
+        TestAuth(FilesystemBasedTestSession session) {
+            super(session);
+            this.session = session;
+            isIdentified = true;
+        }
+
+        protected NextCommandReply setBusinessUser(String user)
+                throws Reply421Exception, Reply530Exception {
+            return null;
+        }
+
+        protected NextCommandReply setBusinessPassword(String password)
+                throws Reply421Exception, Reply530Exception {
+            return null;
+        }
+
+        protected String setBusinessRootFromAuth() throws Reply421Exception {
+            return null;
+        }
+
+        protected void businessClean() {
+        }
+
+        public boolean isAdmin() {
+            return true;
+        }
+
+        public boolean isBusinessPathValid(String newPath) {
+            return true;
+        }
+
+        public String getBaseDirectory() {
+            return FilesystemBasedDirImpl.normalizePath(session.root.getAbsolutePath());
+        }
+    }
+
+    public static class TestDir extends FilesystemBasedDirImpl {
+        TestDir(FilesystemBasedTestSession session) {
+            super(session, new FilesystemBasedOptsMLSxImpl());
+            currentDir = DirInterface.SEPARATOR;
+        }
+
+        public FileInterface newFile(String path, boolean append)
+                throws CommandAbstractException {
+            return new TestFile((FilesystemBasedTestSession) getSession(), this, path, append);
+        }
+    }
+
+    public static class TestFile extends FilesystemBasedFileImpl {
+        TestFile(FilesystemBasedTestSession session, FilesystemBasedDirImpl dir, String path,
+                boolean append) throws CommandAbstractException {
+            super(session, dir, path, append);
+        }
+
+        public boolean isReady() {
+            return isReady;
+        }
+
+        public void setReady() {
+            isReady = true;
+        }
+    }
+}
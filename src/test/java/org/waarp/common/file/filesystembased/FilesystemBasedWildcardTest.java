@@ -0,0 +1,29 @@
+package org.waarp.common.file.filesystembased;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+public class FilesystemBasedWildcardTest {
+
+    @Test
+    public void testPattern() {
+        assertNull(FilesystemBasedWildcard.getPattern("file.txt"));
+        Pattern pattern = FilesystemBasedWildcard.getPattern("f?le*.txt");
+        assertSame(pattern, FilesystemBasedWildcard.getPattern("f?le*.txt"));
+        assertTrue(pattern.matcher("file.txt").matches());
+        assertTrue(pattern.matcher("fole123.txt").matches());
+        assertFalse(pattern.matcher("fle.txt").matches());
+        assertFalse(pattern.matcher("file1.txt2").matches());
+        assertFalse(pattern.matcher("FILE.txt").matches());
+        // regex characters are literal
+        pattern = FilesystemBasedWildcard.getPattern("a+(b)*");
+        assertTrue(pattern.matcher("a+(b)c").matches());
+        assertFalse(pattern.matcher("aa(b)").matches());
+    }
+}
@@ -0,0 +1,228 @@
+package org.waarp.common.file.filesystembased;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.waarp.common.command.exception.CommandAbstractException;
+import org.waarp.common.digest.FilesystemBasedDigest.DigestAlgo;
+import org.waarp.common.exception.FileTransferException;
+import org.waarp.common.file.DataBlock;
+import org.waarp.common.file.filesystembased.FilesystemBasedTestSession.TestFile;
+
+public class FilesystemBasedWriteBehindTest {
+    /**
+     * File whose queued writes wait for the disk to be released, and may fail
+     */
+    private static class SlowFile extends TestFile {
+        final CountDownLatch disk = new CountDownLatch(1);
+        volatile boolean fail = false;
+
+        SlowFile(FilesystemBasedTestSession session, String name)
+                throws CommandAbstractException {
+            super(session, session.getDir(), "/" + name, false);
+        }
+
+        @Override
+        void writeQueuedBlocks(ByteBuf[] buffers, long end) throws FileTransferException {
+            try {
+                disk.await();
+            } catch (InterruptedException e) {
+                throw new FileTransferException("Interrupted", e);
+            }
+            if (fail) {
+                throw new FileTransferException("Disk failure");
+            }
+            super.writeQueuedBlocks(buffers, end);
+        }
+    }
+
+    private File root;
+    private FilesystemBasedTestSession session;
+
+    @Before
+    public void setUp() {
+        root = new File(System.getProperty("java.io.tmpdir"), "writebehindtest" + System.nanoTime());
+        assertTrue(root.mkdirs());
+        session = new FilesystemBasedTestSession(root);
+        session.getFileParameter().writeBehind = true;
+        session.getFileParameter().writeBehindHighWatermark = 2;
+        session.getFileParameter().writeBehindLowWatermark = 1;
+        session.getFileParameter().transferDigestAlgos = new DigestAlgo[] {
+                DigestAlgo.MD5 };
+    }
+
+    @After
+    public void tearDown() {
+        session.clear();
+        File[] files = root.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        root.delete();
+    }
+
+    private static byte[] content(File file) throws Exception {
+        byte[] content = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < content.length) {
+                read += in.read(content, read, content.length - read);
+            }
+        } finally {
+            in.close();
+        }
+        return content;
+    }
+
+    /**
+     * Write the content in blocks as a receiver does, releasing each block at once
+     */
+    private static List<ByteBuf> write(TestFile file, byte[] content, int blockSize)
+            throws Exception {
+        List<ByteBuf> sent = new ArrayList<ByteBuf>();
+        for (int pos = 0; pos < content.length; pos += blockSize) {
+            int length = Math.min(blockSize, content.length - pos);
+            ByteBuf buffer = Unpooled.copiedBuffer(content, pos, length);
+            DataBlock block = new DataBlock();
+            block.setBlock(buffer);
+            block.setEOF(pos + length >= content.length);
+            file.writeDataBlock(block);
+            // consumed and accounted on the caller's thread
+            assertEquals(0, buffer.readableBytes());
+            if (pos + length < content.length) {
+                assertEquals(pos + length, file.getPosition());
+            }
+            buffer.release();
+            sent.add(buffer);
+        }
+        return sent;
+    }
+
+    @Test
+    public void testWriteBehind() throws Exception {
+        byte[] content = new byte[1024 * 1024 + 17];
+        new Random(5).nextBytes(content);
+        TestFile file = session.newFile("behind");
+        List<ByteBuf> sent = write(file, content, 8192);
+        assertArrayEquals(MessageDigest.getInstance("MD5").digest(content),
+                file.getTransferDigest(DigestAlgo.MD5));
+        file.closeFile();
+        assertArrayEquals(content, content(new File(root, "behind")));
+        for (ByteBuf buffer : sent) {
+            assertEquals(0, buffer.refCnt());
+        }
+    }
+
+    @Test
+    public void testWriteBehindChannel() throws Exception {
+        byte[] content = new byte[512 * 1024];
+        new Random(6).nextBytes(content);
+        EmbeddedChannel channel = new EmbeddedChannel();
+        TestFile file = session.newFile("channel");
+        file.setWriteBehindChannel(channel);
+        write(file, content, 4096);
+        file.closeFile();
+        assertTrue(channel.config().isAutoRead());
+        assertArrayEquals(content, content(new File(root, "channel")));
+        channel.close();
+    }
+
+    @Test
+    public void testWriteBehindAbort() throws Exception {
+        TestFile file = session.newFile("abort");
+        DataBlock block = new DataBlock();
+        block.setBlock(Unpooled.wrappedBuffer(new byte[100]));
+        file.writeDataBlock(block);
+        file.abortFile();
+        assertFalse(file.isReady());
+        assertEquals(0, file.getPosition());
+    }
+
+    @Test
+    public void testWriteBehindChannelBounded() throws Exception {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        final SlowFile file = new SlowFile(session, "bounded");
+        file.setWriteBehindChannel(channel);
+        final AtomicInteger written = new AtomicInteger();
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        // blocks still received once autoRead is disabled
+        Thread receiver = new Thread() {
+            public void run() {
+                try {
+                    for (int i = 0; i < 100; i++) {
+                        DataBlock block = new DataBlock();
+                        block.setBlock(Unpooled.wrappedBuffer(new byte[1024]));
+                        block.setEOF(i == 99);
+                        file.writeDataBlock(block);
+                        block.getBlock().release();
+                        written.incrementAndGet();
+                    }
+                } catch (Exception e) {
+                    failure.set(e);
+                }
+            }
+        };
+        receiver.start();
+        Thread.sleep(500);
+        assertFalse(channel.config().isAutoRead());
+        // the queue (twice the high watermark) and the batch being written
+        assertTrue("Queued blocks: " + written.get(), written.get() <= 4 + 4 + 1);
+        file.disk.countDown();
+        receiver.join(10000);
+        assertFalse(receiver.isAlive());
+        assertEquals(null, failure.get());
+        assertEquals(100 * 1024, new File(root, "bounded").length());
+        channel.close();
+    }
+
+    @Test
+    public void testWriteBehindLastBlockError() throws Exception {
+        SlowFile file = new SlowFile(session, "failed");
+        file.fail = true;
+        file.disk.countDown();
+        DataBlock block = new DataBlock();
+        block.setBlock(Unpooled.wrappedBuffer(new byte[100]));
+        block.setEOF(true);
+        try {
+            file.writeDataBlock(block);
+            fail("Error not reported on the last block");
+        } catch (FileTransferException e) {
+            // the last block was not written
+        }
+        assertEquals(null, file.getTransferDigest(DigestAlgo.MD5));
+        file.abortFile();
+        // a new transfer on the same file does not see the previous error
+        file.fail = false;
+        file.setReady();
+        byte[] content = new byte[10000];
+        new Random(8).nextBytes(content);
+        write(file, content, 1000);
+        assertArrayEquals(content, content(new File(root, "failed")));
+        assertArrayEquals(MessageDigest.getInstance("MD5").digest(content),
+                file.getTransferDigest(DigestAlgo.MD5));
+        assertFalse(file.isReady());
+    }
+}
@@ -0,0 +1,95 @@
+package org.waarp.common.file.memorybased;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import org.junit.Test;
+
+public class MemoryBasedStoreTest {
+
+    @Test
+    public void testTree() {
+        MemoryBasedStore store = new MemoryBasedStore(1024 * 1024, Long.MAX_VALUE, null);
+        assertTrue(store.mkdirs("/a/b"));
+        assertNotNull(store.createFile("/a/b/f1"));
+        assertNotNull(store.createFile("/a/f2"));
+        assertNull(store.createFile("/c/f3"));
+        assertEquals(Arrays.asList("a"), store.getChildren("/"));
+        assertEquals(Arrays.asList("b", "f2"), store.getChildren("/a"));
+        assertFalse(store.delete("/a/b"));
+        assertTrue(store.rename("/a/b", "/d"));
+        assertNotNull(store.get("/d/f1"));
+        assertNull(store.get("/a/b/f1"));
+        assertTrue(store.delete("/d/f1"));
+        assertTrue(store.delete("/d"));
+        store.clear();
+        assertEquals(1, store.size());
+    }
+
+    @Test
+    public void testContentAndSpill() throws Exception {
+        File dir = new File(System.getProperty("java.io.tmpdir"));
+        MemoryBasedStore store = new MemoryBasedStore(8 * 1024, 6 * 1024, dir, 1024);
+        MemoryBasedEntry entry = store.createFile("/file");
+        byte[] data = new byte[5000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        ByteBuf buffer = Unpooled.wrappedBuffer(data);
+        assertEquals(3000, entry.write(0, buffer.slice(0, 3000)));
+        assertEquals(2000, entry.write(3000, buffer.slice(3000, 2000)));
+        assertFalse(entry.isSpilled());
+        assertEquals(5 * 1024, store.getUsedMemory());
+        assertEquals(buffer, entry.read(0, 10000));
+        // beyond the threshold, the file goes to disk
+        assertEquals(5000, entry.write(5000, buffer));
+        assertTrue(entry.isSpilled());
+        assertEquals(0, store.getUsedMemory());
+        assertEquals(10000, entry.length());
+        assertEquals(buffer, entry.read(5000, 5000));
+        assertTrue(store.delete("/file"));
+    }
+
+    @Test
+    public void testSpillFilesDeleted() throws Exception {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "spilltest" + System.nanoTime());
+        assertTrue(dir.mkdirs());
+        try {
+            MemoryBasedStore store = new MemoryBasedStore(8 * 1024, 2 * 1024, dir, 1024);
+            ByteBuf buffer = Unpooled.wrappedBuffer(new byte[3000]);
+            assertEquals(3000, store.createFile("/f1").write(0, buffer.slice()));
+            assertEquals(3000, store.createFile("/f2").write(0, buffer.slice()));
+            assertEquals(3000, store.createFile("/f3").write(0, buffer.slice()));
+            assertEquals(3, dir.list().length);
+            assertEquals(3, store.getSpillFileCount());
+            // deleted with their entry
+            assertTrue(store.delete("/f1"));
+            assertEquals(2, dir.list().length);
+            store.clear();
+            assertEquals(0, dir.list().length);
+            assertEquals(0, store.getSpillFileCount());
+            store.createFile("/f4").write(0, buffer.slice());
+            // and by close
+            store.close();
+            assertEquals(0, dir.list().length);
+            assertEquals(1, store.size());
+        } finally {
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            dir.delete();
+        }
+    }
+}
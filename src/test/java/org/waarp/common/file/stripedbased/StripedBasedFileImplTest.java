@@ -0,0 +1,164 @@
+package org.waarp.common.file.stripedbased;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.Random;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.waarp.common.command.exception.CommandAbstractException;
+import org.waarp.common.exception.FileEndOfTransferException;
+import org.waarp.common.file.DataBlock;
+import org.waarp.common.file.FileInterface;
+import org.waarp.common.file.SessionInterface;
+import org.waarp.common.file.filesystembased.FilesystemBasedOptsMLSxImpl;
+import org.waarp.common.file.filesystembased.FilesystemBasedTestSession;
+
+public class StripedBasedFileImplTest {
+    private static class TestDir extends StripedBasedDirImpl {
+        TestDir(SessionInterface session, StripedStorage storage) {
+            super(session, new FilesystemBasedOptsMLSxImpl(), storage);
+            currentDir = SEPARATOR;
+        }
+
+        public FileInterface newFile(String path, boolean append)
+                throws CommandAbstractException {
+            return new TestFile(getSession(), this, path, append);
+        }
+    }
+
+    private static class TestFile extends StripedBasedFileImpl {
+        TestFile(SessionInterface session, StripedBasedDirImpl dir, String path, boolean append)
+                throws CommandAbstractException {
+            super(session, dir, path, append);
+        }
+    }
+
+    private File base;
+    private StripedStorage storage;
+    private TestDir dir;
+
+    @Before
+    public void setUp() {
+        base = new File(System.getProperty("java.io.tmpdir"), "stripedfiletest" +
+                System.nanoTime());
+        File business = new File(base, "business");
+        assertTrue(business.mkdirs());
+        storage = new StripedStorage(new File[] {
+                new File(base, "d0"), new File(base, "d1"), new File(base, "d2") }, 1000);
+        dir = new TestDir(new FilesystemBasedTestSession(business), storage);
+    }
+
+    @After
+    public void tearDown() {
+        storage.close();
+        delete(base);
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static void write(FileInterface file, byte[] content, int from, int to, boolean eof)
+            throws Exception {
+        for (int pos = from; pos < to; pos += 700) {
+            int length = Math.min(700, to - pos);
+            DataBlock block = new DataBlock();
+            ByteBuf buffer = Unpooled.copiedBuffer(content, pos, length);
+            block.setBlock(buffer);
+            block.setEOF(eof && pos + length >= to);
+            file.writeDataBlock(block);
+            buffer.release();
+        }
+    }
+
+    private static byte[] read(FileInterface file) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        while (true) {
+            DataBlock block;
+            try {
+                block = file.readDataBlock();
+            } catch (FileEndOfTransferException e) {
+                break;
+            }
+            byte[] bytes = new byte[block.getByteCount()];
+            block.getBlock().readBytes(bytes);
+            block.getBlock().release();
+            out.write(bytes);
+            if (block.isEOF()) {
+                break;
+            }
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testWriteRestartReadRename() throws Exception {
+        byte[] content = new byte[10000];
+        new Random(3).nextBytes(content);
+        FileInterface file = dir.newFile("/f", false);
+        write(file, content, 0, 4200, false);
+        file.closeFile();
+        // restart from the current length
+        file = dir.newFile("/f", true);
+        assertEquals(4200, ((TestFile) file).getPosition());
+        write(file, content, 4200, content.length, true);
+        file = dir.newFile("/f", false);
+        assertEquals(content.length, file.length());
+        assertArrayEquals(content, read(file));
+        // renamed while being read
+        file = dir.newFile("/f", false);
+        file.readDataBlock().getBlock().release();
+        assertTrue(file.renameTo("/g"));
+        assertFalse(storage.getStripeFile("/f", 0).exists());
+        assertTrue(storage.getStripeFile("/g", 0).exists());
+        file = dir.newFile("/g", false);
+        assertArrayEquals(content, read(file));
+    }
+
+    @Test
+    public void testRenameWhileWriting() throws Exception {
+        byte[] content = new byte[8000];
+        new Random(4).nextBytes(content);
+        FileInterface file = dir.newFile("/w", false);
+        write(file, content, 0, content.length, false);
+        // the pending writes are done before the stripes move
+        assertTrue(file.renameTo("/x"));
+        file = dir.newFile("/x", false);
+        assertEquals(content.length, file.length());
+        assertArrayEquals(content, read(file));
+    }
+
+    @Test
+    public void testRenameRollback() throws Exception {
+        byte[] content = new byte[5000];
+        new Random(5).nextBytes(content);
+        FileInterface file = dir.newFile("/r", false);
+        write(file, content, 0, content.length, true);
+        // a stripe of the target is already there
+        File conflict = storage.getStripeFile("/s", 2);
+        assertTrue(conflict.getParentFile().mkdirs() || conflict.getParentFile().isDirectory());
+        assertTrue(conflict.createNewFile());
+        file = dir.newFile("/r", false);
+        assertFalse(file.renameTo("/s"));
+        assertTrue(storage.getStripeFile("/r", 0).exists());
+        assertTrue(storage.getStripeFile("/r", 1).exists());
+        assertFalse(storage.getStripeFile("/s", 0).exists());
+        assertArrayEquals(content, read(dir.newFile("/r", false)));
+    }
+}
@@ -0,0 +1,85 @@
+package org.waarp.common.file.stripedbased;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import org.junit.Test;
+import org.waarp.common.digest.FilesystemBasedDigest.DigestAlgo;
+
+public class StripedStorageTest {
+
+    @Test
+    public void testLayout() {
+        StripedManifest manifest = new StripedManifest(3, 10, -1);
+        assertEquals(0, manifest.getStripe(9));
+        assertEquals(1, manifest.getStripe(10));
+        assertEquals(0, manifest.getStripe(35));
+        assertEquals(15, manifest.getStripeOffset(35));
+        // 45 bytes: chunks 0,3 on stripe 0 (20), 1,4 on stripe 1 (15), 2 on stripe 2 (10)
+        assertEquals(20, manifest.getStripeLength(45, 0));
+        assertEquals(15, manifest.getStripeLength(45, 1));
+        assertEquals(10, manifest.getStripeLength(45, 2));
+        assertEquals(45, manifest.getContiguousLength(new long[] {
+                20, 15, 10 }));
+        // a partial chunk 2 stops the contiguous length in it
+        assertEquals(24, manifest.getContiguousLength(new long[] {
+                20, 15, 4 }));
+    }
+
+    @Test
+    public void testWriteReadDigest() throws Exception {
+        File base = new File(System.getProperty("java.io.tmpdir"), "stripedtest" +
+                System.nanoTime());
+        File[] roots = new File[] {
+                new File(base, "d0"), new File(base, "d1") };
+        StripedStorage storage = new StripedStorage(roots, 16);
+        File manifestFile = new File(base, "manifest");
+        try {
+            byte[] content = new byte[100];
+            new Random(1).nextBytes(content);
+            StripedManifest manifest = storage.newManifest();
+            assertTrue(base.mkdirs());
+            manifest.write(manifestFile);
+            assertEquals(-1, StripedManifest.read(manifestFile).getLength());
+            FileChannel[] channels = storage.openChannels("/a/f", manifest, true);
+            for (int pos = 0; pos < content.length; pos += 16) {
+                ByteBuf buffer = Unpooled.wrappedBuffer(content, pos,
+                        Math.min(16, content.length - pos));
+                StripedStorage.writeChunk(channels, manifest, pos, buffer);
+            }
+            StripedStorage.closeChannels(channels);
+            assertEquals(100, storage.getLength("/a/f", manifest));
+            channels = storage.openChannels("/a/f", manifest, false);
+            ByteBuf chunk = StripedStorage.readChunk(channels, manifest, 48, 16);
+            byte[] read = new byte[16];
+            chunk.readBytes(read);
+            chunk.release();
+            StripedStorage.closeChannels(channels);
+            for (int i = 0; i < 16; i++) {
+                assertEquals(content[48 + i], read[i]);
+            }
+            assertArrayEquals(MessageDigest.getInstance("MD5").digest(content),
+                    storage.getDigests("/a/f", manifest, DigestAlgo.MD5).get(DigestAlgo.MD5));
+            assertTrue(storage.deleteStripes("/a/f", manifest));
+            assertNull(StripedManifest.read(new File(roots[0], "/a/f")));
+        } finally {
+            storage.close();
+            manifestFile.delete();
+            for (File root : roots) {
+                new File(root, "a").delete();
+                root.delete();
+            }
+            base.delete();
+        }
+    }
+}
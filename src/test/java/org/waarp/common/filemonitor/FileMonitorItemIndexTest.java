@@ -0,0 +1,106 @@
+package org.waarp.common.filemonitor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.junit.Test;
+import org.waarp.common.filemonitor.FileMonitor.FileItem;
+
+public class FileMonitorItemIndexTest {
+    private static final int NB = 200000;
+
+    private static String key(int i) {
+        return "/data/in/zone" + (i % 100) + "/file_" + i + ".dat";
+    }
+
+    private static FileItem item(String key, int i) {
+        FileItem item = new FileItem(new File(key));
+        item.lastTime = 1000L * i;
+        item.length = i;
+        item.timeUsed = 2000L * i;
+        item.specialId = i;
+        item.used = true;
+        item.hash = new byte[16];
+        item.hash[0] = (byte) i;
+        return item;
+    }
+
+    @Test
+    public void testPutGetRemove() {
+        FileMonitorItemIndex index = new FileMonitorItemIndex(16);
+        for (int i = 0; i < NB; i++) {
+            assertTrue(index.put(key(i), item(key(i), i), false));
+        }
+        assertEquals(NB, index.size());
+        FileItem item = index.get(key(1234));
+        assertTrue(item.isStrictlySame(item(key(1234), 1234)));
+        assertEquals(1234, item.specialId);
+        assertNull(index.get("/data/in/zone1/unknown"));
+        // replace
+        FileItem other = item(key(5), 7);
+        other.hash = null;
+        index.put(key(5), other, false);
+        assertEquals(NB, index.size());
+        assertNull(index.get(key(5)).hash);
+        assertEquals(7, index.get(key(5)).specialId);
+        // remove most of them, slots are then reclaimed
+        for (int i = 0; i < NB; i += 4) {
+            assertTrue(index.remove(key(i)));
+            assertTrue(index.remove(key(i + 1)));
+            assertTrue(index.remove(key(i + 2)));
+        }
+        assertFalse(index.remove(key(0)));
+        assertEquals(NB / 4, index.size());
+        assertTrue(index.getSlots() < NB);
+        for (int i = 0; i < NB; i++) {
+            assertEquals(i % 4 == 3, index.contains(key(i)));
+        }
+        assertArrayEquals(item(key(7), 7).hash, index.get(key(7)).hash);
+    }
+
+    @Test
+    public void testMemory() {
+        FileMonitorItemIndex index = new FileMonitorItemIndex(16);
+        for (int i = 0; i < NB; i++) {
+            index.put(key(i), item(key(i), i), false);
+        }
+        long perItem = index.getMemorySize() / NB;
+        assertTrue("bytes per item " + perItem, perItem < 100);
+    }
+
+    @Test
+    public void testMapView() {
+        FileMonitorItemIndex index = new FileMonitorItemIndex(4);
+        Map<String, FileItem> active = new HashMap<String, FileItem>();
+        active.put("/a/active", new FileItem(new File("/a/active")));
+        index.put("/a/used", item("/a/used", 1), false);
+        index.put("noparent", item("noparent", 2), false);
+        Map<String, FileItem> all = index.asMap(active);
+        assertEquals(3, all.size());
+        assertTrue(all.containsKey("/a/used"));
+        assertEquals(2, all.get("noparent").specialId);
+        int nb = 0;
+        for (Entry<String, FileItem> entry : all.entrySet()) {
+            assertTrue(all.containsKey(entry.getKey()));
+            nb++;
+        }
+        assertEquals(3, nb);
+        // reported once
+        Map<String, FileItem> status = new HashMap<String, FileItem>();
+        index.collectUnreported(status);
+        assertEquals(2, status.size());
+        status.clear();
+        index.collectUnreported(status);
+        assertTrue(status.isEmpty());
+        index.remove("/a/used");
+        assertEquals(1, index.drainRemovedReported().size());
+    }
+}
@@ -0,0 +1,157 @@
+package org.waarp.common.filemonitor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.waarp.common.filemonitor.FileMonitorScanner.ScannedFile;
+
+public class FileMonitorScannerTest {
+    private static final FileFilter ALL = new FileFilter() {
+        public boolean accept(File pathname) {
+            assertFalse(pathname.isDirectory());
+            return true;
+        }
+    };
+
+    private File base;
+    private FileMonitorScanner scanner;
+
+    @Before
+    public void setUp() throws IOException {
+        base = new File(System.getProperty("java.io.tmpdir"), "scannertest" + System.nanoTime());
+        // several levels of sub directories, scanned in parallel
+        for (int i = 0; i < 4; i++) {
+            for (int j = 0; j < 3; j++) {
+                File directory = new File(base, "in" + i + File.separator + "sub" + j);
+                assertTrue(directory.mkdirs());
+                createFile(new File(directory, "file" + j + ".dat"), 10 * j);
+                createFile(new File(directory, "file" + j + ".tmp"), 1);
+            }
+            createFile(new File(base, "in" + i + File.separator + "top.dat"), 100 + i);
+        }
+        scanner = new FileMonitorScanner(4);
+    }
+
+    @After
+    public void tearDown() {
+        scanner.close();
+        delete(base);
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static void createFile(File file, int size) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[size]);
+        } finally {
+            out.close();
+        }
+    }
+
+    private List<File> directories() {
+        List<File> directories = new ArrayList<File>();
+        for (int i = 0; i < 4; i++) {
+            directories.add(new File(base, "in" + i));
+        }
+        return directories;
+    }
+
+    private static List<String> paths(List<File> files) {
+        List<String> paths = new ArrayList<String>(files.size());
+        for (File file : files) {
+            paths.add(file.getPath());
+        }
+        Collections.sort(paths);
+        return paths;
+    }
+
+    @Test
+    public void testRecursive() {
+        List<File> found = scanner.scan(directories(), ALL, true);
+        assertEquals(4 * 7, found.size());
+        List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < 4; i++) {
+            for (int j = 0; j < 3; j++) {
+                String directory = new File(base, "in" + i + File.separator + "sub" + j)
+                        .getPath();
+                expected.add(directory + File.separator + "file" + j + ".dat");
+                expected.add(directory + File.separator + "file" + j + ".tmp");
+            }
+            expected.add(new File(base, "in" + i + File.separator + "top.dat").getPath());
+        }
+        Collections.sort(expected);
+        assertEquals(expected, paths(found));
+    }
+
+    @Test
+    public void testFilter() {
+        List<File> found = scanner.scan(directories(), new FileFilter() {
+            public boolean accept(File pathname) {
+                return pathname.getName().endsWith(".dat");
+            }
+        }, true);
+        assertEquals(4 * 4, found.size());
+        for (File file : found) {
+            assertTrue(file.getName().endsWith(".dat"));
+        }
+    }
+
+    @Test
+    public void testNotRecursive() {
+        List<File> found = scanner.scan(Arrays.asList(new File(base, "in1")), ALL, false);
+        assertEquals(Arrays.asList(new File(base, "in1" + File.separator + "top.dat").getPath()),
+                paths(found));
+    }
+
+    @Test
+    public void testScannedAttributes() throws IOException {
+        File real = new File(base, "in2" + File.separator + "sub2" + File.separator + "file2.dat");
+        List<File> found = scanner.scan(Arrays.asList(real.getParentFile()), ALL, false);
+        assertEquals(2, found.size());
+        ScannedFile scanned = null;
+        for (File file : found) {
+            if (file.getName().equals(real.getName())) {
+                scanned = (ScannedFile) file;
+            }
+        }
+        assertEquals(20, scanned.length());
+        assertEquals(Files.getLastModifiedTime(real.toPath()).toMillis(), scanned.lastModified());
+        assertTrue(scanned.isFile());
+        assertFalse(scanned.isDirectory());
+        // attributes read once during the scan
+        assertTrue(real.delete());
+        assertTrue(scanned.exists());
+        assertEquals(20, scanned.length());
+        assertFalse(scanned.getFile().exists());
+    }
+
+    @Test
+    public void testMissingDirectory() {
+        List<File> directories = directories();
+        directories.add(new File(base, "missing"));
+        assertEquals(4 * 7, scanner.scan(directories, ALL, true).size());
+    }
+}
@@ -0,0 +1,71 @@
+package org.waarp.common.filemonitor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.waarp.common.filemonitor.FileMonitor.StabilityCheck;
+
+public class FileMonitorStabilityTest {
+    private static final int LENGTH = 1024 * 1024;
+    private File file;
+    private FileMonitor monitor;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("stability", ".bin");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.write(new byte[LENGTH]);
+        raf.close();
+        monitor = new FileMonitor("stability", null, new File(file.getPath() + ".stop"),
+                file.getParentFile(), null, 1000, null, false, null, null, null);
+        monitor.setSampling(4096, 2);
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    private void write(long position) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(position);
+        int value = raf.read();
+        raf.seek(position);
+        raf.write(value + 1);
+        raf.close();
+    }
+
+    @Test
+    public void testSampledHash() throws IOException {
+        byte[] hash = monitor.getStabilityHash(file, LENGTH);
+        assertNotNull(hash);
+        // head, 2 middle blocks and tail only
+        assertEquals(4 * 4096, monitor.bytesHashed);
+        assertTrue(Arrays.equals(hash, monitor.getStabilityHash(file, LENGTH)));
+        write(LENGTH - 1);
+        byte[] tail = monitor.getStabilityHash(file, LENGTH);
+        assertFalse(Arrays.equals(hash, tail));
+        // outside of the samples
+        write(LENGTH / 6);
+        assertTrue(Arrays.equals(tail, monitor.getStabilityHash(file, LENGTH)));
+    }
+
+    @Test
+    public void testFullHash() throws IOException {
+        monitor.setStabilityCheck(StabilityCheck.FULL_HASH);
+        byte[] hash = monitor.getStabilityHash(file, LENGTH);
+        assertEquals(LENGTH, monitor.bytesHashed);
+        write(LENGTH / 6);
+        assertFalse(Arrays.equals(hash, monitor.getStabilityHash(file, LENGTH)));
+    }
+}
@@ -0,0 +1,164 @@
+package org.waarp.common.filemonitor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.waarp.common.filemonitor.FileMonitor.FileItem;
+
+public class FileMonitorStatusStoreTest {
+    private File statusFile;
+    private int compactMinRecords;
+
+    @Before
+    public void setUp() throws IOException {
+        statusFile = File.createTempFile("status", ".json");
+        statusFile.delete();
+        compactMinRecords = FileMonitorStatusStore.compactMinRecords;
+    }
+
+    @After
+    public void tearDown() {
+        FileMonitorStatusStore.compactMinRecords = compactMinRecords;
+        new File(statusFile.getPath() + ".snap").delete();
+        new File(statusFile.getPath() + ".jnl").delete();
+    }
+
+    private static FileItem item(String path, long lastTime) {
+        FileItem item = new FileItem(new File(path));
+        item.lastTime = lastTime;
+        item.length = lastTime * 10;
+        item.hash = new byte[] {
+                1, 2, 3 };
+        return item;
+    }
+
+    @Test
+    public void testJournalReplay() throws IOException {
+        Map<String, FileItem> items = new HashMap<String, FileItem>();
+        items.put("/a", item("/a", 1));
+        items.put("/b", item("/b", 2));
+        FileMonitorStatusStore store = new FileMonitorStatusStore(statusFile);
+        store.compact(items);
+        items.get("/a").used = true;
+        items.get("/a").specialId = 42;
+        items.remove("/b");
+        items.put("/c", item("/c", 3));
+        store.save(Arrays.asList("/a", "/b", "/c"), items);
+        store.close();
+        assertEquals(3, store.getJournalRecords());
+
+        Map<String, FileItem> loaded = new HashMap<String, FileItem>();
+        store = new FileMonitorStatusStore(statusFile);
+        assertTrue(store.exists());
+        store.load(loaded);
+        assertEquals(2, loaded.size());
+        assertTrue(loaded.get("/a").used);
+        assertEquals(42, loaded.get("/a").specialId);
+        assertArrayEquals(new byte[] {
+                1, 2, 3 }, loaded.get("/a").hash);
+        assertNull(loaded.get("/b"));
+        assertEquals(3, loaded.get("/c").lastTime);
+        assertEquals(30, loaded.get("/c").length);
+        assertEquals(new File("/c"), loaded.get("/c").file);
+    }
+
+    @Test
+    public void testTornRecordAndCompaction() throws IOException {
+        FileMonitorStatusStore.compactMinRecords = 4;
+        Map<String, FileItem> items = new HashMap<String, FileItem>();
+        items.put("/a", item("/a", 1));
+        FileMonitorStatusStore store = new FileMonitorStatusStore(statusFile);
+        store.compact(items);
+        items.put("/b", item("/b", 2));
+        store.save(Arrays.asList("/b"), items);
+        items.put("/c", item("/c", 3));
+        store.save(Arrays.asList("/c"), items);
+        store.close();
+        // torn last record
+        File journal = new File(statusFile.getPath() + ".jnl");
+        RandomAccessFile raf = new RandomAccessFile(journal, "rw");
+        raf.setLength(raf.length() - 5);
+        raf.close();
+        Map<String, FileItem> loaded = new HashMap<String, FileItem>();
+        store = new FileMonitorStatusStore(statusFile);
+        store.load(loaded);
+        assertEquals(2, loaded.size());
+        assertFalse(loaded.containsKey("/c"));
+        assertEquals(1, store.getJournalRecords());
+
+        // more records than the limit: compacted into a new snapshot
+        for (int i = 0; i < 5; i++) {
+            loaded.get("/a").lastTime = 10 + i;
+            store.save(Arrays.asList("/a"), loaded);
+        }
+        assertTrue(store.getJournalRecords() < 4);
+        store.close();
+        Map<String, FileItem> reloaded = new HashMap<String, FileItem>();
+        store = new FileMonitorStatusStore(statusFile);
+        store.load(reloaded);
+        assertEquals(loaded.keySet(), reloaded.keySet());
+        assertEquals(14, reloaded.get("/a").lastTime);
+    }
+
+    @Test
+    public void testCorruptedLength() throws IOException {
+        Map<String, FileItem> items = new HashMap<String, FileItem>();
+        items.put("/a", item("/a", 1));
+        FileMonitorStatusStore store = new FileMonitorStatusStore(statusFile);
+        store.compact(items);
+        items.put("/b", item("/b", 2));
+        store.save(Arrays.asList("/b"), items);
+        items.put("/c", item("/c", 3));
+        store.save(Arrays.asList("/c"), items);
+        store.close();
+        File journal = new File(statusFile.getPath() + ".jnl");
+        long second;
+        RandomAccessFile raf = new RandomAccessFile(journal, "rw");
+        try {
+            raf.seek(FileMonitorStatusStore.HEADER_SIZE);
+            second = FileMonitorStatusStore.HEADER_SIZE +
+                    FileMonitorStatusStore.RECORD_HEADER_SIZE + raf.readInt();
+        } finally {
+            raf.close();
+        }
+        // huge, then larger than the rest of the file but under the maximum size
+        for (int length : new int[] {
+                Integer.MAX_VALUE - 8, 100000 }) {
+            raf = new RandomAccessFile(journal, "rw");
+            try {
+                raf.seek(second);
+                raf.writeInt(length);
+            } finally {
+                raf.close();
+            }
+            Map<String, FileItem> loaded = new HashMap<String, FileItem>();
+            store = new FileMonitorStatusStore(statusFile);
+            store.load(loaded);
+            assertEquals(2, loaded.size());
+            assertFalse(loaded.containsKey("/c"));
+            assertEquals(1, store.getJournalRecords());
+            // the corrupted record is dropped
+            assertEquals(second, journal.length());
+            store.close();
+            raf = new RandomAccessFile(journal, "rw");
+            try {
+                raf.setLength(second + FileMonitorStatusStore.RECORD_HEADER_SIZE);
+            } finally {
+                raf.close();
+            }
+        }
+    }
+}
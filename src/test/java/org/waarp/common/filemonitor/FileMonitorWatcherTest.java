@@ -0,0 +1,153 @@
+package org.waarp.common.filemonitor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.waarp.common.file.AbstractDir;
+import org.waarp.common.filemonitor.FileMonitor.FileItem;
+
+public class FileMonitorWatcherTest {
+    /**
+     * Counts the checks of the existence of the file done by the FileMonitor (not by the status
+     * serialization)
+     */
+    private static class CountingFile extends File {
+        private static final long serialVersionUID = 1L;
+        int isFileCalls = 0;
+
+        CountingFile(File file) {
+            super(file.getPath());
+        }
+
+        @Override
+        public boolean isFile() {
+            if (new Throwable().getStackTrace()[1].getClassName()
+                    .startsWith(FileMonitor.class.getName())) {
+                isFileCalls++;
+            }
+            return super.isFile();
+        }
+    }
+
+    private File base;
+    private File directory;
+    private FileMonitor monitor;
+    private final List<File> removed = new CopyOnWriteArrayList<File>();
+
+    @Before
+    public void setUp() throws IOException {
+        base = new File(System.getProperty("java.io.tmpdir"), "watchertest" + System.nanoTime());
+        directory = new File(base, "in");
+        assertTrue(directory.mkdirs());
+        monitor = new FileMonitor("watcher", new File(base, "status.json"),
+                new File(base, "watcher.stop"), directory, null, 1000, null, false,
+                new FileMonitorCommandRunnableFuture() {
+                    public void run(FileItem fileItem) {
+                        fileItem.used = true;
+                    }
+                }, new FileMonitorCommandRunnableFuture() {
+                    public void run(FileItem fileItem) {
+                        removed.add(fileItem.file);
+                    }
+                }, null);
+        monitor.setUseWatchService(true, 3600 * 1000);
+        monitor.watcher = new FileMonitorWatcher("watcher", false);
+        monitor.watcher.register(directory);
+    }
+
+    @After
+    public void tearDown() {
+        monitor.stop();
+        delete(base);
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private File createFile(String name) throws IOException {
+        File file = new File(directory, name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[100]);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private FileItem getItem(File file) {
+        return monitor.fileItems.get(AbstractDir.normalizePath(file.getAbsolutePath()));
+    }
+
+    @Test
+    public void testDeletedByEvents() throws Exception {
+        File kept = createFile("kept");
+        File deleted = createFile("deleted");
+        // full scan then stability checks until both are used
+        for (int i = 0; i < 10; i++) {
+            assertTrue(monitor.checkFiles());
+        }
+        assertTrue(getItem(kept).used);
+        assertTrue(getItem(deleted).used);
+        // no check of the files not reported by the WatchService
+        CountingFile counting = new CountingFile(kept);
+        getItem(kept).file = counting;
+        assertTrue(monitor.checkFiles());
+        assertEquals(0, counting.isFileCalls);
+        // removed once the deletion is notified
+        assertTrue(deleted.delete());
+        for (int i = 0; i < 200 && removed.isEmpty(); i++) {
+            Thread.sleep(50);
+            assertTrue(monitor.checkFiles());
+        }
+        assertEquals(1, removed.size());
+        assertEquals(deleted.getAbsoluteFile(), removed.get(0).getAbsoluteFile());
+        assertTrue(getItem(deleted) == null);
+        assertFalse(getItem(kept) == null);
+        assertEquals(0, counting.isFileCalls);
+    }
+
+    @Test
+    public void testWatchedDirectoryDeleted() throws Exception {
+        FileMonitorWatcher watcher = new FileMonitorWatcher("deleted", true);
+        try {
+            File sub = new File(directory, "sub");
+            assertTrue(sub.mkdir());
+            watcher.register(directory);
+            assertTrue(watcher.paths.containsKey(sub.toPath().toAbsolutePath().normalize()));
+            assertFalse(watcher.isOverflow());
+            assertTrue(sub.delete());
+            boolean overflow = false;
+            for (int i = 0; i < 200 && !overflow; i++) {
+                Thread.sleep(50);
+                overflow = watcher.isOverflow();
+            }
+            // the files of a watched directory are not reported one by one
+            assertTrue(overflow);
+            for (int i = 0; i < 200 && watcher.keys.size() > 1; i++) {
+                Thread.sleep(50);
+            }
+            assertEquals(1, watcher.keys.size());
+            assertEquals(1, watcher.paths.size());
+        } finally {
+            watcher.close();
+        }
+    }
+}